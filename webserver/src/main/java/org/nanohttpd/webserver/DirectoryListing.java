@@ -0,0 +1,313 @@
+package org.nanohttpd.webserver;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.nanohttpd.webserver.dlna.KeyframeIndexCache;
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * Snapshot of the entries of a directory, directories first, each group
+ * sorted by name. Keyframe indexes stored next to media files are left
+ * out.
+ * <p/>
+ * <p>
+ * The directory is listed once and every entry is stat'ed once, through
+ * <code>java.nio.file</code> where it exists (Java 7, Android 8) and with
+ * {@link File#isDirectory()} and {@link File#length()} otherwise. Small
+ * rendered pages of the listing are kept with it, see
+ * {@link #getPage(String)}.
+ * </p>
+ */
+public class DirectoryListing {
+
+    /**
+     * Rendered pages larger than this are not kept.
+     */
+    static final int MAX_PAGE_SIZE = 64 * 1024;
+
+    /**
+     * Number of rendered variants (page and format) kept per listing.
+     */
+    private static final int MAX_PAGES = 8;
+
+    private static final boolean NIO_AVAILABLE = isNioAvailable();
+
+    /**
+     * An entry of the directory.
+     */
+    public static final class Entry {
+
+        private final String name;
+
+        private final boolean directory;
+
+        private final long length;
+
+        private final long lastModified;
+
+        Entry(String name, boolean directory, long length, long lastModified) {
+            this.name = name;
+            this.directory = directory;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public boolean isDirectory() {
+            return this.directory;
+        }
+
+        /**
+         * @return length in bytes, 0 for directories.
+         */
+        public long getLength() {
+            return this.length;
+        }
+
+        /**
+         * @return modification time in milliseconds, 0 if unknown.
+         */
+        public long getLastModified() {
+            return this.lastModified;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.directory != b.directory) {
+                return a.directory ? -1 : 1;
+            }
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    private final File directory;
+
+    private final long lastModified;
+
+    private final long readAt;
+
+    private final Entry[] entries;
+
+    private final int directoryCount;
+
+    private final String etag;
+
+    private final Map<String, byte[]> pages = new LinkedHashMap<String, byte[]>(MAX_PAGES, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+    private DirectoryListing(File directory, long lastModified, Entry[] entries) {
+        this.directory = directory;
+        this.lastModified = lastModified;
+        this.readAt = System.nanoTime();
+        this.entries = entries;
+        int directories = 0;
+        int hash = directory.getPath().hashCode() * 31 + (int) (lastModified ^ lastModified >>> 32);
+        for (Entry entry : entries) {
+            if (entry.directory) {
+                directories++;
+            }
+            hash = (hash * 31 + entry.name.hashCode()) * 31 + (int) (entry.length ^ entry.length >>> 32);
+            hash = hash * 31 + (int) (entry.lastModified ^ entry.lastModified >>> 32);
+        }
+        this.directoryCount = directories;
+        this.etag = Integer.toHexString(hash) + "-" + Integer.toHexString(entries.length);
+    }
+
+    /**
+     * Lists and stats the entries of <code>directory</code>.
+     *
+     * @return the listing, or null if the directory cannot be read.
+     */
+    public static DirectoryListing read(File directory) {
+        long lastModified = directory.lastModified();
+        String[] names = directory.list();
+        if (names == null) {
+            return null;
+        }
+        Entry[] entries = new Entry[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (KeyframeIndexCache.isIndexFile(name)) {
+                continue;
+            }
+            Entry entry = NIO_AVAILABLE ? NioStat.stat(directory, name) : stat(directory, name);
+            if (entry != null) {
+                entries[count++] = entry;
+            }
+        }
+        if (count < entries.length) {
+            entries = Arrays.copyOf(entries, count);
+        }
+        Arrays.sort(entries, ORDER);
+        return new DirectoryListing(directory, lastModified, entries);
+    }
+
+    /**
+     * @return the entry, or null if it vanished or is neither a file nor a
+     *         directory.
+     */
+    private static Entry stat(File directory, String name) {
+        File file = new File(directory, name);
+        if (file.isDirectory()) {
+            return new Entry(name, true, 0, 0);
+        }
+        long length = file.length();
+        if (length == 0 && !file.isFile()) {
+            return null;
+        }
+        return new Entry(name, false, length, 0);
+    }
+
+    /**
+     * Kept apart so that the <code>java.nio.file</code> classes are only
+     * loaded where they exist.
+     */
+    private static final class NioStat {
+
+        static Entry stat(File directory, String name) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(new File(directory, name).toPath(), BasicFileAttributes.class);
+                if (attributes.isDirectory()) {
+                    return new Entry(name, true, 0, attributes.lastModifiedTime().toMillis());
+                }
+                if (!attributes.isRegularFile()) {
+                    return null;
+                }
+                return new Entry(name, false, attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                // deleted since it was listed, or a dangling link
+                return null;
+            } catch (InvalidPathException e) {
+                // the name cannot be encoded in the charset of the file
+                // system, java.io.File manages with what it can
+                return DirectoryListing.stat(directory, name);
+            }
+        }
+    }
+
+    private static boolean isNioAvailable() {
+        try {
+            Class.forName("java.nio.file.Files");
+            return true;
+        } catch (Throwable t) {
+            NanoHTTPD.LOG.log(Level.FINE, "java.nio.file not available, listing directories with java.io.File", t);
+            return false;
+        }
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * @return modification time of the directory when it was listed.
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * @return System.nanoTime() when the directory was listed.
+     */
+    long getReadAt() {
+        return this.readAt;
+    }
+
+    public int size() {
+        return this.entries.length;
+    }
+
+    public Entry get(int index) {
+        return this.entries[index];
+    }
+
+    /**
+     * @return number of entries that are directories, they come first.
+     */
+    public int getDirectoryCount() {
+        return this.directoryCount;
+    }
+
+    /**
+     * @return an ETag that changes with the names, lengths and modification
+     *         times of the entries.
+     */
+    public String getEtag() {
+        return this.etag;
+    }
+
+    /**
+     * @param variant
+     *            the page and format, e.g. <code>html:1:500</code>.
+     * @return the rendered page, or null if it is not kept.
+     */
+    byte[] getPage(String variant) {
+        synchronized (this.pages) {
+            return this.pages.get(variant);
+        }
+    }
+
+    void putPage(String variant, byte[] page) {
+        if (page.length > MAX_PAGE_SIZE) {
+            return;
+        }
+        synchronized (this.pages) {
+            this.pages.put(variant, page);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.nanohttpd.webserver;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of {@link DirectoryListing}s, keyed by directory path.
+ * <p/>
+ * <p>
+ * A listing is reused as long as the modification time of its directory is
+ * unchanged, which costs one stat instead of one per entry. Adding, removing
+ * or renaming entries changes that time, a file growing in place does not;
+ * listings are therefore read again after <code>maxAge</code> milliseconds
+ * even if the directory looks unchanged. The least recently used listings
+ * are dropped once the entries of all listings exceed
+ * <code>maxEntries</code>.
+ * </p>
+ */
+public class DirectoryListingCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    public static final long DEFAULT_MAX_AGE = 10000;
+
+    private final LinkedHashMap<String, DirectoryListing> listings = new LinkedHashMap<String, DirectoryListing>(16, 0.75f, true);
+
+    private final int maxEntries;
+
+    private final long maxAgeNanos;
+
+    private int entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public DirectoryListingCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param maxEntries
+     *            upper bound for the entries of all cached listings.
+     * @param maxAge
+     *            milliseconds after which a listing is read again, 0 to
+     *            read directories on every request.
+     */
+    public DirectoryListingCache(int maxEntries, long maxAge) {
+        this.maxEntries = maxEntries;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAge);
+    }
+
+    /**
+     * @return the listing of <code>directory</code>, or null if it cannot be
+     *         read.
+     */
+    public DirectoryListing get(File directory) {
+        String path = directory.getPath();
+        DirectoryListing cached;
+        synchronized (this.listings) {
+            cached = this.listings.get(path);
+        }
+        if (cached != null && System.nanoTime() - cached.getReadAt() < this.maxAgeNanos && directory.lastModified() == cached.getLastModified()) {
+            this.hits.incrementAndGet();
+            return cached;
+        }
+        this.misses.incrementAndGet();
+
+        // read outside of the lock, a concurrent miss for the same directory
+        // just lists it twice.
+        DirectoryListing listing = DirectoryListing.read(directory);
+        synchronized (this.listings) {
+            DirectoryListing previous = this.listings.remove(path);
+            if (previous != null) {
+                this.entries -= previous.size();
+            }
+            if (listing != null && this.maxAgeNanos > 0 && listing.size() <= this.maxEntries) {
+                this.listings.put(path, listing);
+                this.entries += listing.size();
+                Iterator<DirectoryListing> eldest = this.listings.values().iterator();
+                while (this.entries > this.maxEntries && eldest.hasNext()) {
+                    this.entries -= eldest.next().size();
+                    eldest.remove();
+                }
+            }
+        }
+        return listing;
+    }
+
+    public void invalidate(File directory) {
+        synchronized (this.listings) {
+            DirectoryListing listing = this.listings.remove(directory.getPath());
+            if (listing != null) {
+                this.entries -= listing.size();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+}
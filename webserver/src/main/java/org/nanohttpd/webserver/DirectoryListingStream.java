@@ -0,0 +1,424 @@
+package org.nanohttpd.webserver;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Renders one page of a {@link DirectoryListing} as HTML or JSON while it
+ * is read, a batch of entries at a time, so a listing of tens of thousands
+ * of entries is never held in memory as a whole.
+ */
+public class DirectoryListingStream extends InputStream {
+
+    /**
+     * How a listing is rendered.
+     */
+    public enum Format {
+        HTML("text/html; charset=UTF-8"),
+        JSON("application/json; charset=UTF-8");
+
+        private final String mimeType;
+
+        Format(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public String getMimeType() {
+            return this.mimeType;
+        }
+    }
+
+    /**
+     * Entries rendered per batch.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final DirectoryListing listing;
+
+    private final String uri;
+
+    private final String encodedUri;
+
+    private final Format format;
+
+    private final int page;
+
+    private final int pageSize;
+
+    private final int first;
+
+    private final int end;
+
+    private final StringBuilder text = new StringBuilder(BATCH_SIZE * 128);
+
+    private int next;
+
+    private boolean headerDone;
+
+    private boolean done;
+
+    private boolean listOpen;
+
+    private boolean directoriesOpen;
+
+    private boolean filesOpen;
+
+    private byte[] buffer = new byte[0];
+
+    private int position;
+
+    /**
+     * @param uri
+     *            URI of the directory, ending in '/'.
+     * @param page
+     *            the page, starting at 1.
+     * @param pageSize
+     *            entries per page, 0 for all entries on one page.
+     */
+    public DirectoryListingStream(DirectoryListing listing, String uri, Format format, int page, int pageSize) {
+        this.listing = listing;
+        this.uri = uri;
+        this.encodedUri = encodeUri(uri);
+        this.format = format;
+        this.page = page;
+        this.pageSize = pageSize;
+        this.first = pageSize > 0 ? (int) Math.min((long) (page - 1) * pageSize, listing.size()) : 0;
+        this.next = this.first;
+        this.end = pageSize > 0 ? (int) Math.min((long) this.first + pageSize, listing.size()) : listing.size();
+    }
+
+    /**
+     * @return the number of entries on the page.
+     */
+    public int getCount() {
+        return this.end - this.first;
+    }
+
+    /**
+     * Renders the whole page.
+     */
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(getCount() * 96 + 512);
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = read(chunk, 0, chunk.length)) > 0) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return this.buffer[this.position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, this.buffer.length - this.position);
+        System.arraycopy(this.buffer, this.position, b, off, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return this.buffer.length - this.position;
+    }
+
+    /**
+     * Renders the next batch if the current one has been read.
+     *
+     * @return false at the end of the page.
+     */
+    private boolean fill() throws UnsupportedEncodingException {
+        while (this.position >= this.buffer.length) {
+            if (this.done) {
+                return false;
+            }
+            this.text.setLength(0);
+            if (!this.headerDone) {
+                if (this.format == Format.JSON) {
+                    jsonHeader();
+                } else {
+                    htmlHeader();
+                }
+                this.headerDone = true;
+            } else if (this.next < this.end) {
+                int batchEnd = Math.min(this.next + BATCH_SIZE, this.end);
+                for (; this.next < batchEnd; this.next++) {
+                    if (this.format == Format.JSON) {
+                        jsonEntry(this.listing.get(this.next), this.next > this.first);
+                    } else {
+                        htmlEntry(this.listing.get(this.next));
+                    }
+                }
+            } else {
+                if (this.format == Format.JSON) {
+                    this.text.append("]}");
+                } else {
+                    htmlFooter();
+                }
+                this.done = true;
+            }
+            this.buffer = this.text.toString().getBytes("UTF-8");
+            this.position = 0;
+        }
+        return true;
+    }
+
+    private void htmlHeader() {
+        StringBuilder out = this.text;
+        out.append("<html><head><title>Directory ");
+        appendHtml(out, this.uri);
+        out.append("</title><style><!--\n" + "span.dirname { font-weight: bold; }\n" + "span.filesize { font-size: 75%; }\n" + "// -->\n" + "</style></head><body><h1>Directory ");
+        appendHtml(out, this.uri);
+        out.append("</h1>");
+        String up = parentUri(this.uri);
+        if (up != null || this.end > this.next) {
+            out.append("<ul>");
+            this.listOpen = true;
+        }
+        if (up != null) {
+            out.append("<section class=\"directories\">");
+            this.directoriesOpen = true;
+            out.append("<li><a rel=\"directory\" href=\"").append(encodeUri(up)).append("\"><span class=\"dirname\">..</span></a></li>");
+        }
+    }
+
+    private void htmlEntry(DirectoryListing.Entry entry) {
+        StringBuilder out = this.text;
+        if (entry.isDirectory()) {
+            if (!this.directoriesOpen) {
+                out.append("<section class=\"directories\">");
+                this.directoriesOpen = true;
+            }
+            out.append("<li><a rel=\"directory\" href=\"").append(this.encodedUri);
+            appendEncoded(out, entry.getName());
+            out.append("/\"><span class=\"dirname\">");
+            appendHtml(out, entry.getName());
+            out.append("/</span></a></li>");
+            return;
+        }
+        if (!this.filesOpen) {
+            if (this.directoriesOpen) {
+                out.append("</section>");
+                this.directoriesOpen = false;
+            }
+            out.append("<section class=\"files\">");
+            this.filesOpen = true;
+        }
+        out.append("<li><a href=\"").append(this.encodedUri);
+        appendEncoded(out, entry.getName());
+        out.append("\"><span class=\"filename\">");
+        appendHtml(out, entry.getName());
+        out.append("</span></a>&nbsp;<span class=\"filesize\">(");
+        long len = entry.getLength();
+        if (len < 1024) {
+            out.append(len).append(" bytes");
+        } else if (len < 1024 * 1024) {
+            out.append(len / 1024).append(".").append(len % 1024 / 10 % 100).append(" KB");
+        } else {
+            out.append(len / (1024 * 1024)).append(".").append(len % (1024 * 1024) / 10000 % 100).append(" MB");
+        }
+        out.append(")</span></li>");
+    }
+
+    private void htmlFooter() {
+        StringBuilder out = this.text;
+        if (this.directoriesOpen || this.filesOpen) {
+            out.append("</section>");
+        }
+        if (this.listOpen) {
+            out.append("</ul>");
+        }
+        if (this.pageSize > 0) {
+            int pages = Math.max(1, (this.listing.size() + this.pageSize - 1) / this.pageSize);
+            out.append("<p class=\"pages\">");
+            if (this.page > 1) {
+                out.append("<a rel=\"prev\" href=\"?page=").append(Math.min(this.page - 1, pages)).append("&amp;size=").append(this.pageSize).append("\">&laquo;</a> ");
+            }
+            out.append("Page ").append(this.page).append(" of ").append(pages);
+            if (this.page < pages) {
+                out.append(" <a rel=\"next\" href=\"?page=").append(this.page + 1).append("&amp;size=").append(this.pageSize).append("\">&raquo;</a>");
+            }
+            out.append("</p>");
+        }
+        out.append("</body></html>");
+    }
+
+    private void jsonHeader() {
+        StringBuilder out = this.text;
+        out.append("{\"path\":");
+        appendJson(out, this.uri);
+        out.append(",\"total\":").append(this.listing.size());
+        out.append(",\"page\":").append(this.page);
+        out.append(",\"pageSize\":").append(this.pageSize > 0 ? this.pageSize : this.listing.size());
+        out.append(",\"entries\":[");
+    }
+
+    private void jsonEntry(DirectoryListing.Entry entry, boolean separator) {
+        StringBuilder out = this.text;
+        if (separator) {
+            out.append(',');
+        }
+        out.append("{\"name\":");
+        appendJson(out, entry.getName());
+        if (entry.isDirectory()) {
+            out.append(",\"type\":\"directory\"");
+        } else {
+            out.append(",\"type\":\"file\",\"size\":").append(entry.getLength());
+        }
+        if (entry.getLastModified() > 0) {
+            out.append(",\"modified\":").append(entry.getLastModified());
+        }
+        out.append('}');
+    }
+
+    /**
+     * @return URI of the parent directory, null for the root.
+     */
+    static String parentUri(String uri) {
+        if (uri.length() > 1) {
+            String u = uri.substring(0, uri.length() - 1);
+            int slash = u.lastIndexOf('/');
+            if (slash >= 0 && slash < u.length()) {
+                return uri.substring(0, slash + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * URL-encodes everything between "/"-characters. Encodes spaces as '%20'
+     * instead of '+'.
+     */
+    static String encodeUri(String uri) {
+        StringBuilder out = new StringBuilder(uri.length() + 16);
+        int start = 0;
+        int slash;
+        while ((slash = uri.indexOf('/', start)) >= 0) {
+            appendEncoded(out, uri.substring(start, slash));
+            out.append('/');
+            start = slash + 1;
+        }
+        appendEncoded(out, uri.substring(start));
+        return out.toString();
+    }
+
+    /**
+     * Appends <code>segment</code> percent-encoded like
+     * <code>URLEncoder</code> does, except that spaces become '%20'. ASCII
+     * is encoded without creating intermediate strings.
+     */
+    static void appendEncoded(StringBuilder out, String segment) {
+        int length = segment.length();
+        for (int i = 0; i < length; i++) {
+            char c = segment.charAt(i);
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.' || c == '*') {
+                out.append(c);
+            } else if (c < 0x80) {
+                out.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            } else {
+                // a run of non-ASCII characters, encoded together so that
+                // surrogate pairs stay intact
+                int runEnd = i + 1;
+                while (runEnd < length && segment.charAt(runEnd) >= 0x80) {
+                    runEnd++;
+                }
+                try {
+                    for (byte b : segment.substring(i, runEnd).getBytes("UTF-8")) {
+                        out.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+                    }
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+                i = runEnd - 1;
+            }
+        }
+    }
+
+    private static void appendHtml(StringBuilder out, String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static void appendJson(StringBuilder out, String text) {
+        out.append('"');
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,275 @@
+package org.nanohttpd.webserver;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * Bounded cache of the file system lookups done per request: which root
+ * directory a URI resolves to, and the length, modification time, ETag and
+ * MIME type of the file.
+ * <p/>
+ * <p>
+ * Entries are trusted for <code>ttl</code> milliseconds and resolved again
+ * afterwards, the least recently used entries are dropped once
+ * <code>maxEntries</code> is reached. Changes made within the TTL can be
+ * published right away with {@link #invalidate(String)} or {@link #clear()}.
+ * </p>
+ */
+public class FileMetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    public static final long DEFAULT_TTL = 2000;
+
+    /**
+     * Metadata of a file or directory below one of the root directories.
+     */
+    public static final class FileMetadata {
+
+        private final File homeDir;
+
+        private final File file;
+
+        private final boolean directory;
+
+        private final boolean readable;
+
+        private final long length;
+
+        private final long lastModified;
+
+        private final String etag;
+
+        private final String mimeType;
+
+        private final long resolvedAt;
+
+        /**
+         * Length of the pre-compressed sibling, -1 until it is looked up and
+         * 0 if there is none.
+         */
+        private volatile long gzipLength = -1;
+
+        /**
+         * Reads the metadata of <code>file</code>, the result is not cached.
+         */
+        public FileMetadata(File homeDir, File file, String mimeType) {
+            this(homeDir, file, mimeType, System.nanoTime());
+        }
+
+        FileMetadata(File homeDir, File file, String mimeType, long resolvedAt) {
+            this.homeDir = homeDir;
+            this.file = file;
+            this.directory = file.isDirectory();
+            this.readable = file.canRead();
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+            this.etag = Integer.toHexString((file.getAbsolutePath() + this.lastModified + "" + this.length).hashCode());
+            this.mimeType = mimeType;
+            this.resolvedAt = resolvedAt;
+        }
+
+        /**
+         * @return the root directory the URI was resolved against.
+         */
+        public File getHomeDir() {
+            return this.homeDir;
+        }
+
+        public File getFile() {
+            return this.file;
+        }
+
+        public boolean isDirectory() {
+            return this.directory;
+        }
+
+        public boolean canRead() {
+            return this.readable;
+        }
+
+        public long getLength() {
+            return this.length;
+        }
+
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        public String getEtag() {
+            return this.etag;
+        }
+
+        public String getMimeType() {
+            return this.mimeType;
+        }
+
+        /**
+         * @return the pre-compressed <code>.gz</code> sibling of the file,
+         *         which may not exist.
+         */
+        public File getGzipFile() {
+            return new File(this.file.getPath() + ".gz");
+        }
+
+        /**
+         * @return length of the <code>.gz</code> sibling, 0 if there is none
+         *         or it is older than the file. The sibling is only stat'ed
+         *         once per entry.
+         */
+        public long getGzipLength() {
+            long length = this.gzipLength;
+            if (length < 0) {
+                File gzipFile = getGzipFile();
+                length = gzipFile.lastModified() >= this.lastModified ? gzipFile.length() : 0;
+                this.gzipLength = length;
+            }
+            return length;
+        }
+    }
+
+    private final Map<String, FileMetadata> entries;
+
+    private final long ttlNanos;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public FileMetadataCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * @param maxEntries
+     *            maximum number of cached URIs.
+     * @param ttl
+     *            milliseconds an entry is used without looking at the file
+     *            system again, 0 disables caching.
+     */
+    public FileMetadataCache(final int maxEntries, long ttl) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.entries = new LinkedHashMap<String, FileMetadata>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileMetadata> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Resolves a URI against the root directories, in order.
+     *
+     * @param uri
+     *            the request URI, already decoded and without query string.
+     * @param rootDirs
+     *            the root directories to look in.
+     * @return the metadata of the first existing file, or null if the file
+     *         exists in none of the roots.
+     */
+    public FileMetadata lookup(String uri, List<File> rootDirs) {
+        long now = System.nanoTime();
+        FileMetadata cached;
+        synchronized (this.entries) {
+            cached = this.entries.get(uri);
+        }
+        if (cached != null && now - cached.resolvedAt < this.ttlNanos) {
+            this.hits.incrementAndGet();
+            return cached;
+        }
+        this.misses.incrementAndGet();
+
+        // stat outside of the lock, a concurrent miss for the same uri just
+        // resolves it twice.
+        FileMetadata resolved = resolve(uri, rootDirs, now);
+        synchronized (this.entries) {
+            if (resolved == null || this.ttlNanos <= 0) {
+                this.entries.remove(uri);
+            } else {
+                this.entries.put(uri, resolved);
+            }
+        }
+        return resolved;
+    }
+
+    private FileMetadata resolve(String uri, List<File> rootDirs, long now) {
+        for (File homeDir : rootDirs) {
+            File file = new File(homeDir, uri);
+            if (file.exists()) {
+                return new FileMetadata(homeDir, file, NanoHTTPD.getMimeTypeForFile(uri), now);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the entry of one URI, e.g. after the file has been replaced.
+     */
+    public void invalidate(String uri) {
+        synchronized (this.entries) {
+            this.entries.remove(uri);
+        }
+    }
+
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+}
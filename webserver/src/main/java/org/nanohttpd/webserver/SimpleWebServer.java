@@ -33,31 +33,54 @@ package org.nanohttpd.webserver;
  * #L%
  */
 
+import org.nanohttpd.webserver.FileMetadataCache.FileMetadata;
+import org.nanohttpd.webserver.dlna.ContentFeatures;
+import org.nanohttpd.webserver.dlna.KeyframeIndex;
+import org.nanohttpd.webserver.dlna.KeyframeIndexCache;
+import org.nanohttpd.webserver.dlna.TimeSeekRange;
+import org.nanohttpd.webserver.mp4.FaststartCache;
+import org.nanohttpd.webserver.mp4.FaststartLayout;
+import org.protocols.http.AdmissionController;
+import org.protocols.http.ConnectionRegistry;
 import org.protocols.http.IHTTPSession;
 import org.protocols.http.NanoHTTPD;
+import org.protocols.http.content.ByteRange;
+import org.protocols.http.log.AccessLog;
+import org.protocols.http.log.LoggerSink;
+import org.protocols.http.log.RotatingFileSink;
+import org.protocols.http.metrics.MetricsHandler;
+import org.protocols.http.metrics.MetricsRegistry;
+import org.protocols.http.metrics.ServerMetrics;
+import org.protocols.http.pacing.BandwidthScheduler;
+import org.protocols.http.pacing.Priority;
 import org.protocols.http.request.Method;
+import org.protocols.http.response.BlockCache;
+import org.protocols.http.response.FileRangeInputStream;
+import org.protocols.http.response.GzipCache;
 import org.protocols.http.response.IStatus;
+import org.protocols.http.response.MultipartRangeInputStream;
 import org.protocols.http.response.Response;
 import org.protocols.http.response.Status;
+import org.protocols.http.threading.BoundedAsyncRunner;
+import org.protocols.http.threading.VirtualThreadAsyncRunner;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.ServiceLoader;
-import java.util.StringTokenizer;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
 
 public class SimpleWebServer extends NanoHTTPD {
 
@@ -74,6 +97,34 @@ public class SimpleWebServer extends NanoHTTPD {
         }
     };
 
+    /**
+     * Appended to the ETag of a file or directory listing for its gzip
+     * compressed variant, which is a different representation and must not
+     * be mixed with the identity bytes by <code>If-Range</code> or
+     * <code>If-None-Match</code>.
+     */
+    private static final String GZIP_ETAG_SUFFIX = "-gz";
+
+    /**
+     * Entries per page of a directory listing if only the page is given.
+     */
+    public static final int DEFAULT_LISTING_PAGE_SIZE = 500;
+
+    public static final int MAX_LISTING_PAGE_SIZE = 10000;
+
+    /**
+     * Listing pages with more entries are rendered while they are sent
+     * instead of being rendered and kept.
+     */
+    private static final int LISTING_STREAM_THRESHOLD = 1000;
+
+    /**
+     * Listings are HTML or JSON depending on <code>Accept</code>, and may be
+     * compressed. Sent as one header because a response keeps only one value
+     * per header name.
+     */
+    private static final String LISTING_VARY = "Accept, Accept-Encoding";
+
     /**
      * The distribution licence
      */
@@ -111,6 +162,20 @@ public class SimpleWebServer extends NanoHTTPD {
         List<File> rootDirs = new ArrayList<File>();
         boolean quiet = false;
         String cors = null;
+        int corePoolSize = BoundedAsyncRunner.DEFAULT_CORE_POOL_SIZE;
+        int maxPoolSize = BoundedAsyncRunner.DEFAULT_MAX_POOL_SIZE;
+        int backlog = BoundedAsyncRunner.DEFAULT_BACKLOG;
+        boolean useSelector = false;
+        boolean useVirtualThreads = false;
+        int maxConnections = VirtualThreadAsyncRunner.DEFAULT_MAX_CONCURRENT;
+        int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+        long blockCacheSize = 0;
+        boolean faststart = true;
+        long maxRate = 0;
+        long bulkRate = 0;
+        File accessLogFile = null;
+        String metricsPath = null;
+        int maxConnectionsPerClient = AdmissionController.DEFAULT_MAX_CONNECTIONS_PER_CLIENT;
         Map<String, String> options = new HashMap<String, String>();
 
         // Parse command-line, with short and long versions of the options.
@@ -123,6 +188,38 @@ public class SimpleWebServer extends NanoHTTPD {
                 quiet = true;
             } else if ("-d".equalsIgnoreCase(args[i]) || "--dir".equalsIgnoreCase(args[i])) {
                 rootDirs.add(new File(args[i + 1]).getAbsoluteFile());
+            } else if ("--core-threads".equalsIgnoreCase(args[i])) {
+                corePoolSize = Integer.parseInt(args[i + 1]);
+            } else if ("--max-threads".equalsIgnoreCase(args[i])) {
+                maxPoolSize = Integer.parseInt(args[i + 1]);
+            } else if ("--backlog".equalsIgnoreCase(args[i])) {
+                backlog = Integer.parseInt(args[i + 1]);
+            } else if ("--selector".equalsIgnoreCase(args[i])) {
+                useSelector = true;
+            } else if ("--virtual-threads".equalsIgnoreCase(args[i])) {
+                useVirtualThreads = true;
+            } else if ("--max-connections".equalsIgnoreCase(args[i])) {
+                maxConnections = Integer.parseInt(args[i + 1]);
+            } else if ("--gzip-level".equalsIgnoreCase(args[i])) {
+                gzipLevel = Integer.parseInt(args[i + 1]);
+            } else if ("--no-faststart".equalsIgnoreCase(args[i])) {
+                faststart = false;
+            } else if ("--block-cache".equalsIgnoreCase(args[i])) {
+                blockCacheSize = Long.parseLong(args[i + 1]) * 1024 * 1024;
+            } else if ("--max-per-client".equalsIgnoreCase(args[i])) {
+                maxConnectionsPerClient = Integer.parseInt(args[i + 1]);
+            } else if ("--access-log".equalsIgnoreCase(args[i])) {
+                accessLogFile = new File(args[i + 1]).getAbsoluteFile();
+            } else if ("--max-rate".equalsIgnoreCase(args[i])) {
+                maxRate = Long.parseLong(args[i + 1]) * 1024;
+            } else if ("--bulk-rate".equalsIgnoreCase(args[i])) {
+                bulkRate = Long.parseLong(args[i + 1]) * 1024;
+            } else if (args[i].startsWith("--metrics")) {
+                metricsPath = MetricsHandler.DEFAULT_PATH;
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    metricsPath = args[i].substring(equalIdx + 1);
+                }
             } else if (args[i].startsWith("--cors")) {
                 cors = "*";
                 int equalIdx = args[i].indexOf('=');
@@ -180,6 +277,34 @@ public class SimpleWebServer extends NanoHTTPD {
         System.err.println("start server:\n host is %s" + host);
         if (httpServer == null) {
             httpServer = new SimpleWebServer(host, port, rootDirs, quiet, cors);
+            if (useVirtualThreads) {
+                httpServer.setAsyncRunner(new VirtualThreadAsyncRunner(maxConnections));
+            } else {
+                httpServer.setAsyncRunner(new BoundedAsyncRunner(corePoolSize, Math.max(corePoolSize, maxPoolSize), backlog));
+            }
+            httpServer.setUseSelector(useSelector);
+            httpServer.getGzipCache().setLevel(gzipLevel);
+            httpServer.setFaststartEnabled(faststart);
+            httpServer.setAdmissionController(new AdmissionController(AdmissionController.DEFAULT_MAX_CONNECTIONS, maxConnectionsPerClient));
+            if (accessLogFile != null) {
+                AccessLog previous = httpServer.getAccessLog();
+                httpServer.setAccessLog(new AccessLog(new RotatingFileSink(accessLogFile)));
+                if (previous != null) {
+                    previous.close();
+                }
+            }
+            httpServer.setConnectionRegistry(new ConnectionRegistry(useVirtualThreads ? maxConnections : Math.max(corePoolSize, maxPoolSize)));
+            if (blockCacheSize > 0) {
+                httpServer.setBlockCache(new BlockCache(blockCacheSize, BlockCache.DEFAULT_BLOCK_SIZE, BlockCache.DEFAULT_PREFETCH_BLOCKS));
+            }
+            if (maxRate > 0 || bulkRate > 0) {
+                BandwidthScheduler scheduler = new BandwidthScheduler(maxRate);
+                scheduler.setConnectionRate(Priority.BULK, bulkRate);
+                httpServer.setBandwidthScheduler(scheduler);
+            }
+            if (metricsPath != null) {
+                httpServer.enableMetrics(metricsPath);
+            }
         }
         startServer(httpServer);
     }
@@ -247,6 +372,38 @@ public class SimpleWebServer extends NanoHTTPD {
 
     protected List<File> rootDirs;
 
+    /**
+     * Root directory, length, ETag and MIME type of recently served URIs.
+     */
+    protected final FileMetadataCache metadataCache = new FileMetadataCache();
+
+    /**
+     * Compressed directory listings and text files.
+     */
+    protected final GzipCache gzipCache = new GzipCache();
+
+    /**
+     * Listings of recently listed directories.
+     */
+    protected final DirectoryListingCache listingCache = new DirectoryListingCache();
+
+    /**
+     * Faststart layouts of MP4 files whose moov box is at the end.
+     */
+    protected final FaststartCache faststartCache = new FaststartCache();
+
+    private volatile boolean faststartEnabled = true;
+
+    /**
+     * Keyframe indexes for DLNA time seek requests.
+     */
+    protected final KeyframeIndexCache keyframeIndexCache;
+
+    /**
+     * Blocks of recently served files, null to read files directly.
+     */
+    protected volatile BlockCache blockCache;
+
     public SimpleWebServer(String host, int port, File wwwroot, boolean quiet, String cors) {
         this(host, port, Collections.singletonList(wwwroot), quiet, cors);
     }
@@ -260,14 +417,222 @@ public class SimpleWebServer extends NanoHTTPD {
     }
 
     public SimpleWebServer(String host, int port, List<File> wwwroots, boolean quiet, String cors) {
+        this(host, port, wwwroots, quiet, cors, new KeyframeIndexCache());
+    }
+
+    /**
+     * @param keyframeIndexCache
+     *            where keyframe indexes for time seeks are kept, e.g. one
+     *            storing them in the cache directory of the app.
+     */
+    public SimpleWebServer(String host, int port, List<File> wwwroots, boolean quiet, String cors, KeyframeIndexCache keyframeIndexCache) {
         super(host, port);
         this.quiet = quiet;
         this.cors = cors;
         this.rootDirs = new ArrayList<File>(wwwroots);
+        this.keyframeIndexCache = keyframeIndexCache;
+        if (!quiet) {
+            // requests are logged in the background, not on the request
+            // threads
+            setAccessLog(new AccessLog(new LoggerSink()));
+        }
 
         init();
     }
 
+    public FileMetadataCache getMetadataCache() {
+        return this.metadataCache;
+    }
+
+    public GzipCache getGzipCache() {
+        return this.gzipCache;
+    }
+
+    public DirectoryListingCache getDirectoryListingCache() {
+        return this.listingCache;
+    }
+
+    public FaststartCache getFaststartCache() {
+        return this.faststartCache;
+    }
+
+    /**
+     * @param enabled
+     *            false to serve MP4 files byte for byte as they are stored.
+     */
+    public void setFaststartEnabled(boolean enabled) {
+        this.faststartEnabled = enabled;
+    }
+
+    public boolean isFaststartEnabled() {
+        return this.faststartEnabled;
+    }
+
+    public KeyframeIndexCache getKeyframeIndexCache() {
+        return this.keyframeIndexCache;
+    }
+
+    public BlockCache getBlockCache() {
+        return this.blockCache;
+    }
+
+    /**
+     * Reads served files through the given block cache, so that clients
+     * streaming the same file share the reads. Files are sent zero-copy
+     * from the file system if no cache is set. A cache replaced here, or
+     * still set when the server stops, is shut down.
+     */
+    public void setBlockCache(BlockCache blockCache) {
+        BlockCache previous = this.blockCache;
+        this.blockCache = blockCache;
+        if (previous != null && previous != blockCache) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Records connection and request metrics and serves them, together with
+     * the counters of the caches, in the Prometheus text format at
+     * <code>path</code>. Call once, before start().
+     * 
+     * @return the metrics, e.g. to register values of an app.
+     */
+    public ServerMetrics enableMetrics(String path) {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.bind(this);
+        MetricsRegistry registry = metrics.getRegistry();
+        String hits = "webserver_cache_hits_total";
+        String hitsHelp = "Lookups answered from a cache.";
+        String misses = "webserver_cache_misses_total";
+        String missesHelp = "Lookups a cache could not answer.";
+        registry.counter(hits, hitsHelp, "cache=\"metadata\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.metadataCache.getHitCount();
+            }
+        });
+        registry.counter(misses, missesHelp, "cache=\"metadata\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.metadataCache.getMissCount();
+            }
+        });
+        registry.counter(hits, hitsHelp, "cache=\"gzip\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.gzipCache.getHitCount();
+            }
+        });
+        registry.counter(misses, missesHelp, "cache=\"gzip\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.gzipCache.getMissCount();
+            }
+        });
+        registry.counter(hits, hitsHelp, "cache=\"faststart\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.faststartCache.getHitCount();
+            }
+        });
+        registry.counter(misses, missesHelp, "cache=\"faststart\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.faststartCache.getMissCount();
+            }
+        });
+        registry.counter(hits, hitsHelp, "cache=\"keyframe\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.keyframeIndexCache.getHitCount();
+            }
+        });
+        registry.counter(misses, missesHelp, "cache=\"keyframe\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.keyframeIndexCache.getDiskLoadCount() + SimpleWebServer.this.keyframeIndexCache.getBuildCount();
+            }
+        });
+        registry.counter(hits, hitsHelp, "cache=\"listing\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.listingCache.getHitCount();
+            }
+        });
+        registry.counter(misses, missesHelp, "cache=\"listing\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.listingCache.getMissCount();
+            }
+        });
+        registry.counter(hits, hitsHelp, "cache=\"block\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                BlockCache cache = SimpleWebServer.this.blockCache;
+                return cache != null ? cache.getHitCount() : 0;
+            }
+        });
+        registry.counter(misses, missesHelp, "cache=\"block\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                BlockCache cache = SimpleWebServer.this.blockCache;
+                return cache != null ? cache.getMissCount() : 0;
+            }
+        });
+        registry.gauge("webserver_cache_bytes", "Bytes held by a cache.", "cache=\"gzip\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.gzipCache.getSize();
+            }
+        });
+        registry.gauge("webserver_cache_bytes", "Bytes held by a cache.", "cache=\"faststart\"", new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.faststartCache.getSize();
+            }
+        });
+        registry.counter("webserver_gzip_saved_bytes_total", "Bytes not sent thanks to cached compression.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return SimpleWebServer.this.gzipCache.getBytesSaved();
+            }
+        });
+        registry.counter("webserver_block_cache_disk_bytes_total", "Bytes the block cache read from disk.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                BlockCache cache = SimpleWebServer.this.blockCache;
+                return cache != null ? cache.getBytesFromDisk() : 0;
+            }
+        });
+        registry.counter("webserver_block_cache_evictions_total", "Blocks dropped from the block cache.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                BlockCache cache = SimpleWebServer.this.blockCache;
+                return cache != null ? cache.getEvictionCount() : 0;
+            }
+        });
+        setMetrics(metrics);
+        addHTTPInterceptor(new MetricsHandler(registry, path));
+        return metrics;
+    }
+
     private boolean canServeUri(String uri, File homeDir) {
         boolean canServeUri;
         File f = new File(homeDir, uri);
@@ -281,29 +646,6 @@ public class SimpleWebServer extends NanoHTTPD {
         return canServeUri;
     }
 
-    /**
-     * URL-encodes everything between "/"-characters. Encodes spaces as '%20'
-     * instead of '+'.
-     */
-    private String encodeUri(String uri) {
-        String newUri = "";
-        StringTokenizer st = new StringTokenizer(uri, "/ ", true);
-        while (st.hasMoreTokens()) {
-            String tok = st.nextToken();
-            if ("/".equals(tok)) {
-                newUri += "/";
-            } else if (" ".equals(tok)) {
-                newUri += "%20";
-            } else {
-                try {
-                    newUri += URLEncoder.encode(tok, "UTF-8");
-                } catch (UnsupportedEncodingException ignored) {
-                }
-            }
-        }
-        return newUri;
-    }
-
     private String findIndexFileInDirectory(File directory) {
         for (String fileName : SimpleWebServer.INDEX_FILE_NAMES) {
             File indexFile = new File(directory, fileName);
@@ -332,72 +674,86 @@ public class SimpleWebServer extends NanoHTTPD {
     public void init() {
     }
 
-    protected String listDirectory(String uri, File f) {
-        String heading = "Directory " + uri;
-        StringBuilder msg =
-                new StringBuilder("<html><head><title>" + heading + "</title><style><!--\n" + "span.dirname { font-weight: bold; }\n" + "span.filesize { font-size: 75%; }\n"
-                        + "// -->\n" + "</style>" + "</head><body><h1>" + heading + "</h1>");
-
-        String up = null;
-        if (uri.length() > 1) {
-            String u = uri.substring(0, uri.length() - 1);
-            int slash = u.lastIndexOf('/');
-            if (slash >= 0 && slash < u.length()) {
-                up = uri.substring(0, slash + 1);
+    /**
+     * Lists a directory as HTML, or as JSON for <code>?format=json</code> or
+     * clients that accept only <code>application/json</code>.
+     * <code>?page=N&amp;size=M</code> selects a page of M entries, starting
+     * at 1; without it all entries are listed.
+     * <p/>
+     * <p>
+     * The listing comes from the {@link DirectoryListingCache}. Small pages
+     * are rendered once and kept, larger ones are rendered while they are
+     * sent.
+     * </p>
+     */
+    protected Response listDirectory(Map<String, String> headers, IHTTPSession session, String uri, File f) {
+        DirectoryListing listing = this.listingCache.get(f);
+        if (listing == null) {
+            return getForbiddenResponse("No directory listing.");
+        }
+        Map<String, List<String>> parameters = session.getParameters();
+        DirectoryListingStream.Format format = DirectoryListingStream.Format.HTML;
+        String accept = headers.get("accept");
+        if ("json".equalsIgnoreCase(firstParameter(parameters, "format")) || accept != null && accept.contains("application/json") && !accept.contains("text/html")) {
+            format = DirectoryListingStream.Format.JSON;
+        }
+        int page = Math.max(1, parseInt(firstParameter(parameters, "page"), 1));
+        int pageSize = parseInt(firstParameter(parameters, "size"), parameters.containsKey("page") ? DEFAULT_LISTING_PAGE_SIZE : 0);
+        pageSize = Math.max(0, Math.min(pageSize, MAX_LISTING_PAGE_SIZE));
+
+        String variant = format.name().toLowerCase(Locale.US) + ":" + page + ":" + pageSize;
+        String tag = listing.getEtag() + "-" + variant.replace(':', '-');
+        // as for files, the compressed listing gets an ETag of its own
+        boolean compressed = GzipCache.acceptsGzip(headers.get("accept-encoding"));
+        String etag = "\"" + tag + (compressed ? GZIP_ETAG_SUFFIX : "") + "\"";
+        if (etag.equals(headers.get("if-none-match"))) {
+            Response res = newFixedLengthResponse(Status.NOT_MODIFIED, format.getMimeType(), "");
+            res.addHeader("ETag", etag);
+            res.addHeader("Vary", LISTING_VARY);
+            return res;
+        }
+        DirectoryListingStream stream = new DirectoryListingStream(listing, uri, format, page, pageSize);
+        Response res;
+        if (stream.getCount() > LISTING_STREAM_THRESHOLD) {
+            // compressed while sending if the client accepts it
+            res = Response.newChunkedResponse(Status.OK, format.getMimeType(), stream);
+            res.setUseGzip(compressed);
+        } else {
+            try {
+                byte[] rendered = listing.getPage(variant);
+                if (rendered == null) {
+                    rendered = stream.toByteArray();
+                    listing.putPage(variant, rendered);
+                }
+                res = newRenderedResponse(headers, f.getPath() + "?" + variant, tag, format.getMimeType(), rendered);
+            } catch (IOException e) {
+                return getInternalErrorResponse("could not list " + uri);
+            }
+            if (compressed && res.getHeader("content-encoding") == null) {
+                // compressing failed, the listing goes out as it is
+                etag = "\"" + tag + "\"";
             }
         }
+        res.addHeader("ETag", etag);
+        res.addHeader("Cache-Control", "no-cache");
+        res.addHeader("Vary", LISTING_VARY);
+        return res;
+    }
 
-        List<String> files = Arrays.asList(f.list(new FilenameFilter() {
-
-            @Override
-            public boolean accept(File dir, String name) {
-                return new File(dir, name).isFile();
-            }
-        }));
-        Collections.sort(files);
-        List<String> directories = Arrays.asList(f.list(new FilenameFilter() {
+    private static String firstParameter(Map<String, List<String>> parameters, String name) {
+        List<String> values = parameters.get(name);
+        return values != null && !values.isEmpty() ? values.get(0) : null;
+    }
 
-            @Override
-            public boolean accept(File dir, String name) {
-                return new File(dir, name).isDirectory();
-            }
-        }));
-        Collections.sort(directories);
-        if (up != null || directories.size() + files.size() > 0) {
-            msg.append("<ul>");
-            if (up != null || directories.size() > 0) {
-                msg.append("<section class=\"directories\">");
-                if (up != null) {
-                    msg.append("<li><a rel=\"directory\" href=\"").append(up).append("\"><span class=\"dirname\">..</span></a></li>");
-                }
-                for (String directory : directories) {
-                    String dir = directory + "/";
-                    msg.append("<li><a rel=\"directory\" href=\"").append(encodeUri(uri + dir)).append("\"><span class=\"dirname\">").append(dir).append("</span></a></li>");
-                }
-                msg.append("</section>");
-            }
-            if (files.size() > 0) {
-                msg.append("<section class=\"files\">");
-                for (String file : files) {
-                    msg.append("<li><a href=\"").append(encodeUri(uri + file)).append("\"><span class=\"filename\">").append(file).append("</span></a>");
-                    File curFile = new File(f, file);
-                    long len = curFile.length();
-                    msg.append("&nbsp;<span class=\"filesize\">(");
-                    if (len < 1024) {
-                        msg.append(len).append(" bytes");
-                    } else if (len < 1024 * 1024) {
-                        msg.append(len / 1024).append(".").append(len % 1024 / 10 % 100).append(" KB");
-                    } else {
-                        msg.append(len / (1024 * 1024)).append(".").append(len % (1024 * 1024) / 10000 % 100).append(" MB");
-                    }
-                    msg.append(")</span></li>");
-                }
-                msg.append("</section>");
-            }
-            msg.append("</ul>");
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
-        msg.append("</body></html>");
-        return msg.toString();
     }
 
     public static Response newFixedLengthResponse(IStatus status, String mimeType, String message) {
@@ -433,34 +789,42 @@ public class SimpleWebServer extends NanoHTTPD {
             return getForbiddenResponse("Won't serve ../ for security reasons.");
         }
 
-        boolean canServeUri = false;
+        // Existing files are resolved through the metadata cache, the plugins
+        // are asked only for URIs without a file behind them.
+        FileMetadata metadata = this.metadataCache.lookup(uri, this.rootDirs);
         File homeDir = null;
-        for (int i = 0; !canServeUri && i < this.rootDirs.size(); i++) {
-            homeDir = this.rootDirs.get(i);
-            canServeUri = canServeUri(uri, homeDir);
-        }
-        if (!canServeUri) {
-            return getNotFoundResponse();
+        if (metadata != null) {
+            homeDir = metadata.getHomeDir();
+        } else {
+            boolean canServeUri = false;
+            for (int i = 0; !canServeUri && i < this.rootDirs.size(); i++) {
+                homeDir = this.rootDirs.get(i);
+                canServeUri = canServeUri(uri, homeDir);
+            }
+            if (!canServeUri) {
+                return getNotFoundResponse();
+            }
         }
 
         // Browsers get confused without '/' after the directory, send a
         // redirect.
-        File f = new File(homeDir, uri);
-        if (f.isDirectory() && !uri.endsWith("/")) {
+        File f = metadata != null ? metadata.getFile() : new File(homeDir, uri);
+        boolean isDirectory = metadata != null ? metadata.isDirectory() : f.isDirectory();
+        if (isDirectory && !uri.endsWith("/")) {
             uri += "/";
             Response res = newFixedLengthResponse(Status.REDIRECT, NanoHTTPD.MIME_HTML, "<html><body>Redirected: <a href=\"" + uri + "\">" + uri + "</a></body></html>");
             res.addHeader("Location", uri);
             return res;
         }
 
-        if (f.isDirectory()) {
+        if (isDirectory) {
             // First look for index files (index.html, index.htm, etc) and if
             // none found, list the directory if readable.
             String indexFile = findIndexFileInDirectory(f);
             if (indexFile == null) {
                 if (f.canRead()) {
                     // No index file, list the directory if it is readable
-                    return newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_HTML, listDirectory(uri, f));
+                    return listDirectory(headers, session, uri, f);
                 } else {
                     return getForbiddenResponse("No directory listing.");
                 }
@@ -468,7 +832,7 @@ public class SimpleWebServer extends NanoHTTPD {
                 return respond(headers, session, uri + indexFile);
             }
         }
-        String mimeTypeForFile = getMimeTypeForFile(uri);
+        String mimeTypeForFile = metadata != null ? metadata.getMimeType() : getMimeTypeForFile(uri);
         WebServerPlugin plugin = SimpleWebServer.mimeTypeHandlers.get(mimeTypeForFile);
         Response response = null;
         if (plugin != null && plugin.canServeUri(uri, homeDir)) {
@@ -477,33 +841,28 @@ public class SimpleWebServer extends NanoHTTPD {
                 InternalRewrite rewrite = (InternalRewrite) response;
                 return respond(rewrite.getHeaders(), session, rewrite.getUri());
             }
+        } else if (metadata != null) {
+            response = serveFile(headers, metadata);
         } else {
             response = serveFile(uri, headers, f, mimeTypeForFile);
         }
         return response != null ? response : getNotFoundResponse();
     }
 
+    /**
+     * Stops the server and releases the block cache, if there is one.
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        setBlockCache(null);
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
         Map<String, String> header = session.getHeaders();
-        Map<String, String> parms = session.getParms();
         String uri = session.getUri();
 
-        if (!this.quiet) {
-            System.out.println(session.getMethod() + " '" + uri + "' ");
-
-            Iterator<String> e = header.keySet().iterator();
-            while (e.hasNext()) {
-                String value = e.next();
-                System.out.println("  HDR: '" + value + "' = '" + header.get(value) + "'");
-            }
-            e = parms.keySet().iterator();
-            while (e.hasNext()) {
-                String value = e.next();
-                System.out.println("  PRM: '" + value + "' = '" + parms.get(value) + "'");
-            }
-        }
-
         for (File homeDir : this.rootDirs) {
             // Make sure we won't die of an exception later
             if (!homeDir.isDirectory()) {
@@ -518,96 +877,89 @@ public class SimpleWebServer extends NanoHTTPD {
      * ignores all headers and HTTP parameters.
      */
     Response serveFile(String uri, Map<String, String> header, File file, String mime) {
+        return serveFile(header, new FileMetadata(null, file, mime));
+    }
+
+    /**
+     * Serves a file whose length and ETag are already known.
+     */
+    Response serveFile(Map<String, String> header, FileMetadata metadata) {
+        File file = metadata.getFile();
+        String mime = metadata.getMimeType();
         Response res;
         try {
-            // Calculate etag
-            String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-            // Support (simple) skipping:
-            long startFrom = 0;
-            long endAt = -1;
-            String range = header.get("range");
-            if (range != null) {
-                if (range.startsWith("bytes=")) {
-                    range = range.substring("bytes=".length());
-                    int minus = range.indexOf('-');
-                    try {
-                        if (minus > 0) {
-                            startFrom = Long.parseLong(range.substring(0, minus));
-                            endAt = Long.parseLong(range.substring(minus + 1));
-                        }
-                    } catch (NumberFormatException ignored) {
-                    }
-                }
-            }
+            // MP4 files with the moov box at the end are served in a virtual
+            // faststart layout, which has an ETag of its own.
+            FaststartLayout faststart = this.faststartEnabled && FaststartLayout.isMp4(mime) ? this.faststartCache.get(metadata) : null;
+            String etag = faststart != null ? metadata.getEtag() + "-faststart" : metadata.getEtag();
 
             // get if-range header. If present, it must match etag or else we
             // should ignore the range request
             String ifRange = header.get("if-range");
             boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
 
-            String ifNoneMatch = header.get("if-none-match");
-            boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
+            long fileLen = metadata.getLength();
 
-            // Change return code and add Content-Range header when skipping is
-            // requested
-            long fileLen = file.length();
-
-            if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
-                // range request that matches current etag
-                // and the startFrom of the range is satisfiable
-                if (headerIfNoneMatchPresentAndMatching) {
-                    // range request that matches current etag
-                    // and the startFrom of the range is satisfiable
-                    // would return range from file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    if (endAt < 0) {
-                        endAt = fileLen - 1;
-                    }
-                    long newLen = endAt - startFrom + 1;
-                    if (newLen < 0) {
-                        newLen = 0;
-                    }
+            // Resolve the requested ranges (RFC 7233): null if there is no
+            // usable Range header, empty if none of the ranges is satisfiable.
+            List<ByteRange> ranges = headerIfRangeMissingOrMatching ? ByteRange.parse(header.get("range"), fileLen) : null;
+
+            // Ranges are served from the identity bytes only, a complete
+            // text file may go out gzip compressed under an ETag of its own.
+            boolean compressed = ranges == null && faststart == null && isCompressedVariantServed(header, metadata);
+            if (compressed) {
+                etag = metadata.getEtag() + GZIP_ETAG_SUFFIX;
+            }
 
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(startFrom);
+            String ifNoneMatch = header.get("if-none-match");
+            boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
 
-                    res = Response.newFixedLengthResponse(Status.PARTIAL_CONTENT, mime, fis, newLen);
+            if (ranges != null && ranges.isEmpty()) {
+                // return the size of the file
+                // 4xx responses are not trumped by if-none-match
+                res = newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+                res.addHeader("Content-Range", "bytes */" + fileLen);
+                res.addHeader("ETag", etag);
+            } else if (headerIfNoneMatchPresentAndMatching) {
+                // would return the file or a part of it
+                // respond with not-modified
+                res = newFixedLengthResponse(Status.NOT_MODIFIED, mime, "");
+                res.addHeader("ETag", etag);
+            } else if (ranges == null && isMedia(mime) && header.containsKey("timeseekrange.dlna.org")) {
+                res = newTimeSeekResponse(header.get("timeseekrange.dlna.org"), metadata, faststart);
+            } else if (ranges == null) {
+                // supply the file, compressed if possible
+                res = compressed ? newCompressedFileResponse(metadata) : null;
+                if (res == null) {
+                    etag = faststart != null ? metadata.getEtag() + "-faststart" : metadata.getEtag();
+                    res = newFileRangeResponse(Status.OK, mime, file, 0, fileLen, faststart);
                     res.addHeader("Accept-Ranges", "bytes");
-                    res.addHeader("Content-Length", "" + newLen);
-                    res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-                    res.addHeader("ETag", etag);
+                    res.addHeader("Content-Length", "" + fileLen);
+                    if (isCompressible(mime)) {
+                        res.addHeader("Vary", "Accept-Encoding");
+                    }
                 }
+                res.addHeader("ETag", etag);
+            } else if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                res = newFileRangeResponse(Status.PARTIAL_CONTENT, mime, file, range.getStart(), range.getLength(), faststart);
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("Content-Length", "" + range.getLength());
+                res.addHeader("Content-Range", range.toContentRange(fileLen));
+                res.addHeader("ETag", etag);
             } else {
-
-                if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-                    // return the size of the file
-                    // 4xx responses are not trumped by if-none-match
-                    res = newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
-                    res.addHeader("Content-Range", "bytes */" + fileLen);
-                    res.addHeader("ETag", etag);
-                } else if (range == null && headerIfNoneMatchPresentAndMatching) {
-                    // full-file-fetch request
-                    // would return entire file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-                    // range request that doesn't match current etag
-                    // would return entire (different) file
-                    // respond with not-modified
-
-                    res = newFixedLengthResponse(Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
+                // several ranges, streamed as multipart/byteranges
+                if (faststart != null) {
+                    MultipartRangeInputStream data = faststart.newMultipartInputStream(mime, ranges);
+                    res = Response.newFixedLengthResponse(Status.PARTIAL_CONTENT, data.getContentType(), data, data.getContentLength());
                 } else {
-                    // supply the file
-                    res = newFixedFileResponse(file, mime);
-                    res.addHeader("Content-Length", "" + fileLen);
-                    res.addHeader("ETag", etag);
+                    res = Response.newMultipartRangeResponse(mime, file, fileLen, ranges);
                 }
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("ETag", etag);
+            }
+            if (isMedia(mime)) {
+                addDlnaHeaders(header, res, mime);
             }
         } catch (IOException ioe) {
             res = getForbiddenResponse("Reading file failed.");
@@ -616,13 +968,158 @@ public class SimpleWebServer extends NanoHTTPD {
         return res;
     }
 
-    private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
-        Response res;
-        res = Response.newFixedLengthResponse(Status.OK, mime, new FileInputStream(file), (int) file.length());
-        res.addHeader("Accept-Ranges", "bytes");
+    /**
+     * Answers a DLNA time seek with the byte range from the keyframe at or
+     * before the start time up to the keyframe at or after the end time.
+     */
+    private Response newTimeSeekResponse(String timeSeekHeader, FileMetadata metadata, FaststartLayout faststart) throws IOException {
+        TimeSeekRange seek = TimeSeekRange.parse(timeSeekHeader);
+        if (seek == null) {
+            return newFixedLengthResponse(Status.BAD_REQUEST, NanoHTTPD.MIME_PLAINTEXT, "Invalid " + TimeSeekRange.HEADER + ": " + timeSeekHeader);
+        }
+        KeyframeIndex index = this.keyframeIndexCache.get(metadata);
+        if (index == null || index.size() == 0) {
+            return newFixedLengthResponse(Status.NOT_ACCEPTABLE, NanoHTTPD.MIME_PLAINTEXT, "Time seek is not supported for this file.");
+        }
+        long duration = index.getDuration();
+        if (duration > 0 && seek.getStart() > duration) {
+            return newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+        }
+        long fileLen = metadata.getLength();
+        int first = index.floorIndex(seek.getStart());
+        long start = toServedOffset(index.getOffset(first), faststart);
+        long end = fileLen - 1;
+        long endTime = duration;
+        if (seek.getEnd() >= 0) {
+            int next = index.ceilingIndex(seek.getEnd());
+            if (next < index.size() && next > first) {
+                end = toServedOffset(index.getOffset(next), faststart) - 1;
+                endTime = index.getTime(next);
+            }
+        }
+        if (start > end) {
+            return newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+        }
+        Response res = newFileRangeResponse(Status.PARTIAL_CONTENT, metadata.getMimeType(), metadata.getFile(), start, end - start + 1, faststart);
+        res.addHeader("Content-Length", "" + (end - start + 1));
+        res.addHeader("Content-Range", "bytes " + start + "-" + end + "/" + fileLen);
+        res.addHeader(TimeSeekRange.HEADER, "npt=" + TimeSeekRange.format(index.getTime(first)) + "-" + TimeSeekRange.format(endTime) + "/"
+                + (duration > 0 ? TimeSeekRange.format(duration) : "*") + " bytes=" + start + "-" + end + "/" + fileLen);
+        res.addHeader("ETag", faststart != null ? metadata.getEtag() + "-faststart" : metadata.getEtag());
         return res;
     }
 
+    private static long toServedOffset(long fileOffset, FaststartLayout faststart) {
+        return faststart != null ? faststart.toVirtualOffset(fileOffset) : fileOffset;
+    }
+
+    private static boolean isMedia(String mime) {
+        return mime != null && (mime.startsWith("video/") || mime.startsWith("audio/") || mime.startsWith("image/"));
+    }
+
+    /**
+     * Tells DLNA renderers how the resource can be transferred and whether
+     * it can be seeked by time as well as by bytes.
+     */
+    private static void addDlnaHeaders(Map<String, String> header, Response res, String mime) {
+        if (res.getStatus() != Status.OK && res.getStatus() != Status.PARTIAL_CONTENT) {
+            return;
+        }
+        res.addHeader(ContentFeatures.CONTENT_FEATURES_HEADER, ContentFeatures.contentFeatures(KeyframeIndexCache.isIndexable(mime), true));
+        res.addHeader(ContentFeatures.TRANSFER_MODE_HEADER, ContentFeatures.transferMode(header.get("transfermode.dlna.org"), mime));
+    }
+
+    /**
+     * @return true if the complete file is sent gzip compressed: the client
+     *         accepts it and the file is either small enough for the
+     *         compression cache or has a pre-compressed sibling.
+     */
+    private boolean isCompressedVariantServed(Map<String, String> header, FileMetadata metadata) {
+        return isCompressible(metadata.getMimeType()) && GzipCache.acceptsGzip(header.get("accept-encoding"))
+                && (this.gzipCache.isCacheable(metadata.getLength()) || metadata.getGzipLength() > 0);
+    }
+
+    /**
+     * Serves a text file gzip compressed: from the compression cache, from a
+     * pre-compressed <code>.gz</code> sibling that is at least as new, or by
+     * compressing (and caching) it now. Compressed responses do not take
+     * ranges, so they do not announce <code>Accept-Ranges</code>.
+     * 
+     * @return null if the file should be sent as it is.
+     */
+    private Response newCompressedFileResponse(FileMetadata metadata) throws IOException {
+        String mime = metadata.getMimeType();
+        String path = metadata.getFile().getPath();
+        byte[] compressed = this.gzipCache.get(path, metadata.getEtag());
+        if (compressed == null) {
+            long gzipLen = metadata.getGzipLength();
+            if (gzipLen > 0) {
+                Response res = Response.newFileChannelResponse(Status.OK, mime, metadata.getGzipFile(), 0, gzipLen, this.blockCache);
+                res.setUseGzip(false);
+                res.addHeader("Content-Encoding", "gzip");
+                res.addHeader("Content-Length", "" + gzipLen);
+                res.addHeader("Vary", "Accept-Encoding");
+                return res;
+            }
+            if (!this.gzipCache.isCacheable(metadata.getLength())) {
+                return null;
+            }
+            InputStream in = new FileInputStream(metadata.getFile());
+            try {
+                compressed = this.gzipCache.put(path, metadata.getEtag(), in);
+            } finally {
+                NanoHTTPD.safeClose(in);
+            }
+        }
+        return GzipCache.newGzipResponse(Status.OK, mime, compressed);
+    }
+
+    /**
+     * Creates a response for generated text, gzip compressed through the
+     * compression cache if the client accepts it.
+     * 
+     * @param key
+     *            identifies the text in the compression cache.
+     * @param etag
+     *            changes whenever the text does.
+     */
+    private Response newRenderedResponse(Map<String, String> header, String key, String etag, String mimeType, byte[] text) {
+        if (GzipCache.acceptsGzip(header.get("accept-encoding"))) {
+            try {
+                byte[] compressed = this.gzipCache.get(key, etag);
+                if (compressed == null) {
+                    compressed = this.gzipCache.put(key, etag, text);
+                }
+                return GzipCache.newGzipResponse(Status.OK, mimeType, compressed);
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.WARNING, "could not compress " + key, e);
+            }
+        }
+        Response res = Response.newFixedLengthResponse(Status.OK, mimeType, new ByteArrayInputStream(text), text.length);
+        res.setUseGzip(false);
+        return res;
+    }
+
+    private static boolean isCompressible(String mime) {
+        if (mime == null) {
+            return false;
+        }
+        String lowerCaseMime = mime.toLowerCase();
+        return lowerCaseMime.startsWith("text/") || lowerCaseMime.contains("json") || lowerCaseMime.contains("xml") || lowerCaseMime.contains("javascript");
+    }
+
+    /**
+     * Creates a response for a range of a file, or of its faststart layout
+     * if there is one.
+     */
+    private Response newFileRangeResponse(IStatus status, String mime, File file, long start, long length, FaststartLayout faststart) throws IOException {
+        if (faststart != null) {
+            FileRangeInputStream data = faststart.newInputStream(start, length, this.blockCache);
+            return Response.newFixedLengthResponse(status, mime, data, data.getRemaining());
+        }
+        return Response.newFileChannelResponse(status, mime, file, start, length, this.blockCache);
+    }
+
     protected Response addCORSHeaders(Map<String, String> queryHeaders, Response resp, String cors) {
         resp.addHeader("Access-Control-Allow-Origin", cors);
         resp.addHeader("Access-Control-Allow-Headers", calculateAllowHeaders(queryHeaders));
@@ -0,0 +1,78 @@
+package org.nanohttpd.webserver.dlna;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+/**
+ * DLNA response headers that tell a renderer how a media resource can be
+ * transferred and seeked.
+ */
+public final class ContentFeatures {
+
+    public static final String CONTENT_FEATURES_HEADER = "contentFeatures.dlna.org";
+
+    public static final String TRANSFER_MODE_HEADER = "transferMode.dlna.org";
+
+    /**
+     * Streaming transfer mode, background transfer mode, connection stalling
+     * and DLNA 1.5.
+     */
+    private static final String FLAGS = "01700000000000000000000000000000";
+
+    private ContentFeatures() {
+    }
+
+    /**
+     * @param timeSeek
+     *            whether <code>TimeSeekRange.dlna.org</code> is supported.
+     * @param byteSeek
+     *            whether <code>Range</code> is supported.
+     * @return the value for <code>contentFeatures.dlna.org</code>.
+     */
+    public static String contentFeatures(boolean timeSeek, boolean byteSeek) {
+        return "DLNA.ORG_OP=" + (timeSeek ? '1' : '0') + (byteSeek ? '1' : '0') + ";DLNA.ORG_CI=0;DLNA.ORG_FLAGS=" + FLAGS;
+    }
+
+    /**
+     * @param requested
+     *            the <code>transferMode.dlna.org</code> request header, may
+     *            be null.
+     * @return the transfer mode to answer with.
+     */
+    public static String transferMode(String requested, String mimeType) {
+        if (requested != null && requested.length() > 0) {
+            return requested;
+        }
+        return mimeType != null && mimeType.startsWith("image/") ? "Interactive" : "Streaming";
+    }
+}
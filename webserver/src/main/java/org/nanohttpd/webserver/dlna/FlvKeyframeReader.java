@@ -0,0 +1,255 @@
+package org.nanohttpd.webserver.dlna;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * Builds the {@link KeyframeIndex} of an FLV file, from the
+ * <code>keyframes</code> object of its <code>onMetaData</code> script tag if
+ * the muxer wrote one, otherwise by walking the tag headers and noting the
+ * video keyframe tags.
+ */
+public final class FlvKeyframeReader {
+
+    private static final int TAG_AUDIO = 8;
+
+    private static final int TAG_VIDEO = 9;
+
+    private static final int TAG_SCRIPT = 18;
+
+    /**
+     * Larger script tags are not parsed.
+     */
+    private static final int MAX_SCRIPT_SIZE = 1024 * 1024;
+
+    private FlvKeyframeReader() {
+    }
+
+    /**
+     * @return the keyframe index, or null if the file is no FLV or has no
+     *         video keyframes.
+     */
+    public static KeyframeIndex read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return read(in.getChannel());
+        } finally {
+            NanoHTTPD.safeClose(in);
+        }
+    }
+
+    private static KeyframeIndex read(FileChannel channel) throws IOException {
+        long length = channel.size();
+        byte[] header = new byte[9];
+        if (!readFully(channel, 0, header) || header[0] != 'F' || header[1] != 'L' || header[2] != 'V') {
+            return null;
+        }
+        long dataOffset = readUInt(header, 5, 4);
+        // each tag is preceded by the size of the previous one
+        long offset = dataOffset + 4;
+        byte[] tagHeader = new byte[12];
+        KeyframeIndex.Builder keyframes = new KeyframeIndex.Builder();
+        long lastTime = 0;
+        boolean first = true;
+        while (offset + 11 <= length) {
+            if (!readFully(channel, offset, tagHeader)) {
+                break;
+            }
+            int type = tagHeader[0] & 0x1f;
+            long dataSize = readUInt(tagHeader, 1, 3);
+            long time = readUInt(tagHeader, 4, 3) | (tagHeader[7] & 0xffL) << 24;
+            if (first && type == TAG_SCRIPT && dataSize <= MAX_SCRIPT_SIZE) {
+                byte[] script = new byte[(int) dataSize];
+                if (readFully(channel, offset + 11, script)) {
+                    KeyframeIndex index = fromMetaData(script);
+                    if (index != null) {
+                        return index;
+                    }
+                }
+            }
+            first = false;
+            if (type == TAG_VIDEO && (tagHeader[11] & 0xf0) == 0x10) {
+                keyframes.add(time, offset);
+            }
+            if (type == TAG_VIDEO || type == TAG_AUDIO) {
+                lastTime = Math.max(lastTime, time);
+            }
+            offset += 11 + dataSize + 4;
+        }
+        return keyframes.size() == 0 ? null : keyframes.build(lastTime);
+    }
+
+    /**
+     * Reads <code>keyframes.times</code> (seconds) and
+     * <code>keyframes.filepositions</code> of <code>onMetaData</code>.
+     */
+    @SuppressWarnings("unchecked")
+    private static KeyframeIndex fromMetaData(byte[] script) {
+        try {
+            Amf0Reader amf = new Amf0Reader(new ByteArrayInputStream(script));
+            if (!"onMetaData".equals(amf.readValue())) {
+                return null;
+            }
+            Object metaData = amf.readValue();
+            if (!(metaData instanceof Map)) {
+                return null;
+            }
+            Map<String, Object> properties = (Map<String, Object>) metaData;
+            Object keyframesValue = properties.get("keyframes");
+            if (!(keyframesValue instanceof Map)) {
+                return null;
+            }
+            Map<String, Object> keyframes = (Map<String, Object>) keyframesValue;
+            Object times = keyframes.get("times");
+            Object positions = keyframes.get("filepositions");
+            if (!(times instanceof List) || !(positions instanceof List) || ((List<Object>) times).size() != ((List<Object>) positions).size()) {
+                return null;
+            }
+            KeyframeIndex.Builder builder = new KeyframeIndex.Builder();
+            List<Object> timeList = (List<Object>) times;
+            List<Object> positionList = (List<Object>) positions;
+            for (int i = 0; i < timeList.size(); i++) {
+                if (!(timeList.get(i) instanceof Double) || !(positionList.get(i) instanceof Double)) {
+                    return null;
+                }
+                builder.add(Math.round((Double) timeList.get(i) * 1000), ((Double) positionList.get(i)).longValue());
+            }
+            Object duration = properties.get("duration");
+            long durationMillis = duration instanceof Double ? Math.round((Double) duration * 1000) : 0;
+            return builder.size() == 0 ? null : builder.build(durationMillis);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, long offset, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readUInt(byte[] data, int pos, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = value << 8 | data[pos + i] & 0xff;
+        }
+        return value;
+    }
+
+    /**
+     * Minimal AMF0 decoder for script data: numbers, booleans, strings,
+     * objects, ECMA and strict arrays.
+     */
+    private static final class Amf0Reader {
+
+        private final DataInputStream in;
+
+        Amf0Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        Object readValue() throws IOException {
+            int type = this.in.read();
+            switch (type) {
+                case 0:
+                    return this.in.readDouble();
+                case 1:
+                    return this.in.readBoolean();
+                case 2:
+                    return this.in.readUTF();
+                case 3:
+                    return readProperties();
+                case 5:
+                case 6:
+                    return null;
+                case 8:
+                    // ECMA array: count hint, then properties like an object
+                    this.in.readInt();
+                    return readProperties();
+                case 10:
+                    long count = this.in.readInt() & 0xffffffffL;
+                    List<Object> values = new ArrayList<Object>();
+                    for (long i = 0; i < count; i++) {
+                        values.add(readValue());
+                    }
+                    return values;
+                case 11:
+                    // date: milliseconds and time zone
+                    double date = this.in.readDouble();
+                    this.in.readShort();
+                    return date;
+                case 12:
+                    byte[] string = new byte[this.in.readInt()];
+                    this.in.readFully(string);
+                    return new String(string, "UTF-8");
+                case -1:
+                    throw new EOFException();
+                default:
+                    throw new IOException("unsupported AMF0 type " + type);
+            }
+        }
+
+        private Map<String, Object> readProperties() throws IOException {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            while (true) {
+                String name = this.in.readUTF();
+                if (name.length() == 0) {
+                    // object end marker
+                    this.in.read();
+                    return properties;
+                }
+                properties.put(name, readValue());
+            }
+        }
+    }
+}
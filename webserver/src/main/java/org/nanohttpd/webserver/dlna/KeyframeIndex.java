@@ -0,0 +1,184 @@
+package org.nanohttpd.webserver.dlna;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Presentation times and byte offsets of the keyframes of a media file,
+ * used to translate a time position into a byte position.
+ */
+public final class KeyframeIndex {
+
+    /**
+     * "KFI" and the version of the file format.
+     */
+    private static final int MAGIC = 0x4b464901;
+
+    private final long duration;
+
+    private final long[] times;
+
+    private final long[] offsets;
+
+    /**
+     * @param duration
+     *            length of the media in milliseconds, 0 if unknown.
+     * @param times
+     *            keyframe times in milliseconds, ascending.
+     * @param offsets
+     *            file offset of each keyframe.
+     */
+    public KeyframeIndex(long duration, long[] times, long[] offsets) {
+        if (times.length != offsets.length) {
+            throw new IllegalArgumentException("times and offsets differ in length");
+        }
+        this.duration = duration;
+        this.times = times;
+        this.offsets = offsets;
+    }
+
+    /**
+     * @return length of the media in milliseconds, 0 if unknown.
+     */
+    public long getDuration() {
+        return this.duration;
+    }
+
+    public int size() {
+        return this.times.length;
+    }
+
+    public long getTime(int index) {
+        return this.times[index];
+    }
+
+    public long getOffset(int index) {
+        return this.offsets[index];
+    }
+
+    /**
+     * @return the last keyframe at or before <code>time</code>, 0 if there
+     *         is none.
+     */
+    public int floorIndex(long time) {
+        int index = Arrays.binarySearch(this.times, time);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return Math.max(0, index);
+    }
+
+    /**
+     * @return the first keyframe at or after <code>time</code>,
+     *         {@link #size()} if there is none.
+     */
+    public int ceilingIndex(long time) {
+        int index = Arrays.binarySearch(this.times, time);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    /**
+     * Writes the index, tagged with the ETag of the file it belongs to.
+     */
+    public void writeTo(DataOutputStream out, String etag) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeUTF(etag);
+        out.writeLong(this.duration);
+        out.writeInt(this.times.length);
+        for (int i = 0; i < this.times.length; i++) {
+            out.writeLong(this.times[i]);
+            out.writeLong(this.offsets[i]);
+        }
+    }
+
+    /**
+     * @return the index written by {@link #writeTo(DataOutputStream, String)},
+     *         or null if it was written for another version of the file.
+     */
+    public static KeyframeIndex readFrom(DataInputStream in, String etag) throws IOException {
+        if (in.readInt() != MAGIC || !in.readUTF().equals(etag)) {
+            return null;
+        }
+        long duration = in.readLong();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("corrupt keyframe index");
+        }
+        long[] times = new long[size];
+        long[] offsets = new long[size];
+        for (int i = 0; i < size; i++) {
+            times[i] = in.readLong();
+            offsets[i] = in.readLong();
+        }
+        return new KeyframeIndex(duration, times, offsets);
+    }
+
+    /**
+     * Collects keyframes while a file is parsed.
+     */
+    public static final class Builder {
+
+        private long[] times = new long[256];
+
+        private long[] offsets = new long[256];
+
+        private int size;
+
+        public void add(long time, long offset) {
+            if (this.size == this.times.length) {
+                this.times = Arrays.copyOf(this.times, this.size * 2);
+                this.offsets = Arrays.copyOf(this.offsets, this.size * 2);
+            }
+            // keep the times ascending, whatever the container claims
+            if (this.size > 0 && time < this.times[this.size - 1]) {
+                return;
+            }
+            this.times[this.size] = time;
+            this.offsets[this.size] = offset;
+            this.size++;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public KeyframeIndex build(long duration) {
+            return new KeyframeIndex(duration, Arrays.copyOf(this.times, this.size), Arrays.copyOf(this.offsets, this.size));
+        }
+    }
+}
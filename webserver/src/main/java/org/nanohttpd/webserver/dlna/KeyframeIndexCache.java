@@ -0,0 +1,346 @@
+package org.nanohttpd.webserver.dlna;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.nanohttpd.webserver.FileMetadataCache.FileMetadata;
+import org.nanohttpd.webserver.mp4.FaststartLayout;
+import org.nanohttpd.webserver.mp4.Mp4KeyframeReader;
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * Keyframe indexes of media files, built lazily on the first time seek.
+ * <p/>
+ * <p>
+ * Recently used indexes are kept in memory. Every index is also written to
+ * disk, into a cache directory (e.g. the cache directory of the app) or
+ * next to the media file as a hidden <code>.name.keyframes</code> file, so it
+ * survives a restart. Stored indexes carry the ETag of the media file and
+ * are rebuilt once the file changes. The cache directory is kept below a
+ * number of files and bytes, the least recently used indexes are deleted
+ * first.
+ * </p>
+ */
+public class KeyframeIndexCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    public static final int DEFAULT_MAX_STORED_FILES = 512;
+
+    public static final long DEFAULT_MAX_STORED_BYTES = 16 * 1024 * 1024;
+
+    private static final String SUFFIX = ".keyframes";
+
+    private static final class Entry {
+
+        private final String etag;
+
+        /**
+         * null if the file cannot be indexed.
+         */
+        private final KeyframeIndex index;
+
+        Entry(String etag, KeyframeIndex index) {
+            this.etag = etag;
+            this.index = index;
+        }
+    }
+
+    private final File cacheDir;
+
+    private final Map<String, Entry> entries;
+
+    private final int maxStoredFiles;
+
+    private final long maxStoredBytes;
+
+    private final Object pruneLock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong diskLoads = new AtomicLong();
+
+    private final AtomicLong builds = new AtomicLong();
+
+    /**
+     * Stores the indexes in the directory for temporary files, which is the
+     * cache directory of the app on Android.
+     */
+    public KeyframeIndexCache() {
+        this(new File(System.getProperty("java.io.tmpdir"), "nanohttpd-keyframes"), DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param cacheDir
+     *            directory for the stored indexes, null to store them next
+     *            to the media files.
+     * @param maxEntries
+     *            indexes kept in memory.
+     */
+    public KeyframeIndexCache(File cacheDir, int maxEntries) {
+        this(cacheDir, maxEntries, DEFAULT_MAX_STORED_FILES, DEFAULT_MAX_STORED_BYTES);
+    }
+
+    /**
+     * @param maxStoredFiles
+     *            indexes kept in the cache directory.
+     * @param maxStoredBytes
+     *            bytes of indexes kept in the cache directory.
+     */
+    public KeyframeIndexCache(File cacheDir, final int maxEntries, int maxStoredFiles, long maxStoredBytes) {
+        this.cacheDir = cacheDir;
+        this.maxStoredFiles = maxStoredFiles;
+        this.maxStoredBytes = maxStoredBytes;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, KeyframeIndexCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return whether indexes can be built for files of this type.
+     */
+    public static boolean isIndexable(String mimeType) {
+        return FaststartLayout.isMp4(mimeType) || "video/x-flv".equals(mimeType);
+    }
+
+    /**
+     * @return the keyframe index of the file, or null if it cannot be
+     *         indexed.
+     */
+    public KeyframeIndex get(FileMetadata metadata) {
+        String path = metadata.getFile().getPath();
+        String etag = metadata.getEtag();
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(path);
+        }
+        if (entry != null && entry.etag.equals(etag)) {
+            this.hits.incrementAndGet();
+            return entry.index;
+        }
+        File stored = indexFile(metadata.getFile());
+        KeyframeIndex index = load(stored, etag);
+        if (index != null) {
+            this.diskLoads.incrementAndGet();
+            if (this.cacheDir != null) {
+                // recently used, see prune()
+                stored.setLastModified(System.currentTimeMillis());
+            }
+        } else {
+            index = build(metadata);
+            if (index != null) {
+                save(stored, index, etag);
+                if (this.cacheDir != null) {
+                    prune();
+                }
+            } else {
+                // an index of an older version of the file
+                stored.delete();
+            }
+        }
+        synchronized (this.entries) {
+            this.entries.put(path, new Entry(etag, index));
+        }
+        return index;
+    }
+
+    private KeyframeIndex build(FileMetadata metadata) {
+        String mimeType = metadata.getMimeType();
+        if (!isIndexable(mimeType)) {
+            return null;
+        }
+        this.builds.incrementAndGet();
+        try {
+            if (FaststartLayout.isMp4(mimeType)) {
+                return Mp4KeyframeReader.read(metadata.getFile());
+            }
+            return FlvKeyframeReader.read(metadata.getFile());
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "could not index " + metadata.getFile(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if <code>name</code> is that of an index stored next to
+     *         its media file, which directory listings leave out.
+     */
+    public static boolean isIndexFile(String name) {
+        return name.startsWith(".") && name.endsWith(SUFFIX);
+    }
+
+    private File indexFile(File media) {
+        if (this.cacheDir == null) {
+            return new File(media.getParentFile(), "." + media.getName() + SUFFIX);
+        }
+        String path = media.getAbsolutePath();
+        return new File(this.cacheDir, Integer.toHexString(path.hashCode()) + "-" + media.getName() + SUFFIX);
+    }
+
+    private static KeyframeIndex load(File stored, String etag) {
+        if (!stored.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(stored)));
+            return KeyframeIndex.readFrom(in, etag);
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "could not read " + stored, e);
+            return null;
+        } finally {
+            NanoHTTPD.safeClose(in);
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file first, so a concurrent reader
+     * never sees a partial index.
+     */
+    private static void save(File stored, KeyframeIndex index, String etag) {
+        File dir = stored.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        File tmp = new File(stored.getPath() + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            index.writeTo(out, etag);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(stored)) {
+                stored.delete();
+                if (!tmp.renameTo(stored)) {
+                    tmp.delete();
+                }
+            }
+        } catch (IOException e) {
+            // e.g. a read-only media directory, the index stays in memory
+            NanoHTTPD.LOG.log(Level.FINE, "could not store " + stored, e);
+            tmp.delete();
+        } finally {
+            NanoHTTPD.safeClose(out);
+        }
+    }
+
+    /**
+     * Deletes the least recently used indexes of the cache directory until
+     * it is within its bounds. Indexes of deleted or renamed media files
+     * end up here too.
+     */
+    private void prune() {
+        synchronized (this.pruneLock) {
+            File[] stored = this.cacheDir.listFiles(new FilenameFilter() {
+
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.contains(SUFFIX);
+                }
+            });
+            if (stored == null) {
+                return;
+            }
+            final long[] lastModified = new long[stored.length];
+            long bytes = 0;
+            Integer[] order = new Integer[stored.length];
+            for (int i = 0; i < stored.length; i++) {
+                lastModified[i] = stored[i].lastModified();
+                bytes += stored[i].length();
+                order[i] = i;
+            }
+            int files = stored.length;
+            if (files <= this.maxStoredFiles && bytes <= this.maxStoredBytes) {
+                return;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return lastModified[a] < lastModified[b] ? -1 : lastModified[a] == lastModified[b] ? 0 : 1;
+                }
+            });
+            for (int i = 0; i < order.length && (files > this.maxStoredFiles || bytes > this.maxStoredBytes); i++) {
+                File oldest = stored[order[i]];
+                long length = oldest.length();
+                if (oldest.delete()) {
+                    files--;
+                    bytes -= length;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return lookups answered from memory.
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return indexes read from disk.
+     */
+    public long getDiskLoadCount() {
+        return this.diskLoads.get();
+    }
+
+    /**
+     * @return indexes built by parsing a media file.
+     */
+    public long getBuildCount() {
+        return this.builds.get();
+    }
+}
@@ -0,0 +1,169 @@
+package org.nanohttpd.webserver.dlna;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Locale;
+
+/**
+ * Value of the DLNA <code>TimeSeekRange.dlna.org</code> request header, a
+ * range in normal play time (<code>npt=start-[end]</code>).
+ */
+public final class TimeSeekRange {
+
+    public static final String HEADER = "TimeSeekRange.dlna.org";
+
+    /**
+     * Longest hour or second count accepted, far beyond any media duration
+     * and safe from overflow in milliseconds.
+     */
+    private static final int MAX_DIGITS = 12;
+
+    private final long start;
+
+    private final long end;
+
+    private TimeSeekRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return start in milliseconds.
+     */
+    public long getStart() {
+        return this.start;
+    }
+
+    /**
+     * @return end in milliseconds, -1 if open ended.
+     */
+    public long getEnd() {
+        return this.end;
+    }
+
+    /**
+     * Parses <code>npt=10.5-</code>, <code>npt=0:01:02.5-0:02:00</code> and
+     * the like.
+     *
+     * @return the range, or null if the value is not a valid npt range.
+     */
+    public static TimeSeekRange parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String npt = value.trim();
+        if (!npt.toLowerCase(Locale.US).startsWith("npt=")) {
+            return null;
+        }
+        npt = npt.substring(4);
+        // a byte range may follow, it is ignored
+        int space = npt.indexOf(' ');
+        if (space >= 0) {
+            npt = npt.substring(0, space);
+        }
+        int dash = npt.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long start = parseTime(npt.substring(0, dash));
+        String endValue = npt.substring(dash + 1);
+        long end = endValue.length() == 0 ? -1 : parseTime(endValue);
+        if (start < 0 || endValue.length() != 0 && (end < 0 || end < start)) {
+            return null;
+        }
+        return new TimeSeekRange(start, end);
+    }
+
+    /**
+     * @return milliseconds of <code>seconds[.fraction]</code> or
+     *         <code>h:mm:ss[.fraction]</code> (RFC 2326 npt-sec and
+     *         npt-hhmmss: digits only, minutes and seconds below 60), -1 if
+     *         invalid.
+     */
+    static long parseTime(String time) {
+        String value = time.trim();
+        int dot = value.indexOf('.');
+        String fraction = dot >= 0 ? value.substring(dot + 1) : "";
+        if (!isDigits(fraction, 0, Integer.MAX_VALUE)) {
+            return -1;
+        }
+        String[] fields = (dot >= 0 ? value.substring(0, dot) : value).split(":", -1);
+        long seconds;
+        if (fields.length == 1 && isDigits(fields[0], 1, MAX_DIGITS)) {
+            seconds = Long.parseLong(fields[0]);
+        } else if (fields.length == 3 && isDigits(fields[0], 1, MAX_DIGITS) && isDigits(fields[1], 1, 2) && isDigits(fields[2], 1, 2)) {
+            long minutes = Long.parseLong(fields[1]);
+            seconds = Long.parseLong(fields[2]);
+            if (minutes >= 60 || seconds >= 60) {
+                return -1;
+            }
+            seconds += Long.parseLong(fields[0]) * 3600 + minutes * 60;
+        } else {
+            return -1;
+        }
+        long millis = 0;
+        for (int i = 0; i < 3; i++) {
+            millis = millis * 10 + (i < fraction.length() ? fraction.charAt(i) - '0' : 0);
+        }
+        if (fraction.length() > 3 && fraction.charAt(3) >= '5') {
+            millis++;
+        }
+        return seconds * 1000 + millis;
+    }
+
+    /**
+     * @return true if <code>value</code> consists of <code>min</code> to
+     *         <code>max</code> ASCII digits.
+     */
+    private static boolean isDigits(String value, int min, int max) {
+        if (value.length() < min || value.length() > max) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>time</code> in npt seconds, e.g. <code>62.500</code>.
+     */
+    public static String format(long time) {
+        long millis = time % 1000;
+        return time / 1000 + (millis < 10 ? ".00" : millis < 100 ? ".0" : ".") + millis;
+    }
+}
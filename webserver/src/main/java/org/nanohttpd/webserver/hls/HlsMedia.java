@@ -0,0 +1,540 @@
+package org.nanohttpd.webserver.hls;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.nanohttpd.webserver.mp4.Mp4SampleTable;
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * An MP4 file cut into HLS segments.
+ * <p/>
+ * <p>
+ * Segments start at sync samples of the H.264 video track and are at least
+ * the target duration long. A segment is remuxed on request: its samples
+ * are read straight from the file, the video is converted to Annex B byte
+ * stream format with the parameter sets repeated at every keyframe, AAC
+ * frames get an ADTS header, and both are written as MPEG-2 transport
+ * stream, one access unit at a time. Nothing is written to disk.
+ * </p>
+ */
+final class HlsMedia {
+
+    /**
+     * Added to all timestamps, so presentation times of reordered frames
+     * never fall below the start of the clock.
+     */
+    private static final long TIMESTAMP_OFFSET = 90000;
+
+    private static final int AUDIO_FRAMES_PER_PES = 5;
+
+    private static final byte[] START_CODE = {
+        0,
+        0,
+        0,
+        1
+    };
+
+    private static final byte[] ACCESS_UNIT_DELIMITER = {
+        0,
+        0,
+        0,
+        1,
+        0x09,
+        (byte) 0xf0
+    };
+
+    private final File file;
+
+    private final Mp4SampleTable.Track video;
+
+    private final Mp4SampleTable.Track audio;
+
+    private final int nalLengthSize;
+
+    private final byte[] parameterSets;
+
+    private final int adtsProfile;
+
+    private final int adtsFrequency;
+
+    private final int adtsChannels;
+
+    private final int[] segmentStarts;
+
+    private HlsMedia(File file, Mp4SampleTable.Track video, Mp4SampleTable.Track audio, byte[] avcC, byte[] audioConfig, int[] segmentStarts) {
+        this.file = file;
+        this.video = video;
+        this.nalLengthSize = (avcC[4] & 0x03) + 1;
+        this.parameterSets = parameterSets(avcC);
+        this.segmentStarts = segmentStarts;
+        int profile = -1;
+        int frequency = -1;
+        int channels = -1;
+        if (audioConfig != null && audioConfig.length >= 2) {
+            int objectType = (audioConfig[0] & 0xff) >> 3;
+            frequency = (audioConfig[0] & 0x07) << 1 | (audioConfig[1] & 0xff) >> 7;
+            channels = (audioConfig[1] & 0x78) >> 3;
+            // HE-AAC is signalled implicitly in ADTS, as AAC LC at the core
+            // sampling rate
+            profile = objectType == 5 || objectType == 29 ? 1 : objectType - 1;
+        }
+        if (profile >= 0 && profile <= 3 && frequency < 13 && channels > 0 && channels < 8) {
+            this.audio = audio;
+            this.adtsProfile = profile;
+            this.adtsFrequency = frequency;
+            this.adtsChannels = channels;
+        } else {
+            this.audio = null;
+            this.adtsProfile = 0;
+            this.adtsFrequency = 0;
+            this.adtsChannels = 0;
+        }
+    }
+
+    /**
+     * @param targetDuration
+     *            minimum segment length in seconds.
+     * @return the segmented media, or null if the file has no H.264 video
+     *         track.
+     */
+    static HlsMedia create(File file, int targetDuration) throws IOException {
+        Mp4SampleTable table = Mp4SampleTable.read(file);
+        if (table == null) {
+            return null;
+        }
+        Mp4SampleTable.Track video = table.getTrack("vide");
+        if (video == null || video.getSampleCount() == 0 || video.getDecoderConfig() == null || video.getDecoderConfig().length < 7) {
+            return null;
+        }
+        Mp4SampleTable.Track audio = table.getTrack("soun");
+        if (audio != null && !"mp4a".equals(audio.getCodec())) {
+            audio = null;
+        }
+        List<Integer> starts = new ArrayList<Integer>();
+        starts.add(0);
+        long target = targetDuration * video.getTimescale();
+        long segmentStart = video.getDecodeTime(0);
+        for (int sample = 1; sample < video.getSampleCount(); sample++) {
+            if (video.isSync(sample) && video.getDecodeTime(sample) - segmentStart >= target) {
+                starts.add(sample);
+                segmentStart = video.getDecodeTime(sample);
+            }
+        }
+        int[] segmentStarts = new int[starts.size()];
+        for (int i = 0; i < segmentStarts.length; i++) {
+            segmentStarts[i] = starts.get(i);
+        }
+        return new HlsMedia(file, video, audio, video.getDecoderConfig(), audio == null ? null : audio.getDecoderConfig(), segmentStarts);
+    }
+
+    /**
+     * Extracts the SPS and PPS NAL units of an <code>avcC</code> box, each
+     * preceded by a start code.
+     */
+    private static byte[] parameterSets(byte[] avcC) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int pos = 5;
+        for (int set = 0; set < 2 && pos < avcC.length; set++) {
+            int count = set == 0 ? avcC[pos++] & 0x1f : avcC[pos++] & 0xff;
+            for (int i = 0; i < count && pos + 2 <= avcC.length; i++) {
+                int length = (avcC[pos] & 0xff) << 8 | avcC[pos + 1] & 0xff;
+                pos += 2;
+                if (pos + length > avcC.length) {
+                    break;
+                }
+                out.write(START_CODE, 0, START_CODE.length);
+                out.write(avcC, pos, length);
+                pos += length;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    int getSegmentCount() {
+        return this.segmentStarts.length;
+    }
+
+    /**
+     * @return start of the segment in video timescale units.
+     */
+    private long segmentTime(int segment) {
+        if (segment >= this.segmentStarts.length) {
+            int last = this.video.getSampleCount() - 1;
+            long end = this.video.getDuration();
+            return Math.max(end, this.video.getDecodeTime(last) + (last > 0 ? this.video.getDecodeTime(last) - this.video.getDecodeTime(last - 1) : 0));
+        }
+        return this.video.getDecodeTime(this.segmentStarts[segment]);
+    }
+
+    /**
+     * @param segmentPrefix
+     *            URI of the segments relative to the playlist, the segment
+     *            number and <code>.ts</code> are appended.
+     * @return the VOD media playlist.
+     */
+    String playlist(String segmentPrefix) {
+        double timescale = this.video.getTimescale();
+        double maxDuration = 0;
+        StringBuilder segments = new StringBuilder();
+        for (int segment = 0; segment < this.segmentStarts.length; segment++) {
+            double duration = (segmentTime(segment + 1) - segmentTime(segment)) / timescale;
+            maxDuration = Math.max(maxDuration, duration);
+            segments.append(String.format(Locale.US, "#EXTINF:%.3f,\n", duration));
+            segments.append(segmentPrefix).append(segment).append(".ts\n");
+        }
+        StringBuilder playlist = new StringBuilder(segments.length() + 128);
+        playlist.append("#EXTM3U\n");
+        playlist.append("#EXT-X-VERSION:3\n");
+        playlist.append("#EXT-X-TARGETDURATION:").append((long) Math.ceil(maxDuration)).append('\n');
+        playlist.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        playlist.append("#EXT-X-PLAYLIST-TYPE:VOD\n");
+        playlist.append(segments);
+        playlist.append("#EXT-X-ENDLIST\n");
+        return playlist.toString();
+    }
+
+    /**
+     * @return the bytes of all samples of the segment plus the muxing
+     *         overhead, roughly the size of its transport stream.
+     */
+    long estimateSegmentSize(int segment) {
+        int first = this.segmentStarts[segment];
+        int end = segmentEnd(segment);
+        long size = 0;
+        for (int sample = first; sample < end; sample++) {
+            size += this.video.getSize(sample);
+        }
+        if (this.audio != null) {
+            int audioEnd = audioSampleAt(segment + 1);
+            for (int sample = audioSampleAt(segment); sample < audioEnd; sample++) {
+                size += this.audio.getSize(sample);
+            }
+        }
+        // TS packet headers and PES headers
+        return size + size / 8 + 4096;
+    }
+
+    /**
+     * @return bytes held by the sample tables, roughly.
+     */
+    long getMemorySize() {
+        return this.video.getMemorySize() + (this.audio == null ? 0 : this.audio.getMemorySize()) + this.segmentStarts.length * 4;
+    }
+
+    private int segmentEnd(int segment) {
+        return segment + 1 < this.segmentStarts.length ? this.segmentStarts[segment + 1] : this.video.getSampleCount();
+    }
+
+    private int audioSampleAt(int segment) {
+        return segment < this.segmentStarts.length ? this.audio.sampleAt(toAudioTime(segmentTime(segment))) : this.audio.getSampleCount();
+    }
+
+    /**
+     * @return the transport stream of one segment.
+     */
+    byte[] segment(int segment) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(estimateSegmentSize(segment), Integer.MAX_VALUE - 8));
+        SegmentWriter writer = new SegmentWriter(segment, out);
+        try {
+            while (writer.writeNext()) {
+                // until the last sample
+            }
+        } finally {
+            writer.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the transport stream of one segment, remuxed while it is read:
+     *         only one access unit at a time is held in memory.
+     */
+    InputStream openSegment(int segment) throws IOException {
+        return new SegmentInputStream(segment);
+    }
+
+    /**
+     * Remuxes a segment one video sample, with the audio decoded up to it, at
+     * a time.
+     */
+    private final class SegmentWriter implements Closeable {
+
+        private final FileInputStream in;
+
+        private final FileChannel channel;
+
+        private final TsMuxer muxer;
+
+        private final int end;
+
+        private final int audioEnd;
+
+        private int videoSample;
+
+        private int audioSample;
+
+        private byte[] sample = new byte[0];
+
+        private final Buffer accessUnit = new Buffer();
+
+        private final Buffer audioFrames = new Buffer();
+
+        private int pendingFrames;
+
+        private long audioPts;
+
+        SegmentWriter(int segment, OutputStream out) throws IOException {
+            this.videoSample = HlsMedia.this.segmentStarts[segment];
+            this.end = segmentEnd(segment);
+            if (HlsMedia.this.audio != null) {
+                this.audioSample = audioSampleAt(segment);
+                this.audioEnd = audioSampleAt(segment + 1);
+            } else {
+                this.audioEnd = 0;
+            }
+            this.muxer = new TsMuxer(out);
+            this.in = new FileInputStream(HlsMedia.this.file);
+            this.channel = this.in.getChannel();
+            this.muxer.writeTables(true, HlsMedia.this.audio != null);
+        }
+
+        /**
+         * @return false once the whole segment is written.
+         */
+        boolean writeNext() throws IOException {
+            Mp4SampleTable.Track video = HlsMedia.this.video;
+            if (this.videoSample < this.end) {
+                long dts = to90kHz(video.getDecodeTime(this.videoSample), video.getTimescale());
+
+                // interleave the audio decoded up to this video frame
+                while (this.audioSample < this.audioEnd && to90kHz(HlsMedia.this.audio.getDecodeTime(this.audioSample), HlsMedia.this.audio.getTimescale()) <= dts) {
+                    writeAudioSample();
+                    if (this.pendingFrames == AUDIO_FRAMES_PER_PES) {
+                        flushAudio();
+                    }
+                }
+
+                boolean keyframe = video.isSync(this.videoSample);
+                this.sample = readSample(this.channel, video.getOffset(this.videoSample), video.getSize(this.videoSample), this.sample);
+                this.accessUnit.reset();
+                toAnnexB(this.sample, video.getSize(this.videoSample), keyframe, this.accessUnit);
+                long pts = to90kHz(video.getPresentationTime(this.videoSample), video.getTimescale());
+                this.muxer.writePes(TsMuxer.PID_VIDEO, TsMuxer.STREAM_ID_VIDEO, pts, dts, this.accessUnit.array(), this.accessUnit.size(), dts * 300, keyframe);
+                this.videoSample++;
+                return true;
+            }
+            if (this.audioSample < this.audioEnd || this.pendingFrames > 0) {
+                while (this.audioSample < this.audioEnd) {
+                    writeAudioSample();
+                }
+                flushAudio();
+                return true;
+            }
+            return false;
+        }
+
+        private void writeAudioSample() throws IOException {
+            Mp4SampleTable.Track audio = HlsMedia.this.audio;
+            if (this.pendingFrames == 0) {
+                this.audioPts = to90kHz(audio.getDecodeTime(this.audioSample), audio.getTimescale());
+            }
+            this.sample = readSample(this.channel, audio.getOffset(this.audioSample), audio.getSize(this.audioSample), this.sample);
+            writeAdtsFrame(this.audioFrames, this.sample, audio.getSize(this.audioSample));
+            this.audioSample++;
+            this.pendingFrames++;
+        }
+
+        private void flushAudio() throws IOException {
+            if (this.pendingFrames > 0) {
+                this.muxer.writePes(TsMuxer.PID_AUDIO, TsMuxer.STREAM_ID_AUDIO, this.audioPts, this.audioPts, this.audioFrames.array(), this.audioFrames.size(), -1, false);
+                this.audioFrames.reset();
+                this.pendingFrames = 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            NanoHTTPD.safeClose(this.in);
+        }
+    }
+
+    /**
+     * Runs a {@link SegmentWriter} whenever the bytes it wrote last have been
+     * read.
+     */
+    private final class SegmentInputStream extends InputStream {
+
+        private final Buffer buffer = new Buffer();
+
+        private final SegmentWriter writer;
+
+        private int position;
+
+        private boolean finished;
+
+        SegmentInputStream(int segment) throws IOException {
+            this.writer = new SegmentWriter(segment, this.buffer);
+        }
+
+        private boolean fill() throws IOException {
+            while (this.position >= this.buffer.size()) {
+                if (this.finished) {
+                    return false;
+                }
+                this.buffer.reset();
+                this.position = 0;
+                this.finished = !this.writer.writeNext();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? this.buffer.array()[this.position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, this.buffer.size() - this.position);
+            System.arraycopy(this.buffer.array(), this.position, b, off, count);
+            this.position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.size() - this.position;
+        }
+
+        @Override
+        public void close() {
+            this.finished = true;
+            this.writer.close();
+        }
+    }
+
+    private long toAudioTime(long videoTime) {
+        return videoTime * this.audio.getTimescale() / this.video.getTimescale();
+    }
+
+    private static long to90kHz(long time, long timescale) {
+        return time * 90000 / timescale + TIMESTAMP_OFFSET;
+    }
+
+    private static byte[] readSample(FileChannel channel, long offset, int size, byte[] buffer) throws IOException {
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, buffer.length * 2)];
+        }
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, size);
+        while (target.hasRemaining()) {
+            if (channel.read(target, offset + target.position()) < 0) {
+                throw new IOException("sample beyond end of " + channel);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Replaces the NAL unit length prefixes by start codes, starts the access
+     * unit with a delimiter and puts the parameter sets in front of
+     * keyframes.
+     */
+    private void toAnnexB(byte[] sample, int size, boolean keyframe, ByteArrayOutputStream out) {
+        out.write(ACCESS_UNIT_DELIMITER, 0, ACCESS_UNIT_DELIMITER.length);
+        if (keyframe) {
+            out.write(this.parameterSets, 0, this.parameterSets.length);
+        }
+        int pos = 0;
+        while (pos + this.nalLengthSize <= size) {
+            int length = 0;
+            for (int i = 0; i < this.nalLengthSize; i++) {
+                length = length << 8 | sample[pos++] & 0xff;
+            }
+            if (length <= 0 || length > size - pos) {
+                break;
+            }
+            int type = sample[pos] & 0x1f;
+            if (type != 9) {
+                out.write(START_CODE, 0, START_CODE.length);
+                out.write(sample, pos, length);
+            }
+            pos += length;
+        }
+    }
+
+    private void writeAdtsFrame(ByteArrayOutputStream out, byte[] frame, int size) {
+        int length = size + 7;
+        if (length > 0x1fff) {
+            // does not fit the 13 bit frame length of ADTS
+            return;
+        }
+        out.write(0xff);
+        out.write(0xf1);
+        out.write(this.adtsProfile << 6 | this.adtsFrequency << 2 | this.adtsChannels >> 2);
+        out.write((this.adtsChannels & 0x03) << 6 | length >> 11 & 0x03);
+        out.write(length >> 3 & 0xff);
+        out.write((length & 0x07) << 5 | 0x1f);
+        out.write(0xfc);
+        out.write(frame, 0, size);
+    }
+
+    /**
+     * Gives access to the buffered bytes without copying them.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        byte[] array() {
+            return this.buf;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package org.nanohttpd.webserver.hls;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.nanohttpd.webserver.WebServerPlugin;
+import org.nanohttpd.webserver.mp4.FaststartLayout;
+import org.protocols.http.IHTTPSession;
+import org.protocols.http.NanoHTTPD;
+import org.protocols.http.response.Response;
+import org.protocols.http.response.Status;
+
+/**
+ * Serves local MP4 files as HTTP Live Streams, without preparing anything
+ * on disk.
+ * <p/>
+ * <p>
+ * For a file <code>/movie.mp4</code> the playlist is
+ * <code>/movie.mp4.m3u8</code> and the segments are
+ * <code>/movie.mp4.0.ts</code>, <code>/movie.mp4.1.ts</code>, and so on.
+ * The sample tables of recently used files are kept up to
+ * {@link #MAX_MEDIA_SIZE} bytes, and so are the recently requested segments
+ * up to a total size, so players fetching the same segment again (or
+ * several clients watching the same file) do not remux it again. Segments
+ * larger than a quarter of that size are not cached but remuxed straight
+ * into a chunked response.
+ * </p>
+ * <p>
+ * Registered for <code>application/vnd.apple.mpegurl</code> and
+ * <code>video/mp2t</code> by {@link HlsPluginInfo}. Options are
+ * <code>-X:hls.targetDuration=&lt;seconds&gt;</code> and
+ * <code>-X:hls.cacheSize=&lt;MiB&gt;</code>.
+ * </p>
+ */
+public class HlsPlugin implements WebServerPlugin {
+
+    public static final String MIME_PLAYLIST = "application/vnd.apple.mpegurl";
+
+    public static final String MIME_SEGMENT = "video/mp2t";
+
+    public static final int DEFAULT_TARGET_DURATION = 6;
+
+    public static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * Upper bound for the bytes of sample tables kept, about 700 000
+     * samples.
+     */
+    public static final long MAX_MEDIA_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Segments up to this fraction of the segment cache size are cached.
+     */
+    private static final int MAX_CACHED_SEGMENT_SHARE = 4;
+
+    private static final Pattern PLAYLIST = Pattern.compile("(.+)\\.m3u8");
+
+    private static final Pattern SEGMENT = Pattern.compile("(.+)\\.(\\d{1,9})\\.ts");
+
+    /**
+     * A segmented file, or null media for a file that cannot be segmented.
+     */
+    private static final class MediaEntry {
+
+        private final long lastModified;
+
+        private final long length;
+
+        private final HlsMedia media;
+
+        private final long size;
+
+        MediaEntry(long lastModified, long length, HlsMedia media) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.media = media;
+            this.size = media == null ? 0 : media.getMemorySize();
+        }
+    }
+
+    private final LinkedHashMap<String, MediaEntry> media = new LinkedHashMap<String, MediaEntry>(16, 0.75f, true);
+
+    private long mediaSize;
+
+    private final LinkedHashMap<String, byte[]> segments = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    private long segmentsSize;
+
+    private volatile long maxCacheSize = DEFAULT_CACHE_SIZE;
+
+    private volatile int targetDuration = DEFAULT_TARGET_DURATION;
+
+    private final AtomicLong segmentHits = new AtomicLong();
+
+    private final AtomicLong segmentsRemuxed = new AtomicLong();
+
+    @Override
+    public void initialize(Map<String, String> commandLineOptions) {
+        String targetDuration = commandLineOptions.get("-X:hls.targetDuration");
+        if (targetDuration != null) {
+            setTargetDuration(Integer.parseInt(targetDuration));
+        }
+        String cacheSize = commandLineOptions.get("-X:hls.cacheSize");
+        if (cacheSize != null) {
+            setMaxCacheSize(Long.parseLong(cacheSize) * 1024 * 1024);
+        }
+    }
+
+    /**
+     * @param targetDuration
+     *            minimum length of a segment in seconds, segments still only
+     *            start at keyframes. Applies to files segmented afterwards.
+     */
+    public void setTargetDuration(int targetDuration) {
+        if (targetDuration <= 0) {
+            throw new IllegalArgumentException("invalid target duration: " + targetDuration);
+        }
+        this.targetDuration = targetDuration;
+    }
+
+    public int getTargetDuration() {
+        return this.targetDuration;
+    }
+
+    /**
+     * @param maxCacheSize
+     *            upper bound for the bytes of remuxed segments kept, 0
+     *            disables the segment cache.
+     */
+    public void setMaxCacheSize(long maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+        synchronized (this.segments) {
+            trimSegments();
+        }
+    }
+
+    public long getMaxCacheSize() {
+        return this.maxCacheSize;
+    }
+
+    @Override
+    public boolean canServeUri(String uri, File rootDir) {
+        if (new File(rootDir, uri).exists()) {
+            // a real playlist or segment, served as a file
+            return false;
+        }
+        String mediaUri = mediaUri(uri);
+        return mediaUri != null && FaststartLayout.isMp4(NanoHTTPD.getMimeTypeForFile(mediaUri)) && new File(rootDir, mediaUri).isFile();
+    }
+
+    @Override
+    public Response serveFile(String uri, Map<String, String> headers, IHTTPSession session, File file, String mimeType) {
+        String path = file.getPath();
+        Matcher playlist = PLAYLIST.matcher(path);
+        Matcher segment = SEGMENT.matcher(path);
+        try {
+            if (playlist.matches()) {
+                HlsMedia media = getMedia(new File(playlist.group(1)));
+                if (media == null) {
+                    return null;
+                }
+                String name = new File(playlist.group(1)).getName();
+                return Response.newFixedLengthResponse(Status.OK, MIME_PLAYLIST, media.playlist(encode(name) + "."));
+            }
+            if (segment.matches()) {
+                File mediaFile = new File(segment.group(1));
+                HlsMedia media = getMedia(mediaFile);
+                int index = Integer.parseInt(segment.group(2));
+                if (media == null || index >= media.getSegmentCount()) {
+                    return null;
+                }
+                if (media.estimateSegmentSize(index) > this.maxCacheSize / MAX_CACHED_SEGMENT_SHARE) {
+                    this.segmentsRemuxed.incrementAndGet();
+                    return Response.newChunkedResponse(Status.OK, MIME_SEGMENT, media.openSegment(index));
+                }
+                byte[] data = getSegment(mediaFile, media, index);
+                return Response.newFixedLengthResponse(Status.OK, MIME_SEGMENT, new ByteArrayInputStream(data), data.length);
+            }
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.WARNING, "could not segment " + path, e);
+            return Response.newFixedLengthResponse(Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "INTERNAL ERROR: could not segment the file.");
+        }
+        return null;
+    }
+
+    /**
+     * @return the URI of the MP4 file behind a playlist or segment URI, null
+     *         for other URIs.
+     */
+    private static String mediaUri(String uri) {
+        Matcher playlist = PLAYLIST.matcher(uri);
+        if (playlist.matches()) {
+            return playlist.group(1);
+        }
+        Matcher segment = SEGMENT.matcher(uri);
+        if (segment.matches()) {
+            return segment.group(1);
+        }
+        return null;
+    }
+
+    private HlsMedia getMedia(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        MediaEntry entry;
+        synchronized (this.media) {
+            entry = this.media.get(path);
+        }
+        if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+            return entry.media;
+        }
+        // parse outside of the lock, a concurrent request for the same file
+        // just reads the sample tables twice.
+        HlsMedia media;
+        try {
+            media = HlsMedia.create(file, this.targetDuration);
+        } catch (IOException e) {
+            // remembered as a file that cannot be segmented until it changes
+            NanoHTTPD.LOG.log(Level.FINE, "could not read the sample tables of " + file, e);
+            media = null;
+        }
+        entry = new MediaEntry(lastModified, length, media);
+        synchronized (this.media) {
+            MediaEntry previous = this.media.put(path, entry);
+            if (previous != null) {
+                this.mediaSize -= previous.size;
+            }
+            this.mediaSize += entry.size;
+            Iterator<MediaEntry> eldest = this.media.values().iterator();
+            while (this.mediaSize > MAX_MEDIA_SIZE && this.media.size() > 1) {
+                this.mediaSize -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+        return entry.media;
+    }
+
+    private byte[] getSegment(File file, HlsMedia media, int index) throws IOException {
+        String key = file.getAbsolutePath() + ':' + file.lastModified() + ':' + file.length() + ':' + index;
+        byte[] data;
+        synchronized (this.segments) {
+            data = this.segments.get(key);
+        }
+        if (data != null) {
+            this.segmentHits.incrementAndGet();
+            return data;
+        }
+        data = media.segment(index);
+        this.segmentsRemuxed.incrementAndGet();
+        synchronized (this.segments) {
+            byte[] previous = this.segments.put(key, data);
+            if (previous != null) {
+                this.segmentsSize -= previous.length;
+            }
+            this.segmentsSize += data.length;
+            trimSegments();
+        }
+        return data;
+    }
+
+    private void trimSegments() {
+        Iterator<byte[]> eldest = this.segments.values().iterator();
+        while (this.segmentsSize > this.maxCacheSize && eldest.hasNext()) {
+            this.segmentsSize -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    private static String encode(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            return name;
+        }
+    }
+
+    /**
+     * @return number of segments served from the cache.
+     */
+    public long getSegmentHitCount() {
+        return this.segmentHits.get();
+    }
+
+    /**
+     * @return number of segments remuxed from their MP4 file.
+     */
+    public long getSegmentsRemuxed() {
+        return this.segmentsRemuxed.get();
+    }
+
+    /**
+     * @return bytes of remuxed segments held.
+     */
+    public long getCacheSize() {
+        synchronized (this.segments) {
+            return this.segmentsSize;
+        }
+    }
+}
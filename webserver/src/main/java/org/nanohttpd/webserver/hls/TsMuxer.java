@@ -0,0 +1,289 @@
+package org.nanohttpd.webserver.hls;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an MPEG-2 transport stream with one program holding at most one
+ * H.264 and one AAC elementary stream.
+ * <p/>
+ * <p>
+ * Each access unit becomes one PES packet, split over as many 188 byte TS
+ * packets as needed; the last one is padded with adaptation field stuffing.
+ * Timestamps are in units of the 90 kHz MPEG clock.
+ * </p>
+ */
+final class TsMuxer {
+
+    static final int PACKET_SIZE = 188;
+
+    static final int PID_PAT = 0;
+
+    static final int PID_PMT = 0x1000;
+
+    static final int PID_VIDEO = 0x100;
+
+    static final int PID_AUDIO = 0x101;
+
+    private static final int STREAM_TYPE_H264 = 0x1b;
+
+    private static final int STREAM_TYPE_AAC = 0x0f;
+
+    static final int STREAM_ID_VIDEO = 0xe0;
+
+    static final int STREAM_ID_AUDIO = 0xc0;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? crc << 1 ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final OutputStream out;
+
+    private final byte[] packet = new byte[PACKET_SIZE];
+
+    private final byte[] pesHeader = new byte[19];
+
+    private int patContinuity;
+
+    private int pmtContinuity;
+
+    private int videoContinuity;
+
+    private int audioContinuity;
+
+    TsMuxer(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the PAT and the PMT, at the start of every segment so each can
+     * be decoded on its own.
+     */
+    void writeTables(boolean video, boolean audio) throws IOException {
+        byte[] pat = {
+            0x00, // table_id
+            (byte) 0xb0,
+            0x0d, // section_length
+            0x00,
+            0x01, // transport_stream_id
+            (byte) 0xc1, // version 0, current
+            0x00,
+            0x00,
+            0x00,
+            0x01, // program_number
+            (byte) (0xe0 | PID_PMT >> 8),
+            (byte) PID_PMT
+        };
+        writeSection(PID_PAT, this.patContinuity++, pat);
+
+        int streams = (video ? 1 : 0) + (audio ? 1 : 0);
+        int pcrPid = video ? PID_VIDEO : PID_AUDIO;
+        byte[] pmt = new byte[12 + streams * 5];
+        int sectionLength = pmt.length - 3 + 4;
+        pmt[0] = 0x02; // table_id
+        pmt[1] = (byte) (0xb0 | sectionLength >> 8);
+        pmt[2] = (byte) sectionLength;
+        pmt[3] = 0x00;
+        pmt[4] = 0x01; // program_number
+        pmt[5] = (byte) 0xc1;
+        pmt[6] = 0x00;
+        pmt[7] = 0x00;
+        pmt[8] = (byte) (0xe0 | pcrPid >> 8);
+        pmt[9] = (byte) pcrPid;
+        pmt[10] = (byte) 0xf0; // program_info_length 0
+        pmt[11] = 0x00;
+        int pos = 12;
+        if (video) {
+            pos = writeStream(pmt, pos, STREAM_TYPE_H264, PID_VIDEO);
+        }
+        if (audio) {
+            writeStream(pmt, pos, STREAM_TYPE_AAC, PID_AUDIO);
+        }
+        writeSection(PID_PMT, this.pmtContinuity++, pmt);
+    }
+
+    private static int writeStream(byte[] pmt, int pos, int streamType, int pid) {
+        pmt[pos] = (byte) streamType;
+        pmt[pos + 1] = (byte) (0xe0 | pid >> 8);
+        pmt[pos + 2] = (byte) pid;
+        pmt[pos + 3] = (byte) 0xf0; // ES_info_length 0
+        pmt[pos + 4] = 0x00;
+        return pos + 5;
+    }
+
+    private void writeSection(int pid, int continuity, byte[] section) throws IOException {
+        byte[] packet = this.packet;
+        packet[0] = 0x47;
+        packet[1] = (byte) (0x40 | pid >> 8);
+        packet[2] = (byte) pid;
+        packet[3] = (byte) (0x10 | continuity & 0x0f);
+        packet[4] = 0x00; // pointer_field
+        System.arraycopy(section, 0, packet, 5, section.length);
+        int crc = crc32(section);
+        int pos = 5 + section.length;
+        packet[pos++] = (byte) (crc >>> 24);
+        packet[pos++] = (byte) (crc >>> 16);
+        packet[pos++] = (byte) (crc >>> 8);
+        packet[pos++] = (byte) crc;
+        while (pos < PACKET_SIZE) {
+            packet[pos++] = (byte) 0xff;
+        }
+        this.out.write(packet);
+    }
+
+    private static int crc32(byte[] data) {
+        int crc = 0xffffffff;
+        for (byte b : data) {
+            crc = crc << 8 ^ CRC_TABLE[(crc >>> 24 ^ b) & 0xff];
+        }
+        return crc;
+    }
+
+    /**
+     * Writes one access unit as a PES packet.
+     *
+     * @param pcr
+     *            the program clock reference to send with the first packet,
+     *            or -1 for none.
+     * @param randomAccess
+     *            whether decoding can start with this access unit.
+     */
+    void writePes(int pid, int streamId, long pts, long dts, byte[] data, int length, long pcr, boolean randomAccess) throws IOException {
+        int headerLength = writePesHeader(streamId, pts, dts, length);
+        int continuity = pid == PID_VIDEO ? this.videoContinuity : this.audioContinuity;
+        byte[] packet = this.packet;
+        int total = headerLength + length;
+        int written = 0;
+        boolean first = true;
+        while (written < total) {
+            int minAdaptation = 0;
+            if (first && (pcr >= 0 || randomAccess)) {
+                minAdaptation = pcr >= 0 ? 8 : 2;
+            }
+            int payload = Math.min(PACKET_SIZE - 4 - minAdaptation, total - written);
+            int adaptation = PACKET_SIZE - 4 - payload;
+            packet[0] = 0x47;
+            packet[1] = (byte) ((first ? 0x40 : 0) | pid >> 8);
+            packet[2] = (byte) pid;
+            packet[3] = (byte) ((adaptation > 0 ? 0x30 : 0x10) | continuity & 0x0f);
+            continuity++;
+            int pos = 4;
+            if (adaptation > 0) {
+                packet[pos++] = (byte) (adaptation - 1);
+                if (adaptation > 1) {
+                    int flags = 0;
+                    if (first && randomAccess) {
+                        flags |= 0x40;
+                    }
+                    if (first && pcr >= 0) {
+                        flags |= 0x10;
+                    }
+                    packet[pos++] = (byte) flags;
+                    if ((flags & 0x10) != 0) {
+                        packet[pos++] = (byte) (pcr >>> 25);
+                        packet[pos++] = (byte) (pcr >>> 17);
+                        packet[pos++] = (byte) (pcr >>> 9);
+                        packet[pos++] = (byte) (pcr >>> 1);
+                        packet[pos++] = (byte) ((pcr & 1) << 7 | 0x7e);
+                        packet[pos++] = 0x00;
+                    }
+                    while (pos < 4 + adaptation) {
+                        packet[pos++] = (byte) 0xff;
+                    }
+                }
+            }
+            int end = written + payload;
+            if (written < headerLength) {
+                int count = Math.min(headerLength, end) - written;
+                System.arraycopy(this.pesHeader, written, packet, pos, count);
+                pos += count;
+                written += count;
+            }
+            if (written < end) {
+                System.arraycopy(data, written - headerLength, packet, pos, end - written);
+                written = end;
+            }
+            this.out.write(packet);
+            first = false;
+        }
+        if (pid == PID_VIDEO) {
+            this.videoContinuity = continuity;
+        } else {
+            this.audioContinuity = continuity;
+        }
+    }
+
+    private int writePesHeader(int streamId, long pts, long dts, int length) {
+        byte[] header = this.pesHeader;
+        boolean withDts = dts != pts;
+        int timestampLength = withDts ? 10 : 5;
+        int pesLength = 3 + timestampLength + length;
+        if (pesLength > 0xffff) {
+            // unbounded, allowed for video only
+            pesLength = 0;
+        }
+        header[0] = 0x00;
+        header[1] = 0x00;
+        header[2] = 0x01;
+        header[3] = (byte) streamId;
+        header[4] = (byte) (pesLength >> 8);
+        header[5] = (byte) pesLength;
+        header[6] = (byte) 0x80;
+        header[7] = (byte) (withDts ? 0xc0 : 0x80);
+        header[8] = (byte) timestampLength;
+        writeTimestamp(header, 9, withDts ? 0x3 : 0x2, pts);
+        if (withDts) {
+            writeTimestamp(header, 14, 0x1, dts);
+        }
+        return 9 + timestampLength;
+    }
+
+    private static void writeTimestamp(byte[] header, int pos, int prefix, long timestamp) {
+        header[pos] = (byte) (prefix << 4 | (int) (timestamp >>> 29) & 0x0e | 0x01);
+        header[pos + 1] = (byte) (timestamp >>> 22);
+        header[pos + 2] = (byte) ((int) (timestamp >>> 14) & 0xfe | 0x01);
+        header[pos + 3] = (byte) (timestamp >>> 7);
+        header[pos + 4] = (byte) ((int) (timestamp << 1) & 0xfe | 0x01);
+    }
+}
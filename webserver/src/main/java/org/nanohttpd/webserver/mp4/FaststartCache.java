@@ -0,0 +1,176 @@
+package org.nanohttpd.webserver.mp4;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.nanohttpd.webserver.FileMetadataCache.FileMetadata;
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * Faststart layouts of recently served MP4 files, keyed by path and ETag.
+ * <p/>
+ * <p>
+ * A file is parsed once per version; files that need no relocation are
+ * remembered as well, so they are not parsed again. The cache is bounded by
+ * the number of files and by the memory held by the rewritten
+ * <code>moov</code> boxes, least recently used entries are dropped first.
+ * A file whose <code>moov</code> box alone exceeds that memory is served as
+ * it is, and remembered like one that needs no relocation.
+ * </p>
+ */
+public class FaststartCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final class Entry {
+
+        private final String etag;
+
+        /**
+         * null if the file is served as it is.
+         */
+        private final FaststartLayout layout;
+
+        Entry(String etag, FaststartLayout layout) {
+            this.etag = etag;
+            this.layout = layout;
+        }
+
+        int getMemorySize() {
+            return this.layout == null ? 0 : this.layout.getMemorySize();
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public FaststartCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxEntries
+     *            maximum number of files remembered.
+     * @param maxBytes
+     *            upper bound for the memory of the rewritten boxes.
+     */
+    public FaststartCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the faststart layout of the file, or null if it is served as
+     *         it is.
+     */
+    public FaststartLayout get(FileMetadata metadata) {
+        String path = metadata.getFile().getPath();
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(path);
+        }
+        if (entry != null && entry.etag.equals(metadata.getEtag())) {
+            this.hits.incrementAndGet();
+            return entry.layout;
+        }
+        this.misses.incrementAndGet();
+        FaststartLayout layout = null;
+        try {
+            // a layout that could not be kept would be built again for
+            // every range request
+            layout = FaststartLayout.create(metadata.getFile(), this.maxBytes);
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "could not parse " + path, e);
+        }
+        store(path, new Entry(metadata.getEtag(), layout));
+        return layout;
+    }
+
+    private void store(String path, Entry entry) {
+        synchronized (this.entries) {
+            Entry previous = this.entries.put(path, entry);
+            if (previous != null) {
+                this.size -= previous.getMemorySize();
+            }
+            this.size += entry.getMemorySize();
+            Iterator<Entry> eldest = this.entries.values().iterator();
+            while ((this.size > this.maxBytes || this.entries.size() > this.maxEntries) && eldest.hasNext()) {
+                this.size -= eldest.next().getMemorySize();
+                eldest.remove();
+            }
+        }
+    }
+
+    public void invalidate(String path) {
+        synchronized (this.entries) {
+            Entry entry = this.entries.remove(path);
+            if (entry != null) {
+                this.size -= entry.getMemorySize();
+            }
+        }
+    }
+
+    /**
+     * @return bytes held by the rewritten boxes.
+     */
+    public long getSize() {
+        synchronized (this.entries) {
+            return this.size;
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+}
@@ -0,0 +1,92 @@
+package org.nanohttpd.webserver.mp4;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.protocols.http.response.BlockCache;
+import org.protocols.http.response.FileRangeInputStream;
+
+/**
+ * Input stream over a byte range of a {@link FaststartLayout}.
+ * <p/>
+ * <p>
+ * Positions are those of the virtual file. Bytes of the rewritten
+ * <code>moov</code> come from memory, every other byte is read from (or
+ * transferred zero-copy out of) the original file at its mapped offset.
+ * </p>
+ */
+class FaststartInputStream extends FileRangeInputStream {
+
+    private final FaststartLayout layout;
+
+    FaststartInputStream(FaststartLayout layout, long offset, long length, BlockCache cache) throws IOException {
+        super(layout.getFile(), offset, length, cache);
+        this.layout = layout;
+    }
+
+    @Override
+    protected int readAt(long position, byte[] b, int off, int len) throws IOException {
+        if (position >= this.layout.getLength()) {
+            return -1;
+        }
+        int count = (int) Math.min(len, this.layout.getSegmentEnd(position) - position);
+        long source = this.layout.toFileOffset(position);
+        if (source < 0) {
+            return this.layout.readMoov(position, b, off, count);
+        }
+        return super.readAt(source, b, off, count);
+    }
+
+    @Override
+    protected long transferAt(long position, long max, WritableByteChannel target) throws IOException {
+        if (position >= this.layout.getLength()) {
+            return -1;
+        }
+        long count = Math.min(max, this.layout.getSegmentEnd(position) - position);
+        long source = this.layout.toFileOffset(position);
+        if (source < 0) {
+            ByteBuffer buffer = this.layout.moovBuffer(position, (int) count);
+            while (buffer.hasRemaining()) {
+                if (target.write(buffer) <= 0) {
+                    break;
+                }
+            }
+            return count - buffer.remaining();
+        }
+        return super.transferAt(source, count, target);
+    }
+}
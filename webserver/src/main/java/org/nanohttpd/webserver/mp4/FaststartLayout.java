@@ -0,0 +1,364 @@
+package org.nanohttpd.webserver.mp4;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.protocols.http.NanoHTTPD;
+import org.protocols.http.content.ByteRange;
+import org.protocols.http.response.BlockCache;
+import org.protocols.http.response.FileRangeInputStream;
+import org.protocols.http.response.MultipartRangeInputStream;
+
+/**
+ * Virtual "faststart" layout of an MP4 file whose <code>moov</code> box is
+ * stored after the media data, as written by recorders that only know the
+ * sample tables once recording has stopped.
+ * <p/>
+ * <p>
+ * The virtual file starts with the boxes in front of the media data,
+ * followed by a copy of <code>moov</code> whose chunk offsets
+ * (<code>stco</code>/<code>co64</code>) are adjusted, followed by the
+ * original media data. The length is the same as that of the file, only the
+ * rewritten <code>moov</code> is held in memory; every other byte is read
+ * from the original file, mapped through the list of segments.
+ * </p>
+ */
+public final class FaststartLayout {
+
+    /**
+     * Larger <code>moov</code> boxes are not relocated.
+     */
+    public static final int MAX_MOOV_SIZE = 32 * 1024 * 1024;
+
+    private final File file;
+
+    private final long length;
+
+    private final byte[] moov;
+
+    /**
+     * Virtual start of every segment, ascending.
+     */
+    private final long[] segmentStart;
+
+    /**
+     * File offset the segment is read from, -1 for the rewritten moov.
+     */
+    private final long[] segmentSource;
+
+    private FaststartLayout(File file, long length, byte[] moov, long[] segmentStart, long[] segmentSource) {
+        this.file = file;
+        this.length = length;
+        this.moov = moov;
+        this.segmentStart = segmentStart;
+        this.segmentSource = segmentSource;
+    }
+
+    /**
+     * Parses the top level boxes of the file and builds the faststart
+     * layout.
+     *
+     * @return the layout, or null if the file does not need one (already
+     *         faststart, not an MP4, incomplete, fragmented or with offsets
+     *         that cannot be relocated).
+     */
+    public static FaststartLayout create(File file) throws IOException {
+        return create(file, MAX_MOOV_SIZE);
+    }
+
+    /**
+     * Like {@link #create(File)}, for a <code>moov</code> box of at most
+     * <code>maxMoovSize</code> bytes.
+     *
+     * @return the layout, or null if the file does not need one or its
+     *         <code>moov</code> box is larger.
+     */
+    public static FaststartLayout create(File file, long maxMoovSize) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return create(file, in.getChannel(), Math.min(maxMoovSize, MAX_MOOV_SIZE));
+        } finally {
+            NanoHTTPD.safeClose(in);
+        }
+    }
+
+    private static FaststartLayout create(File file, FileChannel channel, long maxMoovSize) throws IOException {
+        long length = channel.size();
+        Mp4Box firstMdat = null;
+        Mp4Box moovBox = null;
+        long offset = 0;
+        while (offset < length) {
+            Mp4Box box = Mp4Box.read(channel, offset, length);
+            if (box == null) {
+                // truncated, e.g. a recording still in progress
+                return null;
+            }
+            String type = box.getType();
+            if ("moov".equals(type)) {
+                if (firstMdat == null) {
+                    // already faststart
+                    return null;
+                }
+                moovBox = box;
+            } else if ("mdat".equals(type) && firstMdat == null) {
+                firstMdat = box;
+            } else if ("moof".equals(type)) {
+                // fragmented files are streamable as they are
+                return null;
+            }
+            offset = box.getEnd();
+        }
+        if (moovBox == null || moovBox.getSize() > maxMoovSize) {
+            return null;
+        }
+        byte[] moov = new byte[(int) moovBox.getSize()];
+        ByteBuffer buffer = ByteBuffer.wrap(moov);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, moovBox.getOffset() + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        long mdatStart = firstMdat.getOffset();
+        if (!relocate(moov, (int) (moovBox.getContentOffset() - moovBox.getOffset()), moov.length, mdatStart, moovBox.getOffset(), moovBox.getEnd())) {
+            NanoHTTPD.LOG.log(Level.FINE, "cannot relocate the chunk offsets of " + file);
+            return null;
+        }
+        // [0, mdat) as is, the moov, then [mdat, moov) at mediaStart and
+        // whatever follows moov
+        long mediaStart = mdatStart + moov.length;
+        long[] segmentStart;
+        long[] segmentSource;
+        if (moovBox.getEnd() < length) {
+            segmentStart = new long[]{0, mdatStart, mediaStart, moovBox.getEnd()};
+            segmentSource = new long[]{0, -1, mdatStart, moovBox.getEnd()};
+        } else {
+            segmentStart = new long[]{0, mdatStart, mediaStart};
+            segmentSource = new long[]{0, -1, mdatStart};
+        }
+        return new FaststartLayout(file, length, moov, segmentStart, segmentSource);
+    }
+
+    /**
+     * Adds the length of the moov box to every chunk offset that points
+     * into the media data in front of it.
+     *
+     * @return false if an offset cannot be mapped.
+     */
+    private static boolean relocate(byte[] moov, int start, int end, long mdatStart, long moovStart, long moovEnd) {
+        long shift = moovEnd - moovStart;
+        int pos = start;
+        while (pos < end) {
+            Mp4Box box = Mp4Box.read(moov, pos, end);
+            if (box == null) {
+                return false;
+            }
+            String type = box.getType();
+            int content = (int) box.getContentOffset();
+            if ("trak".equals(type) || "mdia".equals(type) || "minf".equals(type) || "stbl".equals(type)) {
+                if (!relocate(moov, content, (int) box.getEnd(), mdatStart, moovStart, moovEnd)) {
+                    return false;
+                }
+            } else if ("mvex".equals(type)) {
+                return false;
+            } else if ("stco".equals(type) || "co64".equals(type)) {
+                boolean wide = "co64".equals(type);
+                int entrySize = wide ? 8 : 4;
+                // version and flags, entry count
+                long count = content + 8 <= box.getEnd() ? Mp4Box.readUInt32(moov, content + 4) : -1;
+                if (count < 0 || content + 8 + count * entrySize > box.getEnd()) {
+                    return false;
+                }
+                for (int entry = content + 8; entry < content + 8 + count * entrySize; entry += entrySize) {
+                    long chunkOffset = wide ? Mp4Box.readUInt64(moov, entry) : Mp4Box.readUInt32(moov, entry);
+                    if (chunkOffset >= moovStart && chunkOffset < moovEnd) {
+                        return false;
+                    }
+                    if (chunkOffset >= mdatStart && chunkOffset < moovStart) {
+                        chunkOffset += shift;
+                    }
+                    if (wide) {
+                        Mp4Box.writeUInt64(moov, entry, chunkOffset);
+                    } else if (chunkOffset > 0xffffffffL) {
+                        // would need a co64 box, which changes the layout
+                        return false;
+                    } else {
+                        Mp4Box.writeUInt32(moov, entry, chunkOffset);
+                    }
+                }
+            }
+            pos = (int) box.getEnd();
+        }
+        return true;
+    }
+
+    /**
+     * @return whether files of this type are ISO base media files.
+     */
+    public static boolean isMp4(String mimeType) {
+        return "video/mp4".equals(mimeType) || "video/quicktime".equals(mimeType) || "audio/mp4".equals(mimeType) || "video/x-m4v".equals(mimeType);
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return the length of the virtual file, equal to that of the original.
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return bytes held in memory for this layout.
+     */
+    public int getMemorySize() {
+        return this.moov.length;
+    }
+
+    /**
+     * Reads bytes of the virtual file, at most up to the end of the segment
+     * <code>position</code> is in.
+     *
+     * @param channel
+     *            channel of the original file.
+     * @return the number of bytes read, -1 at the end.
+     */
+    public int read(FileChannel channel, long position, byte[] b, int off, int len) throws IOException {
+        if (position >= this.length) {
+            return -1;
+        }
+        int count = (int) Math.min(len, getSegmentEnd(position) - position);
+        long source = toFileOffset(position);
+        if (source < 0) {
+            return readMoov(position, b, off, count);
+        }
+        int read = channel.read(ByteBuffer.wrap(b, off, count), source);
+        if (read <= 0) {
+            throw new IOException("file shrunk while sending " + this.file);
+        }
+        return read;
+    }
+
+    private int segmentAt(long position) {
+        int segment = this.segmentStart.length - 1;
+        while (this.segmentStart[segment] > position) {
+            segment--;
+        }
+        return segment;
+    }
+
+    /**
+     * @return the end (exclusive) of the segment <code>position</code> is
+     *         in: reads and transfers must not cross it.
+     */
+    long getSegmentEnd(long position) {
+        int segment = segmentAt(position);
+        return segment + 1 < this.segmentStart.length ? this.segmentStart[segment + 1] : this.length;
+    }
+
+    /**
+     * @return the offset in the original file of a byte of the virtual
+     *         file, -1 if it is part of the rewritten moov.
+     */
+    long toFileOffset(long position) {
+        int segment = segmentAt(position);
+        long source = this.segmentSource[segment];
+        return source < 0 ? -1 : source + position - this.segmentStart[segment];
+    }
+
+    /**
+     * Copies bytes of the rewritten moov, the caller keeps within its
+     * segment.
+     */
+    int readMoov(long position, byte[] b, int off, int len) {
+        System.arraycopy(this.moov, (int) (position - this.segmentStart[segmentAt(position)]), b, off, len);
+        return len;
+    }
+
+    /**
+     * @return bytes of the rewritten moov, the caller keeps within its
+     *         segment.
+     */
+    ByteBuffer moovBuffer(long position, int len) {
+        return ByteBuffer.wrap(this.moov, (int) (position - this.segmentStart[segmentAt(position)]), len).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the position in the virtual file of a byte of the original
+     *         file.
+     */
+    public long toVirtualOffset(long fileOffset) {
+        for (int segment = 0; segment < this.segmentStart.length; segment++) {
+            long source = this.segmentSource[segment];
+            long segmentEnd = segment + 1 < this.segmentStart.length ? this.segmentStart[segment + 1] : this.length;
+            if (source >= 0 && fileOffset >= source && fileOffset < source + segmentEnd - this.segmentStart[segment]) {
+                return this.segmentStart[segment] + fileOffset - source;
+            }
+        }
+        return fileOffset;
+    }
+
+    /**
+     * @return a stream over a range of the virtual file. Only the moov is
+     *         copied from memory; the media data is sent with
+     *         {@link FileRangeInputStream#transferTo(java.nio.channels.WritableByteChannel, long)}
+     *         like any other file range, through the block cache if one is
+     *         given.
+     */
+    public FileRangeInputStream newInputStream(long offset, long length, BlockCache cache) throws IOException {
+        return new FaststartInputStream(this, offset, length, cache);
+    }
+
+    /**
+     * @return a <code>multipart/byteranges</code> body over ranges of the
+     *         virtual file.
+     */
+    public MultipartRangeInputStream newMultipartInputStream(String mimeType, List<ByteRange> ranges) throws IOException {
+        return new MultipartRangeInputStream(this.file, mimeType, this.length, ranges) {
+
+            @Override
+            protected int readRange(FileChannel channel, long position, byte[] b, int off, int len) throws IOException {
+                return FaststartLayout.this.read(channel, position, b, off, len);
+            }
+        };
+    }
+}
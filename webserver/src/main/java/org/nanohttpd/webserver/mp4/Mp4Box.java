@@ -0,0 +1,187 @@
+package org.nanohttpd.webserver.mp4;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Position and type of one box (atom) of an ISO base media file, e.g. MP4
+ * or QuickTime.
+ */
+final class Mp4Box {
+
+    private final String type;
+
+    private final long offset;
+
+    private final int headerSize;
+
+    private final long size;
+
+    private Mp4Box(String type, long offset, int headerSize, long size) {
+        this.type = type;
+        this.offset = offset;
+        this.headerSize = headerSize;
+        this.size = size;
+    }
+
+    String getType() {
+        return this.type;
+    }
+
+    long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return offset of the box content, after size and type.
+     */
+    long getContentOffset() {
+        return this.offset + this.headerSize;
+    }
+
+    long getSize() {
+        return this.size;
+    }
+
+    long getEnd() {
+        return this.offset + this.size;
+    }
+
+    /**
+     * Reads the box header at <code>offset</code> of a file.
+     *
+     * @param limit
+     *            end of the enclosing box or of the file.
+     * @return the box, or null if there is no valid box that ends before
+     *         <code>limit</code>.
+     */
+    static Mp4Box read(FileChannel channel, long offset, long limit) throws IOException {
+        if (limit - offset < 8) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.limit((int) Math.min(16, limit - offset));
+        while (header.hasRemaining()) {
+            if (channel.read(header, offset + header.position()) < 0) {
+                return null;
+            }
+        }
+        return parse(header.array(), 0, header.position(), offset, limit);
+    }
+
+    /**
+     * Reads the box header at <code>offset</code> of a buffer.
+     */
+    static Mp4Box read(byte[] data, int offset, int limit) {
+        return parse(data, offset, Math.min(offset + 16, limit), offset, limit);
+    }
+
+    private static Mp4Box parse(byte[] data, int pos, int available, long offset, long limit) {
+        if (available - pos < 8) {
+            return null;
+        }
+        long size = readUInt32(data, pos);
+        String type = new String(new char[]{
+            (char) (data[pos + 4] & 0xff),
+            (char) (data[pos + 5] & 0xff),
+            (char) (data[pos + 6] & 0xff),
+            (char) (data[pos + 7] & 0xff)
+        });
+        int headerSize = 8;
+        if (size == 1) {
+            // 64 bit size follows the type
+            if (available - pos < 16) {
+                return null;
+            }
+            size = readUInt64(data, pos + 8);
+            headerSize = 16;
+        } else if (size == 0) {
+            // extends to the end of the file
+            size = limit - offset;
+        }
+        if (size < headerSize || size > limit - offset) {
+            return null;
+        }
+        return new Mp4Box(type, offset, headerSize, size);
+    }
+
+    /**
+     * @return the first child of the given type within
+     *         <code>[start, end)</code> of a buffer, null if there is none.
+     */
+    static Mp4Box find(byte[] data, long start, long end, String type) {
+        int pos = (int) start;
+        while (pos < end) {
+            Mp4Box box = read(data, pos, (int) end);
+            if (box == null) {
+                return null;
+            }
+            if (box.getType().equals(type)) {
+                return box;
+            }
+            pos = (int) box.getEnd();
+        }
+        return null;
+    }
+
+    /**
+     * @return the first child of <code>parent</code> with the given type.
+     */
+    static Mp4Box find(byte[] data, Mp4Box parent, String type) {
+        return parent == null ? null : find(data, parent.getContentOffset(), parent.getEnd(), type);
+    }
+
+    static long readUInt32(byte[] data, int pos) {
+        return (data[pos] & 0xffL) << 24 | (data[pos + 1] & 0xffL) << 16 | (data[pos + 2] & 0xffL) << 8 | data[pos + 3] & 0xffL;
+    }
+
+    static long readUInt64(byte[] data, int pos) {
+        return readUInt32(data, pos) << 32 | readUInt32(data, pos + 4);
+    }
+
+    static void writeUInt32(byte[] data, int pos, long value) {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    static void writeUInt64(byte[] data, int pos, long value) {
+        writeUInt32(data, pos, value >>> 32);
+        writeUInt32(data, pos + 4, value);
+    }
+}
@@ -0,0 +1,85 @@
+package org.nanohttpd.webserver.mp4;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.nanohttpd.webserver.dlna.KeyframeIndex;
+
+/**
+ * Builds the {@link KeyframeIndex} of an MP4 file from the sync samples of
+ * its video track, or of its audio track if there is no video.
+ * <p/>
+ * <p>
+ * Offsets refer to the file as stored; for a file served in a
+ * {@link FaststartLayout} they are mapped with
+ * {@link FaststartLayout#toVirtualOffset(long)}.
+ * </p>
+ */
+public final class Mp4KeyframeReader {
+
+    private Mp4KeyframeReader() {
+    }
+
+    /**
+     * @return the keyframe index, or null if the file has no complete
+     *         <code>moov</code> box or no usable track.
+     */
+    public static KeyframeIndex read(File file) throws IOException {
+        Mp4SampleTable table = Mp4SampleTable.read(file);
+        return table == null ? null : read(table);
+    }
+
+    public static KeyframeIndex read(Mp4SampleTable table) {
+        Mp4SampleTable.Track track = table.getTrack("vide");
+        if (track == null) {
+            track = table.getTrack("soun");
+        }
+        if (track == null) {
+            return null;
+        }
+        KeyframeIndex.Builder keyframes = new KeyframeIndex.Builder();
+        long timescale = track.getTimescale();
+        for (int sample = 0; sample < track.getSampleCount(); sample++) {
+            if (track.isSync(sample)) {
+                keyframes.add(track.getDecodeTime(sample) * 1000 / timescale, track.getOffset(sample));
+            }
+        }
+        if (keyframes.size() == 0) {
+            return null;
+        }
+        return keyframes.build(track.getDuration() * 1000 / timescale);
+    }
+}
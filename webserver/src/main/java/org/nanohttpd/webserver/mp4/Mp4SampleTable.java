@@ -0,0 +1,527 @@
+package org.nanohttpd.webserver.mp4;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * The sample tables of the tracks of an MP4 file: where every sample is
+ * stored, how large it is, when it is decoded and presented and whether it
+ * is a sync sample, plus the decoder configuration of the track.
+ */
+public final class Mp4SampleTable {
+
+    /**
+     * Upper bound for the samples of a track with a uniform sample size,
+     * whose count is not limited by the size of its table. About 100 MB of
+     * tables, a day of video at 48 frames per second.
+     */
+    static final int MAX_SAMPLES = 1 << 22;
+
+    /**
+     * One track of the file.
+     */
+    public static final class Track {
+
+        private final String handler;
+
+        private final String codec;
+
+        private final long timescale;
+
+        private final long duration;
+
+        private final int sampleCount;
+
+        private final long[] offsets;
+
+        private final int[] sizes;
+
+        private final long[] decodeTimes;
+
+        private final int[] compositionOffsets;
+
+        private final BitSet sync;
+
+        private final byte[] decoderConfig;
+
+        Track(String handler, String codec, long timescale, long duration, long[] offsets, int[] sizes, long[] decodeTimes, int[] compositionOffsets, BitSet sync,
+                byte[] decoderConfig) {
+            this.handler = handler;
+            this.codec = codec;
+            this.timescale = timescale;
+            this.duration = duration;
+            this.sampleCount = offsets.length;
+            this.offsets = offsets;
+            this.sizes = sizes;
+            this.decodeTimes = decodeTimes;
+            this.compositionOffsets = compositionOffsets;
+            this.sync = sync;
+            this.decoderConfig = decoderConfig;
+        }
+
+        /**
+         * @return the handler type, <code>vide</code> or <code>soun</code>
+         *         for the tracks of interest.
+         */
+        public String getHandler() {
+            return this.handler;
+        }
+
+        /**
+         * @return the type of the sample entry, e.g. <code>avc1</code> or
+         *         <code>mp4a</code>.
+         */
+        public String getCodec() {
+            return this.codec;
+        }
+
+        public long getTimescale() {
+            return this.timescale;
+        }
+
+        /**
+         * @return duration in timescale units.
+         */
+        public long getDuration() {
+            return this.duration;
+        }
+
+        public int getSampleCount() {
+            return this.sampleCount;
+        }
+
+        public long getOffset(int sample) {
+            return this.offsets[sample];
+        }
+
+        public int getSize(int sample) {
+            return this.sizes[sample];
+        }
+
+        /**
+         * @return decoding time in timescale units.
+         */
+        public long getDecodeTime(int sample) {
+            return this.decodeTimes[sample];
+        }
+
+        /**
+         * @return presentation time in timescale units.
+         */
+        public long getPresentationTime(int sample) {
+            return this.decodeTimes[sample] + (this.compositionOffsets == null ? 0 : this.compositionOffsets[sample]);
+        }
+
+        public boolean isSync(int sample) {
+            return this.sync == null || this.sync.get(sample);
+        }
+
+        /**
+         * @return the content of the <code>avcC</code> box for H.264, the
+         *         AudioSpecificConfig for AAC, null for other codecs.
+         */
+        public byte[] getDecoderConfig() {
+            return this.decoderConfig;
+        }
+
+        /**
+         * @return bytes held by the tables of the track, roughly.
+         */
+        public long getMemorySize() {
+            long perSample = 8 + 4 + 8 + (this.compositionOffsets == null ? 0 : 4);
+            return this.sampleCount * perSample + (this.sync == null ? 0 : this.sync.size() / 8) + (this.decoderConfig == null ? 0 : this.decoderConfig.length);
+        }
+
+        /**
+         * @return the first sample decoded at or after <code>time</code>
+         *         (timescale units), the sample count if there is none.
+         */
+        public int sampleAt(long time) {
+            int low = 0;
+            int high = this.sampleCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (this.decodeTimes[middle] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final List<Track> tracks;
+
+    private Mp4SampleTable(List<Track> tracks) {
+        this.tracks = tracks;
+    }
+
+    public List<Track> getTracks() {
+        return Collections.unmodifiableList(this.tracks);
+    }
+
+    /**
+     * @return the first track with the given handler type, null if there is
+     *         none.
+     */
+    public Track getTrack(String handler) {
+        for (Track track : this.tracks) {
+            if (track.getHandler().equals(handler)) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the sample tables, or null if the file has no complete
+     *         <code>moov</code> box.
+     * @throws IOException
+     *             if the file cannot be read, or a table claims more entries
+     *             than its box holds.
+     */
+    public static Mp4SampleTable read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] moov = readMoov(in.getChannel());
+            return moov == null ? null : parse(moov, in.getChannel().size());
+        } finally {
+            NanoHTTPD.safeClose(in);
+        }
+    }
+
+    private static byte[] readMoov(FileChannel channel) throws IOException {
+        long length = channel.size();
+        long offset = 0;
+        while (offset < length) {
+            Mp4Box box = Mp4Box.read(channel, offset, length);
+            if (box == null) {
+                return null;
+            }
+            if ("moov".equals(box.getType())) {
+                if (box.getSize() > FaststartLayout.MAX_MOOV_SIZE) {
+                    return null;
+                }
+                byte[] moov = new byte[(int) box.getSize()];
+                ByteBuffer buffer = ByteBuffer.wrap(moov);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, box.getOffset() + buffer.position()) < 0) {
+                        return null;
+                    }
+                }
+                return moov;
+            }
+            offset = box.getEnd();
+        }
+        return null;
+    }
+
+    private static Mp4SampleTable parse(byte[] moov, long fileLength) throws IOException {
+        Mp4Box root = Mp4Box.read(moov, 0, moov.length);
+        List<Track> tracks = new ArrayList<Track>();
+        long pos = root.getContentOffset();
+        while (pos < root.getEnd()) {
+            Mp4Box box = Mp4Box.read(moov, (int) pos, (int) root.getEnd());
+            if (box == null) {
+                break;
+            }
+            if ("trak".equals(box.getType())) {
+                Track track = parseTrack(moov, Mp4Box.find(moov, box, "mdia"), fileLength);
+                if (track != null) {
+                    tracks.add(track);
+                }
+            }
+            pos = box.getEnd();
+        }
+        return new Mp4SampleTable(tracks);
+    }
+
+    private static Track parseTrack(byte[] moov, Mp4Box mdia, long fileLength) throws IOException {
+        Mp4Box mdhd = Mp4Box.find(moov, mdia, "mdhd");
+        Mp4Box hdlr = Mp4Box.find(moov, mdia, "hdlr");
+        Mp4Box stbl = Mp4Box.find(moov, Mp4Box.find(moov, mdia, "minf"), "stbl");
+        if (mdhd == null || hdlr == null || stbl == null) {
+            return null;
+        }
+        checkLength(hdlr, 12);
+        checkLength(mdhd, moov[(int) mdhd.getContentOffset()] == 1 ? 32 : 20);
+        String handler = fourcc(moov, (int) hdlr.getContentOffset() + 8);
+        int header = (int) mdhd.getContentOffset();
+        long timescale;
+        long duration;
+        if (moov[header] == 1) {
+            timescale = Mp4Box.readUInt32(moov, header + 20);
+            duration = Mp4Box.readUInt64(moov, header + 24);
+        } else {
+            timescale = Mp4Box.readUInt32(moov, header + 12);
+            duration = Mp4Box.readUInt32(moov, header + 16);
+        }
+        Mp4Box stsd = Mp4Box.find(moov, stbl, "stsd");
+        Mp4Box stts = Mp4Box.find(moov, stbl, "stts");
+        Mp4Box stsc = Mp4Box.find(moov, stbl, "stsc");
+        Mp4Box stsz = Mp4Box.find(moov, stbl, "stsz");
+        Mp4Box stco = Mp4Box.find(moov, stbl, "stco");
+        boolean wide = stco == null;
+        if (wide) {
+            stco = Mp4Box.find(moov, stbl, "co64");
+        }
+        if (timescale == 0 || stsd == null || stts == null || stsc == null || stsz == null || stco == null) {
+            return null;
+        }
+        checkLength(stsd, 8);
+        Mp4Box entry = Mp4Box.read(moov, (int) stsd.getContentOffset() + 8, (int) stsd.getEnd());
+        String codec = entry == null ? "" : entry.getType();
+
+        // all tables start with version and flags
+        checkLength(stsz, 12);
+        long uniformSize = Mp4Box.readUInt32(moov, (int) stsz.getContentOffset() + 4);
+        int sizeEntries = (int) stsz.getContentOffset() + 12;
+        int count;
+        if (uniformSize == 0) {
+            count = entryCount(moov, stsz, 12, 4);
+        } else {
+            long samples = Mp4Box.readUInt32(moov, sizeEntries - 4);
+            if (samples > MAX_SAMPLES || samples * uniformSize > fileLength) {
+                throw corrupt(stsz, samples);
+            }
+            count = (int) samples;
+        }
+        int[] sizes = new int[count];
+        for (int sample = 0; sample < count; sample++) {
+            sizes[sample] = (int) (uniformSize != 0 ? uniformSize : Mp4Box.readUInt32(moov, sizeEntries + sample * 4));
+        }
+
+        long[] decodeTimes = new long[count];
+        int sttsEntries = (int) stts.getContentOffset() + 8;
+        int sttsCount = entryCount(moov, stts, 8, 8);
+        int sample = 0;
+        long time = 0;
+        for (int i = 0; i < sttsCount && sample < count; i++) {
+            long samples = Mp4Box.readUInt32(moov, sttsEntries + i * 8);
+            long delta = Mp4Box.readUInt32(moov, sttsEntries + i * 8 + 4);
+            for (long j = 0; j < samples && sample < count; j++) {
+                decodeTimes[sample++] = time;
+                time += delta;
+            }
+        }
+        while (sample < count) {
+            decodeTimes[sample++] = time;
+        }
+
+        int[] compositionOffsets = null;
+        Mp4Box ctts = Mp4Box.find(moov, stbl, "ctts");
+        if (ctts != null) {
+            compositionOffsets = new int[count];
+            int cttsEntries = (int) ctts.getContentOffset() + 8;
+            int cttsCount = entryCount(moov, ctts, 8, 8);
+            sample = 0;
+            for (int i = 0; i < cttsCount && sample < count; i++) {
+                long samples = Mp4Box.readUInt32(moov, cttsEntries + i * 8);
+                // signed in version 1, never negative in practice in version 0
+                int offset = (int) Mp4Box.readUInt32(moov, cttsEntries + i * 8 + 4);
+                for (long j = 0; j < samples && sample < count; j++) {
+                    compositionOffsets[sample++] = offset;
+                }
+            }
+        }
+
+        BitSet sync = null;
+        Mp4Box stss = Mp4Box.find(moov, stbl, "stss");
+        if (stss != null) {
+            sync = new BitSet(count);
+            int syncEntries = (int) stss.getContentOffset() + 8;
+            int syncCount = entryCount(moov, stss, 8, 4);
+            for (int i = 0; i < syncCount; i++) {
+                long number = Mp4Box.readUInt32(moov, syncEntries + i * 4);
+                if (number >= 1 && number <= count) {
+                    sync.set((int) number - 1);
+                }
+            }
+        }
+
+        long[] offsets = new long[count];
+        int stscEntries = (int) stsc.getContentOffset() + 8;
+        int stscCount = entryCount(moov, stsc, 8, 12);
+        int chunkEntries = (int) stco.getContentOffset() + 8;
+        int chunkCount = entryCount(moov, stco, 8, wide ? 8 : 4);
+        int stscEntry = 0;
+        sample = 0;
+        for (int chunk = 1; chunk <= chunkCount && sample < count; chunk++) {
+            while (stscEntry + 1 < stscCount && Mp4Box.readUInt32(moov, stscEntries + (stscEntry + 1) * 12) <= chunk) {
+                stscEntry++;
+            }
+            long samplesPerChunk = Mp4Box.readUInt32(moov, stscEntries + stscEntry * 12 + 4);
+            int chunkOffsetPos = chunkEntries + (chunk - 1) * (wide ? 8 : 4);
+            long offset = wide ? Mp4Box.readUInt64(moov, chunkOffsetPos) : Mp4Box.readUInt32(moov, chunkOffsetPos);
+            for (long i = 0; i < samplesPerChunk && sample < count; i++) {
+                offsets[sample] = offset;
+                offset += sizes[sample];
+                sample++;
+            }
+        }
+        if (sample < count) {
+            // fewer chunks than samples, the table is cut short
+            return null;
+        }
+        return new Track(handler, codec, timescale, duration, offsets, sizes, decodeTimes, compositionOffsets, sync, decoderConfig(moov, entry));
+    }
+
+    /**
+     * Reads the entry count of a table from the last 4 bytes of its header.
+     *
+     * @param headerBytes
+     *            bytes of the box content in front of the entries.
+     * @param entrySize
+     *            bytes per entry.
+     * @throws IOException
+     *             if the box does not hold that many entries.
+     */
+    private static int entryCount(byte[] moov, Mp4Box box, int headerBytes, int entrySize) throws IOException {
+        checkLength(box, headerBytes);
+        long count = Mp4Box.readUInt32(moov, (int) box.getContentOffset() + headerBytes - 4);
+        if (count > (box.getEnd() - box.getContentOffset() - headerBytes) / entrySize) {
+            throw corrupt(box, count);
+        }
+        return (int) count;
+    }
+
+    private static void checkLength(Mp4Box box, int minimum) throws IOException {
+        if (box.getEnd() - box.getContentOffset() < minimum) {
+            throw new IOException("corrupt " + box.getType() + " box, " + (box.getEnd() - box.getContentOffset()) + " bytes");
+        }
+    }
+
+    private static IOException corrupt(Mp4Box box, long count) {
+        return new IOException("corrupt " + box.getType() + " box, " + count + " entries claimed in " + box.getSize() + " bytes");
+    }
+
+    /**
+     * Finds the decoder configuration in a sample entry.
+     */
+    private static byte[] decoderConfig(byte[] moov, Mp4Box entry) {
+        if (entry == null) {
+            return null;
+        }
+        String codec = entry.getType();
+        int content = (int) entry.getContentOffset();
+        if ("avc1".equals(codec) || "avc3".equals(codec)) {
+            // VisualSampleEntry fields take 78 bytes, then the child boxes
+            Mp4Box avcC = Mp4Box.find(moov, content + 78, entry.getEnd(), "avcC");
+            return avcC == null ? null : copy(moov, avcC.getContentOffset(), avcC.getEnd());
+        }
+        if ("mp4a".equals(codec) && content + 28 <= entry.getEnd()) {
+            // AudioSampleEntry fields take 28 bytes, more for QuickTime
+            // sound description version 1 and 2
+            int version = (int) (Mp4Box.readUInt32(moov, content + 8) >>> 16);
+            int children = content + 28 + (version == 1 ? 16 : version == 2 ? 36 : 0);
+            Mp4Box esds = Mp4Box.find(moov, children, entry.getEnd(), "esds");
+            if (esds == null) {
+                Mp4Box wave = Mp4Box.find(moov, children, entry.getEnd(), "wave");
+                esds = Mp4Box.find(moov, wave, "esds");
+            }
+            return esds == null ? null : audioSpecificConfig(moov, (int) esds.getContentOffset() + 4, (int) esds.getEnd());
+        }
+        return null;
+    }
+
+    /**
+     * Walks the MPEG-4 descriptors of an <code>esds</code> box down to the
+     * DecoderSpecificInfo.
+     */
+    private static byte[] audioSpecificConfig(byte[] moov, int pos, int end) {
+        while (pos < end) {
+            int tag = moov[pos++] & 0xff;
+            int length = 0;
+            for (int i = 0; i < 4 && pos < end; i++) {
+                int b = moov[pos++] & 0xff;
+                length = length << 7 | b & 0x7f;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (tag == 0x03) {
+                // ES_Descriptor: ES_ID, flags and the optional fields
+                if (pos + 3 >= end) {
+                    return null;
+                }
+                int flags = moov[pos + 2] & 0xff;
+                pos += 3;
+                if ((flags & 0x80) != 0) {
+                    pos += 2;
+                }
+                if ((flags & 0x40) != 0 && pos < end) {
+                    pos += 1 + (moov[pos] & 0xff);
+                }
+                if ((flags & 0x20) != 0) {
+                    pos += 2;
+                }
+            } else if (tag == 0x04) {
+                // DecoderConfigDescriptor: fixed 13 bytes before its children
+                pos += 13;
+            } else if (tag == 0x05) {
+                return pos + length <= end ? copy(moov, pos, pos + length) : null;
+            } else {
+                pos += length;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] copy(byte[] data, long start, long end) {
+        byte[] copy = new byte[(int) (end - start)];
+        System.arraycopy(data, (int) start, copy, 0, copy.length);
+        return copy;
+    }
+
+    private static String fourcc(byte[] data, int pos) {
+        return new String(new char[]{
+            (char) (data[pos] & 0xff),
+            (char) (data[pos + 1] & 0xff),
+            (char) (data[pos + 2] & 0xff),
+            (char) (data[pos + 3] & 0xff)
+        });
+    }
+}
@@ -0,0 +1,299 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Decides right after <code>accept()</code> whether a connection is served:
+ * there is a limit for the connections of each remote address and one for
+ * all connections together.
+ * <p/>
+ * <p>
+ * Some renderers open dozens of parallel range connections; without a per
+ * address limit they would take all handler threads. A connection over a
+ * limit is answered with a prepared <code>503 Service Unavailable</code> by
+ * the accepting thread and closed, no handler is created for it. An admitted
+ * connection counts until its {@link ClientHandler} is closed.
+ * </p>
+ */
+public class AdmissionController {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 1024;
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_CLIENT = 16;
+
+    /**
+     * Clients without open connections are forgotten once more than this
+     * many are known.
+     */
+    private static final int MAX_TRACKED_CLIENTS = 1024;
+
+    private static final byte[] REJECTION = rejection();
+
+    /**
+     * Connections and counters of one remote address.
+     */
+    public static final class Client {
+
+        private final String address;
+
+        private int active;
+
+        private long accepted;
+
+        private long rejected;
+
+        Client(String address) {
+            this.address = address;
+        }
+
+        Client(Client client) {
+            this.address = client.address;
+            this.active = client.active;
+            this.accepted = client.accepted;
+            this.rejected = client.rejected;
+        }
+
+        public String getAddress() {
+            return this.address;
+        }
+
+        /**
+         * @return number of open connections.
+         */
+        public int getActive() {
+            return this.active;
+        }
+
+        public long getAccepted() {
+            return this.accepted;
+        }
+
+        public long getRejected() {
+            return this.rejected;
+        }
+    }
+
+    private final Map<String, Client> clients = new HashMap<String, Client>();
+
+    private int active;
+
+    private volatile int maxConnections;
+
+    private volatile int maxConnectionsPerClient;
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionController() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_CLIENT);
+    }
+
+    /**
+     * @param maxConnections
+     *            limit for all connections, 0 for none.
+     * @param maxConnectionsPerClient
+     *            limit for the connections of one remote address, 0 for
+     *            none.
+     */
+    public AdmissionController(int maxConnections, int maxConnectionsPerClient) {
+        setMaxConnections(maxConnections);
+        setMaxConnectionsPerClient(maxConnectionsPerClient);
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 0) {
+            throw new IllegalArgumentException("invalid connection limit: " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    public void setMaxConnectionsPerClient(int maxConnectionsPerClient) {
+        if (maxConnectionsPerClient < 0) {
+            throw new IllegalArgumentException("invalid connection limit: " + maxConnectionsPerClient);
+        }
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+    }
+
+    public int getMaxConnectionsPerClient() {
+        return this.maxConnectionsPerClient;
+    }
+
+    /**
+     * Counts a new connection from <code>address</code> if both limits allow
+     * it. An admitted connection must be {@link #release(InetAddress)
+     * released} when it is closed.
+     * 
+     * @return true if the connection is admitted.
+     */
+    public boolean admit(InetAddress address) {
+        String key = key(address);
+        synchronized (this.clients) {
+            Client client = this.clients.get(key);
+            if (client == null) {
+                if (this.clients.size() >= MAX_TRACKED_CLIENTS) {
+                    forgetIdleClients();
+                }
+                client = new Client(key);
+                this.clients.put(key, client);
+            }
+            int max = this.maxConnections;
+            int maxPerClient = this.maxConnectionsPerClient;
+            if (max > 0 && this.active >= max || maxPerClient > 0 && client.active >= maxPerClient) {
+                client.rejected++;
+                this.rejected.incrementAndGet();
+                return false;
+            }
+            client.active++;
+            client.accepted++;
+            this.active++;
+        }
+        this.accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Counts an admitted connection from <code>address</code> as closed.
+     */
+    public void release(InetAddress address) {
+        synchronized (this.clients) {
+            Client client = this.clients.get(key(address));
+            if (client != null && client.active > 0) {
+                client.active--;
+                this.active--;
+            }
+        }
+    }
+
+    private void forgetIdleClients() {
+        Iterator<Client> iterator = this.clients.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().active == 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String key(InetAddress address) {
+        return address != null ? address.getHostAddress() : "unknown";
+    }
+
+    /**
+     * Answers a connection that was not admitted with <code>503 Service
+     * Unavailable</code> and closes it. The answer is a few bytes into an
+     * empty socket buffer, writing it does not block.
+     */
+    public void reject(Socket socket) {
+        try {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(REJECTION);
+            outputStream.flush();
+            socket.shutdownOutput();
+            // closing with unread request bytes would reset the connection
+            // and may discard the answer at the client
+            InputStream inputStream = socket.getInputStream();
+            int available = inputStream.available();
+            if (available > 0) {
+                inputStream.skip(available);
+            }
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Could not reject the client", e);
+        } finally {
+            NanoHTTPD.safeClose(socket);
+        }
+    }
+
+    private static byte[] rejection() {
+        String body = "Server too busy, retry later.";
+        String response = "HTTP/1.1 503 Service Unavailable\r\n" +
+                "Content-Type: " + NanoHTTPD.MIME_PLAINTEXT + "\r\n" +
+                "Retry-After: 1\r\n" +
+                "Connection: close\r\n" +
+                "Content-Length: " + body.length() + "\r\n" +
+                "\r\n" + body;
+        try {
+            return response.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return number of open admitted connections.
+     */
+    public int getActiveCount() {
+        synchronized (this.clients) {
+            return this.active;
+        }
+    }
+
+    public long getAcceptedCount() {
+        return this.accepted.get();
+    }
+
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    /**
+     * @return a snapshot of the counters of the known clients.
+     */
+    public List<Client> getClients() {
+        synchronized (this.clients) {
+            List<Client> snapshot = new ArrayList<Client>(this.clients.size());
+            for (Client client : this.clients.values()) {
+                snapshot.add(new Client(client));
+            }
+            return snapshot;
+        }
+    }
+}
@@ -33,13 +33,18 @@ package org.protocols.http;
  * #L%
  */
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
+import org.protocols.http.metrics.ServerMetrics;
+import org.protocols.http.response.Response;
+import org.protocols.http.response.Status;
 import org.protocols.http.tempfiles.ITempFileManager;
 
 /**
@@ -47,11 +52,15 @@ import org.protocols.http.tempfiles.ITempFileManager;
  */
 public class ClientHandler implements Runnable {
 
-    private final NanoHTTPD httpd;
+    protected final NanoHTTPD httpd;
 
-    private final InputStream inputStream;
+    protected final InputStream inputStream;
 
-    private final Socket acceptSocket;
+    protected final Socket acceptSocket;
+
+    private final AtomicReference<AdmissionController> admission = new AtomicReference<AdmissionController>();
+
+    private final AtomicReference<ServerMetrics> metrics = new AtomicReference<ServerMetrics>();
 
     public ClientHandler(NanoHTTPD httpd, InputStream inputStream, Socket acceptSocket) {
         this.httpd = httpd;
@@ -59,18 +68,77 @@ public class ClientHandler implements Runnable {
         this.acceptSocket = acceptSocket;
     }
 
+    /**
+     * Remembers that the connection has been admitted, it is released when
+     * the handler is closed.
+     */
+    void admitted(AdmissionController admissionController) {
+        this.admission.set(admissionController);
+    }
+
+    /**
+     * Counts the connection as open in the metrics until the handler is
+     * closed.
+     */
+    void opened(ServerMetrics serverMetrics) {
+        serverMetrics.connectionOpened();
+        this.metrics.set(serverMetrics);
+    }
+
+    /**
+     * Releases the admission of the connection and counts it as closed,
+     * once.
+     */
+    protected void release() {
+        AdmissionController admissionController = this.admission.getAndSet(null);
+        if (admissionController != null) {
+            admissionController.release(this.acceptSocket.getInetAddress());
+        }
+        ServerMetrics serverMetrics = this.metrics.getAndSet(null);
+        if (serverMetrics != null) {
+            serverMetrics.connectionClosed();
+        }
+    }
+
     public void close() {
         NanoHTTPD.safeClose(this.inputStream);
         NanoHTTPD.safeClose(this.acceptSocket);
+        release();
+    }
+
+    /**
+     * Answers the client with <code>503 Service Unavailable</code> without
+     * reading its request and closes the connection. Used by threading
+     * strategies that refuse to run this handler.
+     */
+    public void reject() {
+        OutputStream outputStream = null;
+        try {
+            outputStream = this.acceptSocket.getOutputStream();
+            Response response = Response.newFixedLengthResponse(Status.SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT, "Server too busy, retry later.");
+            response.setUseGzip(false);
+            response.setKeepAlive(false);
+            response.addHeader("Retry-After", "1");
+            response.send(outputStream);
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Could not reject the client", e);
+        } finally {
+            NanoHTTPD.safeClose(outputStream);
+            close();
+        }
     }
 
     @Override
     public void run() {
         OutputStream outputStream = null;
+        HTTPSession session = null;
+        ConnectionRegistry registry = httpd.getConnectionRegistry();
+        ConnectionRegistry.Connection connection = registry != null ? registry.register(this) : null;
         try {
             outputStream = this.acceptSocket.getOutputStream();
             ITempFileManager tempFileManager = httpd.getTempFileManagerFactory().create();
-            HTTPSession session = new HTTPSession(httpd, tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
+            session = new HTTPSession(httpd, tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress(), this.acceptSocket.getChannel());
+            session.setConnection(connection);
             while (!this.acceptSocket.isClosed()) {
                 session.execute();
             }
@@ -86,9 +154,17 @@ public class ClientHandler implements Runnable {
                 NanoHTTPD.LOG.log(Level.SEVERE, "Communication with the client broken, or an bug in the handler code", e);
             }
         } finally {
+            if (connection != null) {
+                registry.unregister(connection);
+            }
+            if (session != null) {
+                // answers to pipelined requests may still be buffered
+                session.flushOutput();
+            }
             NanoHTTPD.safeClose(outputStream);
             NanoHTTPD.safeClose(this.inputStream);
             NanoHTTPD.safeClose(this.acceptSocket);
+            release();
             httpd.asyncRunner.closed(this);
         }
     }
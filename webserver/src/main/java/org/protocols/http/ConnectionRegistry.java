@@ -0,0 +1,360 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the connections served by a thread, with a reaper that closes
+ * idle keep-alive connections.
+ * <p/>
+ * <p>
+ * A connection waiting for its next request holds a thread in a blocked
+ * read. How long it may wait depends on the load: up to
+ * <code>lowWatermark</code> of <code>capacity</code> connections the
+ * keep-alive timeout is <code>maxKeepAlive</code>, from
+ * <code>highWatermark</code> on it is <code>minKeepAlive</code>, and in
+ * between it shrinks linearly. The timeout is announced to clients in a
+ * <code>Keep-Alive</code> header, together with the number of requests left
+ * on the connection. A connection is never closed before the timeout it was
+ * last told, even if the load rose since.
+ * </p>
+ * <p>
+ * Connections served from a selector do not hold a thread while idle, they
+ * are not registered; the selector closes them after the keep-alive timeout.
+ * </p>
+ */
+public class ConnectionRegistry {
+
+    public static final int DEFAULT_CAPACITY = 32;
+
+    public static final long DEFAULT_MIN_KEEP_ALIVE = 500;
+
+    public static final long DEFAULT_MAX_KEEP_ALIVE = NanoHTTPD.SOCKET_READ_TIMEOUT;
+
+    public static final int DEFAULT_MAX_REQUESTS = 100;
+
+    private static final double LOW_WATERMARK = 0.5;
+
+    private static final double HIGH_WATERMARK = 0.9;
+
+    private static final long REAP_INTERVAL = 250;
+
+    /**
+     * A registered connection.
+     */
+    public final class Connection {
+
+        private final ClientHandler clientHandler;
+
+        private boolean idle = true;
+
+        private long lastActivity = System.currentTimeMillis();
+
+        private long announcedKeepAlive;
+
+        Connection(ClientHandler clientHandler) {
+            this.clientHandler = clientHandler;
+        }
+
+        /**
+         * Called when a request starts to arrive.
+         */
+        public synchronized void busy() {
+            this.idle = false;
+            this.lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * Called when the response has been sent and the connection waits for
+         * the next request.
+         */
+        public synchronized void idle() {
+            this.idle = true;
+            this.lastActivity = System.currentTimeMillis();
+        }
+
+        public synchronized boolean isIdle() {
+            return this.idle;
+        }
+
+        public synchronized long getLastActivity() {
+            return this.lastActivity;
+        }
+
+        /**
+         * Called when a keep-alive timeout is announced to the client.
+         *
+         * @param keepAlive
+         *            the timeout in milliseconds, as announced.
+         */
+        public synchronized void announced(long keepAlive) {
+            this.announcedKeepAlive = keepAlive;
+        }
+
+        /**
+         * Closes the connection if it has been idle for longer than the given
+         * timeout and the one announced to it. Holds the monitor
+         * {@link #busy()} takes, so a connection is never closed once its
+         * next request started.
+         */
+        private synchronized boolean closeIfExpired(long now, long timeout) {
+            if (!this.idle || now - this.lastActivity <= Math.max(timeout, this.announcedKeepAlive)) {
+                return false;
+            }
+            this.clientHandler.close();
+            return true;
+        }
+    }
+
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    private volatile int capacity;
+
+    private volatile long minKeepAlive = DEFAULT_MIN_KEEP_ALIVE;
+
+    private volatile long maxKeepAlive = DEFAULT_MAX_KEEP_ALIVE;
+
+    private volatile int maxRequests = DEFAULT_MAX_REQUESTS;
+
+    private volatile int socketTimeout;
+
+    private ScheduledExecutorService reaper;
+
+    private final AtomicLong reaped = new AtomicLong();
+
+    public ConnectionRegistry() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            number of connections that can be served at the same time,
+     *            e.g. the size of the thread pool.
+     */
+    public ConnectionRegistry(int capacity) {
+        setCapacity(capacity);
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @param minKeepAlive
+     *            keep-alive timeout in milliseconds at full load.
+     * @param maxKeepAlive
+     *            keep-alive timeout in milliseconds at low load, the socket
+     *            read timeout still applies on top.
+     */
+    public void setKeepAlive(long minKeepAlive, long maxKeepAlive) {
+        if (minKeepAlive <= 0 || maxKeepAlive < minKeepAlive) {
+            throw new IllegalArgumentException("invalid keep-alive timeouts: " + minKeepAlive + ", " + maxKeepAlive);
+        }
+        this.minKeepAlive = minKeepAlive;
+        this.maxKeepAlive = maxKeepAlive;
+    }
+
+    /**
+     * @param maxRequests
+     *            requests served on one connection before it is closed, 0 for
+     *            no limit.
+     */
+    public void setMaxRequests(int maxRequests) {
+        if (maxRequests < 0) {
+            throw new IllegalArgumentException("invalid request limit: " + maxRequests);
+        }
+        this.maxRequests = maxRequests;
+    }
+
+    public int getMaxRequests() {
+        return this.maxRequests;
+    }
+
+    /**
+     * @return the keep-alive timeout in milliseconds for the current load.
+     */
+    public long getKeepAliveTimeout() {
+        long max = this.maxKeepAlive;
+        int timeout = this.socketTimeout;
+        if (timeout > 0) {
+            max = Math.min(max, timeout);
+        }
+        long min = Math.min(this.minKeepAlive, max);
+        double load = (double) this.connections.size() / this.capacity;
+        if (load <= LOW_WATERMARK) {
+            return max;
+        }
+        if (load >= HIGH_WATERMARK) {
+            return min;
+        }
+        return max - (long) ((max - min) * (load - LOW_WATERMARK) / (HIGH_WATERMARK - LOW_WATERMARK));
+    }
+
+    /**
+     * @return the keep-alive timeout to announce, in milliseconds: the
+     *         timeout for the current load rounded up to whole seconds, the
+     *         unit of the <code>Keep-Alive</code> header, unless that exceeds
+     *         the socket read timeout.
+     */
+    public long getAnnouncedKeepAliveTimeout() {
+        long timeout = getKeepAliveTimeout();
+        long seconds = Math.max(1, (timeout + 999) / 1000);
+        int socketTimeout = this.socketTimeout;
+        if (socketTimeout > 0 && seconds * 1000 > socketTimeout) {
+            seconds = Math.max(1, socketTimeout / 1000);
+        }
+        return seconds * 1000;
+    }
+
+    /**
+     * @param timeout
+     *            the announced keep-alive timeout in milliseconds, see
+     *            {@link #getAnnouncedKeepAliveTimeout()}.
+     * @return the value of the <code>Keep-Alive</code> header after
+     *         <code>requests</code> requests on the connection.
+     */
+    public String keepAliveHeader(long timeout, int requests) {
+        String header = "timeout=" + timeout / 1000;
+        int max = this.maxRequests;
+        if (max > 0) {
+            header += ", max=" + Math.max(0, max - requests);
+        }
+        return header;
+    }
+
+    public Connection register(ClientHandler clientHandler) {
+        Connection connection = new Connection(clientHandler);
+        this.connections.add(connection);
+        return connection;
+    }
+
+    public void unregister(Connection connection) {
+        this.connections.remove(connection);
+    }
+
+    /**
+     * Starts the reaper.
+     *
+     * @param socketTimeout
+     *            the read timeout of the sockets, the keep-alive timeout is
+     *            never longer.
+     */
+    public synchronized void start(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+        if (this.reaper != null) {
+            return;
+        }
+        this.reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NanoHttpd Connection Reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.reaper.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                reap();
+            }
+        }, REAP_INTERVAL, REAP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (this.reaper != null) {
+            this.reaper.shutdownNow();
+            this.reaper = null;
+        }
+    }
+
+    /**
+     * Closes the connections idle for longer than the current keep-alive
+     * timeout and the one announced to them; their blocked reads fail and
+     * the threads are released.
+     */
+    public void reap() {
+        long timeout = getKeepAliveTimeout();
+        long now = System.currentTimeMillis();
+        for (Connection connection : this.connections) {
+            if (connection.closeIfExpired(now, timeout)) {
+                this.connections.remove(connection);
+                this.reaped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return number of registered connections.
+     */
+    public int getOpenCount() {
+        return this.connections.size();
+    }
+
+    /**
+     * @return number of registered connections waiting for a request.
+     */
+    public int getIdleCount() {
+        int idle = 0;
+        for (Connection connection : this.connections) {
+            if (connection.isIdle()) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * @return number of connections closed by the reaper.
+     */
+    public long getReapedCount() {
+        return this.reaped.get();
+    }
+}
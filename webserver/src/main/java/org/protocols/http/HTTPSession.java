@@ -34,15 +34,13 @@ package org.protocols.http;
  */
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.InetAddress;
@@ -50,22 +48,26 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.StringTokenizer;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
 
 import javax.net.ssl.SSLException;
 import org.protocols.http.NanoHTTPD;
 import org.protocols.http.NanoHTTPD.ResponseException;
 import org.protocols.http.content.ContentType;
 import org.protocols.http.content.CookieHandler;
+import org.protocols.http.log.AccessLog;
+import org.protocols.http.metrics.ServerMetrics;
+import org.protocols.http.pacing.BandwidthScheduler;
+import org.protocols.http.pacing.ConnectionPacer;
 import org.protocols.http.request.Method;
+import org.protocols.http.request.MultipartStreamParser;
+import org.protocols.http.request.RequestBodyInputStream;
+import org.protocols.http.request.RequestHeadParser;
 import org.protocols.http.tempfiles.ITempFile;
 import org.protocols.http.tempfiles.ITempFileManager;
 import org.protocols.http.response.Status;
@@ -83,223 +85,145 @@ public class HTTPSession implements IHTTPSession {
 
     public static final int MAX_HEADER_SIZE = 1024;
 
+    /**
+     * Most bytes of a request body left unread by the handler that are
+     * skipped to keep the connection alive; a longer rest closes the
+     * connection instead.
+     */
+    public static final long MAX_DRAIN_SIZE = 64 * 1024;
+
     private final NanoHTTPD httpd;
 
     private final ITempFileManager tempFileManager;
 
     private final OutputStream outputStream;
 
+    private final WritableByteChannel outputChannel;
+
     private final BufferedInputStream inputStream;
 
+    private final RequestHeadParser headParser = new RequestHeadParser(HTTPSession.BUFSIZE);
+
     private int splitbyte;
 
     private int rlen;
 
+    /**
+     * Request target as sent, still percent encoded. The path and the query
+     * parameters are only decoded from it when asked for.
+     */
+    private String rawUri;
+
+    /**
+     * Decoded path, null until {@link #getUri()} is called.
+     */
     private String uri;
 
     private Method method;
 
+    /**
+     * Query and form parameters, null until they are asked for.
+     */
     private Map<String, List<String>> parms;
 
     private Map<String, String> headers;
 
+    /**
+     * Cookies of the request, parsed by the first call to
+     * {@link #getCookies()}.
+     */
     private CookieHandler cookies;
 
     private String queryParameterString;
 
     private String remoteIp;
 
+    /**
+     * Paces the responses of this connection, created with the first paced
+     * response.
+     */
+    private ConnectionPacer pacer;
+
+    /**
+     * Entry of the connection in the {@link ConnectionRegistry}, null if it
+     * is not registered.
+     */
+    private ConnectionRegistry.Connection connection;
+
+    private int requestCount;
+
+    /**
+     * Keep-alive timeout in milliseconds last announced to the client, 0 if
+     * none was.
+     */
+    private volatile long announcedKeepAlive;
+
+    /**
+     * When the first bytes of the current request arrived, for the access
+     * log.
+     */
+    private long requestStart;
+
     private String remoteHostname;
 
     private String protocolVersion;
 
+    /**
+     * Length of the current request body, -1 if it is chunked.
+     */
+    private long bodySize;
+
+    private RequestBodyInputStream bodyInputStream;
+
+    /**
+     * Looks ahead for a pipelined request, allocated for the first one.
+     */
+    private byte[] pipelineBuffer;
+
     public HTTPSession(NanoHTTPD httpd, ITempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
         this.httpd = httpd;
         this.tempFileManager = tempFileManager;
         this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
-        this.outputStream = outputStream;
+        this.outputStream = new BufferedOutputStream(outputStream, HTTPSession.BUFSIZE);
+        this.outputChannel = null;
     }
 
     public HTTPSession(NanoHTTPD httpd, ITempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
+        this(httpd, tempFileManager, inputStream, outputStream, inetAddress, null);
+    }
+
+    /**
+     * @param outputChannel
+     *            channel behind <code>outputStream</code>, used to send file
+     *            bodies zero-copy. May be null.
+     */
+    public HTTPSession(NanoHTTPD httpd, ITempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress,
+            WritableByteChannel outputChannel) {
         this.httpd = httpd;
         this.tempFileManager = tempFileManager;
         this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
-        this.outputStream = outputStream;
+        this.outputStream = new BufferedOutputStream(outputStream, HTTPSession.BUFSIZE);
+        this.outputChannel = outputChannel;
         this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
         this.remoteHostname = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "localhost" : inetAddress.getHostName().toString();
         this.headers = new HashMap<String, String>();
     }
 
     /**
-     * Decodes the sent headers and loads the data into Key/value pairs
+     * @return the query parameters, decoded from the request target on the
+     *         first call.
      */
-    private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, List<String>> parms, Map<String, String> headers) throws ResponseException {
-        try {
-            // Read the request line
-            String inLine = in.readLine();
-            if (inLine == null) {
-                return;
-            }
-
-            StringTokenizer st = new StringTokenizer(inLine);
-            if (!st.hasMoreTokens()) {
-                throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-            }
-
-            pre.put("method", st.nextToken());
-
-            if (!st.hasMoreTokens()) {
-                throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-            }
-
-            String uri = st.nextToken();
-
-            // Decode parameters from the URI
-            int qmi = uri.indexOf('?');
+    private Map<String, List<String>> parameters() {
+        if (this.parms == null) {
+            this.parms = new HashMap<String, List<String>>();
+            int qmi = this.rawUri != null ? this.rawUri.indexOf('?') : -1;
             if (qmi >= 0) {
-                decodeParms(uri.substring(qmi + 1), parms);
-                uri = NanoHTTPD.decodePercent(uri.substring(0, qmi));
-            } else {
-                uri = NanoHTTPD.decodePercent(uri);
-            }
-
-            // If there's another token, its protocol version,
-            // followed by HTTP headers.
-            // NOTE: this now forces header names lower case since they are
-            // case insensitive and vary by client.
-            if (st.hasMoreTokens()) {
-                protocolVersion = st.nextToken();
+                decodeParms(this.rawUri.substring(qmi + 1), this.parms);
             } else {
-                protocolVersion = "HTTP/1.1";
-                NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
-            }
-            String line = in.readLine();
-            while (line != null && !line.trim().isEmpty()) {
-                int p = line.indexOf(':');
-                if (p >= 0) {
-                    headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                }
-                line = in.readLine();
+                this.queryParameterString = null;
             }
-
-            pre.put("uri", uri);
-        } catch (IOException ioe) {
-            throw new ResponseException(Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
         }
-    }
-
-    /**
-     * Decodes the Multipart Body data and put it into Key/Value pairs.
-     */
-    private void decodeMultipartFormData(ContentType contentType, ByteBuffer fbuf, Map<String, List<String>> parms, Map<String, String> files) throws ResponseException {
-        int pcount = 0;
-        try {
-            int[] boundaryIdxs = getBoundaryPositions(fbuf, contentType.getBoundary().getBytes());
-            if (boundaryIdxs.length < 2) {
-                throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but contains less than two boundary strings.");
-            }
-
-            byte[] partHeaderBuff = new byte[MAX_HEADER_SIZE];
-            for (int boundaryIdx = 0; boundaryIdx < boundaryIdxs.length - 1; boundaryIdx++) {
-                fbuf.position(boundaryIdxs[boundaryIdx]);
-                int len = (fbuf.remaining() < MAX_HEADER_SIZE) ? fbuf.remaining() : MAX_HEADER_SIZE;
-                fbuf.get(partHeaderBuff, 0, len);
-                BufferedReader in =
-                        new BufferedReader(new InputStreamReader(new ByteArrayInputStream(partHeaderBuff, 0, len), Charset.forName(contentType.getEncoding())), len);
-
-                int headerLines = 0;
-                // First line is boundary string
-                String mpline = in.readLine();
-                headerLines++;
-                if (mpline == null || !mpline.contains(contentType.getBoundary())) {
-                    throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but chunk does not start with boundary.");
-                }
-
-                String partName = null, fileName = null, partContentType = null;
-                // Parse the reset of the header lines
-                mpline = in.readLine();
-                headerLines++;
-                while (mpline != null && mpline.trim().length() > 0) {
-                    Matcher matcher = NanoHTTPD.CONTENT_DISPOSITION_PATTERN.matcher(mpline);
-                    if (matcher.matches()) {
-                        String attributeString = matcher.group(2);
-                        matcher = NanoHTTPD.CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(attributeString);
-                        while (matcher.find()) {
-                            String key = matcher.group(1);
-                            if ("name".equalsIgnoreCase(key)) {
-                                partName = matcher.group(2);
-                            } else if ("filename".equalsIgnoreCase(key)) {
-                                fileName = matcher.group(2);
-                                // add these two line to support multiple
-                                // files uploaded using the same field Id
-                                if (!fileName.isEmpty()) {
-                                    if (pcount > 0)
-                                        partName = partName + String.valueOf(pcount++);
-                                    else
-                                        pcount++;
-                                }
-                            }
-                        }
-                    }
-                    matcher = NanoHTTPD.CONTENT_TYPE_PATTERN.matcher(mpline);
-                    if (matcher.matches()) {
-                        partContentType = matcher.group(2).trim();
-                    }
-                    mpline = in.readLine();
-                    headerLines++;
-                }
-                int partHeaderLength = 0;
-                while (headerLines-- > 0) {
-                    partHeaderLength = scipOverNewLine(partHeaderBuff, partHeaderLength);
-                }
-                // Read the part data
-                if (partHeaderLength >= len - 4) {
-                    throw new ResponseException(Status.INTERNAL_ERROR, "Multipart header size exceeds MAX_HEADER_SIZE.");
-                }
-                int partDataStart = boundaryIdxs[boundaryIdx] + partHeaderLength;
-                int partDataEnd = boundaryIdxs[boundaryIdx + 1] - 4;
-
-                fbuf.position(partDataStart);
-
-                List<String> values = parms.get(partName);
-                if (values == null) {
-                    values = new ArrayList<String>();
-                    parms.put(partName, values);
-                }
-
-                if (partContentType == null) {
-                    // Read the part into a string
-                    byte[] data_bytes = new byte[partDataEnd - partDataStart];
-                    fbuf.get(data_bytes);
-
-                    values.add(new String(data_bytes, contentType.getEncoding()));
-                } else {
-                    // Read it into a file
-                    String path = saveTmpFile(fbuf, partDataStart, partDataEnd - partDataStart, fileName);
-                    if (!files.containsKey(partName)) {
-                        files.put(partName, path);
-                    } else {
-                        int count = 2;
-                        while (files.containsKey(partName + count)) {
-                            count++;
-                        }
-                        files.put(partName + count, path);
-                    }
-                    values.add(fileName);
-                }
-            }
-        } catch (ResponseException re) {
-            throw re;
-        } catch (Exception e) {
-            throw new ResponseException(Status.INTERNAL_ERROR, e.toString());
-        }
-    }
-
-    private int scipOverNewLine(byte[] partHeaderBuff, int index) {
-        while (partHeaderBuff[index] != '\n') {
-            index++;
-        }
-        return ++index;
+        return this.parms;
     }
 
     /**
@@ -313,20 +237,34 @@ public class HTTPSession implements IHTTPSession {
         }
 
         this.queryParameterString = parms;
-        StringTokenizer st = new StringTokenizer(parms, "&");
-        while (st.hasMoreTokens()) {
-            String e = st.nextToken();
-            int sep = e.indexOf('=');
+        int length = parms.length();
+        int start = 0;
+        while (start < length) {
+            int end = parms.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end == start) {
+                start++;
+                continue;
+            }
+            // searched up to the '&' only, keys without value would make
+            // indexOf run to the end of the query for each of them
+            int sep = start;
+            while (sep < end && parms.charAt(sep) != '=') {
+                sep++;
+            }
             String key = null;
             String value = null;
 
-            if (sep >= 0) {
-                key = NanoHTTPD.decodePercent(e.substring(0, sep)).trim();
-                value = NanoHTTPD.decodePercent(e.substring(sep + 1));
+            if (sep < end) {
+                key = NanoHTTPD.decodePercent(parms, start, sep).trim();
+                value = NanoHTTPD.decodePercent(parms, sep + 1, end);
             } else {
-                key = NanoHTTPD.decodePercent(e).trim();
+                key = NanoHTTPD.decodePercent(parms, start, end).trim();
                 value = "";
             }
+            start = end + 1;
 
             List<String> values = p.get(key);
             if (values == null) {
@@ -338,16 +276,55 @@ public class HTTPSession implements IHTTPSession {
         }
     }
 
+    /**
+     * Publishes the request to the access log of the server, if there is one.
+     */
+    private void logAccess(Response response) {
+        AccessLog accessLog = httpd.getAccessLog();
+        if (accessLog != null) {
+            accessLog.log(this.remoteIp, this.headParser.getMethodName(), this.headParser.getUri(), response.getStatus().getRequestStatus(), response.getBytesSent(),
+                    this.headers != null ? this.headers.get("range") : null, System.nanoTime() - this.requestStart);
+        }
+    }
+
+    /**
+     * Reports the activity of the connection to its registry entry.
+     */
+    void setConnection(ConnectionRegistry.Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * @return the keep-alive timeout in milliseconds last announced to the
+     *         client, 0 if none was.
+     */
+    long getAnnouncedKeepAlive() {
+        return this.announcedKeepAlive;
+    }
+
+    /**
+     * Records the request in the metrics of the server, if there are any.
+     * Phases not reached are passed as -1.
+     */
+    private void recordMetrics(Response response, long parseNanos, long handleNanos, long sendNanos) {
+        ServerMetrics metrics = httpd.getMetrics();
+        if (metrics != null) {
+            metrics.requestCompleted(response.getStatus().getRequestStatus(), response.getBytesSent(), parseNanos, handleNanos, sendNanos, System.nanoTime() - this.requestStart);
+        }
+    }
+
     @Override
     public void execute() throws IOException {
         Response r = null;
+        long parseNanos = -1;
+        long handleNanos = -1;
         try {
             // Read the first 8192 bytes.
             // The full header should fit in here.
             // Apache's default header limit is 8KB.
             // Do NOT assume that a single read will get the entire header
             // at once!
-            byte[] buf = new byte[HTTPSession.BUFSIZE];
+            byte[] buf = this.headParser.getBuffer();
             this.splitbyte = 0;
             this.rlen = 0;
 
@@ -368,6 +345,10 @@ public class HTTPSession implements IHTTPSession {
                 NanoHTTPD.safeClose(this.outputStream);
                 throw new SocketException("NanoHttpd Shutdown");
             }
+            this.requestStart = System.nanoTime();
+            if (this.connection != null) {
+                this.connection.busy();
+            }
             while (read > 0) {
                 this.rlen += read;
                 this.splitbyte = findHeaderEnd(buf, this.rlen);
@@ -382,57 +363,104 @@ public class HTTPSession implements IHTTPSession {
                 this.inputStream.skip(this.splitbyte);
             }
 
-            this.parms = new HashMap<String, List<String>>();
+            this.rawUri = null;
+            this.uri = null;
+            this.parms = null;
+            this.queryParameterString = null;
+            this.cookies = null;
             if (null == this.headers) {
                 this.headers = new HashMap<String, String>();
             } else {
                 this.headers.clear();
             }
 
-            // Create a BufferedReader for parsing the header.
-            BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, this.rlen)));
-
-            // Decode the header into parms and header java properties
-            Map<String, String> pre = new HashMap<String, String>();
-            decodeHeader(hin, pre, this.parms, this.headers);
+            // Decode the header into header java properties, the uri,
+            // parameters and cookies are decoded when asked for
+            this.headParser.parse(this.splitbyte > 0 ? this.splitbyte : this.rlen, this.headers);
+            this.protocolVersion = this.headParser.getProtocolVersion();
+            this.rawUri = this.headParser.getUri();
 
             if (null != this.remoteIp) {
                 this.headers.put("remote-addr", this.remoteIp);
                 this.headers.put("http-client-ip", this.remoteIp);
             }
 
-            this.method = Method.lookup(pre.get("method"));
+            this.method = this.headParser.getMethod();
             if (this.method == null) {
-                throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb " + pre.get("method") + " unhandled.");
+                throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb " + this.headParser.getMethodName() + " unhandled.");
             }
 
-            this.uri = pre.get("uri");
-
-            this.cookies = new CookieHandler(this.headers);
+            this.bodySize = parseBodySize();
+            this.bodyInputStream = null;
 
-            String connection = this.headers.get("connection");
-            boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
+            boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && !this.headParser.isConnectionClose();
 
             // Ok, now do the serve()
-
-            // TODO: long body_size = getBodySize();
-            // TODO: long pos_before_serve = this.inputStream.totalRead()
-            // (requires implementation for totalRead())
+            long handleStart = System.nanoTime();
+            parseNanos = handleStart - this.requestStart;
             r = httpd.handle(this);
-            // TODO: this.inputStream.skip(body_size -
-            // (this.inputStream.totalRead() - pos_before_serve))
+            handleNanos = System.nanoTime() - handleStart;
 
             if (r == null) {
                 throw new ResponseException(Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
             } else {
+                // whatever the handler did not read of the body must not be
+                // taken for the next request head.
+                if (keepAlive && !getBodyInputStream().drain(MAX_DRAIN_SIZE)) {
+                    keepAlive = false;
+                }
                 String acceptEncoding = this.headers.get("accept-encoding");
-                this.cookies.unloadQueue(r);
+                if (this.cookies != null) {
+                    this.cookies.unloadQueue(r);
+                }
                 r.setRequestMethod(this.method);
                 if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
                     r.setUseGzip(false);
                 }
+                this.requestCount++;
+                ConnectionRegistry registry = httpd.getConnectionRegistry();
+                if (keepAlive && registry != null) {
+                    int maxRequests = registry.getMaxRequests();
+                    if (maxRequests > 0 && this.requestCount >= maxRequests) {
+                        keepAlive = false;
+                    } else if (r.getHeader("keep-alive") == null) {
+                        long timeout = registry.getAnnouncedKeepAliveTimeout();
+                        this.announcedKeepAlive = timeout;
+                        if (this.connection != null) {
+                            this.connection.announced(timeout);
+                        }
+                        r.addHeader("Keep-Alive", registry.keepAliveHeader(timeout, this.requestCount));
+                    }
+                }
                 r.setKeepAlive(keepAlive);
-                r.send(this.outputStream);
+                BandwidthScheduler scheduler = httpd.getBandwidthScheduler();
+                if (scheduler != null) {
+                    if (this.pacer == null || this.pacer.getScheduler() != scheduler) {
+                        this.pacer = scheduler.newPacer(this.remoteIp);
+                    }
+                    if (r.getPriority() == null) {
+                        r.setPriority(scheduler.classify(getUri(), r.getMimeType()));
+                    }
+                    r.setPacer(this.pacer);
+                }
+                // answers to pipelined requests are flushed together after
+                // the last one buffered
+                long sendStart = System.nanoTime();
+                try {
+                    r.send(this.outputStream, this.outputChannel, !keepAlive || r.isCloseConnection() || !isNextRequestBuffered());
+                } catch (SocketException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // the head is out already, an error response would be
+                    // taken for the rest of the body. The answers to earlier
+                    // pipelined requests still go out.
+                    NanoHTTPD.LOG.log(Level.WARNING, "response to " + this.rawUri + " broken off", e);
+                    flushOutput();
+                    throw new SocketException("NanoHttpd Shutdown");
+                }
+                long sendNanos = System.nanoTime() - sendStart;
+                logAccess(r);
+                recordMetrics(r, parseNanos, handleNanos, sendNanos);
             }
             if (!keepAlive || r.isCloseConnection()) {
                 throw new SocketException("NanoHttpd Shutdown");
@@ -455,12 +483,60 @@ public class HTTPSession implements IHTTPSession {
             NanoHTTPD.safeClose(this.outputStream);
         } catch (ResponseException re) {
             Response resp = Response.newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
+            long sendStart = System.nanoTime();
             resp.send(this.outputStream);
+            long sendNanos = System.nanoTime() - sendStart;
+            logAccess(resp);
+            recordMetrics(resp, parseNanos, handleNanos, sendNanos);
             NanoHTTPD.safeClose(this.outputStream);
         } finally {
             NanoHTTPD.safeClose(r);
             this.tempFileManager.clear();
+            if (this.connection != null) {
+                this.connection.idle();
+            }
+        }
+    }
+
+    /**
+     * Writes out the responses held back for pipelined requests. Called
+     * before the connection is closed; a failure is only logged, the
+     * connection goes away anyway.
+     */
+    void flushOutput() {
+        try {
+            this.outputStream.flush();
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "could not flush the responses", e);
+        }
+    }
+
+    /**
+     * @return true if the complete head of another request has already
+     *         been received, i.e. the client pipelines its requests.
+     */
+    private boolean isNextRequestBuffered() throws IOException {
+        int available = Math.min(this.inputStream.available(), HTTPSession.BUFSIZE);
+        if (available <= 0) {
+            return false;
+        }
+        if (this.pipelineBuffer == null) {
+            this.pipelineBuffer = new byte[HTTPSession.BUFSIZE];
+        }
+        this.inputStream.mark(HTTPSession.BUFSIZE);
+        int peeked = 0;
+        try {
+            while (peeked < available) {
+                int read = this.inputStream.read(this.pipelineBuffer, peeked, available - peeked);
+                if (read <= 0) {
+                    break;
+                }
+                peeked += read;
+            }
+        } finally {
+            this.inputStream.reset();
         }
+        return findHeaderEnd(this.pipelineBuffer, peeked) > 0;
     }
 
     /**
@@ -485,54 +561,11 @@ public class HTTPSession implements IHTTPSession {
         return 0;
     }
 
-    /**
-     * Find the byte positions where multipart boundaries start. This reads a
-     * large block at a time and uses a temporary buffer to optimize (memory
-     * mapped) file access.
-     */
-    private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-        int[] res = new int[0];
-        if (b.remaining() < boundary.length) {
-            return res;
-        }
-
-        int search_window_pos = 0;
-        byte[] search_window = new byte[4 * 1024 + boundary.length];
-
-        int first_fill = (b.remaining() < search_window.length) ? b.remaining() : search_window.length;
-        b.get(search_window, 0, first_fill);
-        int new_bytes = first_fill - boundary.length;
-
-        do {
-            // Search the search_window
-            for (int j = 0; j < new_bytes; j++) {
-                for (int i = 0; i < boundary.length; i++) {
-                    if (search_window[j + i] != boundary[i])
-                        break;
-                    if (i == boundary.length - 1) {
-                        // Match found, add it to results
-                        int[] new_res = new int[res.length + 1];
-                        System.arraycopy(res, 0, new_res, 0, res.length);
-                        new_res[res.length] = search_window_pos + j;
-                        res = new_res;
-                    }
-                }
-            }
-            search_window_pos += new_bytes;
-
-            // Copy the end of the buffer to the start
-            System.arraycopy(search_window, search_window.length - boundary.length, search_window, 0, boundary.length);
-
-            // Refill search_window
-            new_bytes = search_window.length - boundary.length;
-            new_bytes = (b.remaining() < new_bytes) ? b.remaining() : new_bytes;
-            b.get(search_window, boundary.length, new_bytes);
-        } while (new_bytes > 0);
-        return res;
-    }
-
     @Override
     public CookieHandler getCookies() {
+        if (this.cookies == null) {
+            this.cookies = new CookieHandler(this.headers);
+        }
         return this.cookies;
     }
 
@@ -558,8 +591,8 @@ public class HTTPSession implements IHTTPSession {
     @Deprecated
     public final Map<String, String> getParms() {
         Map<String, String> result = new HashMap<String, String>();
-        for (String key : this.parms.keySet()) {
-            result.put(key, this.parms.get(key).get(0));
+        for (Map.Entry<String, List<String>> entry : parameters().entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get(0));
         }
 
         return result;
@@ -567,11 +600,15 @@ public class HTTPSession implements IHTTPSession {
 
     @Override
     public final Map<String, List<String>> getParameters() {
-        return this.parms;
+        return parameters();
     }
 
     @Override
     public String getQueryParameterString() {
+        if (this.parms == null) {
+            int qmi = this.rawUri != null ? this.rawUri.indexOf('?') : -1;
+            return qmi >= 0 ? this.rawUri.substring(qmi + 1) : null;
+        }
         return this.queryParameterString;
     }
 
@@ -586,32 +623,83 @@ public class HTTPSession implements IHTTPSession {
 
     @Override
     public final String getUri() {
+        if (this.uri == null && this.rawUri != null) {
+            int qmi = this.rawUri.indexOf('?');
+            this.uri = NanoHTTPD.decodePercent(this.rawUri, 0, qmi >= 0 ? qmi : this.rawUri.length());
+        }
         return this.uri;
     }
 
     /**
-     * Deduce body length in bytes. Either from "content-length" header or read
-     * bytes.
+     * Body length in bytes from the "content-length" header, 0 if there is
+     * none and -1 if the body is chunked.
      */
     public long getBodySize() {
-        if (this.headers.containsKey("content-length")) {
-            return Long.parseLong(this.headers.get("content-length"));
-        } else if (this.splitbyte < this.rlen) {
-            return this.rlen - this.splitbyte;
+        return this.bodySize;
+    }
+
+    private long parseBodySize() throws ResponseException {
+        String transferEncoding = this.headers.get("transfer-encoding");
+        if (transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding.trim())) {
+            if (!transferEncoding.toLowerCase().trim().endsWith("chunked")) {
+                throw new ResponseException(Status.NOT_IMPLEMENTED, "Transfer-Encoding " + transferEncoding + " is not supported.");
+            }
+            return -1;
         }
-        return 0;
+        String contentLength = this.headers.get("content-length");
+        if (contentLength == null) {
+            return 0;
+        }
+        try {
+            long size = Long.parseLong(contentLength.trim());
+            if (size >= 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: invalid Content-Length " + contentLength);
+    }
+
+    @Override
+    public RequestBodyInputStream getBodyInputStream() {
+        if (this.bodyInputStream == null) {
+            if (this.bodySize < 0) {
+                this.bodyInputStream = RequestBodyInputStream.chunked(this.inputStream);
+            } else {
+                this.bodyInputStream = new RequestBodyInputStream(this.inputStream, this.bodySize);
+            }
+        }
+        return this.bodyInputStream;
     }
 
     @Override
     public void parseBody(Map<String, String> files) throws IOException, ResponseException {
+        long size = getBodySize();
+        InputStream body = getBodyInputStream();
+        // a chunked body is read until it ends
+        long readLimit = size < 0 ? Long.MAX_VALUE : size;
+
+        // Multipart bodies and PUT content are streamed to their temp files
+        // right away, everything else is small enough to be buffered.
+        if (Method.POST.equals(this.method)) {
+            ContentType contentType = ContentType.valueOf(this.headers.get("content-type"));
+            if (contentType.isMultipart()) {
+                new MultipartStreamParser(this.tempFileManager, contentType).parse(body, readLimit, parameters(), files);
+                return;
+            }
+        } else if (Method.PUT.equals(this.method)) {
+            files.put("content", saveTmpFile(body, readLimit, null));
+            return;
+        }
+
         RandomAccessFile randomAccessFile = null;
         try {
-            long size = getBodySize();
             ByteArrayOutputStream baos = null;
             DataOutput requestDataOutput = null;
 
             // Store the request in memory or a file, depending on size
-            if (size < MEMORY_STORE_LIMIT) {
+            if (size >= 0 && size < MEMORY_STORE_LIMIT) {
                 baos = new ByteArrayOutputStream();
                 requestDataOutput = new DataOutputStream(baos);
             } else {
@@ -621,12 +709,9 @@ public class HTTPSession implements IHTTPSession {
 
             // Read all the body and write it to request_data_output
             byte[] buf = new byte[REQUEST_BUFFER_LEN];
-            while (this.rlen >= 0 && size > 0) {
-                this.rlen = this.inputStream.read(buf, 0, (int) Math.min(size, REQUEST_BUFFER_LEN));
-                size -= this.rlen;
-                if (this.rlen > 0) {
-                    requestDataOutput.write(buf, 0, this.rlen);
-                }
+            int read;
+            while ((read = body.read(buf, 0, REQUEST_BUFFER_LEN)) > 0) {
+                requestDataOutput.write(buf, 0, read);
             }
 
             ByteBuffer fbuf = null;
@@ -640,29 +725,19 @@ public class HTTPSession implements IHTTPSession {
             // If the method is POST, there may be parameters
             // in data section, too, read it:
             if (Method.POST.equals(this.method)) {
-                ContentType contentType = new ContentType(this.headers.get("content-type"));
-                if (contentType.isMultipart()) {
-                    String boundary = contentType.getBoundary();
-                    if (boundary == null) {
-                        throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
-                    }
-                    decodeMultipartFormData(contentType, fbuf, this.parms, files);
-                } else {
-                    byte[] postBytes = new byte[fbuf.remaining()];
-                    fbuf.get(postBytes);
-                    String postLine = new String(postBytes, contentType.getEncoding()).trim();
-                    // Handle application/x-www-form-urlencoded
-                    if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
-                        decodeParms(postLine, this.parms);
-                    } else if (postLine.length() != 0) {
-                        // Special case for raw POST data => create a
-                        // special files entry "postData" with raw content
-                        // data
-                        files.put(POST_DATA, postLine);
-                    }
+                ContentType contentType = ContentType.valueOf(this.headers.get("content-type"));
+                byte[] postBytes = new byte[fbuf.remaining()];
+                fbuf.get(postBytes);
+                String postLine = new String(postBytes, contentType.getEncoding()).trim();
+                // Handle application/x-www-form-urlencoded
+                if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
+                    decodeParms(postLine, parameters());
+                } else if (postLine.length() != 0) {
+                    // Special case for raw POST data => create a
+                    // special files entry "postData" with raw content
+                    // data
+                    files.put(POST_DATA, postLine);
                 }
-            } else if (Method.PUT.equals(this.method)) {
-                files.put("content", saveTmpFile(fbuf, 0, fbuf.limit(), null));
             }
         } finally {
             NanoHTTPD.safeClose(randomAccessFile);
@@ -670,21 +745,28 @@ public class HTTPSession implements IHTTPSession {
     }
 
     /**
-     * Retrieves the content of a sent file and saves it to a temporary file.
-     * The full path to the saved file is returned.
+     * Copies the request body, at most <code>len</code> bytes, into a temporary
+     * file. The full path to the saved file is returned.
      */
-    private String saveTmpFile(ByteBuffer b, int offset, int len, String filename_hint) {
+    private String saveTmpFile(InputStream in, long len, String filename_hint) throws IOException {
         String path = "";
         if (len > 0) {
             FileOutputStream fileOutputStream = null;
             try {
                 ITempFile tempFile = this.tempFileManager.createTempFile(filename_hint);
-                ByteBuffer src = b.duplicate();
                 fileOutputStream = new FileOutputStream(tempFile.getName());
-                FileChannel dest = fileOutputStream.getChannel();
-                src.position(offset).limit(offset + len);
-                dest.write(src.slice());
+                byte[] buf = new byte[BUFSIZE];
+                while (len > 0) {
+                    int read = in.read(buf, 0, (int) Math.min(len, buf.length));
+                    if (read < 0) {
+                        break;
+                    }
+                    fileOutputStream.write(buf, 0, read);
+                    len -= read;
+                }
                 path = tempFile.getName();
+            } catch (IOException e) {
+                throw e;
             } catch (Exception e) { // Catch exception if any
                 throw new Error(e); // we won't recover, so throw an error
             } finally {
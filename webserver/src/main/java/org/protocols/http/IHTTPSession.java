@@ -84,6 +84,17 @@ public interface IHTTPSession {
      */
     void parseBody(Map<String, String> files) throws IOException, ResponseException;
 
+    /**
+     * The request body, read lazily from the connection. It ends with the
+     * body and decodes a chunked body; whatever is left unread is skipped
+     * before the next request on the connection. Like
+     * {@link #parseBody(Map)} it consumes the body, a handler uses one or
+     * the other.
+     * 
+     * @return the body, an empty stream if the request has none.
+     */
+    InputStream getBodyInputStream();
+
     /**
      * Get the remote ip address of the requester.
      * 
@@ -36,11 +36,10 @@ package org.protocols.http;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
-import java.net.URLDecoder;
+import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.Enumeration;
@@ -59,6 +58,9 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
+import org.protocols.http.log.AccessLog;
+import org.protocols.http.metrics.ServerMetrics;
+import org.protocols.http.pacing.BandwidthScheduler;
 import org.protocols.http.response.Response;
 import org.protocols.http.response.Status;
 import org.protocols.http.sockets.DefaultServerSocketFactory;
@@ -180,6 +182,8 @@ public abstract class NanoHTTPD {
      */
     private static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     /**
      * logger to log to.
      */
@@ -344,6 +348,39 @@ public abstract class NanoHTTPD {
      */
     private IFactory<ITempFileManager> tempFileManagerFactory;
 
+    /**
+     * Limits the connections per client and in total, null (the default) to
+     * serve every accepted connection.
+     */
+    private volatile AdmissionController admissionController;
+
+    /**
+     * Tracks the connections served by a thread and closes idle ones, null
+     * (the default) to leave them to the socket timeout.
+     */
+    private volatile ConnectionRegistry connectionRegistry;
+
+    /**
+     * Records the requests served, null for no access log.
+     */
+    private volatile AccessLog accessLog;
+
+    /**
+     * Paces response bodies, null to send them as fast as the clients take
+     * them.
+     */
+    private volatile BandwidthScheduler bandwidthScheduler;
+
+    /**
+     * Records connection and request metrics, null for none.
+     */
+    private volatile ServerMetrics metrics;
+
+    /**
+     * Serve connections from a selector instead of a thread per connection.
+     */
+    private boolean useSelector;
+
     /**
      * Constructs an HTTP server on given port.
      */
@@ -416,6 +453,9 @@ public abstract class NanoHTTPD {
      * @return the server runnable.
      */
     protected ServerRunnable createServerRunnable(final int timeout) {
+        if (this.useSelector) {
+            return new SelectorServerRunnable(this, timeout);
+        }
         return new ServerRunnable(this, timeout);
     }
 
@@ -476,13 +516,65 @@ public abstract class NanoHTTPD {
      *         "foo bar"
      */
     public static String decodePercent(String str) {
-        String decoded = null;
-        try {
-            decoded = URLDecoder.decode(str, "UTF8");
-        } catch (UnsupportedEncodingException ignored) {
-            NanoHTTPD.LOG.log(Level.WARNING, "Encoding not supported, ignored", ignored);
+        return decodePercent(str, 0, str.length());
+    }
+
+    /**
+     * Decodes <code>str.substring(start, end)</code> like
+     * {@link java.net.URLDecoder} does with UTF-8: <code>+</code> becomes a
+     * space and runs of escapes are decoded as UTF-8 bytes. Unlike
+     * URLDecoder it does not throw on a malformed escape, the <code>%</code>
+     * is kept as it is. Text without <code>%</code> and <code>+</code>, by
+     * far the most common case, is returned without copying.
+     */
+    static String decodePercent(String str, int start, int end) {
+        int i = start;
+        while (i < end) {
+            char c = str.charAt(i);
+            if (c == '%' || c == '+') {
+                break;
+            }
+            i++;
+        }
+        if (i == end) {
+            return start == 0 && end == str.length() ? str : str.substring(start, end);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(str, start, i);
+        byte[] bytes = null;
+        while (i < end) {
+            char c = str.charAt(i);
+            if (c == '+') {
+                sb.append(' ');
+                i++;
+            } else if (c == '%') {
+                if (bytes == null) {
+                    bytes = new byte[(end - i) / 3];
+                }
+                int count = 0;
+                while (i + 2 < end && str.charAt(i) == '%') {
+                    int high = Character.digit(str.charAt(i + 1), 16);
+                    int low = Character.digit(str.charAt(i + 2), 16);
+                    if (high < 0 || low < 0) {
+                        break;
+                    }
+                    bytes[count++] = (byte) (high << 4 | low);
+                    i += 3;
+                }
+                if (count == 0) {
+                    sb.append('%');
+                    i++;
+                } else if (count == 1 && bytes[0] >= 0) {
+                    sb.append((char) bytes[0]);
+                } else {
+                    sb.append(new String(bytes, 0, count, UTF_8));
+                }
+            } else {
+                sb.append(c);
+                i++;
+            }
         }
-        return decoded;
+        return sb.toString();
     }
 
     public final int getListeningPort() {
@@ -560,6 +652,101 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
+    /**
+     * Limits the connections served at the same time, see
+     * {@link AdmissionController}. Takes effect for connections accepted
+     * afterwards.
+     * 
+     * @param admissionController
+     *            the controller, null to serve every accepted connection.
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return this.admissionController;
+    }
+
+    /**
+     * Call before start() to install a registry of connections and their
+     * keep-alive timeouts, see {@link ConnectionRegistry}.
+     * 
+     * @param connectionRegistry
+     *            the registry, null to keep idle connections open until the
+     *            socket timeout.
+     */
+    public void setConnectionRegistry(ConnectionRegistry connectionRegistry) {
+        this.connectionRegistry = connectionRegistry;
+    }
+
+    public ConnectionRegistry getConnectionRegistry() {
+        return this.connectionRegistry;
+    }
+
+    /**
+     * Records every request served in the given log, see {@link AccessLog}.
+     * The log is started with the server, or right away if the server runs,
+     * and closed by {@link #stop()}. The previous log is not closed.
+     * 
+     * @param accessLog
+     *            the log, null for none.
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+        if (accessLog != null && wasStarted()) {
+            accessLog.start();
+        }
+    }
+
+    public AccessLog getAccessLog() {
+        return this.accessLog;
+    }
+
+    /**
+     * Paces the response bodies of all connections, see
+     * {@link BandwidthScheduler}.
+     * 
+     * @param bandwidthScheduler
+     *            the scheduler, null to disable pacing.
+     */
+    public void setBandwidthScheduler(BandwidthScheduler bandwidthScheduler) {
+        this.bandwidthScheduler = bandwidthScheduler;
+    }
+
+    public BandwidthScheduler getBandwidthScheduler() {
+        return this.bandwidthScheduler;
+    }
+
+    /**
+     * Records connections and requests in the given metrics, see
+     * {@link ServerMetrics}. They are exposed by adding a
+     * {@link org.protocols.http.metrics.MetricsHandler} as interceptor.
+     * 
+     * @param metrics
+     *            the metrics, null to record none.
+     */
+    public void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Call before start() to accept and watch connections with a selector
+     * (see {@link SelectorServerRunnable}), so idle keep-alive connections do
+     * not hold a thread of the async runner.
+     */
+    public void setUseSelector(boolean useSelector) {
+        this.useSelector = useSelector;
+    }
+
+    public boolean isUseSelector() {
+        return this.useSelector;
+    }
+
     /**
      * Pluggable strategy for creating and cleaning up temporary files.
      * 
@@ -601,6 +788,14 @@ public abstract class NanoHTTPD {
         this.myServerSocket = this.getServerSocketFactory().create();
         this.myServerSocket.setReuseAddress(true);
 
+        ConnectionRegistry registry = this.connectionRegistry;
+        if (registry != null) {
+            registry.start(timeout);
+        }
+        AccessLog accessLog = this.accessLog;
+        if (accessLog != null) {
+            accessLog.start();
+        }
         ServerRunnable serverRunnable = createServerRunnable(timeout);
         this.myThread = new Thread(serverRunnable);
         this.myThread.setDaemon(daemon);
@@ -621,15 +816,23 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * Stop the server.
+     * Stop the server. The access log is closed, set a new one before
+     * starting the server again.
      */
     public void stop() {
         try {
             safeClose(this.myServerSocket);
+            if (this.connectionRegistry != null) {
+                this.connectionRegistry.stop();
+            }
             this.asyncRunner.closeAll();
             if (this.myThread != null) {
                 this.myThread.join();
             }
+            // after the connections, so their last requests are written
+            if (this.accessLog != null) {
+                this.accessLog.close();
+            }
         } catch (Exception e) {
             NanoHTTPD.LOG.log(Level.SEVERE, "Could not stop all connections", e);
         }
@@ -0,0 +1,258 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+
+import org.protocols.http.sockets.ByteBufferPool;
+
+/**
+ * Client connection served by a {@link SelectorServerRunnable}.
+ * <p/>
+ * <p>
+ * While the connection waits for a request the selector thread reads into a
+ * pooled buffer and looks for the end of the request head. Only then is the
+ * handler run on the async runner, in blocking mode, for the request and any
+ * further requests already received. Afterwards the connection goes back to
+ * the selector, so an idle keep-alive connection holds neither a thread nor a
+ * buffer.
+ * </p>
+ */
+public class SelectorClientHandler extends ClientHandler {
+
+    private final SelectorServerRunnable server;
+
+    private final SocketChannel channel;
+
+    private final PooledInputStream pooledInputStream;
+
+    private HTTPSession session;
+
+    /**
+     * Buffer being filled by the selector thread, null while the connection
+     * is idle.
+     */
+    private ByteBuffer headBuffer;
+
+    private int scanned;
+
+    private long lastActivity;
+
+    public SelectorClientHandler(NanoHTTPD httpd, SelectorServerRunnable server, SocketChannel channel, ByteBufferPool bufferPool) {
+        this(httpd, server, channel, new PooledInputStream(channel.socket(), bufferPool));
+    }
+
+    private SelectorClientHandler(NanoHTTPD httpd, SelectorServerRunnable server, SocketChannel channel, PooledInputStream pooledInputStream) {
+        super(httpd, pooledInputStream, channel.socket());
+        this.server = server;
+        this.channel = channel;
+        this.pooledInputStream = pooledInputStream;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    long getLastActivity() {
+        return this.lastActivity;
+    }
+
+    /**
+     * @return the keep-alive timeout in milliseconds last announced to the
+     *         client, 0 if none was.
+     */
+    long getAnnouncedKeepAlive() {
+        HTTPSession session = this.session;
+        return session == null ? 0 : session.getAnnouncedKeepAlive();
+    }
+
+    /**
+     * Called by the selector thread when the channel is readable.
+     *
+     * @return true once a complete request head has been buffered.
+     * @throws IOException
+     *             if the channel failed or was closed by the client.
+     */
+    boolean readHead() throws IOException {
+        if (this.headBuffer == null) {
+            this.headBuffer = this.pooledInputStream.pool.acquire();
+            this.scanned = 0;
+        }
+        int read = this.channel.read(this.headBuffer);
+        if (read < 0) {
+            throw new SocketException("NanoHttpd Shutdown");
+        }
+        this.lastActivity = System.currentTimeMillis();
+        // a head that does not fit is passed on as it is, HTTPSession
+        // treats it like an oversized head read from a socket.
+        return findHeadEnd() || !this.headBuffer.hasRemaining();
+    }
+
+    /**
+     * Scans the bytes read since the last call for the empty line that
+     * terminates the request head.
+     */
+    private boolean findHeadEnd() {
+        int end = this.headBuffer.position();
+        for (int i = Math.max(1, this.scanned); i < end; i++) {
+            if (this.headBuffer.get(i) == '\n') {
+                byte previous = this.headBuffer.get(i - 1);
+                if (previous == '\n' || previous == '\r' && i >= 2 && this.headBuffer.get(i - 2) == '\n') {
+                    this.scanned = end;
+                    return true;
+                }
+            }
+        }
+        this.scanned = end;
+        return false;
+    }
+
+    /**
+     * Hands the buffered head over to the request stream, called right before
+     * the handler is dispatched.
+     */
+    void prepareDispatch() {
+        this.headBuffer.flip();
+        this.pooledInputStream.buffer = this.headBuffer;
+        this.headBuffer = null;
+    }
+
+    @Override
+    public void close() {
+        this.pooledInputStream.pool.release(this.headBuffer);
+        this.headBuffer = null;
+        super.close();
+    }
+
+    @Override
+    public void run() {
+        boolean keepConnection = false;
+        try {
+            if (this.session == null) {
+                this.session = new HTTPSession(httpd, httpd.getTempFileManagerFactory().create(), this.inputStream, this.acceptSocket.getOutputStream(),
+                        this.acceptSocket.getInetAddress(), this.channel);
+            }
+            do {
+                this.session.execute();
+            } while (!this.acceptSocket.isClosed() && this.session.getInputStream().available() > 0);
+            keepConnection = !this.acceptSocket.isClosed();
+        } catch (Exception e) {
+            if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage())) && !(e instanceof SocketTimeoutException)) {
+                NanoHTTPD.LOG.log(Level.SEVERE, "Communication with the client broken, or an bug in the handler code", e);
+            }
+        } finally {
+            httpd.asyncRunner.closed(this);
+            this.lastActivity = System.currentTimeMillis();
+            if (keepConnection) {
+                this.server.resume(this);
+            } else {
+                if (this.session != null) {
+                    // answers to pipelined requests may still be buffered
+                    this.session.flushOutput();
+                }
+                close();
+            }
+        }
+    }
+
+    /**
+     * Request stream of the connection: the bytes buffered by the selector
+     * first, then the (blocking) socket stream.
+     */
+    static final class PooledInputStream extends InputStream {
+
+        private final Socket socket;
+
+        private final ByteBufferPool pool;
+
+        private volatile ByteBuffer buffer;
+
+        private InputStream socketStream;
+
+        PooledInputStream(Socket socket, ByteBufferPool pool) {
+            this.socket = socket;
+            this.pool = pool;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ByteBuffer current = this.buffer;
+            return current == null ? 0 : current.remaining();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer current = this.buffer;
+            if (current != null) {
+                int count = Math.min(len, current.remaining());
+                current.get(b, off, count);
+                if (!current.hasRemaining()) {
+                    this.buffer = null;
+                    this.pool.release(current);
+                }
+                if (count > 0) {
+                    return count;
+                }
+            }
+            if (this.socketStream == null) {
+                this.socketStream = this.socket.getInputStream();
+            }
+            return this.socketStream.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ByteBuffer current = this.buffer;
+            this.buffer = null;
+            this.pool.release(current);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+import org.protocols.http.metrics.ServerMetrics;
+import org.protocols.http.sockets.ByteBufferPool;
+
+/**
+ * Non-blocking variant of the main listening thread.
+ * <p/>
+ * <p>
+ * Connections are accepted and watched by a single {@link Selector}. Request
+ * heads are collected from pooled buffers on the selector thread, and a
+ * connection is handed to the async runner only once a complete head has
+ * arrived. Idle keep-alive connections therefore cost a selection key instead
+ * of a blocked thread, and are closed after <code>timeout</code> milliseconds
+ * without traffic.
+ * </p>
+ * <p>
+ * Requires a server socket backed by a {@link ServerSocketChannel} (the
+ * default socket factory); otherwise it falls back to the blocking accept loop.
+ * </p>
+ */
+public class SelectorServerRunnable extends ServerRunnable {
+
+    /**
+     * Number of released head buffers kept for reuse.
+     */
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    /**
+     * Upper bound for a single select, so idle connections are checked
+     * regularly.
+     */
+    private static final long SELECT_TICK = 1000;
+
+    private final ByteBufferPool bufferPool = new ByteBufferPool(HTTPSession.BUFSIZE, MAX_POOLED_BUFFERS);
+
+    private final ConcurrentLinkedQueue<SelectorClientHandler> resumed = new ConcurrentLinkedQueue<SelectorClientHandler>();
+
+    private volatile Selector selector;
+
+    public SelectorServerRunnable(NanoHTTPD httpd, int timeout) {
+        super(httpd, timeout);
+    }
+
+    @Override
+    public void run() {
+        if (!bind()) {
+            return;
+        }
+        ServerSocketChannel serverChannel = httpd.getMyServerSocket().getChannel();
+        if (serverChannel == null) {
+            NanoHTTPD.LOG.log(Level.WARNING, "server socket has no channel, falling back to blocking accept");
+            acceptLoop();
+            return;
+        }
+        try {
+            this.selector = Selector.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+            selectLoop(serverChannel);
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.SEVERE, "Selector failed, stopping", e);
+        } catch (ClosedSelectorException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Selector closed", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void selectLoop(ServerSocketChannel serverChannel) throws IOException {
+        List<SelectorClientHandler> ready = new ArrayList<SelectorClientHandler>();
+        long tick = this.timeout > 0 ? Math.min(SELECT_TICK, this.timeout) : SELECT_TICK;
+        while (serverChannel.isOpen()) {
+            this.selector.select(tick);
+            registerResumed();
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(serverChannel);
+                } else if (key.isReadable()) {
+                    SelectorClientHandler clientHandler = (SelectorClientHandler) key.attachment();
+                    try {
+                        if (clientHandler.readHead()) {
+                            key.cancel();
+                            ready.add(clientHandler);
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        clientHandler.close();
+                    }
+                }
+            }
+            if (!ready.isEmpty()) {
+                dispatch(ready);
+                ready.clear();
+            }
+            closeIdle();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                ServerMetrics metrics = httpd.getMetrics();
+                if (metrics != null) {
+                    metrics.connectionAccepted();
+                }
+                AdmissionController admissionController = httpd.getAdmissionController();
+                if (admissionController != null && !admissionController.admit(channel.socket().getInetAddress())) {
+                    if (metrics != null) {
+                        metrics.connectionRejected();
+                    }
+                    // still blocking, the answer is written right away
+                    admissionController.reject(channel.socket());
+                    continue;
+                }
+                SelectorClientHandler clientHandler = null;
+                try {
+                    if (this.timeout > 0) {
+                        channel.socket().setSoTimeout(this.timeout);
+                    }
+                    clientHandler = createClientHandler(channel);
+                } finally {
+                    if (clientHandler == null && admissionController != null) {
+                        admissionController.release(channel.socket().getInetAddress());
+                    }
+                }
+                if (admissionController != null) {
+                    clientHandler.admitted(admissionController);
+                }
+                if (metrics != null) {
+                    clientHandler.opened(metrics);
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(this.selector, SelectionKey.OP_READ, clientHandler);
+                } catch (IOException e) {
+                    clientHandler.close();
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+        }
+    }
+
+    /**
+     * Create the handler for an accepted channel, can be overwritten by
+     * subclasses to provide a subclass of the SelectorClientHandler.
+     */
+    protected SelectorClientHandler createClientHandler(SocketChannel channel) {
+        return new SelectorClientHandler(httpd, this, channel, this.bufferPool);
+    }
+
+    /**
+     * Switches the connections with a complete head to blocking mode and runs
+     * them. Their keys have been cancelled, the extra select deregisters them
+     * from the selector so the blocking mode may be changed.
+     */
+    private void dispatch(List<SelectorClientHandler> ready) throws IOException {
+        this.selector.selectNow();
+        for (SelectorClientHandler clientHandler : ready) {
+            try {
+                clientHandler.getChannel().configureBlocking(true);
+                clientHandler.prepareDispatch();
+                httpd.asyncRunner.exec(clientHandler);
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+                clientHandler.close();
+            }
+        }
+    }
+
+    /**
+     * Called by a worker when its connection waits for the next request.
+     */
+    void resume(SelectorClientHandler clientHandler) {
+        try {
+            clientHandler.getChannel().configureBlocking(false);
+        } catch (IOException e) {
+            clientHandler.close();
+            return;
+        }
+        this.resumed.offer(clientHandler);
+        Selector current = this.selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    private void registerResumed() {
+        SelectorClientHandler clientHandler;
+        while ((clientHandler = this.resumed.poll()) != null) {
+            try {
+                clientHandler.getChannel().register(this.selector, SelectionKey.OP_READ, clientHandler);
+            } catch (IOException e) {
+                clientHandler.close();
+            }
+        }
+    }
+
+    private void closeIdle() {
+        if (this.timeout <= 0) {
+            return;
+        }
+        ConnectionRegistry registry = httpd.getConnectionRegistry();
+        long timeout = registry != null ? registry.getKeepAliveTimeout() : this.timeout;
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : this.selector.keys()) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof SelectorClientHandler)) {
+                continue;
+            }
+            SelectorClientHandler handler = (SelectorClientHandler) attachment;
+            // never before the timeout announced to the client
+            if (now - handler.getLastActivity() > Math.max(timeout, handler.getAnnouncedKeepAlive())) {
+                key.cancel();
+                handler.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        Selector current = this.selector;
+        if (current == null) {
+            return;
+        }
+        for (SelectionKey key : current.keys()) {
+            if (key.attachment() instanceof SelectorClientHandler) {
+                ((SelectorClientHandler) key.attachment()).close();
+            }
+        }
+        SelectorClientHandler clientHandler;
+        while ((clientHandler = this.resumed.poll()) != null) {
+            clientHandler.close();
+        }
+        NanoHTTPD.safeClose(current);
+    }
+}
@@ -39,14 +39,16 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.logging.Level;
 
+import org.protocols.http.metrics.ServerMetrics;
+
 /**
  * The runnable that will be used for the main listening thread.
  */
 public class ServerRunnable implements Runnable {
 
-    private NanoHTTPD httpd;
+    protected final NanoHTTPD httpd;
 
-    private final int timeout;
+    protected final int timeout;
 
     private IOException bindException;
 
@@ -57,23 +59,69 @@ public class ServerRunnable implements Runnable {
         this.timeout = timeout;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Binds the server socket to the configured host and port. A failure is
+     * kept for {@link NanoHTTPD#start()} to report.
+     * 
+     * @return true if the socket has been bound.
+     */
+    protected boolean bind() {
         try {
             httpd.getMyServerSocket().bind(httpd.hostname != null ? new InetSocketAddress(httpd.hostname, httpd.myPort) : new InetSocketAddress(httpd.myPort));
             hasBinded = true;
         } catch (IOException e) {
             this.bindException = e;
+        }
+        return hasBinded;
+    }
+
+    @Override
+    public void run() {
+        if (!bind()) {
             return;
         }
+        acceptLoop();
+    }
+
+    /**
+     * Blocking accept loop, every admitted socket is handed to the async
+     * runner.
+     */
+    protected void acceptLoop() {
         do {
             try {
                 final Socket finalAccept = httpd.getMyServerSocket().accept();
-                if (this.timeout > 0) {
-                    finalAccept.setSoTimeout(this.timeout);
+                ServerMetrics metrics = httpd.getMetrics();
+                if (metrics != null) {
+                    metrics.connectionAccepted();
+                }
+                AdmissionController admissionController = httpd.getAdmissionController();
+                if (admissionController != null && !admissionController.admit(finalAccept.getInetAddress())) {
+                    if (metrics != null) {
+                        metrics.connectionRejected();
+                    }
+                    admissionController.reject(finalAccept);
+                    continue;
+                }
+                ClientHandler clientHandler = null;
+                try {
+                    if (this.timeout > 0) {
+                        finalAccept.setSoTimeout(this.timeout);
+                    }
+                    final InputStream inputStream = finalAccept.getInputStream();
+                    clientHandler = httpd.createClientHandler(finalAccept, inputStream);
+                } finally {
+                    if (clientHandler == null && admissionController != null) {
+                        admissionController.release(finalAccept.getInetAddress());
+                    }
+                }
+                if (admissionController != null) {
+                    clientHandler.admitted(admissionController);
+                }
+                if (metrics != null) {
+                    clientHandler.opened(metrics);
                 }
-                final InputStream inputStream = finalAccept.getInputStream();
-                httpd.asyncRunner.exec(httpd.createClientHandler(finalAccept, inputStream));
+                httpd.asyncRunner.exec(clientHandler);
             } catch (IOException e) {
                 NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
             }
@@ -0,0 +1,202 @@
+package org.protocols.http.content;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A resolved byte range of a representation, as requested by a
+ * <code>Range: bytes=...</code> header (RFC 7233). Both ends are inclusive.
+ */
+public class ByteRange {
+
+    /**
+     * Upper bound on the number of range specs accepted in one header, larger
+     * requests are ignored and served in full.
+     */
+    public static final int MAX_RANGES = 64;
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private static final Comparator<ByteRange> BY_START = new Comparator<ByteRange>() {
+
+        @Override
+        public int compare(ByteRange lhs, ByteRange rhs) {
+            return lhs.start < rhs.start ? -1 : (lhs.start == rhs.start ? 0 : 1);
+        }
+    };
+
+    private final long start;
+
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return this.start;
+    }
+
+    public long getEnd() {
+        return this.end;
+    }
+
+    public long getLength() {
+        return this.end - this.start + 1;
+    }
+
+    /**
+     * @return the value for a <code>Content-Range</code> header describing
+     *         this range.
+     */
+    public String toContentRange(long totalLength) {
+        return "bytes " + this.start + "-" + this.end + "/" + totalLength;
+    }
+
+    /**
+     * Parses a <code>Range</code> header against a representation of the
+     * given length. Suffix ranges (<code>-500</code>) and open ended ranges (
+     * <code>500-</code>) are resolved, ranges reaching past the end are
+     * clipped, and overlapping or adjacent ranges are coalesced.
+     *
+     * @param header
+     *            value of the <code>Range</code> header.
+     * @param length
+     *            length of the representation.
+     * @return the satisfiable ranges in ascending order, an empty list if none
+     *         of the ranges can be satisfied, or null if the header is not a
+     *         valid byte range request and has to be ignored.
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        int specs = 0;
+        int pos = BYTES_UNIT.length();
+        while (pos <= value.length()) {
+            int comma = value.indexOf(',', pos);
+            if (comma < 0) {
+                comma = value.length();
+            }
+            String spec = value.substring(pos, comma).trim();
+            pos = comma + 1;
+            if (spec.isEmpty()) {
+                continue;
+            }
+            if (++specs > MAX_RANGES) {
+                return null;
+            }
+            int minus = spec.indexOf('-');
+            if (minus < 0) {
+                return null;
+            }
+            try {
+                if (minus == 0) {
+                    long suffixLength = parseNumber(spec.substring(1));
+                    if (suffixLength > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffixLength), length - 1));
+                    }
+                } else {
+                    long first = parseNumber(spec.substring(0, minus));
+                    String lastSpec = spec.substring(minus + 1).trim();
+                    long last = Long.MAX_VALUE;
+                    if (!lastSpec.isEmpty()) {
+                        last = parseNumber(lastSpec);
+                        if (last < first) {
+                            return null;
+                        }
+                    }
+                    if (first < length) {
+                        ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (specs == 0) {
+            return null;
+        }
+        return coalesce(ranges);
+    }
+
+    private static long parseNumber(String digits) {
+        digits = digits.trim();
+        if (digits.isEmpty()) {
+            throw new NumberFormatException("empty range bound");
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("invalid range bound: " + digits);
+            }
+        }
+        return Long.parseLong(digits);
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, BY_START);
+        List<ByteRange> result = new ArrayList<ByteRange>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                result.add(current);
+                current = next;
+            }
+        }
+        result.add(current);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return this.start + "-" + this.end;
+    }
+}
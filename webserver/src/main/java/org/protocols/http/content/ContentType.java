@@ -33,6 +33,8 @@ package org.protocols.http.content;
  * #L%
  */
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -54,6 +56,17 @@ public class ContentType {
 
     private static final Pattern BOUNDARY_PATTERN = Pattern.compile(BOUNDARY_REGEX, Pattern.CASE_INSENSITIVE);
 
+    private static final String BOUNDARY = "boundary";
+
+    /**
+     * Upper bound of parsed content types kept by {@link #valueOf(String)}.
+     */
+    private static final int MAX_CACHED = 256;
+
+    private static final ConcurrentMap<String, ContentType> CACHE = new ConcurrentHashMap<String, ContentType>();
+
+    private static final ContentType NONE = new ContentType(null);
+
     private final String contentTypeHeader;
 
     private final String contentType;
@@ -78,6 +91,40 @@ public class ContentType {
         }
     }
 
+    /**
+     * Returns the parsed content type for a header value. Content types are
+     * immutable, so the few different values a server sends are parsed once
+     * and shared. Values with a <code>boundary</code> parameter are unique
+     * per message (multipart uploads, multipart/byteranges responses) and
+     * are parsed without being cached, they would only flush the others.
+     */
+    public static ContentType valueOf(String contentTypeHeader) {
+        if (contentTypeHeader == null) {
+            return NONE;
+        }
+        ContentType contentType = CACHE.get(contentTypeHeader);
+        if (contentType == null) {
+            contentType = new ContentType(contentTypeHeader);
+            if (!hasBoundary(contentTypeHeader)) {
+                if (CACHE.size() >= MAX_CACHED) {
+                    CACHE.clear();
+                }
+                CACHE.put(contentTypeHeader, contentType);
+            }
+        }
+        return contentType;
+    }
+
+    private static boolean hasBoundary(String contentTypeHeader) {
+        int last = contentTypeHeader.length() - BOUNDARY.length();
+        for (int i = contentTypeHeader.indexOf(';'); i >= 0 && i <= last; i++) {
+            if (contentTypeHeader.regionMatches(true, i, BOUNDARY, 0, BOUNDARY.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private String getDetailFromContentHeader(String contentTypeHeader, Pattern pattern, String defaultValue, int group) {
         Matcher matcher = pattern.matcher(contentTypeHeader);
         return matcher.find() ? matcher.group(group) : defaultValue;
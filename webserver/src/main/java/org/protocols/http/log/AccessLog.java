@@ -0,0 +1,306 @@
+package org.protocols.http.log;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * Access log written in the background.
+ * <p/>
+ * <p>
+ * Request threads only claim a slot of a preallocated ring buffer with a
+ * compare-and-set and fill in the fields of the record there; they never
+ * block and never format text. When the buffer is full the record is dropped
+ * and counted. A single writer thread drains the buffer in batches, formats
+ * the records in the style of the common log format and hands them to an
+ * {@link AccessLogSink}. The writer runs from {@link #start()} to
+ * {@link #close()}, which the server calls when it starts and stops:
+ * </p>
+ * 
+ * <pre>
+ * 192.168.1.20 - - [18/Oct/2026:10:15:02 +0000] "GET /movie.mp4" 206 1048576 "bytes=0-1048575" 12.3ms
+ * </pre>
+ */
+public class AccessLog {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * How long the writer sleeps when the buffer is empty, also the latency
+     * of a line in the sink.
+     */
+    private static final long IDLE_NANOS = 100L * 1000 * 1000;
+
+    /**
+     * A slot of the ring buffer, reused for every record stored in it.
+     */
+    private static final class Record {
+
+        private long time;
+
+        private String remoteIp;
+
+        private String method;
+
+        private String uri;
+
+        private int status;
+
+        private long bytes;
+
+        private String range;
+
+        private long durationNanos;
+    }
+
+    private final Record[] records;
+
+    /**
+     * Per slot, the sequence number of the record published in it.
+     */
+    private final AtomicLongArray published;
+
+    private final int mask;
+
+    private final AtomicLong claimed = new AtomicLong();
+
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AccessLogSink sink;
+
+    private volatile Thread writer;
+
+    private volatile boolean running = true;
+
+    public AccessLog(AccessLogSink sink) {
+        this(sink, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            number of records buffered, rounded up to a power of two.
+     */
+    public AccessLog(AccessLogSink sink, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.records = new Record[size];
+        for (int i = 0; i < size; i++) {
+            this.records[i] = new Record();
+        }
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.published.set(i, -1);
+        }
+        this.mask = size - 1;
+        this.sink = sink;
+    }
+
+    /**
+     * Starts the writer, records logged before are kept until then. Does
+     * nothing if the writer runs already or the log is closed.
+     */
+    public synchronized void start() {
+        if (this.writer != null || !this.running) {
+            return;
+        }
+        Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "NanoHttpd Access Log");
+        writer.setDaemon(true);
+        writer.start();
+        this.writer = writer;
+    }
+
+    /**
+     * Records one request, without blocking.
+     * 
+     * @param durationNanos
+     *            time from the arrival of the request to the end of the
+     *            response.
+     * @return false if the record was dropped because the buffer is full.
+     */
+    public boolean log(String remoteIp, String method, String uri, int status, long bytes, String range, long durationNanos) {
+        long sequence;
+        do {
+            sequence = this.claimed.get();
+            if (sequence - this.consumed.get() >= this.records.length) {
+                this.dropped.incrementAndGet();
+                return false;
+            }
+        } while (!this.claimed.compareAndSet(sequence, sequence + 1));
+        int index = (int) sequence & this.mask;
+        Record record = this.records[index];
+        record.time = System.currentTimeMillis();
+        record.remoteIp = remoteIp;
+        record.method = method;
+        record.uri = uri;
+        record.status = status;
+        record.bytes = bytes;
+        record.range = range;
+        record.durationNanos = durationNanos;
+        this.published.set(index, sequence);
+        Thread writer = this.writer;
+        if (writer != null && sequence - this.consumed.get() >= this.records.length / 2) {
+            // a burst, do not wait for the writer to wake up on its own
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            int count = 0;
+            try {
+                long next = this.consumed.get();
+                int index = (int) next & this.mask;
+                while (this.published.get(index) == next) {
+                    Record record = this.records[index];
+                    format(record, dateFormat, line);
+                    record.remoteIp = null;
+                    record.method = null;
+                    record.uri = null;
+                    record.range = null;
+                    this.consumed.set(++next);
+                    this.sink.write(line.toString());
+                    count++;
+                    index = (int) next & this.mask;
+                }
+                if (count > 0) {
+                    this.written.addAndGet(count);
+                    this.sink.flush();
+                }
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.WARNING, "could not write the access log", e);
+            } catch (RuntimeException e) {
+                NanoHTTPD.LOG.log(Level.WARNING, "could not write the access log", e);
+            }
+            if (count == 0) {
+                if (!this.running) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        closeSink();
+    }
+
+    private void closeSink() {
+        try {
+            this.sink.close();
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.WARNING, "could not close the access log", e);
+        }
+    }
+
+    private static void format(Record record, SimpleDateFormat dateFormat, StringBuilder line) {
+        line.setLength(0);
+        line.append(record.remoteIp != null ? record.remoteIp : "-");
+        line.append(" - - [").append(dateFormat.format(new Date(record.time))).append("] \"");
+        line.append(record.method).append(' ').append(record.uri).append("\" ");
+        line.append(record.status).append(' ');
+        if (record.bytes >= 0) {
+            line.append(record.bytes);
+        } else {
+            line.append('-');
+        }
+        line.append(" \"").append(record.range != null ? record.range : "-").append("\" ");
+        long micros = record.durationNanos / 1000;
+        line.append(micros / 1000).append('.').append(micros / 100 % 10).append("ms");
+    }
+
+    /**
+     * Writes the buffered records, stops the writer and closes the sink.
+     * Records logged afterwards are not written.
+     */
+    public void close() {
+        Thread writer;
+        synchronized (this) {
+            if (!this.running) {
+                return;
+            }
+            this.running = false;
+            writer = this.writer;
+        }
+        if (writer == null) {
+            // never started, nothing is written
+            closeSink();
+            return;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of records dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return number of records handed to the sink.
+     */
+    public long getWrittenCount() {
+        return this.written.get();
+    }
+
+    /**
+     * @return number of records waiting for the writer.
+     */
+    public int getPendingCount() {
+        return (int) (this.claimed.get() - this.consumed.get());
+    }
+}
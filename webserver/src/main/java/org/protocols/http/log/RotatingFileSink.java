@@ -0,0 +1,140 @@
+package org.protocols.http.log;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * Appends access log lines to a file. When the file grows beyond
+ * <code>maxBytes</code> it is renamed to <code>name.1</code>, the older
+ * files are shifted to <code>name.2</code> and so on, and the oldest beyond
+ * <code>maxFiles</code> is deleted.
+ */
+public class RotatingFileSink implements AccessLogSink {
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_FILES = 3;
+
+    private final File file;
+
+    private final long maxBytes;
+
+    private final int maxFiles;
+
+    private Writer writer;
+
+    private long size;
+
+    public RotatingFileSink(File file) {
+        this(file, DEFAULT_MAX_BYTES, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param maxBytes
+     *            size at which the file is rotated.
+     * @param maxFiles
+     *            number of rotated files kept besides the current one.
+     */
+    public RotatingFileSink(File file, long maxBytes, int maxFiles) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public void write(String line) throws IOException {
+        if (this.writer == null) {
+            open();
+        } else if (this.size >= this.maxBytes) {
+            rotate();
+        }
+        this.writer.write(line);
+        this.writer.write('\n');
+        // close enough, the lines are ASCII but for unusual URIs
+        this.size += line.length() + 1;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (this.writer != null) {
+            this.writer.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.writer != null) {
+            this.writer.close();
+            this.writer = null;
+        }
+    }
+
+    private void open() throws IOException {
+        this.size = this.file.length();
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file, true), "UTF-8"));
+    }
+
+    private void rotate() throws IOException {
+        NanoHTTPD.safeClose(this.writer);
+        this.writer = null;
+        File oldest = rotated(this.maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            NanoHTTPD.LOG.warning("could not delete " + oldest);
+        }
+        for (int i = this.maxFiles - 1; i >= 1; i--) {
+            File rotated = rotated(i);
+            if (rotated.exists()) {
+                rotated.renameTo(rotated(i + 1));
+            }
+        }
+        if (this.maxFiles > 0) {
+            this.file.renameTo(rotated(1));
+        } else {
+            this.file.delete();
+        }
+        open();
+    }
+
+    private File rotated(int index) {
+        return new File(this.file.getPath() + "." + index);
+    }
+}
@@ -0,0 +1,174 @@
+package org.protocols.http.metrics;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in nanoseconds, in fixed log-linear buckets.
+ * <p/>
+ * <p>
+ * Every power of two from {@link #MIN_SHIFT} (about 16 microseconds) to
+ * {@link #MAX_SHIFT} (about 34 seconds) is split into four buckets of equal
+ * width, so a recorded value is known within 25%. Shorter durations share
+ * the first bucket, longer ones the last. Recording computes the bucket with
+ * a few shifts and increments one counter, it neither locks nor allocates.
+ * Like {@link StripedCounter}, each thread counts in a row of its own.
+ * </p>
+ */
+public class Histogram {
+
+    /**
+     * Upper bound of the first bucket, 2^14 ns.
+     */
+    public static final int MIN_SHIFT = 14;
+
+    /**
+     * Upper bound of the last bounded bucket, 2^35 ns.
+     */
+    public static final int MAX_SHIFT = 35;
+
+    private static final int SUB_BITS = 2;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * First bucket, the log-linear buckets and the overflow bucket.
+     */
+    static final int BUCKETS = 1 + (MAX_SHIFT - MIN_SHIFT) * SUB_BUCKETS + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+
+    private final StripedCounter sum = new StripedCounter();
+
+    /**
+     * @param nanos
+     *            the duration, negative values are ignored.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        this.counts.getAndIncrement(StripedCounter.stripe() * BUCKETS + bucket(nanos));
+        this.sum.add(nanos);
+    }
+
+    /**
+     * Buckets include their upper bound, so the bucket is taken from
+     * <code>value - 1</code>.
+     */
+    static int bucket(long value) {
+        long v = value - 1;
+        if (v < 1L << MIN_SHIFT) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        if (exponent >= MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (v >>> exponent - SUB_BITS) & SUB_BUCKETS - 1;
+        return 1 + (exponent - MIN_SHIFT) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value counted in the bucket, Long.MAX_VALUE for the
+     *         overflow bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket == 0) {
+            return 1L << MIN_SHIFT;
+        }
+        if (bucket >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = MIN_SHIFT + (bucket - 1) / SUB_BUCKETS;
+        int sub = (bucket - 1) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << exponent - SUB_BITS;
+    }
+
+    /**
+     * @return the counts per bucket, summed over all threads.
+     */
+    long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            int offset = stripe * BUCKETS;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] += this.counts.get(offset + i);
+            }
+        }
+        return snapshot;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (long c : snapshot()) {
+            count += c;
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of the recorded durations in nanoseconds.
+     */
+    public long getSum() {
+        return this.sum.get();
+    }
+
+    /**
+     * @param quantile
+     *            between 0 and 1, e.g. 0.99.
+     * @return upper bound of the bucket holding the quantile, 0 if nothing
+     *         has been recorded.
+     */
+    public long getQuantile(double quantile) {
+        long[] snapshot = snapshot();
+        long count = 0;
+        for (long c : snapshot) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,82 @@
+package org.protocols.http.metrics;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.protocols.http.IHTTPSession;
+import org.protocols.http.NanoHTTPD;
+import org.protocols.http.request.Method;
+import org.protocols.http.response.Response;
+import org.protocols.http.response.Status;
+import org.util.IHandler;
+
+/**
+ * Interceptor that answers requests for one path with the metrics of a
+ * registry in the Prometheus text format, see
+ * {@link NanoHTTPD#addHTTPInterceptor(IHandler)}. All
+ * other requests are passed on.
+ */
+public class MetricsHandler implements IHandler<IHTTPSession, Response> {
+
+    public static final String DEFAULT_PATH = "/metrics";
+
+    public static final String MIME_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsRegistry registry;
+
+    private final String path;
+
+    public MetricsHandler(MetricsRegistry registry) {
+        this(registry, DEFAULT_PATH);
+    }
+
+    public MetricsHandler(MetricsRegistry registry, String path) {
+        this.registry = registry;
+        this.path = path;
+    }
+
+    @Override
+    public Response handle(IHTTPSession session) {
+        if (!this.path.equals(session.getUri())) {
+            return null;
+        }
+        if (session.getMethod() != Method.GET && session.getMethod() != Method.HEAD) {
+            Response response = Response.newFixedLengthResponse(Status.METHOD_NOT_ALLOWED, NanoHTTPD.MIME_PLAINTEXT, "Method not allowed.");
+            response.addHeader("Allow", "GET, HEAD");
+            return response;
+        }
+        Response response = Response.newFixedLengthResponse(Status.OK, MIME_PROMETHEUS, this.registry.scrape());
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+}
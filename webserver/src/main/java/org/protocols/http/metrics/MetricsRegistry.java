@@ -0,0 +1,235 @@
+package org.protocols.http.metrics;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Named counters, gauges and histograms, written in the Prometheus text
+ * exposition format.
+ * <p/>
+ * <p>
+ * Metrics of the same name form a family and are told apart by their
+ * labels, given in exposition syntax, e.g. <code>phase="parse"</code>.
+ * Registering a name and label set a second time returns the metric
+ * registered first. Counters and histograms are updated by the code they
+ * measure; values owned by other components (cache sizes, hit counts) are
+ * registered as a {@link Value} read on every scrape.
+ * </p>
+ */
+public class MetricsRegistry {
+
+    /**
+     * A value read when the metrics are written.
+     */
+    public interface Value {
+
+        double get();
+    }
+
+    private static final class Family {
+
+        private final String name;
+
+        private final String help;
+
+        private final String type;
+
+        private final Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+    public StripedCounter counter(String name, String help) {
+        return counter(name, help, null);
+    }
+
+    /**
+     * @param name
+     *            metric name, counters should end in <code>_total</code>.
+     * @param labels
+     *            e.g. <code>code="2xx"</code>, null for none.
+     */
+    public StripedCounter counter(String name, String help, String labels) {
+        return (StripedCounter) register(name, help, "counter", labels, new StripedCounter());
+    }
+
+    /**
+     * Registers a counter kept by another component.
+     */
+    public void counter(String name, String help, String labels, Value value) {
+        register(name, help, "counter", labels, value);
+    }
+
+    public void gauge(String name, String help, String labels, Value value) {
+        register(name, help, "gauge", labels, value);
+    }
+
+    /**
+     * @param name
+     *            metric name, durations are written in seconds so it should
+     *            end in <code>_seconds</code>.
+     */
+    public Histogram histogram(String name, String help, String labels) {
+        return (Histogram) register(name, help, "histogram", labels, new Histogram());
+    }
+
+    private Object register(String name, String help, String type, String labels, Object metric) {
+        String key = labels != null ? labels : "";
+        synchronized (this.families) {
+            Family family = this.families.get(name);
+            if (family == null) {
+                family = new Family(name, help, type);
+                this.families.put(name, family);
+            } else if (!family.type.equals(type)) {
+                throw new IllegalArgumentException(name + " is already registered as " + family.type);
+            }
+            Object existing = family.metrics.get(key);
+            if (existing != null && !(metric instanceof Value)) {
+                // counters and histograms are shared, values are replaced
+                if (existing.getClass() != metric.getClass()) {
+                    throw new IllegalArgumentException(name + "{" + key + "} is already registered");
+                }
+                return existing;
+            }
+            family.metrics.put(key, metric);
+            return metric;
+        }
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format, version 0.0.4.
+     * Histogram buckets are written per power of two, the cumulative counts
+     * at these bounds are exact.
+     */
+    public void writeTo(StringBuilder out) {
+        List<Family> snapshot;
+        synchronized (this.families) {
+            snapshot = new ArrayList<Family>(this.families.values());
+        }
+        for (Family family : snapshot) {
+            List<Map.Entry<String, Object>> metrics;
+            synchronized (this.families) {
+                metrics = new ArrayList<Map.Entry<String, Object>>(family.metrics.entrySet());
+            }
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> entry : metrics) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                if (metric instanceof Histogram) {
+                    writeHistogram(out, family.name, labels, (Histogram) metric);
+                } else if (metric instanceof StripedCounter) {
+                    sample(out, family.name, labels, null);
+                    out.append(((StripedCounter) metric).get()).append('\n');
+                } else {
+                    sample(out, family.name, labels, null);
+                    appendDouble(out, ((Value) metric).get());
+                    out.append('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format.
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        writeTo(out);
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        long[] counts = histogram.snapshot();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length - 1; i++) {
+            cumulative += counts[i];
+            long bound = Histogram.upperBound(i);
+            // only bounds at a power of two
+            if ((bound & bound - 1) == 0) {
+                sample(out, name + "_bucket", labels, "le=\"" + seconds(bound) + "\"");
+                out.append(cumulative).append('\n');
+            }
+        }
+        cumulative += counts[counts.length - 1];
+        sample(out, name + "_bucket", labels, "le=\"+Inf\"");
+        out.append(cumulative).append('\n');
+        sample(out, name + "_sum", labels, null);
+        out.append(seconds(histogram.getSum())).append('\n');
+        sample(out, name + "_count", labels, null);
+        out.append(cumulative).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String extraLabel) {
+        out.append(name);
+        boolean hasLabels = labels.length() > 0;
+        if (hasLabels || extraLabel != null) {
+            out.append('{').append(labels);
+            if (extraLabel != null) {
+                if (hasLabels) {
+                    out.append(',');
+                }
+                out.append(extraLabel);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static void appendDouble(StringBuilder out, double value) {
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1L << 53) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.protocols.http.metrics;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.protocols.http.AdmissionController;
+import org.protocols.http.ConnectionRegistry;
+import org.protocols.http.NanoHTTPD;
+import org.protocols.http.log.AccessLog;
+import org.protocols.http.pacing.BandwidthScheduler;
+import org.protocols.http.pacing.Priority;
+
+/**
+ * The metrics the server records about its connections and requests, see
+ * {@link NanoHTTPD#setMetrics(ServerMetrics)}.
+ * <p/>
+ * <p>
+ * Connections are counted when accepted, rejected and closed. A request is
+ * timed in three phases: <i>parse</i> from its first byte to the parsed
+ * head, <i>handle</i> for the handler and interceptors, and <i>send</i> for
+ * writing the response. The admission controller, connection registry,
+ * access log and bandwidth scheduler of the server are exposed as values
+ * read on every scrape.
+ * </p>
+ */
+public class ServerMetrics {
+
+    private static final String[] STATUS_CLASSES = {
+        "1xx",
+        "2xx",
+        "3xx",
+        "4xx",
+        "5xx"
+    };
+
+    private final MetricsRegistry registry;
+
+    private final StripedCounter connectionsAccepted;
+
+    private final StripedCounter connectionsRejected;
+
+    private final StripedCounter connectionsOpen = new StripedCounter();
+
+    private final StripedCounter[] responses = new StripedCounter[STATUS_CLASSES.length];
+
+    private final StripedCounter bytesSent;
+
+    private final Histogram parseTime;
+
+    private final Histogram handleTime;
+
+    private final Histogram sendTime;
+
+    private final Histogram requestTime;
+
+    public ServerMetrics() {
+        this(new MetricsRegistry());
+    }
+
+    public ServerMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+        this.connectionsAccepted = registry.counter("http_connections_accepted_total", "Connections accepted.");
+        this.connectionsRejected = registry.counter("http_connections_rejected_total", "Connections refused by the admission controller.");
+        registry.gauge("http_connections_open", "Connections accepted and not yet closed.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                return ServerMetrics.this.connectionsOpen.get();
+            }
+        });
+        for (int i = 0; i < STATUS_CLASSES.length; i++) {
+            this.responses[i] = registry.counter("http_responses_total", "Responses sent, by status class.", "code=\"" + STATUS_CLASSES[i] + "\"");
+        }
+        this.bytesSent = registry.counter("http_response_body_bytes_total", "Response body bytes sent, before compression.");
+        this.parseTime = registry.histogram("http_request_phase_seconds", "Time spent in each phase of a request.", "phase=\"parse\"");
+        this.handleTime = registry.histogram("http_request_phase_seconds", "Time spent in each phase of a request.", "phase=\"handle\"");
+        this.sendTime = registry.histogram("http_request_phase_seconds", "Time spent in each phase of a request.", "phase=\"send\"");
+        this.requestTime = registry.histogram("http_request_duration_seconds", "Time from the first byte of a request to its response being sent.", null);
+    }
+
+    public MetricsRegistry getRegistry() {
+        return this.registry;
+    }
+
+    public void connectionAccepted() {
+        this.connectionsAccepted.increment();
+    }
+
+    public void connectionRejected() {
+        this.connectionsRejected.increment();
+    }
+
+    public void connectionOpened() {
+        this.connectionsOpen.increment();
+    }
+
+    public void connectionClosed() {
+        this.connectionsOpen.decrement();
+    }
+
+    /**
+     * Records a request that has been answered. Phases that were not reached,
+     * e.g. because the head could not be parsed, are passed as -1.
+     * 
+     * @param status
+     *            status code of the response.
+     * @param bytes
+     *            body bytes sent.
+     */
+    public void requestCompleted(int status, long bytes, long parseNanos, long handleNanos, long sendNanos, long totalNanos) {
+        int statusClass = status / 100 - 1;
+        if (statusClass >= 0 && statusClass < this.responses.length) {
+            this.responses[statusClass].increment();
+        }
+        this.bytesSent.add(bytes);
+        this.parseTime.record(parseNanos);
+        this.handleTime.record(handleNanos);
+        this.sendTime.record(sendNanos);
+        this.requestTime.record(totalNanos);
+    }
+
+    public Histogram getRequestTime() {
+        return this.requestTime;
+    }
+
+    public long getConnectionsOpen() {
+        return this.connectionsOpen.get();
+    }
+
+    /**
+     * Exposes the admission controller, connection registry, access log and
+     * bandwidth scheduler of <code>httpd</code>. They are looked up on every
+     * scrape, so components replaced later are followed; missing ones read
+     * as 0.
+     */
+    public void bind(final NanoHTTPD httpd) {
+        this.registry.counter("http_admission_accepted_total", "Connections admitted by the admission controller.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                AdmissionController admissionController = httpd.getAdmissionController();
+                return admissionController != null ? admissionController.getAcceptedCount() : 0;
+            }
+        });
+        this.registry.gauge("http_admission_active", "Connections holding an admission.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                AdmissionController admissionController = httpd.getAdmissionController();
+                return admissionController != null ? admissionController.getActiveCount() : 0;
+            }
+        });
+        this.registry.gauge("http_keepalive_connections", "Connections known to the connection registry.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                ConnectionRegistry connectionRegistry = httpd.getConnectionRegistry();
+                return connectionRegistry != null ? connectionRegistry.getOpenCount() : 0;
+            }
+        });
+        this.registry.gauge("http_keepalive_idle_connections", "Connections waiting for their next request.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                ConnectionRegistry connectionRegistry = httpd.getConnectionRegistry();
+                return connectionRegistry != null ? connectionRegistry.getIdleCount() : 0;
+            }
+        });
+        this.registry.gauge("http_keepalive_timeout_seconds", "Current keep-alive timeout.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                ConnectionRegistry connectionRegistry = httpd.getConnectionRegistry();
+                return connectionRegistry != null ? connectionRegistry.getKeepAliveTimeout() / 1000.0 : 0;
+            }
+        });
+        this.registry.counter("http_keepalive_reaped_total", "Idle connections closed by the connection registry.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                ConnectionRegistry connectionRegistry = httpd.getConnectionRegistry();
+                return connectionRegistry != null ? connectionRegistry.getReapedCount() : 0;
+            }
+        });
+        this.registry.counter("http_access_log_written_total", "Access log records written.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                AccessLog accessLog = httpd.getAccessLog();
+                return accessLog != null ? accessLog.getWrittenCount() : 0;
+            }
+        });
+        this.registry.counter("http_access_log_dropped_total", "Access log records dropped because the buffer was full.", null, new MetricsRegistry.Value() {
+
+            @Override
+            public double get() {
+                AccessLog accessLog = httpd.getAccessLog();
+                return accessLog != null ? accessLog.getDroppedCount() : 0;
+            }
+        });
+        for (final Priority priority : Priority.values()) {
+            String labels = "priority=\"" + priority.name().toLowerCase() + "\"";
+            this.registry.counter("http_paced_bytes_total", "Bytes sent through the bandwidth scheduler.", labels, new MetricsRegistry.Value() {
+
+                @Override
+                public double get() {
+                    BandwidthScheduler scheduler = httpd.getBandwidthScheduler();
+                    return scheduler != null ? scheduler.getBytesSent(priority) : 0;
+                }
+            });
+            this.registry.counter("http_paced_throttle_seconds_total", "Time responses waited for the bandwidth scheduler.", labels, new MetricsRegistry.Value() {
+
+                @Override
+                public double get() {
+                    BandwidthScheduler scheduler = httpd.getBandwidthScheduler();
+                    return scheduler != null ? scheduler.getThrottleNanos(priority) / 1e9 : 0;
+                }
+            });
+        }
+    }
+}
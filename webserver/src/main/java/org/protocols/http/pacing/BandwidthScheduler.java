@@ -0,0 +1,338 @@
+package org.protocols.http.pacing;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Shares the upstream bandwidth between the connections of a server.
+ * <p/>
+ * <p>
+ * Response bodies are sent in chunks, and before each chunk the sending
+ * thread asks its {@link ConnectionPacer} for permission. Two limits apply:
+ * </p>
+ * <ul>
+ * <li>per connection, a token bucket with the rate configured for the
+ * priority class of the response, unlimited by default;</li>
+ * <li>for all connections together, a token bucket with the global rate.
+ * Waiting chunks are granted in the order of start-time fair queueing, so
+ * while the global rate is exhausted every priority class gets bandwidth in
+ * proportion to its weight. Bandwidth one sender does not use is left to
+ * the others.</li>
+ * </ul>
+ * <p>
+ * The priority of a response is the one set with
+ * {@link org.protocols.http.response.Response#setPriority(Priority)}, else
+ * the one of the longest matching URI prefix, else the one of the longest
+ * matching MIME type prefix, else {@link Priority#BULK}. By default audio and
+ * video are {@link Priority#PLAYBACK}.
+ * </p>
+ */
+public class BandwidthScheduler {
+
+    /**
+     * Largest burst of the token buckets, in milliseconds of the rate.
+     */
+    private static final long BURST_MILLIS = 50;
+
+    private static final long MIN_BURST = 64 * 1024;
+
+    private static final int MAX_CLIENTS = 256;
+
+    /**
+     * A chunk waiting for the global bucket.
+     */
+    private static final class Waiter implements Comparable<Waiter> {
+
+        private final double startTag;
+
+        private final long sequence;
+
+        Waiter(double startTag, long sequence) {
+            this.startTag = startTag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (this.startTag != other.startTag) {
+                return this.startTag < other.startTag ? -1 : 1;
+            }
+            return this.sequence < other.sequence ? -1 : this.sequence == other.sequence ? 0 : 1;
+        }
+    }
+
+    private final TokenBucket bucket = new TokenBucket();
+
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+
+    private double virtualTime;
+
+    private long sequence;
+
+    private final int[] weights = new int[Priority.values().length];
+
+    private final long[] connectionRates = new long[Priority.values().length];
+
+    private final Map<String, Priority> uriPriorities = new LinkedHashMap<String, Priority>();
+
+    private final Map<String, Priority> mimePriorities = new LinkedHashMap<String, Priority>();
+
+    private final Map<String, ClientStats> clients = new LinkedHashMap<String, ClientStats>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ClientStats> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+
+    private final AtomicLongArray bytesSent = new AtomicLongArray(Priority.values().length);
+
+    private final AtomicLongArray throttleNanos = new AtomicLongArray(Priority.values().length);
+
+    /**
+     * @param rate
+     *            global rate in bytes per second, 0 for unlimited.
+     */
+    public BandwidthScheduler(long rate) {
+        setRate(rate);
+        for (Priority priority : Priority.values()) {
+            this.weights[priority.ordinal()] = priority.getDefaultWeight();
+        }
+        setMimePriority("video/", Priority.PLAYBACK);
+        setMimePriority("audio/", Priority.PLAYBACK);
+    }
+
+    static long burst(long rate) {
+        return Math.max(MIN_BURST, rate * BURST_MILLIS / 1000);
+    }
+
+    /**
+     * @param rate
+     *            global rate in bytes per second, 0 for unlimited.
+     */
+    public synchronized void setRate(long rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("invalid rate: " + rate);
+        }
+        this.bucket.setRate(rate, burst(rate));
+        notifyAll();
+    }
+
+    public synchronized long getRate() {
+        return this.bucket.getRate();
+    }
+
+    /**
+     * @param weight
+     *            share of the priority class while the global rate is
+     *            exhausted, relative to the weights of the other classes.
+     */
+    public synchronized void setWeight(Priority priority, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("invalid weight: " + weight);
+        }
+        this.weights[priority.ordinal()] = weight;
+    }
+
+    public synchronized int getWeight(Priority priority) {
+        return this.weights[priority.ordinal()];
+    }
+
+    /**
+     * @param rate
+     *            limit of each connection sending a response of the priority
+     *            class, in bytes per second, 0 for unlimited.
+     */
+    public synchronized void setConnectionRate(Priority priority, long rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("invalid rate: " + rate);
+        }
+        this.connectionRates[priority.ordinal()] = rate;
+    }
+
+    public synchronized long getConnectionRate(Priority priority) {
+        return this.connectionRates[priority.ordinal()];
+    }
+
+    /**
+     * Sets the priority of the responses to URIs starting with
+     * <code>uriPrefix</code>, null removes the rule.
+     */
+    public void setUriPriority(String uriPrefix, Priority priority) {
+        synchronized (this.uriPriorities) {
+            if (priority == null) {
+                this.uriPriorities.remove(uriPrefix);
+            } else {
+                this.uriPriorities.put(uriPrefix, priority);
+            }
+        }
+    }
+
+    /**
+     * Sets the priority of the responses with a MIME type starting with
+     * <code>mimePrefix</code>, null removes the rule.
+     */
+    public void setMimePriority(String mimePrefix, Priority priority) {
+        synchronized (this.mimePriorities) {
+            if (priority == null) {
+                this.mimePriorities.remove(mimePrefix);
+            } else {
+                this.mimePriorities.put(mimePrefix, priority);
+            }
+        }
+    }
+
+    /**
+     * @return the priority of a response without an explicit one.
+     */
+    public Priority classify(String uri, String mimeType) {
+        Priority priority;
+        synchronized (this.uriPriorities) {
+            priority = longestPrefixMatch(this.uriPriorities, uri);
+        }
+        if (priority == null) {
+            synchronized (this.mimePriorities) {
+                priority = longestPrefixMatch(this.mimePriorities, mimeType);
+            }
+        }
+        return priority != null ? priority : Priority.BULK;
+    }
+
+    private static Priority longestPrefixMatch(Map<String, Priority> rules, String value) {
+        if (value == null) {
+            return null;
+        }
+        Priority priority = null;
+        int longest = -1;
+        for (Map.Entry<String, Priority> rule : rules.entrySet()) {
+            if (rule.getKey().length() > longest && value.startsWith(rule.getKey())) {
+                priority = rule.getValue();
+                longest = rule.getKey().length();
+            }
+        }
+        return priority;
+    }
+
+    /**
+     * @return a pacer for a new connection from <code>remoteAddress</code>.
+     */
+    public ConnectionPacer newPacer(String remoteAddress) {
+        String key = remoteAddress != null ? remoteAddress : "unknown";
+        ClientStats stats;
+        synchronized (this.clients) {
+            stats = this.clients.get(key);
+            if (stats == null) {
+                stats = new ClientStats(key);
+                this.clients.put(key, stats);
+            }
+        }
+        return new ConnectionPacer(this, stats);
+    }
+
+    /**
+     * Waits for the turn of <code>pacer</code> to send <code>bytes</code>
+     * under the global rate.
+     */
+    void acquire(ConnectionPacer pacer, int bytes) throws InterruptedIOException {
+        synchronized (this) {
+            if (this.bucket.getRate() <= 0) {
+                return;
+            }
+            double startTag = Math.max(this.virtualTime, pacer.finishTag);
+            pacer.finishTag = startTag + (double) bytes / this.weights[pacer.getPriority().ordinal()];
+            Waiter waiter = new Waiter(startTag, this.sequence++);
+            this.waiters.add(waiter);
+            try {
+                while (true) {
+                    if (this.waiters.peek() == waiter) {
+                        long now = System.nanoTime();
+                        long delay = this.bucket.delay(now);
+                        if (delay <= 0) {
+                            this.bucket.take(bytes, now);
+                            break;
+                        }
+                        wait(delay / 1000000, (int) (delay % 1000000));
+                    } else {
+                        wait();
+                    }
+                }
+                this.virtualTime = startTag;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while pacing");
+            } finally {
+                this.waiters.remove(waiter);
+                notifyAll();
+            }
+        }
+    }
+
+    void addSent(Priority priority, long bytes, long throttleNanos) {
+        this.bytesSent.addAndGet(priority.ordinal(), bytes);
+        this.throttleNanos.addAndGet(priority.ordinal(), throttleNanos);
+    }
+
+    /**
+     * @return bytes of response bodies sent in the priority class.
+     */
+    public long getBytesSent(Priority priority) {
+        return this.bytesSent.get(priority.ordinal());
+    }
+
+    /**
+     * @return nanoseconds senders in the priority class waited for
+     *         bandwidth.
+     */
+    public long getThrottleNanos(Priority priority) {
+        return this.throttleNanos.get(priority.ordinal());
+    }
+
+    /**
+     * @return the statistics of the most recently seen clients.
+     */
+    public List<ClientStats> getClientStats() {
+        synchronized (this.clients) {
+            return new ArrayList<ClientStats>(this.clients.values());
+        }
+    }
+}
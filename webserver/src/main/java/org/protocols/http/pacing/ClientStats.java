@@ -0,0 +1,106 @@
+package org.protocols.http.pacing;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes sent to one client address and how long sending was held back by
+ * pacing, summed over all its connections.
+ */
+public final class ClientStats {
+
+    private final String remoteAddress;
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final AtomicLong throttleNanos = new AtomicLong();
+
+    private final AtomicLong sendNanos = new AtomicLong();
+
+    private volatile long lastActive = System.currentTimeMillis();
+
+    ClientStats(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    void addSent(long bytes, long throttleNanos) {
+        this.bytesSent.addAndGet(bytes);
+        this.throttleNanos.addAndGet(throttleNanos);
+    }
+
+    void addSendTime(long nanos) {
+        this.sendNanos.addAndGet(nanos);
+        this.lastActive = System.currentTimeMillis();
+    }
+
+    public String getRemoteAddress() {
+        return this.remoteAddress;
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    /**
+     * @return nanoseconds senders to this client waited for bandwidth.
+     */
+    public long getThrottleNanos() {
+        return this.throttleNanos.get();
+    }
+
+    /**
+     * @return nanoseconds spent sending response bodies, throttling
+     *         included.
+     */
+    public long getSendNanos() {
+        return this.sendNanos.get();
+    }
+
+    /**
+     * @return average bytes per second while response bodies were sent.
+     */
+    public long getThroughput() {
+        long nanos = this.sendNanos.get();
+        return nanos <= 0 ? 0 : (long) (this.bytesSent.get() * 1000000000d / nanos);
+    }
+
+    /**
+     * @return time of the last completed response, in milliseconds since the
+     *         epoch.
+     */
+    public long getLastActive() {
+        return this.lastActive;
+    }
+}
@@ -0,0 +1,119 @@
+package org.protocols.http.pacing;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.InterruptedIOException;
+
+/**
+ * Paces the responses of one connection: a token bucket limits the
+ * connection to the rate of the priority class of the current response,
+ * then the {@link BandwidthScheduler} shares the global rate between all
+ * connections sending at the same time.
+ * <p/>
+ * <p>
+ * Only used by the thread serving the connection.
+ * </p>
+ */
+public final class ConnectionPacer {
+
+    private final BandwidthScheduler scheduler;
+
+    private final ClientStats stats;
+
+    private final TokenBucket bucket = new TokenBucket();
+
+    private Priority priority = Priority.BULK;
+
+    private long begin;
+
+    /**
+     * Finish tag of the last chunk queued at the scheduler, in the virtual
+     * time of start-time fair queueing.
+     */
+    double finishTag;
+
+    ConnectionPacer(BandwidthScheduler scheduler, ClientStats stats) {
+        this.scheduler = scheduler;
+        this.stats = stats;
+    }
+
+    public BandwidthScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    public Priority getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Called before the body of a response is sent.
+     */
+    public void begin(Priority priority) {
+        this.priority = priority;
+        long rate = this.scheduler.getConnectionRate(priority);
+        this.bucket.setRate(rate, BandwidthScheduler.burst(rate));
+        this.begin = System.nanoTime();
+    }
+
+    /**
+     * Waits until <code>bytes</code> may be sent.
+     *
+     * @throws InterruptedIOException
+     *             if the thread was interrupted while waiting.
+     */
+    public void pace(int bytes) throws InterruptedIOException {
+        long start = System.nanoTime();
+        long delay = this.bucket.delay(start);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while pacing");
+            }
+        }
+        this.bucket.take(bytes, System.nanoTime());
+        this.scheduler.acquire(this, bytes);
+        long throttled = System.nanoTime() - start;
+        this.stats.addSent(bytes, throttled);
+        this.scheduler.addSent(this.priority, bytes, throttled);
+    }
+
+    /**
+     * Called after the body of a response has been sent.
+     */
+    public void end() {
+        this.stats.addSendTime(System.nanoTime() - this.begin);
+    }
+}
@@ -0,0 +1,95 @@
+package org.protocols.http.pacing;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+/**
+ * Token bucket that may go into debt: bytes are taken as soon as the bucket
+ * is not empty, and the next sender waits until the debt is paid back. Not
+ * thread safe.
+ */
+final class TokenBucket {
+
+    private long rate;
+
+    private long burst;
+
+    private double tokens;
+
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param rate
+     *            bytes per second, 0 for unlimited.
+     * @param burst
+     *            bytes that can be sent at once after a pause.
+     */
+    void setRate(long rate, long burst) {
+        if (rate != this.rate || burst != this.burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = Math.min(this.tokens, burst);
+        }
+    }
+
+    long getRate() {
+        return this.rate;
+    }
+
+    /**
+     * @return nanoseconds until bytes can be taken, 0 if they can be taken
+     *         right away.
+     */
+    long delay(long now) {
+        if (this.rate <= 0) {
+            return 0;
+        }
+        refill(now);
+        return this.tokens >= 0 ? 0 : (long) (-this.tokens * 1000000000d / this.rate);
+    }
+
+    void take(long bytes, long now) {
+        if (this.rate > 0) {
+            refill(now);
+            this.tokens -= bytes;
+        }
+    }
+
+    private void refill(long now) {
+        long elapsed = now - this.lastRefill;
+        if (elapsed > 0) {
+            this.tokens = Math.min(this.burst, this.tokens + elapsed * (double) this.rate / 1000000000d);
+            this.lastRefill = now;
+        }
+    }
+}
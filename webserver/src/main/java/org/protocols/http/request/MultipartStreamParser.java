@@ -0,0 +1,420 @@
+package org.protocols.http.request;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import org.protocols.http.HTTPSession;
+import org.protocols.http.NanoHTTPD;
+import org.protocols.http.NanoHTTPD.ResponseException;
+import org.protocols.http.content.ContentType;
+import org.protocols.http.response.Status;
+import org.protocols.http.tempfiles.ITempFile;
+import org.protocols.http.tempfiles.ITempFileManager;
+
+/**
+ * Single pass parser for <code>multipart/form-data</code> request bodies.
+ * <p/>
+ * <p>
+ * The body is read once through a fixed size rolling buffer. Part
+ * delimiters are located with a Boyer-Moore-Horspool search, and the data of
+ * each part is passed on as soon as it is known not to belong to a
+ * delimiter: file parts go straight into their temp file, form fields into a
+ * (small) byte array. The body is never held in memory or spooled to disk
+ * as a whole.
+ * </p>
+ */
+public class MultipartStreamParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ITempFileManager tempFileManager;
+
+    private final String encoding;
+
+    private final Charset charset;
+
+    /**
+     * <code>CRLF--boundary</code>, the sequence that ends every part.
+     */
+    private final byte[] delimiter;
+
+    private final int[] skipTable = new int[256];
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private InputStream inputStream;
+
+    private long remaining;
+
+    private int position;
+
+    private int limit;
+
+    public MultipartStreamParser(ITempFileManager tempFileManager, ContentType contentType) throws ResponseException {
+        String boundary = contentType.getBoundary();
+        if (boundary == null) {
+            throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
+        }
+        this.tempFileManager = tempFileManager;
+        this.encoding = contentType.getEncoding();
+        this.charset = Charset.forName(this.encoding);
+        this.delimiter = ("\r\n--" + boundary).getBytes(this.charset);
+        if (this.delimiter.length > BUFFER_SIZE / 4) {
+            throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: multipart boundary too long.");
+        }
+        int last = this.delimiter.length - 1;
+        for (int i = 0; i < this.skipTable.length; i++) {
+            this.skipTable[i] = this.delimiter.length;
+        }
+        for (int i = 0; i < last; i++) {
+            this.skipTable[this.delimiter[i] & 0xff] = last - i;
+        }
+    }
+
+    /**
+     * Reads the body and puts form fields into <code>parms</code> and the
+     * temp file paths of file parts into <code>files</code>.
+     *
+     * @param inputStream
+     *            the request stream, positioned at the start of the body.
+     * @param size
+     *            length of the body, no more bytes are read from the stream.
+     */
+    public void parse(InputStream inputStream, long size, Map<String, List<String>> parms, Map<String, String> files) throws IOException, ResponseException {
+        this.inputStream = inputStream;
+        this.remaining = size;
+        // A virtual line break in front of the body lets the first boundary
+        // match the delimiter like all the others.
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.position = 0;
+        this.limit = 2;
+
+        int boundaries = 0;
+        int pcount = 0;
+        // the preamble is ignored
+        if (copyToDelimiter(null)) {
+            boundaries++;
+            while (require(2) && !(this.buffer[this.position] == '-' && this.buffer[this.position + 1] == '-')) {
+                if (!skipLine()) {
+                    break;
+                }
+                int headerEnd = findPartHeaderEnd();
+                if (headerEnd < 0) {
+                    break;
+                }
+                String partHeader = new String(this.buffer, this.position, headerEnd - this.position, this.charset);
+                this.position = headerEnd;
+
+                String partName = null, fileName = null, partContentType = null;
+                for (String mpline : partHeader.split("\r?\n")) {
+                    Matcher matcher = NanoHTTPD.CONTENT_DISPOSITION_PATTERN.matcher(mpline);
+                    if (matcher.matches()) {
+                        String attributeString = matcher.group(2);
+                        matcher = NanoHTTPD.CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(attributeString);
+                        while (matcher.find()) {
+                            String key = matcher.group(1);
+                            if ("name".equalsIgnoreCase(key)) {
+                                partName = matcher.group(2);
+                            } else if ("filename".equalsIgnoreCase(key)) {
+                                fileName = matcher.group(2);
+                                // add these two line to support multiple
+                                // files uploaded using the same field Id
+                                if (!fileName.isEmpty()) {
+                                    if (pcount > 0)
+                                        partName = partName + String.valueOf(pcount++);
+                                    else
+                                        pcount++;
+                                }
+                            }
+                        }
+                    }
+                    matcher = NanoHTTPD.CONTENT_TYPE_PATTERN.matcher(mpline);
+                    if (matcher.matches()) {
+                        partContentType = matcher.group(2).trim();
+                    }
+                }
+
+                if (partContentType == null) {
+                    // Read the part into a string
+                    ByteArrayOutputStream value = new ByteArrayOutputStream();
+                    if (!copyToDelimiter(value)) {
+                        break;
+                    }
+                    boundaries++;
+                    values(parms, partName).add(new String(value.toByteArray(), this.encoding));
+                } else {
+                    // Stream it into a file
+                    TempFileOutputStream file = new TempFileOutputStream(fileName);
+                    boolean complete;
+                    try {
+                        complete = copyToDelimiter(file);
+                    } finally {
+                        NanoHTTPD.safeClose(file);
+                    }
+                    if (!complete) {
+                        break;
+                    }
+                    boundaries++;
+                    String path = file.getPath();
+                    if (!files.containsKey(partName)) {
+                        files.put(partName, path);
+                    } else {
+                        int count = 2;
+                        while (files.containsKey(partName + count)) {
+                            count++;
+                        }
+                        files.put(partName + count, path);
+                    }
+                    values(parms, partName).add(fileName);
+                }
+            }
+        }
+        if (boundaries < 2) {
+            throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but contains less than two boundary strings.");
+        }
+        // anything after the closing delimiter is ignored as well
+        while (this.remaining > 0) {
+            long skipped = this.inputStream.skip(this.remaining);
+            if (skipped <= 0) {
+                break;
+            }
+            this.remaining -= skipped;
+        }
+    }
+
+    private static List<String> values(Map<String, List<String>> parms, String partName) {
+        List<String> values = parms.get(partName);
+        if (values == null) {
+            values = new ArrayList<String>();
+            parms.put(partName, values);
+        }
+        return values;
+    }
+
+    /**
+     * Passes the bytes up to the next delimiter to <code>out</code> (if not
+     * null) and moves behind the delimiter.
+     *
+     * @return false if the body ended before a delimiter was found.
+     */
+    private boolean copyToDelimiter(OutputStream out) throws IOException {
+        while (true) {
+            int match = indexOfDelimiter(this.position, this.limit);
+            if (match >= 0) {
+                write(out, match);
+                this.position = match + this.delimiter.length;
+                return true;
+            }
+            // the tail might be the start of a delimiter, keep it
+            int safe = this.limit - (this.delimiter.length - 1);
+            if (safe > this.position) {
+                write(out, safe);
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    private void write(OutputStream out, int end) throws IOException {
+        if (out != null && end > this.position) {
+            out.write(this.buffer, this.position, end - this.position);
+        }
+        this.position = end;
+    }
+
+    /**
+     * Boyer-Moore-Horspool search for the delimiter in
+     * <code>buffer[from, to)</code>.
+     */
+    private int indexOfDelimiter(int from, int to) {
+        byte[] buf = this.buffer;
+        byte[] pattern = this.delimiter;
+        int last = pattern.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (buf[i + j] == pattern[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += this.skipTable[buf[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * Skips the rest of the boundary line (transport padding and line break).
+     */
+    private boolean skipLine() throws IOException, ResponseException {
+        while (true) {
+            for (int i = this.position; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    this.position = i + 1;
+                    return true;
+                }
+            }
+            checkPartHeaderSize();
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return the buffer index right after the empty line that ends the part
+     *         header, -1 if the body ended before.
+     */
+    private int findPartHeaderEnd() throws IOException, ResponseException {
+        while (true) {
+            int lineStart = this.position;
+            for (int i = this.position; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    if (i == lineStart || i == lineStart + 1 && this.buffer[lineStart] == '\r') {
+                        return i + 1;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            checkPartHeaderSize();
+            if (!fill()) {
+                return -1;
+            }
+        }
+    }
+
+    private void checkPartHeaderSize() throws ResponseException {
+        if (this.limit - this.position >= HTTPSession.MAX_HEADER_SIZE) {
+            throw new ResponseException(Status.INTERNAL_ERROR, "Multipart header size exceeds MAX_HEADER_SIZE.");
+        }
+    }
+
+    private boolean require(int count) throws IOException {
+        while (this.limit - this.position < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer and reads more of the
+     * body behind them.
+     *
+     * @return false if the body is exhausted.
+     */
+    private boolean fill() throws IOException {
+        if (this.position > 0) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.position = 0;
+        }
+        if (this.remaining <= 0 || this.limit == this.buffer.length) {
+            return false;
+        }
+        int read = this.inputStream.read(this.buffer, this.limit, (int) Math.min(this.buffer.length - this.limit, this.remaining));
+        if (read <= 0) {
+            this.remaining = 0;
+            return false;
+        }
+        this.limit += read;
+        this.remaining -= read;
+        return true;
+    }
+
+    /**
+     * Output stream into a temp file that is only created when the first byte
+     * arrives, so empty file parts keep an empty path.
+     */
+    private final class TempFileOutputStream extends OutputStream {
+
+        private final String fileNameHint;
+
+        private String path = "";
+
+        private FileOutputStream out;
+
+        TempFileOutputStream(String fileNameHint) {
+            this.fileNameHint = fileNameHint;
+        }
+
+        String getPath() {
+            return this.path;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{
+                (byte) b
+            }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.out == null) {
+                try {
+                    ITempFile tempFile = MultipartStreamParser.this.tempFileManager.createTempFile(this.fileNameHint);
+                    this.out = new FileOutputStream(tempFile.getName());
+                    this.path = tempFile.getName();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            this.out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.out != null) {
+                this.out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.protocols.http.request;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body of one request, read from the connection stream without reading
+ * past its end.
+ * <p/>
+ * <p>
+ * The body is delimited either by a <code>Content-Length</code> or by the
+ * chunked transfer coding, which is decoded here. Whatever the handler leaves
+ * unread is skipped with {@link #drain(long)} before the next request head is
+ * parsed. Closing this stream does not close the connection.
+ * </p>
+ */
+public class RequestBodyInputStream extends InputStream {
+
+    /**
+     * Longest chunk size or trailer line accepted.
+     */
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final InputStream in;
+
+    private final boolean chunked;
+
+    /**
+     * Bytes left in the body, or in the current chunk if chunked.
+     */
+    private long remaining;
+
+    private boolean finished;
+
+    private long bytesRead;
+
+    private final byte[] skipBuffer = new byte[1];
+
+    /**
+     * A body of <code>length</code> bytes.
+     */
+    public RequestBodyInputStream(InputStream in, long length) {
+        this.in = in;
+        this.chunked = false;
+        this.remaining = length;
+        this.finished = length <= 0;
+    }
+
+    private RequestBodyInputStream(InputStream in) {
+        this.in = in;
+        this.chunked = true;
+    }
+
+    /**
+     * A body in the chunked transfer coding.
+     */
+    public static RequestBodyInputStream chunked(InputStream in) {
+        return new RequestBodyInputStream(in);
+    }
+
+    public boolean isChunked() {
+        return this.chunked;
+    }
+
+    /**
+     * @return true once the whole body has been read.
+     */
+    public boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * @return number of body bytes read so far, after chunk decoding.
+     */
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(this.skipBuffer, 0, 1);
+        return read <= 0 ? -1 : this.skipBuffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (this.chunked && this.remaining == 0 && !this.finished) {
+            nextChunk();
+        }
+        if (this.finished) {
+            return -1;
+        }
+        int read = this.in.read(b, off, (int) Math.min(len, this.remaining));
+        if (read < 0) {
+            throw new IOException("connection closed with " + this.remaining + " bytes of the request body outstanding");
+        }
+        this.remaining -= read;
+        this.bytesRead += read;
+        if (this.remaining == 0 && !this.chunked) {
+            this.finished = true;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (this.chunked && this.remaining == 0 && !this.finished) {
+            nextChunk();
+        }
+        if (this.finished) {
+            return 0;
+        }
+        long skipped = this.in.skip(Math.min(n, this.remaining));
+        if (skipped <= 0) {
+            // some streams only skip what is buffered, force a read
+            return read() < 0 ? 0 : 1;
+        }
+        this.remaining -= skipped;
+        this.bytesRead += skipped;
+        if (this.remaining == 0 && !this.chunked) {
+            this.finished = true;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (this.finished) {
+            return 0;
+        }
+        return (int) Math.min(this.in.available(), this.remaining);
+    }
+
+    /**
+     * Skips the rest of the body, but no more than <code>limit</code> bytes.
+     *
+     * @return true if the body has been consumed completely, false if it is
+     *         longer than the limit and the connection cannot be reused.
+     */
+    public boolean drain(long limit) throws IOException {
+        long start = this.bytesRead;
+        while (!this.finished) {
+            long left = limit - (this.bytesRead - start);
+            if (left <= 0 || !this.chunked && this.remaining > left) {
+                return false;
+            }
+            if (skip(left) <= 0 && !this.finished) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Does not close the connection, the body stays readable for
+     * {@link #drain(long)}.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Reads the size line of the next chunk, and the trailer after the last
+     * one.
+     */
+    private void nextChunk() throws IOException {
+        if (this.bytesRead > 0) {
+            // CRLF closing the previous chunk
+            if (readLine().length() != 0) {
+                throw new IOException("chunk not terminated by CRLF");
+            }
+        }
+        String line = readLine();
+        int extension = line.indexOf(';');
+        if (extension >= 0) {
+            line = line.substring(0, extension);
+        }
+        long size;
+        try {
+            size = Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid chunk size: " + line);
+        }
+        if (size < 0) {
+            throw new IOException("invalid chunk size: " + line);
+        }
+        if (size == 0) {
+            // trailer fields are not used, skip up to the empty line
+            while (readLine().length() != 0) {
+                // skip
+            }
+            this.finished = true;
+        }
+        this.remaining = size;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = this.in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("connection closed within a chunked request body");
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("chunk header line too long");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
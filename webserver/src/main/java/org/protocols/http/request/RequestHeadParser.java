@@ -0,0 +1,381 @@
+package org.protocols.http.request;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.protocols.http.NanoHTTPD;
+import org.protocols.http.NanoHTTPD.ResponseException;
+import org.protocols.http.response.Status;
+
+/**
+ * Parser for the head (request line and header fields) of an HTTP request.
+ * <p/>
+ * <p>
+ * The head is scanned once, directly on the bytes read from the socket.
+ * Header names are lower cased while scanning, and the well known ones are
+ * mapped to shared constants instead of new strings. One parser is meant to
+ * be kept per connection: its read buffer is reused for every request on
+ * that connection.
+ * </p>
+ */
+public class RequestHeadParser {
+
+    public static final String RANGE = "range";
+
+    public static final String CONNECTION = "connection";
+
+    public static final String ACCEPT_ENCODING = "accept-encoding";
+
+    public static final String IF_NONE_MATCH = "if-none-match";
+
+    public static final String IF_RANGE = "if-range";
+
+    public static final String CONTENT_LENGTH = "content-length";
+
+    public static final String COOKIE = "cookie";
+
+    public static final String CONTENT_TYPE = "content-type";
+
+    public static final String TRANSFER_ENCODING = "transfer-encoding";
+
+    public static final String HOST = "host";
+
+    public static final String USER_AGENT = "user-agent";
+
+    public static final String ACCEPT = "accept";
+
+    private static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final String HTTP_1_0 = "HTTP/1.0";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] HTTP_1_1_BYTES = HTTP_1_1.getBytes(UTF_8);
+
+    private static final byte[] HTTP_1_0_BYTES = HTTP_1_0.getBytes(UTF_8);
+
+    private static final String[] KNOWN_NAMES = {
+        RANGE,
+        CONNECTION,
+        ACCEPT_ENCODING,
+        IF_NONE_MATCH,
+        IF_RANGE,
+        CONTENT_LENGTH,
+        COOKIE,
+        CONTENT_TYPE,
+        TRANSFER_ENCODING,
+        HOST,
+        USER_AGENT,
+        ACCEPT
+    };
+
+    private static final byte[][] KNOWN_NAME_BYTES = toBytes(KNOWN_NAMES);
+
+    private static final Method[] METHODS = Method.values();
+
+    private static final byte[][] METHOD_BYTES;
+
+    static {
+        String[] names = new String[METHODS.length];
+        for (int i = 0; i < METHODS.length; i++) {
+            names[i] = METHODS[i].name();
+        }
+        METHOD_BYTES = toBytes(names);
+    }
+
+    private static final byte[] CLOSE = {
+        'c',
+        'l',
+        'o',
+        's',
+        'e'
+    };
+
+    private final byte[] buffer;
+
+    private Method method;
+
+    private String methodName;
+
+    private String uri;
+
+    private String protocolVersion;
+
+    private boolean connectionClose;
+
+    public RequestHeadParser(int bufferSize) {
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * @return the buffer the request head has to be read into before calling
+     *         {@link #parse(int, Map)}.
+     */
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * Parses the request head stored in the first <code>length</code> bytes of
+     * the buffer. Header names are put into <code>headers</code> in lower
+     * case.
+     */
+    public void parse(int length, Map<String, String> headers) throws ResponseException {
+        this.method = null;
+        this.methodName = null;
+        this.uri = null;
+        this.protocolVersion = null;
+        this.connectionClose = false;
+
+        byte[] buf = this.buffer;
+        int end = Math.min(length, buf.length);
+        int lineEnd = lineEnd(buf, 0, end);
+        int pos = skipWhitespace(buf, 0, lineEnd);
+        if (pos >= lineEnd) {
+            // no request line at all
+            return;
+        }
+
+        // request line: method
+        int tokenEnd = tokenEnd(buf, pos, lineEnd);
+        this.method = lookupMethod(buf, pos, tokenEnd - pos);
+        this.methodName = this.method != null ? this.method.name() : ascii(buf, pos, tokenEnd - pos);
+
+        // request line: uri
+        pos = skipWhitespace(buf, tokenEnd, lineEnd);
+        if (pos >= lineEnd) {
+            throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+        }
+        tokenEnd = tokenEnd(buf, pos, lineEnd);
+        this.uri = string(buf, pos, tokenEnd - pos);
+
+        // request line: protocol version
+        pos = skipWhitespace(buf, tokenEnd, lineEnd);
+        if (pos < lineEnd) {
+            tokenEnd = tokenEnd(buf, pos, lineEnd);
+            this.protocolVersion = protocolVersion(buf, pos, tokenEnd - pos);
+        } else {
+            this.protocolVersion = HTTP_1_1;
+            NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
+        }
+
+        // header fields, up to the first empty line
+        pos = lineEnd + 1;
+        while (pos < end) {
+            lineEnd = lineEnd(buf, pos, end);
+            int contentEnd = trimEnd(buf, pos, lineEnd);
+            if (skipWhitespace(buf, pos, contentEnd) >= contentEnd) {
+                break;
+            }
+            int colon = indexOf(buf, pos, contentEnd, (byte) ':');
+            if (colon >= 0) {
+                int nameStart = skipWhitespace(buf, pos, colon);
+                int nameEnd = trimEnd(buf, nameStart, colon);
+                int valueStart = skipWhitespace(buf, colon + 1, contentEnd);
+                String name = headerName(buf, nameStart, nameEnd - nameStart);
+                if (name == CONNECTION) {
+                    this.connectionClose = containsIgnoreCase(buf, valueStart, contentEnd, CLOSE);
+                }
+                headers.put(name, string(buf, valueStart, contentEnd - valueStart));
+            }
+            pos = lineEnd + 1;
+        }
+    }
+
+    /**
+     * @return the request method, null if unknown or missing.
+     */
+    public Method getMethod() {
+        return this.method;
+    }
+
+    /**
+     * @return the method token as sent by the client.
+     */
+    public String getMethodName() {
+        return this.methodName;
+    }
+
+    /**
+     * @return the request target as sent, still percent encoded.
+     */
+    public String getUri() {
+        return this.uri;
+    }
+
+    public String getProtocolVersion() {
+        return this.protocolVersion;
+    }
+
+    /**
+     * @return true if the <code>Connection</code> header asks to close the
+     *         connection.
+     */
+    public boolean isConnectionClose() {
+        return this.connectionClose;
+    }
+
+    private static Method lookupMethod(byte[] buf, int offset, int length) {
+        for (int i = 0; i < METHOD_BYTES.length; i++) {
+            if (equals(METHOD_BYTES[i], buf, offset, length, false)) {
+                return METHODS[i];
+            }
+        }
+        return null;
+    }
+
+    private static String protocolVersion(byte[] buf, int offset, int length) {
+        if (length == HTTP_1_1.length()) {
+            if (equals(HTTP_1_1_BYTES, buf, offset, length, false)) {
+                return HTTP_1_1;
+            }
+            if (equals(HTTP_1_0_BYTES, buf, offset, length, false)) {
+                return HTTP_1_0;
+            }
+        }
+        return ascii(buf, offset, length);
+    }
+
+    private static String headerName(byte[] buf, int offset, int length) {
+        for (int i = 0; i < KNOWN_NAME_BYTES.length; i++) {
+            if (equals(KNOWN_NAME_BYTES[i], buf, offset, length, true)) {
+                return KNOWN_NAMES[i];
+            }
+        }
+        return string(buf, offset, length).toLowerCase(Locale.US);
+    }
+
+    private static boolean equals(byte[] expected, byte[] buf, int offset, int length, boolean ignoreCase) {
+        if (expected.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buf[offset + i];
+            if (ignoreCase) {
+                b = toLowerCase(b);
+            }
+            if (b != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsIgnoreCase(byte[] buf, int from, int to, byte[] lowerCaseNeedle) {
+        int last = to - lowerCaseNeedle.length;
+        for (int i = from; i <= last; i++) {
+            int j = 0;
+            while (j < lowerCaseNeedle.length && toLowerCase(buf[i + j]) == lowerCaseNeedle[j]) {
+                j++;
+            }
+            if (j == lowerCaseNeedle.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private static int lineEnd(byte[] buf, int from, int to) {
+        int i = indexOf(buf, from, to, (byte) '\n');
+        return i < 0 ? to : i;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] buf, int from, int to) {
+        while (from < to && isWhitespace(buf[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int tokenEnd(byte[] buf, int from, int to) {
+        while (from < to && !isWhitespace(buf[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] buf, int from, int to) {
+        while (to > from && isWhitespace(buf[to - 1])) {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * Decodes the bytes as UTF-8, skipping the charset decoder in the usual
+     * all ASCII case.
+     */
+    private static String string(byte[] buf, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buf[i] < 0) {
+                return new String(buf, offset, length, UTF_8);
+            }
+        }
+        return ascii(buf, offset, length);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String ascii(byte[] buf, int offset, int length) {
+        return new String(buf, 0, offset, length);
+    }
+
+    private static byte[][] toBytes(String[] strings) {
+        byte[][] result = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            result[i] = strings[i].getBytes(UTF_8);
+        }
+        return result;
+    }
+}
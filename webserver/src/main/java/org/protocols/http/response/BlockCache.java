@@ -0,0 +1,605 @@
+package org.protocols.http.response;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * Process wide cache of file blocks, shared by all responses that read the
+ * same file.
+ * <p/>
+ * <p>
+ * Files are read in blocks of <code>blockSize</code> bytes into fixed size
+ * frames of direct (off-heap) memory, allocated in slabs as the cache fills
+ * up. A block is identified by the file (path, modification time and
+ * length) and its index, so two clients playing the same file, or one client
+ * seeking back and forth, read it from the disk once. Frames are reused with
+ * the CLOCK algorithm, frames in use by a reader are never evicted.
+ * </p>
+ * <p>
+ * A reader that reads consecutive blocks is considered sequential; for it
+ * the next <code>prefetchBlocks</code> blocks are loaded ahead on a
+ * background thread.
+ * </p>
+ */
+public class BlockCache {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    public static final long DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+    public static final int DEFAULT_PREFETCH_BLOCKS = 4;
+
+    /**
+     * Direct memory is allocated in chunks of this size.
+     */
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private static final int PREFETCH_THREADS = 2;
+
+    private static final int PREFETCH_QUEUE_SIZE = 256;
+
+    /**
+     * How long {@link #shutdown()} waits for running prefetches.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    private static final class BlockKey {
+
+        private final String file;
+
+        private final long index;
+
+        BlockKey(String file, long index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) obj;
+            return this.index == other.index && this.file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.file.hashCode() * 31 + (int) (this.index ^ this.index >>> 32);
+        }
+    }
+
+    /**
+     * One block of memory. All fields are guarded by the cache lock; the
+     * content is only touched while the frame is pinned.
+     */
+    private static final class Frame {
+
+        private ByteBuffer buffer;
+
+        private BlockKey key;
+
+        private int length;
+
+        private int pins;
+
+        private boolean referenced;
+
+        private boolean prefetched;
+    }
+
+    private final Object lock = new Object();
+
+    private final Map<BlockKey, Frame> index = new HashMap<BlockKey, Frame>();
+
+    private final Set<BlockKey> prefetching = new HashSet<BlockKey>();
+
+    private final Frame[] frames;
+
+    private final int blockSize;
+
+    private final int prefetchBlocks;
+
+    private final ThreadPoolExecutor prefetcher;
+
+    private int hand;
+
+    /**
+     * Set by {@link #shutdown()}, guarded by the lock. Readers still open
+     * read around the cache afterwards.
+     */
+    private boolean closed;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong bytesFromDisk = new AtomicLong();
+
+    private final AtomicLong prefetchCount = new AtomicLong();
+
+    private final AtomicLong prefetchHits = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public BlockCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_BLOCK_SIZE, DEFAULT_PREFETCH_BLOCKS);
+    }
+
+    /**
+     * @param capacity
+     *            bytes of direct memory used at most.
+     * @param blockSize
+     *            bytes per block.
+     * @param prefetchBlocks
+     *            blocks read ahead for sequential readers, 0 disables
+     *            prefetching.
+     */
+    public BlockCache(long capacity, int blockSize, int prefetchBlocks) {
+        if (blockSize <= 0 || capacity < blockSize) {
+            throw new IllegalArgumentException("invalid block cache size " + capacity + "/" + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.prefetchBlocks = Math.max(0, prefetchBlocks);
+        this.frames = new Frame[(int) Math.min(capacity / blockSize, Integer.MAX_VALUE)];
+        for (int i = 0; i < this.frames.length; i++) {
+            this.frames[i] = new Frame();
+        }
+        this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE),
+                new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NanoHttpd Block Prefetch #" + this.count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.prefetcher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts reading a file through the cache.
+     *
+     * @param file
+     *            the file, used to identify its blocks.
+     * @param channel
+     *            an open channel of the file, owned by the caller.
+     */
+    public Reader open(File file, FileChannel channel) throws IOException {
+        long size = channel.size();
+        return new Reader(file.getAbsolutePath() + ':' + file.lastModified() + ':' + size, channel, size);
+    }
+
+    /**
+     * Reads one file through the cache. Not thread safe, each stream uses
+     * its own reader.
+     */
+    public final class Reader {
+
+        private final String fileKey;
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        private long lastBlock = -1;
+
+        private int run;
+
+        private long prefetchedUpTo = -1;
+
+        Reader(String fileKey, FileChannel channel, long size) {
+            this.fileKey = fileKey;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        /**
+         * Copies bytes starting at <code>position</code>, at most up to the
+         * end of the block they are in.
+         *
+         * @return the number of bytes copied, -1 at the end of the file.
+         */
+        public int read(long position, byte[] b, int off, int len) throws IOException {
+            if (position >= this.size) {
+                return -1;
+            }
+            long block = position / BlockCache.this.blockSize;
+            int offset = (int) (position % BlockCache.this.blockSize);
+            Frame frame = pin(this, block, false, access(block));
+            if (frame == null) {
+                // every frame is in use, read around the cache
+                int read = this.channel.read(ByteBuffer.wrap(b, off, Math.min(len, BlockCache.this.blockSize - offset)), position);
+                if (read > 0) {
+                    BlockCache.this.bytesFromDisk.addAndGet(read);
+                }
+                return read;
+            }
+            try {
+                int count = Math.min(len, frame.length - offset);
+                if (count <= 0) {
+                    return -1;
+                }
+                ByteBuffer view = frame.buffer.duplicate();
+                view.position(offset);
+                view.get(b, off, count);
+                return count;
+            } finally {
+                unpin(frame);
+            }
+        }
+
+        /**
+         * Writes bytes starting at <code>position</code> to the target
+         * channel, at most <code>max</code> bytes and up to the end of the
+         * block they are in.
+         *
+         * @return the number of bytes written, -1 at the end of the file.
+         */
+        public long transferTo(long position, long max, WritableByteChannel target) throws IOException {
+            if (position >= this.size) {
+                return -1;
+            }
+            long block = position / BlockCache.this.blockSize;
+            int offset = (int) (position % BlockCache.this.blockSize);
+            Frame frame = pin(this, block, false, access(block));
+            if (frame == null) {
+                long count = this.channel.transferTo(position, Math.min(max, BlockCache.this.blockSize - offset), target);
+                BlockCache.this.bytesFromDisk.addAndGet(count);
+                return count;
+            }
+            try {
+                int count = (int) Math.min(max, frame.length - offset);
+                if (count <= 0) {
+                    return -1;
+                }
+                ByteBuffer view = frame.buffer.duplicate();
+                view.limit(offset + count).position(offset);
+                while (view.hasRemaining()) {
+                    if (target.write(view) <= 0) {
+                        break;
+                    }
+                }
+                return count - view.remaining();
+            } finally {
+                unpin(frame);
+            }
+        }
+
+        /**
+         * Sequential access detection: the second consecutive block read
+         * starts prefetching ahead.
+         *
+         * @return false if the reader is still in the block it read last,
+         *         such reads are not counted as hits or misses again.
+         */
+        private boolean access(long block) {
+            if (block == this.lastBlock) {
+                return false;
+            }
+            if (block == this.lastBlock + 1) {
+                this.run++;
+            } else {
+                this.run = 0;
+                this.prefetchedUpTo = block;
+            }
+            this.lastBlock = block;
+            if (this.run == 0 || BlockCache.this.prefetchBlocks == 0) {
+                return true;
+            }
+            long last = Math.min(block + BlockCache.this.prefetchBlocks, (this.size - 1) / BlockCache.this.blockSize);
+            for (long next = Math.max(block + 1, this.prefetchedUpTo + 1); next <= last; next++) {
+                prefetch(this, next);
+            }
+            this.prefetchedUpTo = Math.max(this.prefetchedUpTo, last);
+            return true;
+        }
+    }
+
+    /**
+     * Finds or loads a block and pins its frame.
+     *
+     * @param counted
+     *            whether the access counts as a hit or miss, true once per
+     *            block a reader moves to.
+     * @return the pinned frame, or null if no frame is free or the cache is
+     *         shut down.
+     */
+    private Frame pin(Reader reader, long block, boolean prefetch, boolean counted) throws IOException {
+        BlockKey key = new BlockKey(reader.fileKey, block);
+        Frame frame;
+        synchronized (this.lock) {
+            if (this.closed) {
+                return null;
+            }
+            frame = this.index.get(key);
+            if (frame != null) {
+                frame.pins++;
+                if (!prefetch) {
+                    frame.referenced = true;
+                    if (counted) {
+                        this.hits.incrementAndGet();
+                    }
+                    if (frame.prefetched) {
+                        frame.prefetched = false;
+                        this.prefetchHits.incrementAndGet();
+                    }
+                }
+                return frame;
+            }
+            if (!prefetch && counted) {
+                this.misses.incrementAndGet();
+            }
+            frame = allocate();
+            if (frame == null) {
+                return null;
+            }
+        }
+        try {
+            load(reader, block, frame);
+        } catch (IOException e) {
+            unpin(frame);
+            throw e;
+        }
+        synchronized (this.lock) {
+            // a concurrent miss may have loaded the block already, then this
+            // copy is used once and the frame stays free
+            if (!this.closed && !this.index.containsKey(key)) {
+                frame.key = key;
+                frame.referenced = !prefetch;
+                frame.prefetched = prefetch;
+                this.index.put(key, frame);
+                if (prefetch) {
+                    this.prefetchCount.incrementAndGet();
+                }
+            }
+        }
+        return frame;
+    }
+
+    private void load(Reader reader, long block, Frame frame) throws IOException {
+        long start = block * this.blockSize;
+        ByteBuffer buffer = frame.buffer.duplicate();
+        buffer.clear();
+        buffer.limit((int) Math.max(0, Math.min(this.blockSize, reader.size - start)));
+        while (buffer.hasRemaining()) {
+            int read = reader.channel.read(buffer, start + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        frame.length = buffer.position();
+        this.bytesFromDisk.addAndGet(frame.length);
+    }
+
+    private void unpin(Frame frame) {
+        synchronized (this.lock) {
+            frame.pins--;
+        }
+    }
+
+    /**
+     * Picks a frame with the CLOCK algorithm and pins it. Must hold the
+     * lock.
+     */
+    private Frame allocate() {
+        for (int sweep = 0; sweep < this.frames.length * 2; sweep++) {
+            Frame frame = this.frames[this.hand];
+            int current = this.hand;
+            this.hand = (this.hand + 1) % this.frames.length;
+            if (frame.pins > 0) {
+                continue;
+            }
+            if (frame.key != null) {
+                if (frame.referenced) {
+                    // second chance
+                    frame.referenced = false;
+                    continue;
+                }
+                this.index.remove(frame.key);
+                frame.key = null;
+                this.evictions.incrementAndGet();
+            }
+            if (frame.buffer == null) {
+                allocateSlab(current);
+            }
+            frame.pins = 1;
+            frame.prefetched = false;
+            return frame;
+        }
+        return null;
+    }
+
+    /**
+     * Allocates direct memory for the frames of the slab that contains
+     * <code>frameIndex</code>.
+     */
+    private void allocateSlab(int frameIndex) {
+        int framesPerSlab = Math.max(1, SLAB_SIZE / this.blockSize);
+        int first = frameIndex / framesPerSlab * framesPerSlab;
+        int count = Math.min(framesPerSlab, this.frames.length - first);
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * this.blockSize);
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * this.blockSize).position(i * this.blockSize);
+            this.frames[first + i].buffer = slab.slice();
+        }
+    }
+
+    private void prefetch(final Reader reader, final long block) {
+        final BlockKey key = new BlockKey(reader.fileKey, block);
+        synchronized (this.lock) {
+            if (this.index.containsKey(key) || !this.prefetching.add(key)) {
+                return;
+            }
+        }
+        try {
+            this.prefetcher.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        Frame frame = pin(reader, block, true, false);
+                        if (frame != null) {
+                            unpin(frame);
+                        }
+                    } catch (IOException e) {
+                        // typically the stream has been closed meanwhile
+                        NanoHTTPD.LOG.log(Level.FINE, "prefetch failed", e);
+                    } finally {
+                        synchronized (BlockCache.this.lock) {
+                            BlockCache.this.prefetching.remove(key);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this.lock) {
+                this.prefetching.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Stops prefetching and drops all blocks. Prefetches already running
+     * are waited for rather than interrupted: an interrupt during a read
+     * closes the file channel, which belongs to a response still being
+     * sent. Readers still open read around the cache afterwards, frames they
+     * have pinned are released with them.
+     */
+    public void shutdown() {
+        this.prefetcher.shutdown();
+        try {
+            if (!this.prefetcher.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                NanoHTTPD.LOG.log(Level.WARNING, "block prefetch still running after shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this.lock) {
+            this.closed = true;
+            this.index.clear();
+            for (Frame frame : this.frames) {
+                frame.key = null;
+                if (frame.pins == 0) {
+                    // lets the direct memory of the slab be reclaimed
+                    frame.buffer = null;
+                }
+            }
+        }
+    }
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    /**
+     * @return bytes of memory the cache may use.
+     */
+    public long getCapacity() {
+        return (long) this.frames.length * this.blockSize;
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return share of block reads answered from memory, 0 before the first
+     *         read.
+     */
+    public double getHitRatio() {
+        long hitCount = this.hits.get();
+        long total = hitCount + this.misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return number of blocks loaded ahead of the readers.
+     */
+    public long getPrefetchCount() {
+        return this.prefetchCount.get();
+    }
+
+    /**
+     * @return number of prefetched blocks that were read afterwards.
+     */
+    public long getPrefetchHitCount() {
+        return this.prefetchHits.get();
+    }
+
+    /**
+     * @return share of prefetched blocks that were actually used.
+     */
+    public double getPrefetchAccuracy() {
+        long count = this.prefetchCount.get();
+        return count == 0 ? 0 : (double) this.prefetchHits.get() / count;
+    }
+
+    /**
+     * @return bytes read from the file system, by readers and prefetching.
+     */
+    public long getBytesFromDisk() {
+        return this.bytesFromDisk.get();
+    }
+
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+}
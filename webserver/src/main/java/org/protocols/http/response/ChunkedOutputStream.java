@@ -36,24 +36,96 @@ package org.protocols.http.response;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
 
 /**
  * Output stream that will automatically send every write to the wrapped
  * OutputStream according to chunked transfer:
  * http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.6.1
+ * <p/>
+ * <p>
+ * Writes are collected in a chunk buffer, which leaves room for the chunk
+ * size line in front of the data and the closing CRLF behind it. A full
+ * chunk therefore goes to the wrapped stream in a single write, and no
+ * objects are allocated per chunk. {@link #flush()} sends the buffered data
+ * as a (shorter) chunk right away.
+ * </p>
  */
 public class ChunkedOutputStream extends FilterOutputStream {
 
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] HEX_DIGITS = {
+        '0',
+        '1',
+        '2',
+        '3',
+        '4',
+        '5',
+        '6',
+        '7',
+        '8',
+        '9',
+        'a',
+        'b',
+        'c',
+        'd',
+        'e',
+        'f'
+    };
+
+    /**
+     * Room for the hex size of an int plus CRLF.
+     */
+    private static final int HEADER_RESERVE = 8 + 2;
+
+    private static final byte[] LAST_CHUNK = {
+        '0',
+        '\r',
+        '\n',
+        '\r',
+        '\n'
+    };
+
+    private static final byte[] CRLF = {
+        '\r',
+        '\n'
+    };
+
+    private final byte[] buffer;
+
+    private final int chunkSize;
+
+    private int count;
+
+    private boolean finished;
+
     public ChunkedOutputStream(OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize
+     *            number of data bytes collected before a chunk is sent.
+     */
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
         super(out);
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.buffer = new byte[HEADER_RESERVE + chunkSize + CRLF.length];
     }
 
     @Override
     public void write(int b) throws IOException {
-        byte[] data = {
-            (byte) b
-        };
-        write(data, 0, 1);
+        if (this.count == this.chunkSize) {
+            writeChunk();
+        }
+        this.buffer[HEADER_RESERVE + this.count++] = (byte) b;
     }
 
     @Override
@@ -63,14 +135,78 @@ public class ChunkedOutputStream extends FilterOutputStream {
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        if (len == 0)
-            return;
-        out.write(String.format("%x\r\n", len).getBytes());
-        out.write(b, off, len);
-        out.write("\r\n".getBytes());
+        while (len > 0) {
+            if (this.count == this.chunkSize) {
+                writeChunk();
+            }
+            int copy = Math.min(len, this.chunkSize - this.count);
+            System.arraycopy(b, off, this.buffer, HEADER_RESERVE + this.count, copy);
+            this.count += copy;
+            off += copy;
+            len -= copy;
+        }
+    }
+
+    /**
+     * Sends the buffered data as a chunk and flushes the wrapped stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        out.flush();
     }
 
+    /**
+     * Sends the buffered data and the last (empty) chunk.
+     */
     public void finish() throws IOException {
-        out.write("0\r\n\r\n".getBytes());
+        finish(null);
+    }
+
+    /**
+     * Sends the buffered data, the last (empty) chunk and the given trailer
+     * fields. The trailer names should have been announced in a
+     * <code>Trailer</code> header of the response.
+     */
+    public void finish(Map<String, String> trailers) throws IOException {
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
+        writeChunk();
+        if (trailers == null || trailers.isEmpty()) {
+            out.write(LAST_CHUNK);
+            return;
+        }
+        StringBuilder trailer = new StringBuilder("0\r\n");
+        for (Map.Entry<String, String> field : trailers.entrySet()) {
+            trailer.append(field.getKey()).append(": ").append(field.getValue()).append("\r\n");
+        }
+        trailer.append("\r\n");
+        out.write(trailer.toString().getBytes(US_ASCII));
+    }
+
+    /**
+     * Writes the size line in front of the buffered data and CRLF behind it,
+     * and sends all of it with one write.
+     */
+    private void writeChunk() throws IOException {
+        int length = this.count;
+        if (length == 0) {
+            return;
+        }
+        byte[] buf = this.buffer;
+        int start = HEADER_RESERVE - CRLF.length;
+        buf[start] = '\r';
+        buf[start + 1] = '\n';
+        do {
+            buf[--start] = HEX_DIGITS[length & 0xf];
+            length >>>= 4;
+        } while (length != 0);
+        int end = HEADER_RESERVE + this.count;
+        buf[end] = '\r';
+        buf[end + 1] = '\n';
+        out.write(buf, start, end + CRLF.length - start);
+        this.count = 0;
     }
 }
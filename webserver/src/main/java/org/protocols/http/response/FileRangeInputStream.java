@@ -0,0 +1,215 @@
+package org.protocols.http.response;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Input stream over a byte range of a file, backed by a {@link FileChannel}.
+ * <p/>
+ * <p>
+ * Besides the usual (copying) read methods, the remaining bytes of the range
+ * can be handed to {@link #transferTo(WritableByteChannel, long)}, which lets
+ * the kernel move them straight from the file into a socket channel.
+ * </p>
+ * <p>
+ * Optionally the file is read through a shared {@link BlockCache}.
+ * Subclasses can serve a virtual file that is mapped onto the original one
+ * by overriding {@link #readAt(long, byte[], int, int)} and
+ * {@link #transferAt(long, long, WritableByteChannel)}.
+ * </p>
+ */
+public class FileRangeInputStream extends InputStream {
+
+    private final FileInputStream fileInputStream;
+
+    private final FileChannel channel;
+
+    private final BlockCache.Reader cacheReader;
+
+    private long position;
+
+    private long remaining;
+
+    /**
+     * @param file
+     *            the file to read from.
+     * @param offset
+     *            first byte of the range.
+     * @param length
+     *            number of bytes in the range, clipped to the end of the
+     *            file.
+     */
+    public FileRangeInputStream(File file, long offset, long length) throws IOException {
+        this(file, offset, length, null);
+    }
+
+    /**
+     * @param cache
+     *            block cache to read through, null to read the file
+     *            directly.
+     */
+    public FileRangeInputStream(File file, long offset, long length, BlockCache cache) throws IOException {
+        this.fileInputStream = new FileInputStream(file);
+        this.channel = this.fileInputStream.getChannel();
+        long size = this.channel.size();
+        this.position = Math.max(0, Math.min(offset, size));
+        this.remaining = Math.max(0, Math.min(length, size - this.position));
+        this.cacheReader = cache != null ? cache.open(file, this.channel) : null;
+    }
+
+    /**
+     * @return the number of bytes left in the range.
+     */
+    public long getRemaining() {
+        return this.remaining;
+    }
+
+    public long getPosition() {
+        return this.position;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(this.remaining, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (this.remaining <= 0) {
+            return -1;
+        }
+        int read = readAt(this.position, b, off, (int) Math.min(len, this.remaining));
+        if (read <= 0) {
+            throw truncated();
+        }
+        this.position += read;
+        this.remaining -= read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, this.remaining));
+        this.position += skipped;
+        this.remaining -= skipped;
+        return skipped;
+    }
+
+    /**
+     * Moves up to <code>max</code> of the remaining bytes into the target
+     * channel without copying them through the java heap. With a block cache
+     * the bytes are written from its direct memory.
+     *
+     * @param target
+     *            the channel to write to, typically a socket channel.
+     * @param max
+     *            maximum number of bytes to transfer, -1 for everything.
+     * @return the number of bytes transferred.
+     * @throws IOException
+     *             also if the file ends before the range does.
+     */
+    public long transferTo(WritableByteChannel target, long max) throws IOException {
+        long pending = max < 0 ? this.remaining : Math.min(max, this.remaining);
+        long transferred = 0;
+        while (pending > 0) {
+            long count = transferAt(this.position, pending, target);
+            if (count <= 0) {
+                throw truncated();
+            }
+            this.position += count;
+            this.remaining -= count;
+            pending -= count;
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    /**
+     * Copies bytes of the file, at most <code>len</code>.
+     *
+     * @param position
+     *            position in the file, or in the virtual file of a subclass.
+     * @return the number of bytes copied, 0 or less at the end of the file.
+     */
+    protected int readAt(long position, byte[] b, int off, int len) throws IOException {
+        if (this.cacheReader != null) {
+            return this.cacheReader.read(position, b, off, len);
+        }
+        return this.channel.read(ByteBuffer.wrap(b, off, len), position);
+    }
+
+    /**
+     * Writes bytes of the file to the target channel, at most
+     * <code>max</code>.
+     *
+     * @param position
+     *            position in the file, or in the virtual file of a subclass.
+     * @return the number of bytes written, 0 or less at the end of the file.
+     */
+    protected long transferAt(long position, long max, WritableByteChannel target) throws IOException {
+        if (this.cacheReader != null) {
+            return this.cacheReader.transferTo(position, max, target);
+        }
+        return this.channel.transferTo(position, max, target);
+    }
+
+    /**
+     * The file got shorter than the range since the response head announced
+     * its length. Nothing sensible can follow on the connection.
+     */
+    private IOException truncated() {
+        return new IOException("file truncated, " + this.remaining + " bytes of the range missing at " + this.position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.fileInputStream.close();
+    }
+}
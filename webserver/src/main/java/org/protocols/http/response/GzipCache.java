@@ -0,0 +1,261 @@
+package org.protocols.http.response;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Cache of gzip compressed representations, keyed by path and ETag.
+ * <p/>
+ * <p>
+ * A representation is compressed once, at the configured level, and then
+ * served from memory with a real <code>Content-Length</code> instead of being
+ * compressed again into a chunked response on every request. The cache is
+ * bounded by the total number of compressed bytes and drops the least
+ * recently used entries first. A new ETag for a path replaces the old entry.
+ * </p>
+ */
+public class GzipCache {
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Representations larger than this are not worth keeping in memory.
+     */
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private static final class Entry {
+
+        private final String etag;
+
+        private final byte[] compressed;
+
+        private final long originalLength;
+
+        Entry(String etag, byte[] compressed, long originalLength) {
+            this.etag = etag;
+            this.compressed = compressed;
+            this.originalLength = originalLength;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final long maxBytes;
+
+    private final int maxEntrySize;
+
+    private volatile int level;
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    private final AtomicLong compressNanos = new AtomicLong();
+
+    public GzipCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param maxBytes
+     *            upper bound for the compressed bytes held.
+     * @param maxEntrySize
+     *            largest uncompressed representation that is cached.
+     * @param level
+     *            deflate level, 1 (fastest) to 9 (smallest), or
+     *            {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public GzipCache(long maxBytes, int maxEntrySize, int level) {
+        this.maxBytes = maxBytes;
+        this.maxEntrySize = maxEntrySize;
+        setLevel(level);
+    }
+
+    public void setLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * @return whether a representation of the given length is cached at all.
+     */
+    public boolean isCacheable(long length) {
+        return length >= 0 && length <= this.maxEntrySize;
+    }
+
+    /**
+     * @return the cached compressed bytes, or null if there are none for this
+     *         version of the path.
+     */
+    public byte[] get(String path, String etag) {
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(path);
+        }
+        if (entry == null || !entry.etag.equals(etag)) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        this.bytesSaved.addAndGet(entry.originalLength - entry.compressed.length);
+        return entry.compressed;
+    }
+
+    /**
+     * Compresses <code>data</code> and caches the result under path and ETag.
+     *
+     * @return the compressed bytes.
+     */
+    public byte[] put(String path, String etag, byte[] data) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 32);
+        LevelGZIPOutputStream gzipOutputStream = new LevelGZIPOutputStream(out, this.level);
+        gzipOutputStream.write(data);
+        gzipOutputStream.close();
+        byte[] compressed = out.toByteArray();
+        this.compressNanos.addAndGet(System.nanoTime() - start);
+        this.bytesSaved.addAndGet(data.length - compressed.length);
+        store(path, new Entry(etag, compressed, data.length));
+        return compressed;
+    }
+
+    /**
+     * Reads <code>in</code> completely, then compresses and caches it.
+     */
+    public byte[] put(String path, String etag, InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        return put(path, etag, out.toByteArray());
+    }
+
+    private void store(String path, Entry entry) {
+        if (entry.compressed.length > this.maxBytes) {
+            return;
+        }
+        synchronized (this.entries) {
+            Entry previous = this.entries.put(path, entry);
+            if (previous != null) {
+                this.size -= previous.compressed.length;
+            }
+            this.size += entry.compressed.length;
+            Iterator<Entry> eldest = this.entries.values().iterator();
+            while (this.size > this.maxBytes && eldest.hasNext()) {
+                this.size -= eldest.next().compressed.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    public void invalidate(String path) {
+        synchronized (this.entries) {
+            Entry entry = this.entries.remove(path);
+            if (entry != null) {
+                this.size -= entry.compressed.length;
+            }
+        }
+    }
+
+    /**
+     * @return number of compressed bytes held.
+     */
+    public long getSize() {
+        synchronized (this.entries) {
+            return this.size;
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return bytes not sent thanks to compression, summed over all
+     *         responses served from this cache.
+     */
+    public long getBytesSaved() {
+        return this.bytesSaved.get();
+    }
+
+    /**
+     * @return nanoseconds spent compressing.
+     */
+    public long getCompressNanos() {
+        return this.compressNanos.get();
+    }
+
+    /**
+     * Create a response with already gzip compressed content.
+     */
+    public static Response newGzipResponse(IStatus status, String mimeType, byte[] compressed) {
+        Response response = Response.newFixedLengthResponse(status, mimeType, compressed);
+        response.setUseGzip(false);
+        response.addHeader("Content-Encoding", "gzip");
+        response.addHeader("Content-Length", "" + compressed.length);
+        response.addHeader("Vary", "Accept-Encoding");
+        return response;
+    }
+
+    /**
+     * @return true if the <code>Accept-Encoding</code> header value allows
+     *         gzip.
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+}
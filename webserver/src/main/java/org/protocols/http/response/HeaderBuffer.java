@@ -0,0 +1,178 @@
+package org.protocols.http.response;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reusable buffer a response head is serialised into before it is written
+ * to the socket with a single write.
+ * <p/>
+ * <p>
+ * Each thread owns one buffer, see {@link #get(String)}. Header text is
+ * copied byte by byte while it is plain ASCII, which is the usual case; only
+ * other text is encoded with the charset of the response.
+ * </p>
+ */
+public class HeaderBuffer {
+
+    private static final int INITIAL_SIZE = 1024;
+
+    /**
+     * Buffers grown beyond this size (e.g. by a small body appended to the
+     * head) are not kept for the next response.
+     */
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<HeaderBuffer> BUFFERS = new ThreadLocal<HeaderBuffer>() {
+
+        @Override
+        protected HeaderBuffer initialValue() {
+            return new HeaderBuffer();
+        }
+    };
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+
+    private int count;
+
+    private String encoding;
+
+    /**
+     * @param encoding
+     *            charset for header text that is not plain ASCII.
+     * @return the empty buffer of the current thread.
+     */
+    public static HeaderBuffer get(String encoding) {
+        HeaderBuffer buffer = BUFFERS.get();
+        buffer.reset(encoding);
+        return buffer;
+    }
+
+    private void reset(String encoding) {
+        if (this.buf.length > MAX_RETAINED_SIZE) {
+            this.buf = new byte[INITIAL_SIZE];
+        }
+        this.count = 0;
+        this.encoding = encoding;
+    }
+
+    public HeaderBuffer append(String text) throws UnsupportedEncodingException {
+        int length = text.length();
+        ensureCapacity(length);
+        byte[] bytes = this.buf;
+        int pos = this.count;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                this.count = pos;
+                return append(text.substring(i).getBytes(this.encoding));
+            }
+            bytes[pos++] = (byte) c;
+        }
+        this.count = pos;
+        return this;
+    }
+
+    public HeaderBuffer append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, this.buf, this.count, bytes.length);
+        this.count += bytes.length;
+        return this;
+    }
+
+    public HeaderBuffer append(long value) throws UnsupportedEncodingException {
+        return append(Long.toString(value));
+    }
+
+    /**
+     * Appends a <code>name: value</code> header line.
+     */
+    public HeaderBuffer header(String name, String value) throws UnsupportedEncodingException {
+        append(name);
+        ensureCapacity(2);
+        this.buf[this.count++] = ':';
+        this.buf[this.count++] = ' ';
+        append(value);
+        return crlf();
+    }
+
+    public HeaderBuffer crlf() {
+        ensureCapacity(2);
+        this.buf[this.count++] = '\r';
+        this.buf[this.count++] = '\n';
+        return this;
+    }
+
+    /**
+     * Appends up to <code>length</code> bytes read from <code>in</code>, so a
+     * small body can be sent together with the head.
+     *
+     * @return the number of bytes appended, less than <code>length</code> if
+     *         the stream ended early.
+     */
+    public int append(InputStream in, int length) throws IOException {
+        ensureCapacity(length);
+        int appended = 0;
+        while (appended < length) {
+            int read = in.read(this.buf, this.count, length - appended);
+            if (read <= 0) {
+                break;
+            }
+            this.count += read;
+            appended += read;
+        }
+        return appended;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(this.buf, 0, this.count);
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = this.count + additional;
+        if (required > this.buf.length) {
+            byte[] grown = new byte[Math.max(required, this.buf.length * 2)];
+            System.arraycopy(this.buf, 0, grown, 0, this.count);
+            this.buf = grown;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.protocols.http.response;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+
+import org.protocols.http.content.ByteRange;
+
+/**
+ * <code>multipart/byteranges</code> body over several ranges of one file
+ * (RFC 7233, appendix A).
+ * <p/>
+ * <p>
+ * Only the small part headers are prepared up front, so the exact length of
+ * the body is known before sending. The file bytes of each part are read
+ * from the file channel while the body is streamed.
+ * </p>
+ */
+public class MultipartRangeInputStream extends InputStream {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final Random BOUNDARY_RANDOM = new Random();
+
+    private final FileInputStream fileInputStream;
+
+    private final FileChannel channel;
+
+    private final List<ByteRange> ranges;
+
+    private final String boundary;
+
+    private final byte[][] partHeaders;
+
+    private final byte[] trailer;
+
+    private final long contentLength;
+
+    /**
+     * Index of the next segment: part <code>i</code> for
+     * <code>i &lt; ranges.size()</code>, then the closing boundary.
+     */
+    private int nextSegment;
+
+    private byte[] header;
+
+    private int headerPosition;
+
+    private long position;
+
+    private long remaining;
+
+    /**
+     * @param file
+     *            the file to read from.
+     * @param mimeType
+     *            content type of the file, repeated in every part.
+     * @param totalLength
+     *            length of the file the ranges have been resolved against.
+     * @param ranges
+     *            satisfiable, non overlapping ranges of the file.
+     */
+    public MultipartRangeInputStream(File file, String mimeType, long totalLength, List<ByteRange> ranges) throws IOException {
+        this.ranges = ranges;
+        this.boundary = "NANOHTTPD_" + Long.toHexString(BOUNDARY_RANDOM.nextLong());
+        this.partHeaders = new byte[ranges.size()][];
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            StringBuilder partHeader = new StringBuilder();
+            partHeader.append("\r\n--").append(this.boundary).append("\r\n");
+            if (mimeType != null) {
+                partHeader.append("Content-Type: ").append(mimeType).append("\r\n");
+            }
+            partHeader.append("Content-Range: ").append(range.toContentRange(totalLength)).append("\r\n\r\n");
+            this.partHeaders[i] = partHeader.toString().getBytes(US_ASCII);
+            length += this.partHeaders[i].length + range.getLength();
+        }
+        this.trailer = ("\r\n--" + this.boundary + "--\r\n").getBytes(US_ASCII);
+        this.contentLength = length + this.trailer.length;
+        this.fileInputStream = new FileInputStream(file);
+        this.channel = this.fileInputStream.getChannel();
+    }
+
+    /**
+     * @return the value for the <code>Content-Type</code> header of the
+     *         response.
+     */
+    public String getContentType() {
+        return "multipart/byteranges; boundary=" + this.boundary;
+    }
+
+    /**
+     * @return the exact number of bytes of the whole body.
+     */
+    public long getContentLength() {
+        return this.contentLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (this.header != null) {
+                int count = Math.min(len, this.header.length - this.headerPosition);
+                System.arraycopy(this.header, this.headerPosition, b, off, count);
+                this.headerPosition += count;
+                if (this.headerPosition == this.header.length) {
+                    this.header = null;
+                }
+                return count;
+            }
+            if (this.remaining > 0) {
+                int read = readRange(this.channel, this.position, b, off, (int) Math.min(len, this.remaining));
+                if (read <= 0) {
+                    throw new IOException("file shrunk while sending ranges");
+                }
+                this.position += read;
+                this.remaining -= read;
+                return read;
+            }
+            if (!startNextSegment()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Reads part of a range. Subclasses can map the positions, e.g. onto a
+     * virtual layout of the file.
+     *
+     * @param channel
+     *            channel of the file.
+     * @param position
+     *            position in the file the ranges refer to.
+     * @return the number of bytes read, at most <code>len</code>.
+     */
+    protected int readRange(FileChannel channel, long position, byte[] b, int off, int len) throws IOException {
+        return channel.read(ByteBuffer.wrap(b, off, len), position);
+    }
+
+    private boolean startNextSegment() {
+        int segment = this.nextSegment;
+        if (segment > this.ranges.size()) {
+            return false;
+        }
+        this.nextSegment++;
+        this.headerPosition = 0;
+        if (segment == this.ranges.size()) {
+            this.header = this.trailer;
+        } else {
+            ByteRange range = this.ranges.get(segment);
+            this.header = this.partHeaders[segment];
+            this.position = range.getStart();
+            this.remaining = range.getLength();
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.fileInputStream.close();
+    }
+}
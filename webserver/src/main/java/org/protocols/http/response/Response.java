@@ -33,31 +33,35 @@ package org.protocols.http.response;
  * #L%
  */
 
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import org.protocols.http.NanoHTTPD;
+import org.protocols.http.content.ByteRange;
 import org.protocols.http.content.ContentType;
+import org.protocols.http.pacing.BandwidthScheduler;
+import org.protocols.http.pacing.ConnectionPacer;
+import org.protocols.http.pacing.Priority;
 import org.protocols.http.request.Method;
 
 /**
@@ -83,22 +87,37 @@ public class Response implements Closeable {
     private long contentLength;
 
     /**
-     * Headers for the HTTP response. Use addHeader() to add lines. the
-     * lowercase map is automatically kept up to date.
+     * Bodies up to this size are sent in the same write as the head.
      */
-    @SuppressWarnings("serial")
-    private final Map<String, String> header = new HashMap<String, String>() {
+    private static final int SMALL_BODY_SIZE = 4 * 1024;
 
-        public String put(String key, String value) {
-            lowerCaseHeader.put(key == null ? key : key.toLowerCase(), value);
-            return super.put(key, value);
-        };
-    };
+    /**
+     * Chunk size of file channel transfers when the response is paced.
+     */
+    private static final int PACED_TRANSFER_SIZE = 64 * 1024;
+
+    /**
+     * The <code>Date</code> header value of the current second.
+     */
+    private static volatile CachedDate cachedDate;
+
+    private static final class CachedDate {
+
+        private final long second;
+
+        private final String value;
+
+        CachedDate(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
 
     /**
-     * copy of the header map with all the keys lowercase for faster searching.
+     * Headers for the HTTP response. Use addHeader() to add lines. Names are
+     * compared ignoring case, the first spelling used is sent.
      */
-    private final Map<String, String> lowerCaseHeader = new HashMap<String, String>();
+    private final Map<String, String> header = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
 
     /**
      * The request method that spawned this response.
@@ -116,6 +135,14 @@ public class Response implements Closeable {
 
     private GzipUsage gzipUsage = GzipUsage.DEFAULT;
 
+    private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private Priority priority;
+
+    private ConnectionPacer pacer;
+
+    private long bytesSent;
+
     private static enum GzipUsage {
         DEFAULT,
         ALWAYS,
@@ -203,7 +230,7 @@ public class Response implements Closeable {
     }
 
     public String getHeader(String name) {
-        return this.lowerCaseHeader.get(name.toLowerCase());
+        return this.header.get(name);
     }
 
     public String getMimeType() {
@@ -226,59 +253,112 @@ public class Response implements Closeable {
      * Sends given response to the socket.
      */
     public void send(OutputStream outputStream) {
-        SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-        gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        send(outputStream, null);
+    }
 
+    /**
+     * Sends given response to the socket. If <code>channel</code> is the
+     * channel behind <code>outputStream</code> and the body is a plain file
+     * range, the body is transferred with {@link java.nio.channels.FileChannel}
+     * zero-copy instead of being copied through a buffer.
+     * 
+     * @param outputStream
+     *            the socket output stream.
+     * @param channel
+     *            the channel of the socket, may be null (e.g. for TLS
+     *            sockets).
+     */
+    public void send(OutputStream outputStream, WritableByteChannel channel) {
         try {
-            if (this.status == null) {
-                throw new Error("sendResponse(): Status can't be null.");
-            }
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream, new ContentType(this.mimeType).getEncoding())), false);
-            pw.append("HTTP/1.1 ").append(this.status.getDescription()).append(" \r\n");
-            if (this.mimeType != null) {
-                printHeader(pw, "Content-Type", this.mimeType);
-            }
-            if (getHeader("date") == null) {
-                printHeader(pw, "Date", gmtFrmt.format(new Date()));
-            }
-            for (Entry<String, String> entry : this.header.entrySet()) {
-                printHeader(pw, entry.getKey(), entry.getValue());
-            }
-            for (String cookieHeader : this.cookieHeaders) {
-                printHeader(pw, "Set-Cookie", cookieHeader);
-            }
-            if (getHeader("connection") == null) {
-                printHeader(pw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
-            }
-            if (getHeader("content-length") != null) {
-                setUseGzip(false);
+            send(outputStream, channel, true);
+        } catch (IOException ioe) {
+            NanoHTTPD.LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
+        }
+    }
+
+    /**
+     * Sends given response to the socket, see
+     * {@link #send(OutputStream, WritableByteChannel)}. Unlike the other
+     * variants it does not swallow a failure: once the head is out, the
+     * connection cannot carry another response.
+     * 
+     * @param flush
+     *            false to leave the response in <code>outputStream</code>
+     *            when it buffers, so that the responses to pipelined
+     *            requests go out with one flush.
+     * @throws IOException
+     *             if the head or the body could not be sent completely.
+     */
+    public void send(OutputStream outputStream, WritableByteChannel channel, boolean flush) throws IOException {
+        if (this.status == null) {
+            throw new Error("sendResponse(): Status can't be null.");
+        }
+        HeaderBuffer head = HeaderBuffer.get(ContentType.valueOf(this.mimeType).getEncoding());
+        head.append("HTTP/1.1 ").append(this.status.getDescription()).append(" ").crlf();
+        if (this.mimeType != null) {
+            printHeader(head, "Content-Type", this.mimeType);
+        }
+        if (getHeader("date") == null) {
+            printHeader(head, "Date", currentDate());
+        }
+        for (Entry<String, String> entry : this.header.entrySet()) {
+            printHeader(head, entry.getKey(), entry.getValue());
+        }
+        for (String cookieHeader : this.cookieHeaders) {
+            printHeader(head, "Set-Cookie", cookieHeader);
+        }
+        if (getHeader("connection") == null) {
+            printHeader(head, "Connection", (this.keepAlive ? "keep-alive" : "close"));
+        }
+        if (getHeader("content-length") != null) {
+            setUseGzip(false);
+        }
+        if (useGzipWhenAccepted()) {
+            printHeader(head, "Content-Encoding", "gzip");
+            if (getHeader("vary") == null) {
+                printHeader(head, "Vary", "Accept-Encoding");
             }
-            if (useGzipWhenAccepted()) {
-                printHeader(pw, "Content-Encoding", "gzip");
-                setChunkedTransfer(true);
+            setChunkedTransfer(true);
+        }
+        long pending = this.data != null ? this.contentLength : 0;
+        if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
+            printHeader(head, "Transfer-Encoding", "chunked");
+        } else if (!useGzipWhenAccepted()) {
+            pending = sendContentLengthHeaderIfNotAlreadyPresent(head, pending);
+        }
+        head.crlf();
+        if (this.requestMethod == Method.HEAD) {
+            // the headers describe the body, but it is not sent
+            head.writeTo(outputStream);
+        } else if (isSmallPlainBody(channel, pending)) {
+            // one write for head and body
+            this.bytesSent = head.append(this.data, (int) pending);
+            head.writeTo(outputStream);
+        } else {
+            head.writeTo(outputStream);
+            if (this.pacer != null) {
+                this.pacer.begin(this.priority != null ? this.priority : Priority.BULK);
             }
-            long pending = this.data != null ? this.contentLength : 0;
-            if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
-                printHeader(pw, "Transfer-Encoding", "chunked");
-            } else if (!useGzipWhenAccepted()) {
-                pending = sendContentLengthHeaderIfNotAlreadyPresent(pw, pending);
+            try {
+                sendBodyWithCorrectTransferAndEncoding(outputStream, channel, pending);
+            } finally {
+                if (this.pacer != null) {
+                    this.pacer.end();
+                }
             }
-            pw.append("\r\n");
-            pw.flush();
-            sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
+        }
+        if (flush) {
             outputStream.flush();
-            NanoHTTPD.safeClose(this.data);
-        } catch (IOException ioe) {
-            NanoHTTPD.LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
         }
+        NanoHTTPD.safeClose(this.data);
     }
 
     @SuppressWarnings("static-method")
-    protected void printHeader(PrintWriter pw, String key, String value) {
-        pw.append(key).append(": ").append(value).append("\r\n");
+    protected void printHeader(HeaderBuffer head, String key, String value) throws IOException {
+        head.header(key, value);
     }
 
-    protected long sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, long defaultSize) {
+    protected long sendContentLengthHeaderIfNotAlreadyPresent(HeaderBuffer head, long defaultSize) throws IOException {
         String contentLengthString = getHeader("content-length");
         long size = defaultSize;
         if (contentLengthString != null) {
@@ -287,13 +367,44 @@ public class Response implements Closeable {
             } catch (NumberFormatException ex) {
                 NanoHTTPD.LOG.severe("content-length was no number " + contentLengthString);
             }
-        }else{
-        	pw.print("Content-Length: " + size + "\r\n");
+        } else {
+            head.append("Content-Length: ").append(size).crlf();
         }
         return size;
     }
 
-    private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
+    /**
+     * @return true if the body is sent as it is (neither chunked, compressed
+     *         nor transferred from a file channel) and is small enough to go
+     *         out together with the head.
+     */
+    private boolean isSmallPlainBody(WritableByteChannel channel, long pending) {
+        if (this.requestMethod != Method.HEAD && this.chunkedTransfer || useGzipWhenAccepted()) {
+            return false;
+        }
+        if (channel != null && this.data instanceof FileRangeInputStream) {
+            return false;
+        }
+        return this.data != null && pending >= 0 && pending <= SMALL_BODY_SIZE;
+    }
+
+    /**
+     * @return the value for the <code>Date</code> header, formatted once per
+     *         second.
+     */
+    private static String currentDate() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = cachedDate;
+        if (date == null || date.second != second) {
+            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+            date = new CachedDate(second, gmtFrmt.format(new Date(second * 1000)));
+            cachedDate = date;
+        }
+        return date.value;
+    }
+
+    private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, WritableByteChannel channel, long pending) throws IOException {
         if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
             ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
             sendBodyWithCorrectEncoding(chunkedOutputStream, -1);
@@ -304,16 +415,40 @@ public class Response implements Closeable {
                     this.data.close();
                 }
             }
+        } else if (channel != null && this.data instanceof FileRangeInputStream && !useGzipWhenAccepted()) {
+            sendFileBody(outputStream, channel, pending);
         } else {
             sendBodyWithCorrectEncoding(outputStream, pending);
         }
     }
 
+    /**
+     * Moves the file range straight into the socket channel. The headers
+     * still buffered in the output stream are flushed first so they precede
+     * the body on the wire.
+     */
+    private void sendFileBody(OutputStream outputStream, WritableByteChannel channel, long pending) throws IOException {
+        outputStream.flush();
+        FileRangeInputStream file = (FileRangeInputStream) this.data;
+        if (this.pacer == null) {
+            this.bytesSent += file.transferTo(channel, pending);
+            return;
+        }
+        // paced transfers go in chunks, each one waits for its turn
+        while (pending > 0) {
+            int chunk = (int) Math.min(pending, PACED_TRANSFER_SIZE);
+            this.pacer.pace(chunk);
+            long transferred = file.transferTo(channel, chunk);
+            this.bytesSent += transferred;
+            pending -= transferred;
+        }
+    }
+
     private void sendBodyWithCorrectEncoding(OutputStream outputStream, long pending) throws IOException {
         if (useGzipWhenAccepted()) {
             GZIPOutputStream gzipOutputStream = null;
             try {
-                gzipOutputStream = new GZIPOutputStream(outputStream);
+                gzipOutputStream = new LevelGZIPOutputStream(outputStream, this.gzipLevel);
             } catch (Exception e) {
                 if(this.data != null) {
                     this.data.close();
@@ -351,6 +486,9 @@ public class Response implements Closeable {
             if (read <= 0) {
                 break;
             }
+            if (this.pacer != null) {
+                this.pacer.pace(read);
+            }
             try {
                 outputStream.write(buff, 0, read);
             } catch (Exception e) {
@@ -359,12 +497,41 @@ public class Response implements Closeable {
                     this.data.close();
                 }
             }
+            this.bytesSent += read;
             if (!sendEverything) {
                 pending -= read;
             }
         }
     }
 
+    /**
+     * @return number of body bytes sent so far, before compression.
+     */
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    /**
+     * Sets the priority class of the body when the server paces responses,
+     * overriding the classification by URI and MIME type of the
+     * {@link BandwidthScheduler}.
+     */
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    public Priority getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Paces the body with the pacer of the connection; bodies small enough
+     * to go out with the head are not paced.
+     */
+    public void setPacer(ConnectionPacer pacer) {
+        this.pacer = pacer;
+    }
+
     public void setChunkedTransfer(boolean chunkedTransfer) {
         this.chunkedTransfer = chunkedTransfer;
     }
@@ -392,6 +559,43 @@ public class Response implements Closeable {
         return new Response(status, mimeType, data, -1);
     }
 
+    /**
+     * Create a response for a byte range of a file. Over a plain socket the
+     * range is sent with zero-copy <code>FileChannel.transferTo</code>; TLS,
+     * gzip and chunked responses fall back to copying.
+     */
+    public static Response newFileChannelResponse(IStatus status, String mimeType, File file, long offset, long length) throws IOException {
+        return newFileChannelResponse(status, mimeType, file, offset, length, null);
+    }
+
+    /**
+     * Create a response for a byte range of a file that is read through a
+     * shared block cache.
+     * 
+     * @param cache
+     *            the block cache, null to read the file directly.
+     */
+    public static Response newFileChannelResponse(IStatus status, String mimeType, File file, long offset, long length, BlockCache cache) throws IOException {
+        FileRangeInputStream data = new FileRangeInputStream(file, offset, length, cache);
+        return new Response(status, mimeType, data, data.getRemaining());
+    }
+
+    /**
+     * Create a <code>200 OK</code> response for a byte range of a file.
+     */
+    public static Response newFileChannelResponse(File file, long offset, long length) throws IOException {
+        return newFileChannelResponse(Status.OK, NanoHTTPD.getMimeTypeForFile(file.getName()), file, offset, length);
+    }
+
+    /**
+     * Create a <code>206 Partial Content</code> response carrying several
+     * ranges of a file as <code>multipart/byteranges</code>.
+     */
+    public static Response newMultipartRangeResponse(String mimeType, File file, long totalLength, List<ByteRange> ranges) throws IOException {
+        MultipartRangeInputStream data = new MultipartRangeInputStream(file, mimeType, totalLength, ranges);
+        return new Response(Status.PARTIAL_CONTENT, data.getContentType(), data, data.getContentLength());
+    }
+
     public static Response newFixedLengthResponse(IStatus status, String mimeType, byte[] data) {
         return newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(data), data.length);
     }
@@ -407,7 +611,7 @@ public class Response implements Closeable {
      * Create a text response with known length.
      */
     public static Response newFixedLengthResponse(IStatus status, String mimeType, String txt) {
-        ContentType contentType = new ContentType(mimeType);
+        ContentType contentType = ContentType.valueOf(mimeType);
         if (txt == null) {
             return newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(new byte[0]), 0);
         } else {
@@ -438,6 +642,15 @@ public class Response implements Closeable {
         return this;
     }
 
+    /**
+     * Sets the deflate level used when the body is compressed while sending,
+     * 1 (fastest) to 9 (smallest) or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public Response setGzipLevel(int gzipLevel) {
+        this.gzipLevel = gzipLevel;
+        return this;
+    }
+
     // If a Gzip usage has been enforced, use it.
     // Else decide whether or not to use Gzip.
     public boolean useGzipWhenAccepted() {
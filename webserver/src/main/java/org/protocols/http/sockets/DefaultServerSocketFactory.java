@@ -35,17 +35,20 @@ package org.protocols.http.sockets;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 import org.util.IFactoryThrowing;
 
 /**
- * Creates a normal ServerSocket for TCP connections
+ * Creates a normal ServerSocket for TCP connections. The socket is backed by a
+ * {@link ServerSocketChannel}, so accepted sockets expose a channel that file
+ * responses can be transferred to without copying.
  */
 public class DefaultServerSocketFactory implements IFactoryThrowing<ServerSocket, IOException> {
 
     @Override
     public ServerSocket create() throws IOException {
-        return new ServerSocket();
+        return ServerSocketChannel.open().socket();
     }
 
 }
@@ -0,0 +1,221 @@
+package org.protocols.http.threading;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.protocols.http.ClientHandler;
+
+/**
+ * Pooled threading strategy for NanoHTTPD.
+ * <p/>
+ * <p>
+ * Client connections are run on a bounded pool of <i>daemon</i> worker
+ * threads. The pool grows from <code>corePoolSize</code> up to
+ * <code>maxPoolSize</code> threads before any connection is queued; once all
+ * workers are busy, connections wait in a backlog queue of bounded size. When
+ * the backlog is full as well, the connection is answered with
+ * <code>503 Service Unavailable</code> and closed instead of spawning yet
+ * another thread.
+ * </p>
+ */
+public class BoundedAsyncRunner implements IAsyncRunner {
+
+    public static final int DEFAULT_CORE_POOL_SIZE = 4;
+
+    public static final int DEFAULT_MAX_POOL_SIZE = 32;
+
+    public static final int DEFAULT_BACKLOG = 64;
+
+    /**
+     * Time an idle worker thread is kept before it is released (in seconds).
+     */
+    private static final long WORKER_KEEP_ALIVE = 30;
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final Set<ClientHandler> running = Collections.newSetFromMap(new ConcurrentHashMap<ClientHandler, Boolean>());
+
+    private final BacklogQueue backlog;
+
+    private final ThreadPoolExecutor executor;
+
+    public BoundedAsyncRunner() {
+        this(DEFAULT_CORE_POOL_SIZE, DEFAULT_MAX_POOL_SIZE, DEFAULT_BACKLOG);
+    }
+
+    /**
+     * @param corePoolSize
+     *            number of worker threads kept around while idle.
+     * @param maxPoolSize
+     *            maximum number of concurrently running connections.
+     * @param backlogSize
+     *            maximum number of connections waiting for a free worker.
+     */
+    public BoundedAsyncRunner(int corePoolSize, int maxPoolSize, int backlogSize) {
+        if (corePoolSize < 0 || maxPoolSize <= 0 || maxPoolSize < corePoolSize || backlogSize < 0) {
+            throw new IllegalArgumentException("invalid pool configuration: core=" + corePoolSize + ", max=" + maxPoolSize + ", backlog=" + backlogSize);
+        }
+        this.backlog = new BacklogQueue(backlogSize);
+        this.executor = new ThreadPoolExecutor(corePoolSize, maxPoolSize, WORKER_KEEP_ALIVE, TimeUnit.SECONDS, this.backlog, new WorkerThreadFactory(), new RejectHandler());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.backlog.executor = this.executor;
+    }
+
+    /**
+     * @return a view of the currently running (or queued) clients.
+     */
+    public Set<ClientHandler> getRunning() {
+        return Collections.unmodifiableSet(this.running);
+    }
+
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * @return number of connections answered with 503 because the pool and
+     *         its backlog were saturated.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    public int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    public int getPoolSize() {
+        return this.executor.getPoolSize();
+    }
+
+    public int getQueuedCount() {
+        return this.backlog.size();
+    }
+
+    @Override
+    public void closeAll() {
+        // copy of the set for concurrency
+        for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
+            clientHandler.close();
+        }
+    }
+
+    @Override
+    public void closed(ClientHandler clientHandler) {
+        this.running.remove(clientHandler);
+    }
+
+    @Override
+    public void exec(ClientHandler clientHandler) {
+        this.requestCount.incrementAndGet();
+        this.running.add(clientHandler);
+        this.executor.execute(clientHandler);
+    }
+
+    /**
+     * Backlog that refuses new work while the pool may still grow and no
+     * worker is idle, so the executor starts a new worker instead of queueing
+     * behind connections that are parked in keep-alive.
+     */
+    @SuppressWarnings("serial")
+    private static final class BacklogQueue extends LinkedBlockingQueue<Runnable> {
+
+        private final boolean enabled;
+
+        private volatile ThreadPoolExecutor executor;
+
+        BacklogQueue(int capacity) {
+            super(Math.max(capacity, 1));
+            this.enabled = capacity > 0;
+        }
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            ThreadPoolExecutor pool = this.executor;
+            if (pool != null) {
+                if (pool.getActiveCount() < pool.getPoolSize()) {
+                    // an idle worker is waiting, hand the connection over
+                    return super.offer(runnable);
+                }
+                if (pool.getPoolSize() < pool.getMaximumPoolSize()) {
+                    return false;
+                }
+            }
+            return forceOffer(runnable);
+        }
+
+        boolean forceOffer(Runnable runnable) {
+            return this.enabled && super.offer(runnable);
+        }
+    }
+
+    private final class RejectHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor pool) {
+            if (!pool.isShutdown() && backlog.forceOffer(runnable)) {
+                return;
+            }
+            ClientHandler clientHandler = (ClientHandler) runnable;
+            rejectedCount.incrementAndGet();
+            running.remove(clientHandler);
+            clientHandler.reject();
+        }
+    }
+
+    private final class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicLong threadCount = new AtomicLong();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread t = new Thread(runnable);
+            t.setDaemon(true);
+            t.setName("NanoHttpd Request Processor (pool #" + this.threadCount.incrementAndGet() + ")");
+            return t;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.protocols.http.threading;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.protocols.http.ClientHandler;
+import org.protocols.http.NanoHTTPD;
+
+/**
+ * Thread-per-connection strategy using virtual threads.
+ * <p/>
+ * <p>
+ * On a JVM with virtual threads (Java 21 and later) every client connection
+ * runs on its own virtual thread, so a blocked keep-alive connection costs a
+ * small heap object instead of a platform thread stack. The virtual thread
+ * API is looked up reflectively, this class compiles against older Java and
+ * Android; there it falls back to <i>daemon</i> platform threads like
+ * {@link DefaultAsyncRunner}.
+ * </p>
+ * <p>
+ * At most <code>maxConcurrent</code> connections run at the same time, further
+ * connections are answered with <code>503 Service Unavailable</code> and
+ * closed.
+ * </p>
+ */
+public class VirtualThreadAsyncRunner implements IAsyncRunner {
+
+    public static final int DEFAULT_MAX_CONCURRENT = 10000;
+
+    private final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong peakCount = new AtomicLong();
+
+    private final Set<ClientHandler> running = Collections.newSetFromMap(new ConcurrentHashMap<ClientHandler, Boolean>());
+
+    private final Semaphore permits;
+
+    private final int maxConcurrent;
+
+    public VirtualThreadAsyncRunner() {
+        this(DEFAULT_MAX_CONCURRENT);
+    }
+
+    /**
+     * @param maxConcurrent
+     *            maximum number of concurrently running connections.
+     */
+    public VirtualThreadAsyncRunner(int maxConcurrent) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("invalid connection limit: " + maxConcurrent);
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * @return true if connections run on virtual threads, false if this JVM
+     *         has none and platform threads are used.
+     */
+    public boolean isVirtual() {
+        return this.virtualThreadFactory != null;
+    }
+
+    /**
+     * @return a view of the currently running clients.
+     */
+    public Set<ClientHandler> getRunning() {
+        return Collections.unmodifiableSet(this.running);
+    }
+
+    /**
+     * @return number of connections running right now.
+     */
+    public int getActiveCount() {
+        return this.maxConcurrent - this.permits.availablePermits();
+    }
+
+    /**
+     * @return highest number of connections that ran at the same time.
+     */
+    public long getPeakCount() {
+        return this.peakCount.get();
+    }
+
+    public int getMaxConcurrent() {
+        return this.maxConcurrent;
+    }
+
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * @return number of connections answered with 503 because the limit was
+     *         reached.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    @Override
+    public void closeAll() {
+        for (ClientHandler clientHandler : this.running.toArray(new ClientHandler[0])) {
+            clientHandler.close();
+        }
+    }
+
+    @Override
+    public void closed(ClientHandler clientHandler) {
+        if (this.running.remove(clientHandler)) {
+            this.permits.release();
+        }
+    }
+
+    @Override
+    public void exec(ClientHandler clientHandler) {
+        this.requestCount.incrementAndGet();
+        if (!this.permits.tryAcquire()) {
+            this.rejectedCount.incrementAndGet();
+            clientHandler.reject();
+            return;
+        }
+        this.running.add(clientHandler);
+        updatePeak();
+        boolean started = false;
+        try {
+            createThread(clientHandler).start();
+            started = true;
+        } finally {
+            if (!started) {
+                // e.g. OutOfMemoryError: unable to create native thread
+                closed(clientHandler);
+                clientHandler.close();
+            }
+        }
+    }
+
+    private void updatePeak() {
+        long active = getActiveCount();
+        long peak;
+        while (active > (peak = this.peakCount.get()) && !this.peakCount.compareAndSet(peak, active)) {
+            // retry
+        }
+    }
+
+    protected Thread createThread(ClientHandler clientHandler) {
+        if (this.virtualThreadFactory != null) {
+            return this.virtualThreadFactory.newThread(clientHandler);
+        }
+        Thread t = new Thread(clientHandler);
+        t.setDaemon(true);
+        t.setName("NanoHttpd Request Processor (#" + this.requestCount.get() + ")");
+        return t;
+    }
+
+    /**
+     * Looks up <code>Thread.ofVirtual().name(prefix, 1).factory()</code>.
+     *
+     * @return the factory, or null if virtual threads are not available.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "NanoHttpd Virtual Request Processor #", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            NanoHTTPD.LOG.log(Level.FINE, "virtual threads not available, using platform threads", e);
+            return null;
+        }
+    }
+}
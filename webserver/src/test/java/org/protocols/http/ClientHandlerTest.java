@@ -0,0 +1,125 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Test;
+import org.protocols.http.response.Response;
+import org.protocols.http.response.Status;
+import org.util.IHandler;
+
+/**
+ * Responses held back for pipelined requests reach the client even if a
+ * later request on the connection fails.
+ */
+public class ClientHandlerTest {
+
+    private NanoHTTPD httpd;
+
+    @After
+    public void tearDown() {
+        if (this.httpd != null) {
+            this.httpd.stop();
+        }
+    }
+
+    private void start(boolean useSelector) throws IOException {
+        this.httpd = new NanoHTTPD("127.0.0.1", 0) {
+        };
+        this.httpd.setUseSelector(useSelector);
+        this.httpd.setHTTPHandler(new IHandler<IHTTPSession, Response>() {
+
+            @Override
+            public Response handle(IHTTPSession session) {
+                if ("/fail".equals(session.getUri())) {
+                    throw new IllegalStateException("handler failed");
+                }
+                return Response.newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_PLAINTEXT, "answer to " + session.getUri());
+            }
+        });
+        this.httpd.start(5000);
+    }
+
+    /**
+     * Sends the requests in one write and reads until the server closes the
+     * connection.
+     */
+    private String exchange(String requests) throws IOException {
+        Socket socket = new Socket("127.0.0.1", this.httpd.getListeningPort());
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(requests.getBytes("US-ASCII"));
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            for (int read = in.read(buf); read != -1; read = in.read(buf)) {
+                received.write(buf, 0, read);
+            }
+            return received.toString("US-ASCII");
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static String get(String uri) {
+        return "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    private void assertHeldResponsesSent() throws IOException {
+        String received = exchange(get("/first") + get("/second") + get("/fail") + get("/never"));
+        assertTrue(received, received.contains("answer to /first"));
+        assertTrue(received, received.contains("answer to /second"));
+        assertTrue(received, !received.contains("answer to /never"));
+    }
+
+    @Test
+    public void testHeldResponsesSentWhenLaterRequestFails() throws IOException {
+        start(false);
+        assertHeldResponsesSent();
+    }
+
+    @Test
+    public void testHeldResponsesSentWhenLaterRequestFailsWithSelector() throws IOException {
+        start(true);
+        assertHeldResponsesSent();
+    }
+}
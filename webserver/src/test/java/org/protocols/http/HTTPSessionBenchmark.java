@@ -0,0 +1,211 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.protocols.http.response.Response;
+import org.protocols.http.response.Status;
+import org.protocols.http.tempfiles.DefaultTempFileManager;
+import org.util.IHandler;
+
+/**
+ * Serves keep-alive requests on one session, with handlers that touch none
+ * of the decoded request, only the path, as a file server does, or the
+ * path, the query parameters and the cookies, which the session used to
+ * decode for every request. A last request has a query of many keys
+ * without values.
+ * <p/>
+ * <p>
+ * Add <code>-prof gc</code> for the allocations per request; the
+ * difference between the handlers is what decoding on demand saves.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPSessionBenchmark {
+
+    private static final String REQUEST = "GET /videos/holiday%202016/clip-01.mp4?start=30&quality=hd&lang=fr HTTP/1.1\r\n" //
+            + "Host: 192.168.1.20:8080\r\n" //
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:91.0) Gecko/20100101 Firefox/91.0\r\n" //
+            + "Accept: */*\r\n" //
+            + "Accept-Encoding: gzip, deflate\r\n" //
+            + "Cookie: session=5f1d7a3b; theme=dark\r\n" //
+            + "\r\n";
+
+    private static final int VALUELESS_KEYS = 2000;
+
+    /**
+     * Hands out the same request over and over, one request per read.
+     */
+    private static final class Replay extends InputStream {
+
+        private final byte[] request;
+
+        private int offset;
+
+        Replay(byte[] request) {
+            this.request = request;
+        }
+
+        @Override
+        public int available() {
+            return this.offset == 0 ? 0 : this.request.length - this.offset;
+        }
+
+        @Override
+        public int read() {
+            int b = this.request[this.offset++] & 0xff;
+            if (this.offset == this.request.length) {
+                this.offset = 0;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int count = Math.min(len, this.request.length - this.offset);
+            System.arraycopy(this.request, this.offset, b, off, count);
+            this.offset += count;
+            if (this.offset == this.request.length) {
+                this.offset = 0;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Discards the responses.
+     */
+    private static final class Sink extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private enum Access {
+        NONE,
+        URI,
+        ALL
+    }
+
+    private Access access;
+
+    private HTTPSession session;
+
+    private HTTPSession valuelessKeysSession;
+
+    @Setup
+    public void setUp() {
+        NanoHTTPD httpd = new NanoHTTPD(0) {
+        };
+        httpd.setHTTPHandler(new IHandler<IHTTPSession, Response>() {
+
+            @Override
+            public Response handle(IHTTPSession session) {
+                if (access != Access.NONE) {
+                    session.getUri();
+                }
+                if (access == Access.ALL) {
+                    session.getParameters();
+                    session.getCookies();
+                }
+                Response response = Response.newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_PLAINTEXT, "ok");
+                // compressing would outweigh everything measured here
+                response.setUseGzip(false);
+                return response;
+            }
+        });
+        Charset ascii = Charset.forName("US-ASCII");
+        this.session = new HTTPSession(httpd, new DefaultTempFileManager(), new Replay(REQUEST.getBytes(ascii)), new Sink());
+
+        StringBuilder query = new StringBuilder("GET /search?");
+        for (int i = 0; i < VALUELESS_KEYS; i++) {
+            query.append("k&");
+        }
+        query.append("q=x HTTP/1.1\r\nHost: 192.168.1.20:8080\r\n\r\n");
+        this.valuelessKeysSession = new HTTPSession(httpd, new DefaultTempFileManager(), new Replay(query.toString().getBytes(ascii)), new Sink());
+    }
+
+    @Benchmark
+    public HTTPSession untouched() throws IOException {
+        this.access = Access.NONE;
+        this.session.execute();
+        return this.session;
+    }
+
+    @Benchmark
+    public HTTPSession uri() throws IOException {
+        this.access = Access.URI;
+        this.session.execute();
+        return this.session;
+    }
+
+    @Benchmark
+    public HTTPSession allDecoded() throws IOException {
+        this.access = Access.ALL;
+        this.session.execute();
+        return this.session;
+    }
+
+    @Benchmark
+    public HTTPSession valuelessKeys() throws IOException {
+        this.access = Access.ALL;
+        this.valuelessKeysSession.execute();
+        return this.valuelessKeysSession;
+    }
+}
@@ -0,0 +1,233 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.protocols.http.response.Response;
+import org.protocols.http.response.Status;
+import org.protocols.http.tempfiles.DefaultTempFileManager;
+import org.util.IHandler;
+
+public class HTTPSessionBodyTest {
+
+    private static final String CONTENT = "0123456789";
+
+    private static final Pattern STATUS_LINE = Pattern.compile("(HTTP/1\\.1 \\d{3} [^\r]*?) ?\r\n");
+
+    /**
+     * Remembers whether the session closed its output.
+     */
+    private static class Output extends ByteArrayOutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+
+    private final List<String> handled = new ArrayList<String>();
+
+    /**
+     * Bytes of each body the handler read, if it reads them.
+     */
+    private final List<Integer> bodyLengths = new ArrayList<Integer>();
+
+    private boolean readBody;
+
+    private Output output;
+
+    private NanoHTTPD httpd;
+
+    @Before
+    public void setUp() {
+        this.output = new Output();
+        this.httpd = new NanoHTTPD(0) {
+        };
+        this.httpd.setHTTPHandler(new IHandler<IHTTPSession, Response>() {
+
+            @Override
+            public Response handle(IHTTPSession session) {
+                // touches the body only if asked to
+                handled.add(session.getUri());
+                if (readBody) {
+                    bodyLengths.add(readFully(session.getBodyInputStream()));
+                }
+                return Response.newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_PLAINTEXT, CONTENT);
+            }
+        });
+    }
+
+    /**
+     * Executes the session on <code>requests</code> until it drops the
+     * connection or the requests are used up.
+     * 
+     * @return the status lines of the responses.
+     */
+    private List<String> exchange(String requests) throws IOException {
+        HTTPSession session = new HTTPSession(this.httpd, new DefaultTempFileManager(), new ByteArrayInputStream(requests.getBytes("US-ASCII")), this.output);
+        try {
+            while (!this.output.closed) {
+                session.execute();
+            }
+        } catch (SocketException e) {
+            // connection closed, by either side
+        }
+        List<String> statusLines = new ArrayList<String>();
+        Matcher matcher = STATUS_LINE.matcher(this.output.toString("US-ASCII"));
+        while (matcher.find()) {
+            statusLines.add(matcher.group(1));
+        }
+        return statusLines;
+    }
+
+    private static int readFully(InputStream in) {
+        byte[] buf = new byte[1024];
+        int length = 0;
+        try {
+            for (int read = in.read(buf); read != -1; read = in.read(buf)) {
+                length += read;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return length;
+    }
+
+    private static String request(String uri, String headers, String body) {
+        return "POST " + uri + " HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n" + body;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testUnreadContentLengthBodyIsDrained() throws IOException {
+        String body = "name=value&other=" + repeat('x', 1000);
+        List<String> status = exchange(request("/first", "Content-Length: " + body.length() + "\r\n", body) //
+                + request("/second", "Content-Length: " + body.length() + "\r\n", body) //
+                + request("/third", "Content-Length: 0\r\nConnection: close\r\n", ""));
+        assertEquals(Arrays.asList("HTTP/1.1 200 OK", "HTTP/1.1 200 OK", "HTTP/1.1 200 OK"), status);
+        assertEquals(Arrays.asList("/first", "/second", "/third"), this.handled);
+    }
+
+    @Test
+    public void testUnreadChunkedBodyIsDrained() throws IOException {
+        String body = "5\r\nhello\r\n7;ext=1\r\n, world\r\n0\r\nTrailer: x\r\n\r\n";
+        List<String> status = exchange(request("/first", "Transfer-Encoding: chunked\r\n", body) //
+                + request("/second", "Transfer-Encoding: chunked\r\nConnection: close\r\n", body));
+        assertEquals(Arrays.asList("HTTP/1.1 200 OK", "HTTP/1.1 200 OK"), status);
+        assertEquals(Arrays.asList("/first", "/second"), this.handled);
+    }
+
+    @Test
+    public void testHandlerReadsBodyThroughSessionInterface() throws IOException {
+        this.readBody = true;
+        String chunked = "5\r\nhello\r\n7\r\n, world\r\n0\r\n\r\n";
+        List<String> status = exchange(request("/chunked", "Transfer-Encoding: chunked\r\n", chunked) //
+                + request("/plain", "Content-Length: 3\r\n", "abc") //
+                + request("/empty", "Connection: close\r\n", ""));
+        assertEquals(Arrays.asList("HTTP/1.1 200 OK", "HTTP/1.1 200 OK", "HTTP/1.1 200 OK"), status);
+        assertEquals(Arrays.asList(12, 3, 0), this.bodyLengths);
+    }
+
+    @Test
+    public void testOversizedBodyClosesConnection() throws IOException {
+        String body = repeat('x', (int) HTTPSession.MAX_DRAIN_SIZE + 1);
+        List<String> status = exchange(request("/big", "Content-Length: " + body.length() + "\r\n", body) //
+                + request("/next", "Content-Length: 0\r\n", ""));
+        assertEquals(Arrays.asList("HTTP/1.1 200 OK"), status);
+        assertEquals(Arrays.asList("/big"), this.handled);
+        assertTrue(this.output.toString("US-ASCII").toLowerCase().contains("connection: close"));
+    }
+
+    @Test
+    public void testBodyAtDrainLimitKeepsConnection() throws IOException {
+        String body = repeat('x', (int) HTTPSession.MAX_DRAIN_SIZE);
+        List<String> status = exchange(request("/big", "Content-Length: " + body.length() + "\r\n", body) //
+                + request("/next", "Content-Length: 0\r\nConnection: close\r\n", ""));
+        assertEquals(Arrays.asList("HTTP/1.1 200 OK", "HTTP/1.1 200 OK"), status);
+        assertEquals(Arrays.asList("/big", "/next"), this.handled);
+    }
+
+    @Test
+    public void testInvalidContentLengthIsBadRequest() throws IOException {
+        List<String> status = exchange(request("/bad", "Content-Length: 12abc\r\n", "12abc bytes?"));
+        assertEquals(Arrays.asList("HTTP/1.1 400 Bad Request"), status);
+        assertTrue(this.handled.isEmpty());
+        assertTrue(this.output.closed);
+    }
+
+    @Test
+    public void testNegativeContentLengthIsBadRequest() throws IOException {
+        List<String> status = exchange(request("/bad", "Content-Length: -1\r\n", ""));
+        assertEquals(Arrays.asList("HTTP/1.1 400 Bad Request"), status);
+        assertTrue(this.handled.isEmpty());
+    }
+
+    @Test
+    public void testUnknownTransferEncodingIsNotImplemented() throws IOException {
+        List<String> status = exchange(request("/gzip", "Transfer-Encoding: gzip\r\n", "not really gzip"));
+        assertEquals(Arrays.asList("HTTP/1.1 501 Not Implemented"), status);
+        assertTrue(this.handled.isEmpty());
+        assertTrue(this.output.closed);
+    }
+
+    @Test
+    public void testIdentityTransferEncodingUsesContentLength() throws IOException {
+        List<String> status = exchange(request("/first", "Transfer-Encoding: identity\r\nContent-Length: 3\r\n", "abc") //
+                + request("/second", "Content-Length: 0\r\nConnection: close\r\n", ""));
+        assertEquals(Arrays.asList("HTTP/1.1 200 OK", "HTTP/1.1 200 OK"), status);
+        assertEquals(Arrays.asList("/first", "/second"), this.handled);
+    }
+}
@@ -0,0 +1,114 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.protocols.http.response.Response;
+import org.protocols.http.response.Status;
+import org.protocols.http.tempfiles.DefaultTempFileManager;
+import org.util.IHandler;
+
+public class HTTPSessionParametersTest {
+
+    private Map<String, List<String>> parameters;
+
+    private String queryParameterString;
+
+    private String uri;
+
+    private void request(String target) throws IOException {
+        NanoHTTPD httpd = new NanoHTTPD(0) {
+        };
+        httpd.setHTTPHandler(new IHandler<IHTTPSession, Response>() {
+
+            @Override
+            public Response handle(IHTTPSession session) {
+                uri = session.getUri();
+                parameters = session.getParameters();
+                queryParameterString = session.getQueryParameterString();
+                return Response.newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_PLAINTEXT, "");
+            }
+        });
+        String request = "GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        new HTTPSession(httpd, new DefaultTempFileManager(), new ByteArrayInputStream(request.getBytes("US-ASCII")), new ByteArrayOutputStream()).execute();
+    }
+
+    @Test
+    public void testNoQuery() throws IOException {
+        request("/plain%20path");
+        assertEquals("/plain path", this.uri);
+        assertEquals(Collections.emptyMap(), this.parameters);
+        assertNull(this.queryParameterString);
+    }
+
+    @Test
+    public void testDecodedKeysAndValues() throws IOException {
+        request("/search?q=caf%C3%A9+cr%C3%A8me&lang=fr&lang=en");
+        assertEquals("/search", this.uri);
+        assertEquals(Arrays.asList("caf\u00e9 cr\u00e8me"), this.parameters.get("q"));
+        assertEquals(Arrays.asList("fr", "en"), this.parameters.get("lang"));
+        assertEquals("q=caf%C3%A9+cr%C3%A8me&lang=fr&lang=en", this.queryParameterString);
+    }
+
+    @Test
+    public void testKeysWithoutValue() throws IOException {
+        request("/?a&b=1&&c=&d=x=y&e");
+        assertEquals(Arrays.asList(""), this.parameters.get("a"));
+        assertEquals(Arrays.asList("1"), this.parameters.get("b"));
+        assertEquals(Arrays.asList(""), this.parameters.get("c"));
+        // only the first '=' separates key and value
+        assertEquals(Arrays.asList("x=y"), this.parameters.get("d"));
+        assertEquals(Arrays.asList(""), this.parameters.get("e"));
+        assertEquals(5, this.parameters.size());
+    }
+
+    @Test
+    public void testValuelessKeyBeforeAssignment() throws IOException {
+        // the '=' of the next pair must not be taken for this key's
+        request("/?flag&name=value");
+        assertEquals(Arrays.asList(""), this.parameters.get("flag"));
+        assertEquals(Arrays.asList("value"), this.parameters.get("name"));
+    }
+}
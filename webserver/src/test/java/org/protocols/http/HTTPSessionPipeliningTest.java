@@ -0,0 +1,185 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.protocols.http.response.Response;
+import org.protocols.http.response.Status;
+import org.protocols.http.tempfiles.DefaultTempFileManager;
+import org.util.IHandler;
+
+public class HTTPSessionPipeliningTest {
+
+    /**
+     * Hands out the requests in the packets they are given in: a read never
+     * crosses into the next packet and only the rest of the current one is
+     * available.
+     */
+    private static class Packets extends InputStream {
+
+        private final List<byte[]> packets = new ArrayList<byte[]>();
+
+        private int offset;
+
+        Packets(String... packets) throws IOException {
+            for (String packet : packets) {
+                this.packets.add(packet.getBytes("US-ASCII"));
+            }
+        }
+
+        @Override
+        public int available() {
+            return this.packets.isEmpty() ? 0 : this.packets.get(0).length - this.offset;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!this.packets.isEmpty() && this.offset == this.packets.get(0).length) {
+                this.packets.remove(0);
+                this.offset = 0;
+            }
+            if (this.packets.isEmpty()) {
+                return -1;
+            }
+            byte[] packet = this.packets.get(0);
+            int count = Math.min(len, packet.length - this.offset);
+            System.arraycopy(packet, this.offset, b, off, count);
+            this.offset += count;
+            return count;
+        }
+    }
+
+    /**
+     * Counts the flushes that write out new responses, and the responses
+     * complete at each of them.
+     */
+    private static class Output extends ByteArrayOutputStream {
+
+        private final List<Integer> flushes = new ArrayList<Integer>();
+
+        @Override
+        public void flush() {
+            int responses = 0;
+            for (int index = toString().indexOf("HTTP/1.1 "); index >= 0; index = toString().indexOf("HTTP/1.1 ", index + 1)) {
+                responses++;
+            }
+            if (this.flushes.isEmpty() || this.flushes.get(this.flushes.size() - 1) != responses) {
+                this.flushes.add(responses);
+            }
+        }
+    }
+
+    private Output output;
+
+    private NanoHTTPD httpd;
+
+    @Before
+    public void setUp() {
+        this.output = new Output();
+        this.httpd = new NanoHTTPD(0) {
+        };
+        this.httpd.setHTTPHandler(new IHandler<IHTTPSession, Response>() {
+
+            @Override
+            public Response handle(IHTTPSession session) {
+                return Response.newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_PLAINTEXT, session.getUri());
+            }
+        });
+    }
+
+    /**
+     * @return the number of responses written out at each flush.
+     */
+    private List<Integer> exchange(String... packets) throws IOException {
+        HTTPSession session = new HTTPSession(this.httpd, new DefaultTempFileManager(), new Packets(packets), this.output);
+        try {
+            while (true) {
+                session.execute();
+            }
+        } catch (SocketException e) {
+            // connection closed, by either side
+        }
+        return this.output.flushes;
+    }
+
+    private static String get(String uri) {
+        return "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    @Test
+    public void testRequestsInSeparatePacketsAreFlushedEach() throws IOException {
+        assertEquals(Arrays.asList(1, 2, 3), exchange(get("/1"), get("/2"), get("/3")));
+    }
+
+    @Test
+    public void testPipelinedRequestsAreFlushedTogether() throws IOException {
+        assertEquals(Arrays.asList(3), exchange(get("/1") + get("/2") + get("/3")));
+    }
+
+    @Test
+    public void testBatchEndsWithTheBufferedRequests() throws IOException {
+        assertEquals(Arrays.asList(2, 4), exchange(get("/1") + get("/2"), get("/3") + get("/4")));
+    }
+
+    @Test
+    public void testIncompleteNextRequestDoesNotHoldBackResponse() throws IOException {
+        String next = get("/2");
+        int split = next.length() - 2;
+        assertEquals(Arrays.asList(1, 2), exchange(get("/1") + next.substring(0, split), next.substring(split)));
+    }
+
+    @Test
+    public void testClosingResponseIsFlushedAtOnce() throws IOException {
+        String close = "GET /2 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+        // the request after the closing one is never answered
+        assertEquals(Arrays.asList(2), exchange(get("/1") + close + get("/3")));
+    }
+}
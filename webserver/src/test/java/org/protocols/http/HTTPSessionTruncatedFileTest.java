@@ -0,0 +1,163 @@
+package org.protocols.http;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.protocols.http.response.Response;
+import org.protocols.http.response.Status;
+import org.protocols.http.tempfiles.DefaultTempFileManager;
+import org.util.IHandler;
+
+/**
+ * A file that gets shorter while its response is sent must not leave the
+ * connection open: the client was promised the full length and would read
+ * the next response as body.
+ */
+public class HTTPSessionTruncatedFileTest {
+
+    private static final int LENGTH = 10000;
+
+    private static final int TRUNCATED_LENGTH = 100;
+
+    private final List<String> handled = new ArrayList<String>();
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    private File file;
+
+    private NanoHTTPD httpd;
+
+    @Before
+    public void setUp() throws IOException {
+        this.file = File.createTempFile("truncated", ".bin");
+        FileOutputStream out = new FileOutputStream(this.file);
+        try {
+            out.write(new byte[LENGTH]);
+        } finally {
+            out.close();
+        }
+        this.httpd = new NanoHTTPD(0) {
+        };
+        this.httpd.setHTTPHandler(new IHandler<IHTTPSession, Response>() {
+
+            @Override
+            public Response handle(IHTTPSession session) {
+                handled.add(session.getUri());
+                if (!"/file".equals(session.getUri())) {
+                    return Response.newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_PLAINTEXT, "text");
+                }
+                try {
+                    Response response = Response.newFileChannelResponse(Status.OK, "application/octet-stream", file, 0, LENGTH);
+                    // shortened after the length was taken
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    try {
+                        raf.setLength(TRUNCATED_LENGTH);
+                    } finally {
+                        raf.close();
+                    }
+                    return response;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    private static String get(String uri) {
+        return "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    private void exchange(HTTPSession session) throws IOException {
+        try {
+            for (int i = 0; i < 4; i++) {
+                session.execute();
+            }
+        } catch (SocketException e) {
+            // connection closed
+        }
+    }
+
+    private void assertConnectionDropped() throws IOException {
+        String sent = this.output.toString("US-ASCII");
+        // the first pipelined response went out before the connection was
+        // dropped, nothing after the broken one
+        assertEquals(Arrays.asList("/first", "/file"), this.handled);
+        assertTrue(sent.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(sent.contains("text"));
+        int fileHead = sent.indexOf("HTTP/1.1 200 OK", 1);
+        assertTrue(fileHead > 0);
+        assertEquals(-1, sent.indexOf("HTTP/1.1", fileHead + 1));
+        assertTrue(sent.contains("Content-Length: " + LENGTH));
+        assertTrue(sent.length() - sent.indexOf("\r\n\r\n", fileHead) - 4 < LENGTH);
+    }
+
+    private ByteArrayInputStream requests() throws IOException {
+        return new ByteArrayInputStream((get("/first") + get("/file") + get("/next")).getBytes("US-ASCII"));
+    }
+
+    @Test
+    public void testTruncatedFileDropsConnection() throws IOException {
+        exchange(new HTTPSession(this.httpd, new DefaultTempFileManager(), requests(), this.output));
+        assertConnectionDropped();
+    }
+
+    @Test
+    public void testTruncatedZeroCopyFileDropsConnection() throws IOException {
+        exchange(new HTTPSession(this.httpd, new DefaultTempFileManager(), requests(), this.output, InetAddress.getLoopbackAddress(), Channels.newChannel(this.output)));
+        assertConnectionDropped();
+    }
+}
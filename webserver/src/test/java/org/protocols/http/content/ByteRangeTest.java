@@ -0,0 +1,142 @@
+package org.protocols.http.content;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+    private static String parse(String header, long length) {
+        List<ByteRange> ranges = ByteRange.parse(header, length);
+        return ranges == null ? null : ranges.toString();
+    }
+
+    @Test
+    public void testClosedRange() {
+        assertEquals("[0-499]", parse("bytes=0-499", 10000));
+        assertEquals("[500-999]", parse("bytes=500-999", 10000));
+    }
+
+    @Test
+    public void testOpenEndedRange() {
+        assertEquals("[9500-9999]", parse("bytes=9500-", 10000));
+        assertEquals("[0-9999]", parse("bytes=0-", 10000));
+    }
+
+    @Test
+    public void testSuffixRange() {
+        assertEquals("[9500-9999]", parse("bytes=-500", 10000));
+        // longer than the representation: all of it
+        assertEquals("[0-9999]", parse("bytes=-20000", 10000));
+    }
+
+    @Test
+    public void testLastBytePositionIsClipped() {
+        assertEquals("[9000-9999]", parse("bytes=9000-20000", 10000));
+    }
+
+    @Test
+    public void testWhitespaceAndUnitCase() {
+        assertEquals("[0-9, 20-29]", parse(" Bytes=0-9 , 20-29 ", 100));
+        assertEquals("[0-9, 20-29]", parse("bytes=0-9, ,20-29", 100));
+    }
+
+    @Test
+    public void testMultipleRangesAreSorted() {
+        assertEquals("[0-9, 50-59, 90-99]", parse("bytes=90-99,0-9,50-59", 100));
+    }
+
+    @Test
+    public void testOverlappingRangesAreCoalesced() {
+        assertEquals("[0-59]", parse("bytes=0-29,20-59", 100));
+        assertEquals("[0-59]", parse("bytes=20-59,0-29", 100));
+        assertEquals("[10-19]", parse("bytes=10-19,12-15", 100));
+    }
+
+    @Test
+    public void testAdjacentRangesAreCoalesced() {
+        assertEquals("[0-19]", parse("bytes=0-9,10-19", 100));
+        assertEquals("[0-9, 11-19]", parse("bytes=0-9,11-19", 100));
+    }
+
+    @Test
+    public void testSuffixRangeCoalescesWithOthers() {
+        assertEquals("[0-9, 90-99]", parse("bytes=0-9,-10", 100));
+        assertEquals("[80-99]", parse("bytes=80-95,-10", 100));
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        assertEquals("[]", parse("bytes=100-199", 100));
+        assertEquals("[]", parse("bytes=-0", 100));
+        assertEquals("[]", parse("bytes=-10", 0));
+        // the satisfiable ones are kept
+        assertEquals("[0-9]", parse("bytes=0-9,200-299", 100));
+    }
+
+    @Test
+    public void testInvalidHeadersAreIgnored() {
+        assertNull(parse(null, 100));
+        assertNull(parse("items=0-9", 100));
+        assertNull(parse("bytes=", 100));
+        assertNull(parse("bytes=10-5", 100));
+        assertNull(parse("bytes=abc-def", 100));
+        assertNull(parse("bytes=5", 100));
+        assertNull(parse("bytes=--5", 100));
+        assertNull(parse("bytes=0-9,x", 100));
+        assertNull(parse("bytes=+1-5", 100));
+    }
+
+    @Test
+    public void testTooManyRangesAreIgnored() {
+        StringBuilder header = new StringBuilder("bytes=");
+        for (int i = 0; i <= ByteRange.MAX_RANGES; i++) {
+            header.append(i * 10).append('-').append(i * 10 + 4).append(',');
+        }
+        assertNull(ByteRange.parse(header.toString(), 100000));
+    }
+
+    @Test
+    public void testContentRange() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=-500", 10000);
+        assertEquals(1, ranges.size());
+        assertEquals("bytes 9500-9999/10000", ranges.get(0).toContentRange(10000));
+        assertEquals(500, ranges.get(0).getLength());
+    }
+}
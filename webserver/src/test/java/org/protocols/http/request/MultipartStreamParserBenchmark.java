@@ -0,0 +1,130 @@
+package org.protocols.http.request;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.protocols.http.NanoHTTPD.ResponseException;
+import org.protocols.http.content.ContentType;
+import org.protocols.http.tempfiles.DefaultTempFileManager;
+
+/**
+ * Parses an upload form with a few fields and one file part, the boundary
+ * search that replaced <code>getBoundaryPositions</code>. The file data is
+ * random, so the delimiter search cannot skip ahead on long runs of equal
+ * bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartStreamParserBenchmark {
+
+    static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @Param({
+        "65536",
+        "4194304"
+    })
+    public int fileSize;
+
+    private final DefaultTempFileManager tempFileManager = new DefaultTempFileManager();
+
+    private final ContentType contentType = new ContentType("multipart/form-data; boundary=" + BOUNDARY);
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] file = new byte[this.fileSize];
+        new Random(42).nextBytes(file);
+        this.body = form(file);
+    }
+
+    /**
+     * @return a form body with three fields and the file as the part
+     *         <code>upload</code>.
+     */
+    static byte[] form(byte[] file) throws IOException {
+        Charset ascii = Charset.forName("US-ASCII");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(file.length + 1024);
+        for (String field : new String[]{
+            "title",
+            "album",
+            "comment"
+        }) {
+            out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + field + "\"\r\n\r\nvalue of " + field + "\r\n").getBytes(ascii));
+        }
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"upload\"; filename=\"clip.mp4\"\r\nContent-Type: video/mp4\r\n\r\n").getBytes(ascii));
+        out.write(file);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(ascii));
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Map<String, String> parse() throws IOException, ResponseException {
+        Map<String, List<String>> parms = new HashMap<String, List<String>>();
+        Map<String, String> files = new HashMap<String, String>();
+        new MultipartStreamParser(this.tempFileManager, this.contentType).parse(new ByteArrayInputStream(this.body), this.body.length, parms, files);
+        return files;
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTempFiles() {
+        this.tempFileManager.clear();
+    }
+}
@@ -0,0 +1,159 @@
+package org.protocols.http.request;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.protocols.http.NanoHTTPD.ResponseException;
+import org.protocols.http.content.ContentType;
+import org.protocols.http.tempfiles.DefaultTempFileManager;
+
+/**
+ * Uploads one large file through {@link MultipartStreamParser}, 1 GiB by
+ * default. The body is generated while it is read, so only the temp file
+ * the part is written to takes space; the time includes writing it.
+ * <p/>
+ * <p>
+ * Run with <code>java -cp &lt;test classpath&gt; org.openjdk.jmh.Main
+ * MultipartUploadBenchmark</code>; <code>-p fileSize=...</code> picks
+ * another size.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class MultipartUploadBenchmark {
+
+    @Param("1073741824")
+    public long fileSize;
+
+    private final DefaultTempFileManager tempFileManager = new DefaultTempFileManager();
+
+    private final ContentType contentType = new ContentType("multipart/form-data; boundary=" + MultipartStreamParserBenchmark.BOUNDARY);
+
+    /**
+     * A form with a single file part whose data repeats a block of random
+     * bytes.
+     */
+    private static final class SyntheticUpload extends InputStream {
+
+        private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+        private static final byte[] BLOCK = new byte[64 * 1024];
+
+        static {
+            new Random(42).nextBytes(BLOCK);
+        }
+
+        private final byte[] head = ("--" + MultipartStreamParserBenchmark.BOUNDARY
+                + "\r\nContent-Disposition: form-data; name=\"upload\"; filename=\"clip.mp4\"\r\nContent-Type: video/mp4\r\n\r\n").getBytes(US_ASCII);
+
+        private final byte[] tail = ("\r\n--" + MultipartStreamParserBenchmark.BOUNDARY + "--\r\n").getBytes(US_ASCII);
+
+        private final long fileSize;
+
+        private long position;
+
+        SyntheticUpload(long fileSize) {
+            this.fileSize = fileSize;
+        }
+
+        long length() {
+            return this.head.length + this.fileSize + this.tail.length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            long fileEnd = this.head.length + this.fileSize;
+            int count;
+            if (this.position < this.head.length) {
+                count = Math.min(len, this.head.length - (int) this.position);
+                System.arraycopy(this.head, (int) this.position, b, off, count);
+            } else if (this.position < fileEnd) {
+                int blockOffset = (int) ((this.position - this.head.length) % BLOCK.length);
+                count = (int) Math.min(Math.min(len, BLOCK.length - blockOffset), fileEnd - this.position);
+                System.arraycopy(BLOCK, blockOffset, b, off, count);
+            } else if (this.position < length()) {
+                count = Math.min(len, (int) (length() - this.position));
+                System.arraycopy(this.tail, (int) (this.position - fileEnd), b, off, count);
+            } else {
+                return -1;
+            }
+            this.position += count;
+            return count;
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> upload() throws IOException, ResponseException {
+        Map<String, List<String>> parms = new HashMap<String, List<String>>();
+        Map<String, String> files = new HashMap<String, String>();
+        SyntheticUpload body = new SyntheticUpload(this.fileSize);
+        new MultipartStreamParser(this.tempFileManager, this.contentType).parse(body, body.length(), parms, files);
+        return files;
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTempFiles() {
+        this.tempFileManager.clear();
+    }
+}
@@ -0,0 +1,140 @@
+package org.protocols.http.request;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.protocols.http.NanoHTTPD;
+import org.protocols.http.NanoHTTPD.ResponseException;
+
+/**
+ * Parses the head of a range request as a DLNA renderer sends it, on one
+ * parser as a keep-alive connection does, and with the
+ * <code>decodeHeader</code> path of <code>HTTPSession</code> the parser
+ * replaced.
+ * <p/>
+ * <p>
+ * Run with <code>java -cp &lt;test classpath&gt; org.openjdk.jmh.Main
+ * RequestHeadParserBenchmark</code>, add <code>-prof gc</code> for the
+ * allocations per request.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHeadParserBenchmark {
+
+    static final String HEAD = "GET /videos/holiday%202016/clip-01.mp4 HTTP/1.1\r\n" //
+            + "Host: 192.168.1.20:8080\r\n" //
+            + "User-Agent: UPnP/1.0 DLNADOC/1.50 Platinum/1.0.4.11\r\n" //
+            + "Accept: */*\r\n" //
+            + "Accept-Encoding: gzip, deflate\r\n" //
+            + "Range: bytes=1048576-2097151\r\n" //
+            + "getcontentFeatures.dlna.org: 1\r\n" //
+            + "transferMode.dlna.org: Streaming\r\n" //
+            + "Connection: keep-alive\r\n" //
+            + "\r\n";
+
+    private final RequestHeadParser parser = new RequestHeadParser(8192);
+
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    private byte[] head;
+
+    private int length;
+
+    @Setup
+    public void setUp() {
+        this.head = HEAD.getBytes(Charset.forName("US-ASCII"));
+        System.arraycopy(this.head, 0, this.parser.getBuffer(), 0, this.head.length);
+        this.length = this.head.length;
+    }
+
+    @Benchmark
+    public Map<String, String> parse() throws ResponseException {
+        this.headers.clear();
+        this.parser.parse(this.length, this.headers);
+        return this.headers;
+    }
+
+    /**
+     * The former path: a new read buffer per request, decoded through a
+     * reader chain and tokenized, the URI percent-decoded right away and the
+     * Connection header matched with a regular expression.
+     */
+    @Benchmark
+    public boolean decodeHeader() throws IOException {
+        byte[] buf = new byte[8192];
+        System.arraycopy(this.head, 0, buf, 0, this.length);
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, this.length)));
+        Map<String, String> pre = new HashMap<String, String>();
+        Map<String, String> headers = new HashMap<String, String>();
+        StringTokenizer st = new StringTokenizer(in.readLine());
+        pre.put("method", st.nextToken());
+        pre.put("uri", NanoHTTPD.decodePercent(st.nextToken()));
+        String protocolVersion = st.nextToken();
+        String line = in.readLine();
+        while (line != null && !line.trim().isEmpty()) {
+            int p = line.indexOf(':');
+            if (p >= 0) {
+                headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
+            }
+            line = in.readLine();
+        }
+        String connection = headers.get("connection");
+        return "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
+    }
+}
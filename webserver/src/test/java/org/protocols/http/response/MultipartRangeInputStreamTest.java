@@ -0,0 +1,102 @@
+package org.protocols.http.response;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.protocols.http.content.ByteRange;
+
+public class MultipartRangeInputStreamTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        this.file = File.createTempFile("ranges", ".txt");
+        FileOutputStream out = new FileOutputStream(this.file);
+        try {
+            for (int i = 0; i < 100; i++) {
+                out.write('0' + i % 10);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    private static String readAll(MultipartRangeInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void testParts() throws IOException {
+        List<ByteRange> ranges = ByteRange.parse("bytes=90-,0-4,2-6", 100);
+        MultipartRangeInputStream in = new MultipartRangeInputStream(this.file, "text/plain", 100, ranges);
+        String boundary = in.getContentType().substring("multipart/byteranges; boundary=".length());
+        long contentLength = in.getContentLength();
+        String body = readAll(in);
+        assertEquals("\r\n--" + boundary + "\r\n" //
+                + "Content-Type: text/plain\r\n" //
+                + "Content-Range: bytes 0-6/100\r\n" //
+                + "\r\n" //
+                + "0123456" //
+                + "\r\n--" + boundary + "\r\n" //
+                + "Content-Type: text/plain\r\n" //
+                + "Content-Range: bytes 90-99/100\r\n" //
+                + "\r\n" //
+                + "0123456789" //
+                + "\r\n--" + boundary + "--\r\n", body);
+        assertEquals(body.length(), contentLength);
+    }
+}
@@ -0,0 +1,121 @@
+package org.protocols.http.response;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.protocols.http.request.Method;
+
+/**
+ * Creates and sends small responses: the head of a range response to a
+ * HEAD probe and a short text body, the responses a renderer fetching many
+ * small ranges causes. Add <code>-prof gc</code> for the allocations per
+ * response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    /**
+     * Discards what would go to the socket.
+     */
+    private static final class Sink extends OutputStream {
+
+        private final Blackhole blackhole;
+
+        Sink(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            this.blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.blackhole.consume(len);
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private Sink sink;
+
+    @Benchmark
+    public Response rangeHead(Blackhole blackhole) {
+        Response response = Response.newFixedLengthResponse(Status.PARTIAL_CONTENT, "video/mp4", new ByteArrayInputStream(EMPTY), 1048576);
+        response.setRequestMethod(Method.HEAD);
+        response.addHeader("Content-Range", "bytes 1048576-2097151/734003200");
+        response.addHeader("Accept-Ranges", "bytes");
+        response.addHeader("ETag", "\"5f1d7a3b-2bc00000\"");
+        response.addHeader("Keep-Alive", "timeout=5, max=99");
+        response.setKeepAlive(true);
+        response.setUseGzip(false);
+        response.send(sink(blackhole));
+        return response;
+    }
+
+    @Benchmark
+    public Response text(Blackhole blackhole) {
+        Response response = Response.newFixedLengthResponse(Status.OK, "text/plain; charset=utf-8", "Hello, renderer!");
+        response.setKeepAlive(true);
+        response.setUseGzip(false);
+        response.send(sink(blackhole));
+        return response;
+    }
+
+    private Sink sink(Blackhole blackhole) {
+        if (this.sink == null) {
+            this.sink = new Sink(blackhole);
+        }
+        return this.sink;
+    }
+}
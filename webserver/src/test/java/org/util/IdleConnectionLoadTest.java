@@ -0,0 +1,207 @@
+package org.util;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.nanohttpd.webserver.SimpleWebServer;
+import org.protocols.http.NanoHTTPD;
+import org.protocols.http.threading.VirtualThreadAsyncRunner;
+
+/**
+ * Load test for idle keep-alive connections, run from the command line.
+ * <p/>
+ * <p>
+ * Starts a {@link SimpleWebServer} on loopback and opens
+ * <code>--connections</code> keep-alive connections to it from a single
+ * thread, each sending one HEAD request. They are then left idle for
+ * <code>--hold</code> seconds, the socket timeout of the server is set
+ * longer, before every connection sends a second HEAD. Printed are the
+ * threads the process runs while the connections are idle and how many
+ * connections still answered. With <code>--selector</code> idle connections
+ * are parked in the selector of the server; without it each one holds a
+ * handler thread, a virtual one with <code>--virtual-threads</code> where
+ * the JVM has them.
+ * </p>
+ * <p>
+ * Every <code>--step</code> connections a line with the threads, the heap
+ * in use after a GC and the resident set size of the process (Linux only)
+ * is printed, to compare the memory per connection of the engines.
+ * </p>
+ */
+public class IdleConnectionLoadTest {
+
+    private static final byte[] HEAD = "HEAD /video-0.ts HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+
+    public static void main(String[] args) throws Exception {
+        int connections = 2000;
+        int hold = 10;
+        int step = 500;
+        boolean useSelector = false;
+        boolean useVirtualThreads = false;
+        for (int i = 0; i < args.length; ++i) {
+            if ("--connections".equalsIgnoreCase(args[i])) {
+                connections = Integer.parseInt(args[i + 1]);
+            } else if ("--hold".equalsIgnoreCase(args[i])) {
+                hold = Integer.parseInt(args[i + 1]);
+            } else if ("--step".equalsIgnoreCase(args[i])) {
+                step = Integer.parseInt(args[i + 1]);
+            } else if ("--selector".equalsIgnoreCase(args[i])) {
+                useSelector = true;
+            } else if ("--virtual-threads".equalsIgnoreCase(args[i])) {
+                useVirtualThreads = true;
+            }
+        }
+
+        File root = LoadGenerator.createMediaTree(1, 64 * 1024);
+        SimpleWebServer server = new SimpleWebServer("127.0.0.1", 0, root, true);
+        server.setUseSelector(useSelector);
+        String engine = useSelector ? "selector" : "thread per connection";
+        if (useVirtualThreads) {
+            VirtualThreadAsyncRunner runner = new VirtualThreadAsyncRunner(connections + 16);
+            server.setAsyncRunner(runner);
+            engine = runner.isVirtual() ? "virtual thread per connection" : "thread per connection (no virtual threads in this JVM)";
+        }
+        server.start((hold + 30) * 1000, true);
+        List<Socket> open = new ArrayList<Socket>(connections);
+        try {
+            int threadsBefore = Thread.activeCount();
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getListeningPort());
+            System.out.println(engine);
+            System.out.println("connections    threads   heap MiB    RSS MiB");
+            printMemory(0);
+            long start = System.nanoTime();
+            int failed = 0;
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(address, 5000);
+                    socket.setSoTimeout(30000);
+                    head(socket);
+                    open.add(socket);
+                } catch (IOException e) {
+                    NanoHTTPD.safeClose(socket);
+                    failed++;
+                }
+                if ((i + 1) % step == 0) {
+                    printMemory(open.size());
+                }
+            }
+            long openMillis = (System.nanoTime() - start) / 1000000;
+            System.out.println("opened " + open.size() + " connections in " + openMillis + " ms, " + failed
+                    + " failed");
+
+            Thread.sleep(hold * 1000L);
+            System.out.println("threads while idle: " + Thread.activeCount() + " (" + threadsBefore + " before)");
+
+            int answered = 0;
+            start = System.nanoTime();
+            for (Socket socket : open) {
+                try {
+                    head(socket);
+                    answered++;
+                } catch (IOException e) {
+                    // closed by the server
+                }
+            }
+            long againMillis = (System.nanoTime() - start) / 1000000;
+            System.out.println("after " + hold + " s idle: " + answered + " of " + open.size() + " connections answered in " + againMillis + " ms");
+        } finally {
+            for (Socket socket : open) {
+                NanoHTTPD.safeClose(socket);
+            }
+            server.stop();
+            LoadGenerator.deleteTree(root);
+        }
+    }
+
+    /**
+     * Sends a HEAD request and reads the response head, without any buffers
+     * that would count against the memory of the server.
+     */
+    private static void head(Socket socket) throws IOException {
+        socket.getOutputStream().write(HEAD);
+        InputStream in = socket.getInputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int c = in.read();
+            if (c < 0) {
+                throw new EOFException("connection closed by the server");
+            }
+            matched = c == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : c == '\r' ? 1 : 0;
+        }
+    }
+
+    private static void printMemory(int connections) {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        long rss = residentSetSize();
+        System.out.println(String.format(Locale.US, "%11d %10d %10.1f %10s", connections, Thread.activeCount(), heap / 1048576.0,
+                rss < 0 ? "-" : String.format(Locale.US, "%.1f", rss / 1048576.0)));
+    }
+
+    /**
+     * @return the resident set size of the process in bytes, -1 where
+     *         <code>/proc</code> does not tell.
+     */
+    private static long residentSetSize() {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader("/proc/self/status"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // not Linux
+        } finally {
+            NanoHTTPD.safeClose(in);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,541 @@
+package org.util;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nanohttpd.webserver.SimpleWebServer;
+import org.protocols.http.ConnectionRegistry;
+import org.protocols.http.NanoHTTPD;
+import org.protocols.http.metrics.Histogram;
+import org.protocols.http.metrics.StripedCounter;
+
+/**
+ * Load generator for the web server, run from the command line.
+ * <p/>
+ * <p>
+ * Unless <code>--port</code> points it at a running server, it writes a
+ * media tree into a temporary directory, starts a {@link SimpleWebServer}
+ * on loopback and drives it with a mix of clients, each on its own thread
+ * and keep-alive connection:
+ * </p>
+ * <ul>
+ * <li><code>--full N</code>: sequential GETs of whole video files,</li>
+ * <li><code>--seek N</code>: GETs of random ranges, as a scrubbing renderer
+ * issues them,</li>
+ * <li><code>--head N</code>: HEAD probes of videos and thumbnails,</li>
+ * <li><code>--idle N</code>: connections that send a HEAD every few seconds
+ * and otherwise hold their connection open.</li>
+ * </ul>
+ * <p>
+ * After <code>--warmup</code> seconds, requests are measured for
+ * <code>--duration</code> seconds; throughput and p50/p99/p999 latency are
+ * printed per client kind. Latency is the time from writing the request to
+ * reading the last body byte.
+ * </p>
+ * <p>
+ * A running server must serve <code>/video-N.ts</code> of
+ * <code>--video-size</code> MiB and <code>/video-N.jpg</code> for every N
+ * below <code>--videos</code>.
+ * </p>
+ */
+public class LoadGenerator {
+
+    private static final int SEEK_LENGTH = 256 * 1024;
+
+    private static final int THUMBNAIL_SIZE = 16 * 1024;
+
+    private static final long IDLE_INTERVAL = 2000;
+
+    /**
+     * The kinds of clients, in report order.
+     */
+    enum Kind {
+        FULL,
+        SEEK,
+        HEAD,
+        IDLE
+    }
+
+    /**
+     * Measurements of one kind of client.
+     */
+    static final class Stats {
+
+        final Histogram latency = new Histogram();
+
+        final StripedCounter bytes = new StripedCounter();
+
+        final StripedCounter errors = new StripedCounter();
+
+        final StripedCounter reconnects = new StripedCounter();
+    }
+
+    /**
+     * Keep-alive HTTP/1.1 connection to the server, reading responses just
+     * far enough to discard their bodies.
+     */
+    static final class Connection {
+
+        private final InetSocketAddress address;
+
+        private Socket socket;
+
+        private InputStream in;
+
+        private OutputStream out;
+
+        private final byte[] buffer = new byte[64 * 1024];
+
+        private final StringBuilder line = new StringBuilder();
+
+        Connection(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * @return true if a new socket had to be opened.
+         */
+        boolean connect() throws IOException {
+            if (this.socket != null && !this.socket.isClosed()) {
+                return false;
+            }
+            this.socket = new Socket();
+            this.socket.setTcpNoDelay(true);
+            this.socket.setSoTimeout(30000);
+            this.socket.connect(this.address, 5000);
+            this.in = new BufferedInputStream(this.socket.getInputStream(), 16 * 1024);
+            this.out = this.socket.getOutputStream();
+            return true;
+        }
+
+        /**
+         * Sends a request and reads the response.
+         *
+         * @param range
+         *            value of the Range header, null for none.
+         * @return number of body bytes read.
+         */
+        long request(String method, String path, String range) throws IOException {
+            StringBuilder request = new StringBuilder(128);
+            request.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(this.address.getHostName()).append("\r\n");
+            if (range != null) {
+                request.append("Range: ").append(range).append("\r\n");
+            }
+            request.append("\r\n");
+            this.out.write(request.toString().getBytes("US-ASCII"));
+            this.out.flush();
+
+            String statusLine = readLine();
+            if (statusLine == null) {
+                throw new EOFException("connection closed by the server");
+            }
+            if (!statusLine.startsWith("HTTP/1.")) {
+                throw new IOException("no response: " + statusLine);
+            }
+            int status = Integer.parseInt(statusLine.substring(9, 12));
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean close = false;
+            String header;
+            while ((header = readLine()) != null && header.length() > 0) {
+                int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = header.substring(colon + 1).trim();
+                if ("content-length".equals(name)) {
+                    contentLength = Long.parseLong(value);
+                } else if ("transfer-encoding".equals(name)) {
+                    chunked = value.toLowerCase(Locale.US).contains("chunked");
+                } else if ("connection".equals(name)) {
+                    close = "close".equalsIgnoreCase(value);
+                }
+            }
+            long read = 0;
+            if ("HEAD".equals(method) || status == 204 || status == 304) {
+                read = 0;
+            } else if (chunked) {
+                long size;
+                while ((size = Long.parseLong(readLine().trim().split(";")[0], 16)) > 0) {
+                    read += skip(size);
+                    readLine();
+                }
+                while ((header = readLine()) != null && header.length() > 0) {
+                    // trailers
+                }
+            } else if (contentLength >= 0) {
+                read = skip(contentLength);
+            } else {
+                read = skip(Long.MAX_VALUE);
+                close = true;
+            }
+            if (close) {
+                close();
+            }
+            if (status >= 400) {
+                throw new IOException(statusLine);
+            }
+            return read;
+        }
+
+        private long skip(long length) throws IOException {
+            long skipped = 0;
+            while (skipped < length) {
+                int read = this.in.read(this.buffer, 0, (int) Math.min(this.buffer.length, length - skipped));
+                if (read < 0) {
+                    if (length == Long.MAX_VALUE) {
+                        break;
+                    }
+                    throw new IOException("body ended after " + skipped + " of " + length + " bytes");
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        private String readLine() throws IOException {
+            this.line.setLength(0);
+            int c;
+            while ((c = this.in.read()) >= 0) {
+                if (c == '\n') {
+                    int length = this.line.length();
+                    if (length > 0 && this.line.charAt(length - 1) == '\r') {
+                        this.line.setLength(length - 1);
+                    }
+                    return this.line.toString();
+                }
+                this.line.append((char) c);
+            }
+            return this.line.length() > 0 ? this.line.toString() : null;
+        }
+
+        void close() {
+            NanoHTTPD.safeClose(this.socket);
+            this.socket = null;
+        }
+    }
+
+    private final InetSocketAddress address;
+
+    private final List<String> videos;
+
+    private final long videoSize;
+
+    private final List<String> thumbnails;
+
+    private final Stats[] stats = new Stats[Kind.values().length];
+
+    private final AtomicLong seed = new AtomicLong(42);
+
+    private volatile boolean measuring;
+
+    private volatile boolean running = true;
+
+    LoadGenerator(InetSocketAddress address, List<String> videos, long videoSize, List<String> thumbnails) {
+        this.address = address;
+        this.videos = videos;
+        this.videoSize = videoSize;
+        this.thumbnails = thumbnails;
+        for (int i = 0; i < this.stats.length; i++) {
+            this.stats[i] = new Stats();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = -1;
+        int full = 2;
+        int seek = 4;
+        int head = 2;
+        int idle = 100;
+        int warmup = 2;
+        int duration = 10;
+        int videoCount = 4;
+        long videoSize = 32L * 1024 * 1024;
+        boolean useSelector = false;
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("-h".equalsIgnoreCase(args[i]) || "--host".equalsIgnoreCase(args[i])) {
+                host = args[i + 1];
+            } else if ("-p".equalsIgnoreCase(args[i]) || "--port".equalsIgnoreCase(args[i])) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if ("--full".equalsIgnoreCase(args[i])) {
+                full = Integer.parseInt(args[i + 1]);
+            } else if ("--seek".equalsIgnoreCase(args[i])) {
+                seek = Integer.parseInt(args[i + 1]);
+            } else if ("--head".equalsIgnoreCase(args[i])) {
+                head = Integer.parseInt(args[i + 1]);
+            } else if ("--idle".equalsIgnoreCase(args[i])) {
+                idle = Integer.parseInt(args[i + 1]);
+            } else if ("--warmup".equalsIgnoreCase(args[i])) {
+                warmup = Integer.parseInt(args[i + 1]);
+            } else if ("--duration".equalsIgnoreCase(args[i])) {
+                duration = Integer.parseInt(args[i + 1]);
+            } else if ("--videos".equalsIgnoreCase(args[i])) {
+                videoCount = Integer.parseInt(args[i + 1]);
+            } else if ("--video-size".equalsIgnoreCase(args[i])) {
+                videoSize = Long.parseLong(args[i + 1]) * 1024 * 1024;
+            } else if ("--selector".equalsIgnoreCase(args[i])) {
+                useSelector = true;
+            }
+        }
+
+        List<String> videos = new ArrayList<String>();
+        List<String> thumbnails = new ArrayList<String>();
+        for (int i = 0; i < videoCount; i++) {
+            videos.add("/video-" + i + ".ts");
+            thumbnails.add("/video-" + i + ".jpg");
+        }
+
+        File root = null;
+        SimpleWebServer server = null;
+        if (port < 0) {
+            root = createMediaTree(videoCount, videoSize);
+            server = new SimpleWebServer(host, 0, root, true);
+            server.setUseSelector(useSelector);
+            // all clients share one address
+            int clients = full + seek + head + idle;
+            server.setConnectionRegistry(new ConnectionRegistry(Math.max(clients, ConnectionRegistry.DEFAULT_CAPACITY)));
+            server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+            port = server.getListeningPort();
+            System.out.println("Serving " + videoCount + " videos of " + (videoSize >> 20) + " MiB from " + root + " on port " + port);
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port), videos, videoSize, thumbnails);
+            generator.run(full, seek, head, idle, warmup, duration);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+            if (root != null) {
+                deleteTree(root);
+            }
+        }
+    }
+
+    void run(int full, int seek, int head, int idle, int warmup, int duration) throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        int[] counts = {
+            full,
+            seek,
+            head,
+            idle
+        };
+        for (Kind kind : Kind.values()) {
+            for (int i = 0; i < counts[kind.ordinal()]; i++) {
+                Thread thread = new Thread(client(kind), "LoadGenerator " + kind + " #" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+        Thread.sleep(warmup * 1000L);
+        this.measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(duration * 1000L);
+        this.measuring = false;
+        long elapsed = System.nanoTime() - start;
+        this.running = false;
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+        report(elapsed);
+    }
+
+    private Runnable client(final Kind kind) {
+        final Random random = new Random(this.seed.incrementAndGet());
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                Connection connection = new Connection(LoadGenerator.this.address);
+                int next = random.nextInt(LoadGenerator.this.videos.size());
+                while (LoadGenerator.this.running) {
+                    String method = "GET";
+                    String path;
+                    String range = null;
+                    switch (kind) {
+                        case FULL:
+                            path = LoadGenerator.this.videos.get(next++ % LoadGenerator.this.videos.size());
+                            break;
+                        case SEEK:
+                            path = LoadGenerator.this.videos.get(random.nextInt(LoadGenerator.this.videos.size()));
+                            long offset = (long) (random.nextDouble() * Math.max(1, LoadGenerator.this.videoSize - SEEK_LENGTH));
+                            range = "bytes=" + offset + "-" + (offset + SEEK_LENGTH - 1);
+                            break;
+                        default:
+                            method = "HEAD";
+                            List<String> paths = random.nextBoolean() ? LoadGenerator.this.videos : LoadGenerator.this.thumbnails;
+                            path = paths.get(random.nextInt(paths.size()));
+                            break;
+                    }
+                    execute(kind, connection, method, path, range);
+                    if (kind == Kind.IDLE) {
+                        pause(IDLE_INTERVAL / 2 + random.nextInt((int) IDLE_INTERVAL));
+                    }
+                }
+                connection.close();
+            }
+        };
+    }
+
+    private void execute(Kind kind, Connection connection, String method, String path, String range) {
+        Stats kindStats = this.stats[kind.ordinal()];
+        boolean measured = this.measuring;
+        try {
+            boolean reused = !connection.connect();
+            if (!reused && measured) {
+                kindStats.reconnects.increment();
+            }
+            long start = System.nanoTime();
+            long read;
+            try {
+                read = connection.request(method, path, range);
+            } catch (IOException e) {
+                if (!reused || !(e instanceof EOFException || e instanceof SocketException)) {
+                    throw e;
+                }
+                // the server closed the idle connection, as keep-alive
+                // allows; retry once like a browser would
+                connection.close();
+                connection.connect();
+                if (measured) {
+                    kindStats.reconnects.increment();
+                }
+                start = System.nanoTime();
+                read = connection.request(method, path, range);
+            }
+            if (measured) {
+                kindStats.latency.record(System.nanoTime() - start);
+                kindStats.bytes.add(read);
+            }
+        } catch (IOException e) {
+            connection.close();
+            if (measured) {
+                kindStats.errors.increment();
+            }
+            pause(10);
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format(Locale.US, "%-6s %10s %8s %10s %10s %10s %10s %10s %10s", "kind", "requests", "errors", "req/s", "MiB/s", "p50 ms", "p99 ms", "p999 ms", "connects"));
+        for (Kind kind : Kind.values()) {
+            Stats kindStats = this.stats[kind.ordinal()];
+            long requests = kindStats.latency.getCount();
+            System.out.println(String.format(Locale.US, "%-6s %10d %8d %10.1f %10.2f %10.3f %10.3f %10.3f %10d", kind.name().toLowerCase(Locale.US), requests, kindStats.errors.get(),
+                    requests / seconds, kindStats.bytes.get() / seconds / (1024 * 1024), millis(kindStats.latency.getQuantile(0.5)), millis(kindStats.latency.getQuantile(0.99)),
+                    millis(kindStats.latency.getQuantile(0.999)), kindStats.reconnects.get()));
+        }
+        System.out.println("Latencies are bucket upper bounds, within 25% of the measured values.");
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Writes <code>count</code> videos of random bytes, each with a
+     * thumbnail, into a new temporary directory.
+     */
+    static File createMediaTree(int count, long videoSize) throws IOException {
+        File root = File.createTempFile("loadgen", "");
+        if (!root.delete() || !root.mkdirs()) {
+            throw new IOException("cannot create " + root);
+        }
+        Random random = new Random(1);
+        byte[] block = new byte[64 * 1024];
+        for (int i = 0; i < count; i++) {
+            OutputStream out = new FileOutputStream(new File(root, "video-" + i + ".ts"));
+            try {
+                for (long written = 0; written < videoSize; written += block.length) {
+                    random.nextBytes(block);
+                    out.write(block, 0, (int) Math.min(block.length, videoSize - written));
+                }
+            } finally {
+                NanoHTTPD.safeClose(out);
+            }
+            out = new FileOutputStream(new File(root, "video-" + i + ".jpg"));
+            try {
+                random.nextBytes(block);
+                out.write(block, 0, THUMBNAIL_SIZE);
+            } finally {
+                NanoHTTPD.safeClose(out);
+            }
+        }
+        return root;
+    }
+
+    static void deleteTree(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteTree(file);
+                } else if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+        if (!dir.delete()) {
+            dir.deleteOnExit();
+        }
+    }
+}